@@ -19,19 +19,27 @@ package ai.starwhale.mlops.api;
 import ai.starwhale.mlops.api.protocol.ResponseMessage;
 import ai.starwhale.mlops.api.protocol.datastore.ListTablesRequest;
 import ai.starwhale.mlops.api.protocol.datastore.QueryTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RebalanceRequest;
 import ai.starwhale.mlops.api.protocol.datastore.RecordListVo;
 import ai.starwhale.mlops.api.protocol.datastore.ScanTableRequest;
 import ai.starwhale.mlops.api.protocol.datastore.TableNameListVo;
 import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import java.io.IOException;
+import java.io.InputStream;
 import javax.validation.Valid;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @Validated
 public interface DataStoreApi {
 
+    String PROTOBUF_MEDIA_TYPE = "application/x-protobuf";
+
     @PostMapping(value = "/datastore/listTables")
     ResponseEntity<ResponseMessage<TableNameListVo>> listTables(
             @Valid @RequestBody ListTablesRequest request);
@@ -40,11 +48,67 @@ public interface DataStoreApi {
     ResponseEntity<ResponseMessage<String>> updateTable(
             @Valid @RequestBody UpdateTableRequest request);
 
+    /**
+     * Updates a table like updateTable, but takes a serialized {@link ai.starwhale.mlops.datastore.Wal.WalEntry} as
+     * the request body, which holds values natively instead of as strings. It is meant for bulk ingestion.
+     *
+     * <p>The column indexes in the records refer to the columns in the table schema of the entry. See
+     * {@link ai.starwhale.mlops.datastore.MemoryTable#update(ai.starwhale.mlops.datastore.Wal.WalEntry)} for details.
+     */
+    @PostMapping(value = "/datastore/updateTableBinary", consumes = PROTOBUF_MEDIA_TYPE)
+    ResponseEntity<ResponseMessage<String>> updateTableBinary(InputStream body) throws IOException;
+
+    /**
+     * Queries a table.
+     *
+     * <p>If groupBy or aggregates is set, matching records are grouped by the groupBy columns and each group is
+     * returned as a record holding the groupBy values and the aggregate results, for example the number of records
+     * and the average score of each label. See {@link ai.starwhale.mlops.datastore.AggregateDesc} for the functions.
+     */
     @PostMapping(value = "/datastore/queryTable")
     ResponseEntity<ResponseMessage<RecordListVo>> queryTable(
             @Valid @RequestBody QueryTableRequest request);
 
+    /**
+     * Queries a table like queryTable, but streams the results as JSON lines without holding them in memory.
+     *
+     * <p>The first line holds the column types, each following line is a record, and the last line holds the last
+     * key. See {@link ai.starwhale.mlops.datastore.JsonLinesRecordWriter} for details.
+     */
+    @PostMapping(value = "/datastore/queryTableStream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> queryTableStream(
+            @Valid @RequestBody QueryTableRequest request);
+
     @PostMapping(value = "/datastore/scanTable")
     ResponseEntity<ResponseMessage<RecordListVo>> scanTable(
             @Valid @RequestBody ScanTableRequest request);
+
+    /**
+     * Changes the nodes of a sharded data store, moving tables between them. See
+     * {@link ai.starwhale.mlops.datastore.sharding.DataStoreSharding} for details.
+     */
+    @PostMapping(value = "/datastore/sharding/rebalance")
+    @PreAuthorize("hasAnyRole('OWNER')")
+    ResponseEntity<ResponseMessage<String>> rebalance(@Valid @RequestBody RebalanceRequest request);
+
+    /**
+     * The first phase of a rebalance, sent by the node running it to every node.
+     */
+    @PostMapping(value = "/datastore/sharding/handOff")
+    @PreAuthorize("hasAnyRole('OWNER')")
+    ResponseEntity<ResponseMessage<String>> handOff(@Valid @RequestBody RebalanceRequest request);
+
+    /**
+     * The second phase of a rebalance, sent by the node running it to every node.
+     */
+    @PostMapping(value = "/datastore/sharding/commit")
+    @PreAuthorize("hasAnyRole('OWNER')")
+    ResponseEntity<ResponseMessage<String>> commit(@Valid @RequestBody RebalanceRequest request);
+
+    /**
+     * The last phase of a rebalance, sent by the node running it to every node.
+     */
+    @PostMapping(value = "/datastore/sharding/finish")
+    @PreAuthorize("hasAnyRole('OWNER')")
+    ResponseEntity<ResponseMessage<String>> finish(@Valid @RequestBody RebalanceRequest request);
 }
@@ -21,6 +21,7 @@ import ai.starwhale.mlops.api.protocol.ResponseMessage;
 import ai.starwhale.mlops.api.protocol.datastore.ColumnDesc;
 import ai.starwhale.mlops.api.protocol.datastore.ListTablesRequest;
 import ai.starwhale.mlops.api.protocol.datastore.QueryTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RebalanceRequest;
 import ai.starwhale.mlops.api.protocol.datastore.RecordListVo;
 import ai.starwhale.mlops.api.protocol.datastore.ScanTableRequest;
 import ai.starwhale.mlops.api.protocol.datastore.TableNameListVo;
@@ -31,19 +32,35 @@ import ai.starwhale.mlops.datastore.ColumnType;
 import ai.starwhale.mlops.datastore.DataStore;
 import ai.starwhale.mlops.datastore.DataStoreQueryRequest;
 import ai.starwhale.mlops.datastore.DataStoreScanRequest;
+import ai.starwhale.mlops.datastore.JsonLinesRecordWriter;
+import ai.starwhale.mlops.datastore.RecordList;
 import ai.starwhale.mlops.datastore.TableQueryFilter;
+import ai.starwhale.mlops.datastore.Wal;
+import ai.starwhale.mlops.datastore.sharding.DataStoreSharding;
 import ai.starwhale.mlops.exception.SwValidationException;
+import com.google.common.base.Throwables;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import javax.annotation.Resource;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("${sw.controller.apiPrefix}")
@@ -54,9 +71,20 @@ public class DataStoreController implements DataStoreApi {
     @Setter
     private DataStore dataStore;
 
+    @Resource
+    @Setter
+    private DataStoreSharding sharding;
+
     public ResponseEntity<ResponseMessage<TableNameListVo>> listTables(ListTablesRequest request) {
-        return ResponseEntity.ok(
-                Code.success.asResponse(new TableNameListVo(this.dataStore.list(request.getPrefix()))));
+        var tables = this.dataStore.list(request.getPrefix());
+        if (this.sharding.isEnabled() && !this.isForwarded()) {
+            var allTables = new LinkedHashSet<>(tables);
+            for (var shard : this.sharding.getOtherShards()) {
+                allTables.addAll(shard.listTables(request).getTables());
+            }
+            tables = new ArrayList<>(allTables);
+        }
+        return ResponseEntity.ok(Code.success.asResponse(new TableNameListVo(tables)));
     }
 
     @Override
@@ -66,59 +94,145 @@ public class DataStoreController implements DataStoreApi {
                 throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE)
                         .tip("table name should not be null");
             }
-            List<Map<String, String>> records;
-            if (request.getRecords() == null) {
-                records = null;
-            } else {
-                records = request.getRecords()
-                        .stream()
-                        .map(x -> {
-                            if (x.getValues() == null) {
-                                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE)
-                                        .tip("values should not be null. " + x);
-                            }
-                            var ret = new HashMap<String, String>();
-                            for (var r : x.getValues()) {
-                                ret.put(r.getKey(), r.getValue());
-                            }
-                            return ret;
-                        })
-                        .collect(Collectors.toList());
-            }
-            this.dataStore.update(request.getTableName(), request.getTableSchemaDesc(), records);
+            this.sharding.dispatchUpdate(request.getTableName(), this.isForwarded(), shard -> {
+                shard.updateTable(request);
+                return null;
+            }, () -> {
+                this.updateTableLocally(request);
+                return null;
+            });
             return ResponseEntity.ok(Code.success.asResponse("success"));
         } catch (SwValidationException e) {
             throw e.tip("request=" + request);
         }
     }
 
+    private void updateTableLocally(UpdateTableRequest request) {
+        List<Map<String, String>> records;
+        if (request.getRecords() == null) {
+            records = null;
+        } else {
+            records = request.getRecords()
+                    .stream()
+                    .map(x -> {
+                        if (x.getValues() == null) {
+                            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE)
+                                    .tip("values should not be null. " + x);
+                        }
+                        var ret = new HashMap<String, String>();
+                        for (var r : x.getValues()) {
+                            ret.put(r.getKey(), r.getValue());
+                        }
+                        return ret;
+                    })
+                    .collect(Collectors.toList());
+        }
+        DataStoreController.waitForPersistence(
+                this.dataStore.update(request.getTableName(), request.getTableSchemaDesc(), records));
+    }
+
+    @Override
+    public ResponseEntity<ResponseMessage<String>> updateTableBinary(InputStream body) throws IOException {
+        Wal.WalEntry entry;
+        try {
+            entry = Wal.WalEntry.parseFrom(body);
+        } catch (InvalidProtocolBufferException e) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "invalid request body. " + e.getMessage());
+        }
+        if (entry.getTableName().isEmpty()) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "table name should not be empty");
+        }
+        try {
+            this.sharding.dispatchUpdate(entry.getTableName(), this.isForwarded(), shard -> {
+                shard.updateTable(entry);
+                return null;
+            }, () -> {
+                DataStoreController.waitForPersistence(this.dataStore.update(entry));
+                return null;
+            });
+            return ResponseEntity.ok(Code.success.asResponse("success"));
+        } catch (SwValidationException e) {
+            throw e.tip("table=" + entry.getTableName());
+        }
+    }
+
+    private static void waitForPersistence(CompletableFuture<Void> persisted) {
+        try {
+            // respond after the update is persisted, so that it survives a restart
+            persisted.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
     @Override
     public ResponseEntity<ResponseMessage<RecordListVo>> queryTable(QueryTableRequest request) {
         try {
-            if (request.getTableName() == null) {
-                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE)
-                        .tip("table name should not be null");
-            }
-            var recordList = this.dataStore.query(DataStoreQueryRequest.builder()
-                    .tableName(request.getTableName())
-                    .columns(DataStoreController.convertColumns(request.getColumns()))
-                    .filter(DataStoreController.convertFilter(request.getFilter()))
-                    .orderBy(request.getOrderBy())
-                    .start(request.getStart())
-                    .limit(request.getLimit())
-                    .keepNone(request.isKeepNone())
-                    .rawResult(request.isRawResult())
-                    .ignoreNonExistingTable(request.isIgnoreNonExistingTable())
-                    .build());
-            return ResponseEntity.ok(Code.success.asResponse(RecordListVo.builder()
-                    .columnTypes(recordList.getColumnTypeStringMap())
-                    .records(recordList.getRecords())
-                    .build()));
+            var req = DataStoreController.convertQueryRequest(request);
+            return ResponseEntity.ok(Code.success.asResponse(this.sharding.dispatch(request.getTableName(),
+                    this.isForwarded(),
+                    shard -> shard.queryTable(request),
+                    () -> DataStoreController.toRecordListVo(this.dataStore.query(req)))));
         } catch (SwValidationException e) {
             throw e.tip("request=" + request);
         }
     }
 
+    @Override
+    public ResponseEntity<StreamingResponseBody> queryTableStream(QueryTableRequest request) {
+        DataStoreQueryRequest req;
+        try {
+            req = DataStoreController.convertQueryRequest(request);
+        } catch (SwValidationException e) {
+            throw e.tip("request=" + request);
+        }
+        var shard = this.sharding.route(request.getTableName(), this.isForwarded());
+        if (shard != null) {
+            var input = shard.queryTableStream(request);
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_NDJSON)
+                    .body(outputStream -> {
+                        try (input) {
+                            input.transferTo(outputStream);
+                        }
+                    });
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(outputStream -> {
+                    try {
+                        this.dataStore.query(req,
+                                new JsonLinesRecordWriter(outputStream, request.isKeepNone(), request.isRawResult()));
+                    } catch (SwValidationException e) {
+                        throw e.tip("request=" + request);
+                    }
+                });
+    }
+
+    private static DataStoreQueryRequest convertQueryRequest(QueryTableRequest request) {
+        if (request.getTableName() == null) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE)
+                    .tip("table name should not be null");
+        }
+        return DataStoreQueryRequest.builder()
+                .tableName(request.getTableName())
+                .columns(DataStoreController.convertColumns(request.getColumns()))
+                .filter(DataStoreController.convertFilter(request.getFilter()))
+                .orderBy(request.getOrderBy())
+                .start(request.getStart())
+                .limit(request.getLimit())
+                .lastKey(request.getLastKey())
+                .keepNone(request.isKeepNone())
+                .rawResult(request.isRawResult())
+                .ignoreNonExistingTable(request.isIgnoreNonExistingTable())
+                .groupBy(request.getGroupBy())
+                .aggregates(request.getAggregates())
+                .build();
+    }
+
     @Override
     public ResponseEntity<ResponseMessage<RecordListVo>> scanTable(ScanTableRequest request) {
         try {
@@ -126,7 +240,7 @@ public class DataStoreController implements DataStoreApi {
                 throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE)
                         .tip("tables should not be null or empty.");
             }
-            var recordList = this.dataStore.scan(DataStoreScanRequest.builder()
+            var req = DataStoreScanRequest.builder()
                     .tables(request.getTables().stream()
                             .map(x -> {
                                 if (x == null) {
@@ -152,17 +266,69 @@ public class DataStoreController implements DataStoreApi {
                     .keepNone(request.isKeepNone())
                     .rawResult(request.isRawResult())
                     .ignoreNonExistingTable(request.isIgnoreNonExistingTable())
-                    .build());
-            return ResponseEntity.ok(Code.success.asResponse(RecordListVo.builder()
-                    .columnTypes(recordList.getColumnTypeStringMap())
-                    .records(recordList.getRecords())
-                    .lastKey(recordList.getLastKey())
-                    .build()));
+                    .build();
+            var forwarded = this.isForwarded();
+            var tableName = req.getTables().get(0).getTableName();
+            var shard = this.sharding.route(tableName, forwarded);
+            for (var table : req.getTables()) {
+                if (this.sharding.route(table.getTableName(), forwarded) != shard) {
+                    throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                            "tables of a scan should be on the same data store node, which is decided by the table "
+                                    + "name without the last part. " + table.getTableName() + " and " + tableName
+                                    + " are not");
+                }
+            }
+            return ResponseEntity.ok(Code.success.asResponse(this.sharding.dispatch(tableName,
+                    forwarded,
+                    s -> s.scanTable(request),
+                    () -> DataStoreController.toRecordListVo(this.dataStore.scan(req)))));
         } catch (SwValidationException e) {
             throw e.tip("request=" + request);
         }
     }
 
+    @Override
+    public ResponseEntity<ResponseMessage<String>> rebalance(RebalanceRequest request) {
+        this.sharding.rebalance(request.getNodes());
+        return ResponseEntity.ok(Code.success.asResponse("success"));
+    }
+
+    @Override
+    public ResponseEntity<ResponseMessage<String>> handOff(RebalanceRequest request) {
+        this.sharding.handOff(request.getNodes());
+        return ResponseEntity.ok(Code.success.asResponse("success"));
+    }
+
+    @Override
+    public ResponseEntity<ResponseMessage<String>> commit(RebalanceRequest request) {
+        this.sharding.commit(request.getNodes());
+        return ResponseEntity.ok(Code.success.asResponse("success"));
+    }
+
+    @Override
+    public ResponseEntity<ResponseMessage<String>> finish(RebalanceRequest request) {
+        this.sharding.finish(request.getNodes());
+        return ResponseEntity.ok(Code.success.asResponse("success"));
+    }
+
+    private static RecordListVo toRecordListVo(RecordList recordList) {
+        return RecordListVo.builder()
+                .columnTypes(recordList.getColumnTypeStringMap())
+                .records(recordList.getRecords())
+                .lastKey(recordList.getLastKey())
+                .build();
+    }
+
+    /**
+     * Whether the current request is forwarded by another data store node, see {@link DataStoreSharding}.
+     */
+    private boolean isForwarded() {
+        var attributes = RequestContextHolder.getRequestAttributes();
+        return attributes instanceof ServletRequestAttributes
+                && this.sharding.isForwarded(((ServletRequestAttributes) attributes).getRequest()
+                .getHeader(DataStoreSharding.FORWARDED_HEADER));
+    }
+
     private static TableQueryFilter convertFilter(TableQueryFilterDesc input) {
         if (input == null) {
             return null;
@@ -193,15 +359,23 @@ public class DataStoreController implements DataStoreApi {
             case AND:
             case OR:
             case EQUAL:
+            case NOT_EQUAL:
             case LESS:
             case LESS_EQUAL:
             case GREATER:
             case GREATER_EQUAL:
+            case PREFIX:
                 if (input.getOperands().size() != 2) {
                     throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
                             "operator '" + operator + "' should have 2 operands. " + input);
                 }
                 break;
+            case IN:
+                if (input.getOperands().size() < 2) {
+                    throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
+                            "operator 'IN' should have at least 2 operands. " + input);
+                }
+                break;
             default:
                 throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
                         "unexpected operator " + operator);
@@ -225,6 +399,7 @@ public class DataStoreController implements DataStoreApi {
                 }
                 break;
             case EQUAL:
+            case NOT_EQUAL:
             case LESS:
             case LESS_EQUAL:
             case GREATER:
@@ -232,7 +407,8 @@ public class DataStoreController implements DataStoreApi {
                 boolean hasColumn = false;
                 for (var operand : ret.getOperands()) {
                     if (operand instanceof TableQueryFilter
-                            || (operand == null && operator != TableQueryFilter.Operator.EQUAL)) {
+                            || (operand == null && operator != TableQueryFilter.Operator.EQUAL
+                            && operator != TableQueryFilter.Operator.NOT_EQUAL)) {
                         throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
                                 MessageFormat.format("unsupported operand {0} for operator {1}", operand, operator));
                     }
@@ -245,6 +421,19 @@ public class DataStoreController implements DataStoreApi {
                             "operator " + operator + " should have at least one column operand");
                 }
                 break;
+            case IN:
+            case PREFIX:
+                if (!(ret.getOperands().get(0) instanceof TableQueryFilter.Column)) {
+                    throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
+                            "the first operand of operator " + operator + " should be a column. " + input);
+                }
+                for (var operand : ret.getOperands().subList(1, ret.getOperands().size())) {
+                    if (!(operand instanceof TableQueryFilter.Constant)) {
+                        throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
+                                MessageFormat.format("unsupported operand {0} for operator {1}", operand, operator));
+                    }
+                }
+                break;
             default:
                 throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
                         "unexpected operator " + operator);
@@ -21,6 +21,7 @@ import static ai.starwhale.mlops.domain.bundle.BundleManager.BUNDLE_NAME_REGEX;
 import ai.starwhale.mlops.api.protocol.ResponseMessage;
 import ai.starwhale.mlops.api.protocol.swds.DatasetVersionVo;
 import ai.starwhale.mlops.api.protocol.swds.DatasetVo;
+import ai.starwhale.mlops.api.protocol.swds.PullLinksRequest;
 import ai.starwhale.mlops.api.protocol.swds.RevertSwdsRequest;
 import ai.starwhale.mlops.api.protocol.swds.SwDatasetInfoVo;
 import ai.starwhale.mlops.api.protocol.swds.SwdsTagRequest;
@@ -35,6 +36,8 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.validation.constraints.Pattern;
@@ -223,6 +226,7 @@ public interface DatasetApi {
             @PathVariable(name = "versionUrl") String versionUrl,
             @Parameter(name = "part_name", description = "optional, _manifest.yaml is used if not specified")
             @RequestParam(name = "part_name", required = false) String partName,
+            HttpServletRequest httpRequest,
             HttpServletResponse httpResponse);
 
     @Operation(summary = "Pull SWDS uri file contents",
@@ -232,7 +236,7 @@ public interface DatasetApi {
             value = "/project/{projectUrl}/dataset/{datasetUrl}/version/{versionUrl}/link",
             produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     @PreAuthorize("hasAnyRole('OWNER', 'MAINTAINER')")
-    void pullLinkContent(
+    CompletableFuture<ResponseEntity<byte[]>> pullLinkContent(
             @PathVariable(name = "projectUrl") String projectUrl,
             @PathVariable(name = "datasetUrl") String datasetUrl,
             @PathVariable(name = "versionUrl") String versionUrl,
@@ -244,9 +248,26 @@ public interface DatasetApi {
             @RequestParam(name = "offset", required = false) String offset,
             @Parameter(name = "size", description = "data size")
             @RequestParam(name = "size", required = false) String size,
+            HttpServletRequest httpRequest,
             HttpServletResponse httpResponse);
 
 
+    @Operation(summary = "Pull SWDS uri file contents in batch",
+            description = "Pull the contents of many links in one request. Each content in the response is prefixed "
+                    + "by its length as a big-endian 64-bit integer, in the order of the request")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "ok")})
+    @PostMapping(
+            value = "/project/{projectUrl}/dataset/{datasetUrl}/version/{versionUrl}/links",
+            produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @PreAuthorize("hasAnyRole('OWNER', 'MAINTAINER')")
+    void pullLinksContent(
+            @PathVariable(name = "projectUrl") String projectUrl,
+            @PathVariable(name = "datasetUrl") String datasetUrl,
+            @PathVariable(name = "versionUrl") String versionUrl,
+            @Valid @RequestBody PullLinksRequest pullLinksRequest,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse);
+
     @Operation(summary = "Set the tag of the dataset version")
     @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "ok")})
     @PutMapping(value = "/project/{projectUrl}/dataset/{datasetUrl}/version/{versionUrl}")
@@ -20,6 +20,7 @@ import ai.starwhale.mlops.api.protocol.Code;
 import ai.starwhale.mlops.api.protocol.ResponseMessage;
 import ai.starwhale.mlops.api.protocol.swds.DatasetVersionVo;
 import ai.starwhale.mlops.api.protocol.swds.DatasetVo;
+import ai.starwhale.mlops.api.protocol.swds.PullLinksRequest;
 import ai.starwhale.mlops.api.protocol.swds.RevertSwdsRequest;
 import ai.starwhale.mlops.api.protocol.swds.SwDatasetInfoVo;
 import ai.starwhale.mlops.api.protocol.swds.SwdsTagRequest;
@@ -28,6 +29,8 @@ import ai.starwhale.mlops.api.protocol.swds.upload.UploadResult;
 import ai.starwhale.mlops.common.IdConvertor;
 import ai.starwhale.mlops.common.PageParams;
 import ai.starwhale.mlops.common.TagAction;
+import ai.starwhale.mlops.common.util.HttpUtil;
+import ai.starwhale.mlops.common.util.ServletOutputSubscriber;
 import ai.starwhale.mlops.domain.swds.SwDatasetService;
 import ai.starwhale.mlops.domain.swds.bo.SwdsQuery;
 import ai.starwhale.mlops.domain.swds.bo.SwdsVersion;
@@ -49,13 +52,15 @@ import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Resource;
-import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -183,31 +188,61 @@ public class DatasetController implements DatasetApi {
 
     @Override
     public void pullDs(String projectUrl, String datasetUrl, String versionUrl,
-            String partName, HttpServletResponse httpResponse) {
+            String partName, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
         if (!StringUtils.hasText(datasetUrl) || !StringUtils.hasText(versionUrl)) {
             throw new StarwhaleApiException(new SwValidationException(ValidSubject.SWDS)
                     .tip("please provide name and version for the DS "), HttpStatus.BAD_REQUEST);
         }
-        swdsUploader.pull(projectUrl, datasetUrl, versionUrl, partName, httpResponse);
+        swdsUploader.pull(projectUrl, datasetUrl, versionUrl, partName, httpRequest, httpResponse);
     }
 
     @Override
-    public void pullLinkContent(String projectUrl, String datasetUrl, String versionUrl,
-            String uri, String authName, String offset, String size, HttpServletResponse httpResponse) {
+    public CompletableFuture<ResponseEntity<byte[]>> pullLinkContent(String projectUrl, String datasetUrl,
+            String versionUrl, String uri, String authName, String offset, String size, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
         if (!StringUtils.hasText(datasetUrl) || !StringUtils.hasText(versionUrl)) {
             throw new StarwhaleApiException(new SwValidationException(ValidSubject.SWDS)
                     .tip("please provide name and version for the DS "), HttpStatus.BAD_REQUEST);
         }
         SwDatasetVersionEntity datasetVersionEntity = swDatasetService.query(projectUrl, datasetUrl, versionUrl);
-        try {
-            ServletOutputStream outputStream = httpResponse.getOutputStream();
-            outputStream.write(swDatasetService.dataOf(datasetVersionEntity.getId(), uri, authName, offset, size));
-            outputStream.flush();
-        } catch (IOException e) {
-            log.error("error write data to response", e);
-            throw new SwProcessException(ErrorType.NETWORK).tip("error write data to response");
+        if (swDatasetService.sendLocalFile(datasetVersionEntity.getId(), uri, authName, offset, size, httpRequest,
+                httpResponse)) {
+            // the response is handled, which Spring MVC accepts as a null future
+            return null;
         }
+        return swDatasetService.dataOf(datasetVersionEntity.getId(), uri, authName, offset, size)
+                .thenApply(ResponseEntity::ok);
+    }
 
+    @Override
+    public void pullLinksContent(String projectUrl, String datasetUrl, String versionUrl,
+            PullLinksRequest pullLinksRequest, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        if (!StringUtils.hasText(datasetUrl) || !StringUtils.hasText(versionUrl)) {
+            throw new StarwhaleApiException(new SwValidationException(ValidSubject.SWDS)
+                    .tip("please provide name and version for the DS "), HttpStatus.BAD_REQUEST);
+        }
+        SwDatasetVersionEntity datasetVersionEntity = swDatasetService.query(projectUrl, datasetUrl, versionUrl);
+        // invalid links are rejected here, before the request is started asynchronously
+        var contents = swDatasetService.dataOf(datasetVersionEntity.getId(), pullLinksRequest.getLinks());
+        var asyncContext = httpRequest.startAsync();
+        asyncContext.setTimeout(ServletOutputSubscriber.TIMEOUT_MILLIS);
+        contents.whenComplete((content, e) -> {
+            try {
+                if (e != null) {
+                    log.error("pull links from storage failed", e);
+                    HttpUtil.error(httpResponse, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            Code.internalServerError, "pull links from storage failed: " + e.getMessage());
+                    asyncContext.complete();
+                    return;
+                }
+                httpResponse.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                httpResponse.addHeader("Content-Length", String.valueOf(content.getSize()));
+                content.getPublisher().subscribe(new ServletOutputSubscriber(asyncContext));
+            } catch (IOException ioException) {
+                log.error("pull links from storage failed", ioException);
+                asyncContext.complete();
+            }
+        });
     }
 
     @Override
@@ -16,6 +16,7 @@
 
 package ai.starwhale.mlops.api.protocol.datastore;
 
+import ai.starwhale.mlops.datastore.AggregateDesc;
 import ai.starwhale.mlops.datastore.OrderByDesc;
 import java.util.List;
 import lombok.Data;
@@ -30,7 +31,10 @@ public class QueryTableRequest {
     private TableQueryFilterDesc filter;
     private int start = -1;
     private int limit = -1;
+    private String lastKey;
     private boolean keepNone;
     private boolean rawResult;
     private boolean ignoreNonExistingTable;
+    private List<String> groupBy;
+    private List<AggregateDesc> aggregates;
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.common.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends local files as response bodies without copying them through the heap. Tomcat sends the file with sendfile
+ * after the servlet returns. Other containers get the file through {@link FileChannel#transferTo}.
+ */
+public class FileResponseUtil {
+
+    // request attributes understood by Tomcat
+    static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+
+    static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+    static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+    static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * Smaller ranges are cheaper to copy than to hand to sendfile. This is the threshold used by Tomcat's
+     * DefaultServlet.
+     */
+    public static final long SENDFILE_MIN_SIZE = 49152;
+
+    /**
+     * Sends a range of the file as the response body and sets Content-Length. The range is truncated at the end of
+     * the file. The file must not be modified until the response is completed.
+     */
+    public static void sendFile(HttpServletRequest request, HttpServletResponse response, File file, long offset,
+            long size) throws IOException {
+        var length = file.length();
+        offset = Math.min(Math.max(offset, 0), length);
+        size = size < 0 ? length - offset : Math.min(size, length - offset);
+        response.setContentLengthLong(size);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTR, offset);
+            request.setAttribute(SENDFILE_END_ATTR, offset + size);
+            return;
+        }
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var out = Channels.newChannel(response.getOutputStream());
+            while (size > 0) {
+                var n = channel.transferTo(offset, size, out);
+                if (n <= 0) {
+                    throw new EOFException(file.getAbsolutePath() + " is truncated");
+                }
+                offset += n;
+                size -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.common.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Writes published content to the response of an asynchronous request in non-blocking mode. The next chunk is only
+ * requested once the output stream is ready, so neither side blocks a thread, and the request is completed at the end.
+ * If the content fails halfway, the response is completed early and the client sees a short body.
+ *
+ * <p>The request should be started with a timeout of {@link #TIMEOUT_MILLIS}. The content is cancelled if the request
+ * times out or fails, so that a stalled storage or client does not hold the request and its connection forever.
+ */
+@Slf4j
+public class ServletOutputSubscriber implements Subscriber<ByteBuffer>, WriteListener {
+
+    public static final long TIMEOUT_MILLIS = 3600000;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream outputStream;
+
+    private Subscription subscription;
+
+    // received but not written yet
+    private ByteBuffer pending;
+
+    private boolean requested;
+
+    private boolean contentCompleted;
+
+    private boolean closed;
+
+    public ServletOutputSubscriber(AsyncContext asyncContext) throws IOException {
+        this.asyncContext = asyncContext;
+        this.outputStream = asyncContext.getResponse().getOutputStream();
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                ServletOutputSubscriber.this.onError(new TimeoutException("the response timed out"));
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                ServletOutputSubscriber.this.onError(event.getThrowable());
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    @Override
+    public synchronized void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        // the container calls onWritePossible() once the stream is ready
+        this.outputStream.setWriteListener(this);
+    }
+
+    @Override
+    public synchronized void onNext(ByteBuffer byteBuffer) {
+        this.requested = false;
+        this.pending = byteBuffer;
+        this.writePending();
+    }
+
+    /**
+     * Called either by the publisher if the content fails, or by the container if the response can not be written.
+     */
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        log.error("failed to stream the response", throwable);
+        if (this.subscription != null) {
+            this.subscription.cancel();
+        }
+        this.close();
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        this.contentCompleted = true;
+        this.writePending();
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+        this.writePending();
+    }
+
+    private void writePending() {
+        if (this.closed) {
+            return;
+        }
+        try {
+            // isReady() must be checked before each write, and onWritePossible() is called later if it is false
+            while (this.outputStream.isReady()) {
+                if (this.pending != null) {
+                    var buf = this.pending;
+                    this.pending = null;
+                    if (buf.hasArray()) {
+                        this.outputStream.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                    } else {
+                        var bytes = new byte[buf.remaining()];
+                        buf.get(bytes);
+                        this.outputStream.write(bytes);
+                    }
+                } else if (this.contentCompleted) {
+                    this.close();
+                    return;
+                } else {
+                    if (!this.requested) {
+                        this.requested = true;
+                        this.subscription.request(1);
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            this.onError(e);
+        }
+    }
+
+    private void close() {
+        if (!this.closed) {
+            this.closed = true;
+            this.asyncContext.complete();
+        }
+    }
+}
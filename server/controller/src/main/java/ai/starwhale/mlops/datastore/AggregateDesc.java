@@ -0,0 +1,68 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An aggregate function computed over the records of each group of an aggregation query.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AggregateDesc {
+
+    public enum Function {
+        /**
+         * the number of non-null values, or the number of records if no column is given
+         */
+        COUNT,
+        /**
+         * the number of distinct non-null values
+         */
+        COUNT_DISTINCT,
+        /**
+         * the sum of non-null values of an INT or FLOAT column, which is INT64 or FLOAT64 respectively
+         */
+        SUM,
+        MIN,
+        MAX,
+        /**
+         * the average of non-null values of an INT or FLOAT column as FLOAT64
+         */
+        AVG,
+    }
+
+    private Function function;
+
+    private String columnName;
+
+    /**
+     * the output column name, which is like "count(label)" if not set
+     */
+    private String alias;
+
+    public AggregateDesc(Function function, String columnName) {
+        this.function = function;
+        this.columnName = columnName;
+    }
+}
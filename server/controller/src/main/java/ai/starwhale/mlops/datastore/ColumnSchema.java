@@ -30,6 +30,7 @@ public class ColumnSchema {
     private final String name;
     private final ColumnType type;
     private final int index;
+    private final ColumnIndexType indexType;
 
     public ColumnSchema(@NonNull ColumnSchemaDesc schema, int index) {
         if (schema.getName() == null) {
@@ -48,5 +49,22 @@ public class ColumnSchema {
                     "invalid column type " + schema.getType());
         }
         this.index = index;
+        if (schema.getIndexType() == null) {
+            this.indexType = null;
+        } else {
+            try {
+                this.indexType = ColumnIndexType.valueOf(schema.getIndexType().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "invalid index type " + schema.getIndexType());
+            }
+        }
+    }
+
+    ColumnSchema(String name, ColumnType type, int index, ColumnIndexType indexType) {
+        this.name = name;
+        this.type = type;
+        this.index = index;
+        this.indexType = indexType;
     }
 }
@@ -27,4 +27,11 @@ public class ColumnSchemaDesc {
 
     private String name;
     private String type;
+    // SORTED or HASH. null means the column is not indexed
+    private String indexType;
+
+    public ColumnSchemaDesc(String name, String type) {
+        this.name = name;
+        this.type = type;
+    }
 }
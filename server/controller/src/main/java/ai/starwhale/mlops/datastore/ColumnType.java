@@ -94,7 +94,8 @@ public class ColumnType {
                     || this == ColumnType.STRING) {
                 return value.toString();
             } else if (this == ColumnType.BYTES) {
-                return StandardCharsets.UTF_8.decode((ByteBuffer) value).toString();
+                // decode a duplicate, as decoding moves the position of the stored buffer
+                return StandardCharsets.UTF_8.decode(((ByteBuffer) value).duplicate()).toString();
             }
         } else {
             if (this == ColumnType.BOOL) {
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Converts records of WAL entries from and to {@link Wal.ColumnarRecords}.
+ *
+ * <p>The conversion is lossless: decoding an encoded entry gives an entry equal to the original one, with columns of
+ * every record in the same order.
+ */
+final class ColumnarRecordsCodec {
+
+    private ColumnarRecordsCodec() {
+    }
+
+    /**
+     * Returns the entry with records stored column by column, or the entry itself if that is not smaller.
+     */
+    static Wal.WalEntry encode(Wal.WalEntry entry) {
+        if (entry.getRecordsCount() == 0) {
+            return entry;
+        }
+        var vectors = new ArrayList<ColumnVectorWriter>();
+        var positions = new HashMap<Integer, Integer>();
+        var layouts = new LinkedHashMap<List<Integer>, Integer>();
+        var builder = Wal.ColumnarRecords.newBuilder();
+        for (var record : entry.getRecordsList()) {
+            var layout = new ArrayList<Integer>(record.getColumnsCount());
+            for (var col : record.getColumnsList()) {
+                int position = positions.computeIfAbsent(col.getIndex(), index -> {
+                    vectors.add(new ColumnVectorWriter(index));
+                    return vectors.size() - 1;
+                });
+                if (!vectors.get(position).add(col)) {
+                    return entry;
+                }
+                layout.add(position);
+            }
+            builder.addRecordLayouts(layouts.computeIfAbsent(layout, k -> layouts.size()));
+        }
+        for (var vector : vectors) {
+            builder.addColumns(vector.build());
+        }
+        for (var layout : layouts.keySet()) {
+            builder.addLayouts(Wal.ColumnarRecords.Layout.newBuilder().addAllColumns(layout));
+        }
+        var ret = entry.toBuilder().clearRecords().setColumnarRecords(builder).build();
+        return ret.getSerializedSize() < entry.getSerializedSize() ? ret : entry;
+    }
+
+    /**
+     * Returns the entry with columnar records converted back to records.
+     */
+    static Wal.WalEntry decode(Wal.WalEntry entry) {
+        if (!entry.hasColumnarRecords()) {
+            return entry;
+        }
+        var columnar = entry.getColumnarRecords();
+        var vectors = new ColumnVectorReader[columnar.getColumnsCount()];
+        for (int i = 0; i < vectors.length; ++i) {
+            vectors[i] = new ColumnVectorReader(columnar.getColumns(i));
+        }
+        var builder = entry.toBuilder().clearColumnarRecords();
+        for (int i = 0; i < columnar.getRecordLayoutsCount(); ++i) {
+            var layout = columnar.getLayouts(columnar.getRecordLayouts(i));
+            var record = Wal.Record.newBuilder();
+            for (int j = 0; j < layout.getColumnsCount(); ++j) {
+                record.addColumns(vectors[layout.getColumns(j)].next());
+            }
+            builder.addRecords(record);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of the only value field set in the column, 0 if none is set, or -1 if more than one is set.
+     */
+    private static int getValueField(Wal.Column col) {
+        int field = 0;
+        int count = 0;
+        if (col.getBoolValue()) {
+            field = Wal.Column.BOOL_VALUE_FIELD_NUMBER;
+            ++count;
+        }
+        if (col.getIntValue() != 0) {
+            field = Wal.Column.INT_VALUE_FIELD_NUMBER;
+            ++count;
+        }
+        if (Float.floatToRawIntBits(col.getFloatValue()) != 0) {
+            field = Wal.Column.FLOAT_VALUE_FIELD_NUMBER;
+            ++count;
+        }
+        if (Double.doubleToRawLongBits(col.getDoubleValue()) != 0) {
+            field = Wal.Column.DOUBLE_VALUE_FIELD_NUMBER;
+            ++count;
+        }
+        if (!col.getStringValue().isEmpty()) {
+            field = Wal.Column.STRING_VALUE_FIELD_NUMBER;
+            ++count;
+        }
+        if (!col.getBytesValue().isEmpty()) {
+            field = Wal.Column.BYTES_VALUE_FIELD_NUMBER;
+            ++count;
+        }
+        return count > 1 ? -1 : field;
+    }
+
+    private static class ColumnVectorWriter {
+
+        private final Wal.ColumnVector.Builder builder;
+
+        private final BitSet nulls = new BitSet();
+
+        private int count;
+
+        private int nonNullCount;
+
+        // the value field shared by all non-null values, 0 until a non-default value is added
+        private int valueField;
+
+        private long lastInt;
+
+        ColumnVectorWriter(int index) {
+            this.builder = Wal.ColumnVector.newBuilder().setIndex(index);
+        }
+
+        /**
+         * Appends the value of the column.
+         *
+         * @return false if the column can not be stored in the vector
+         */
+        boolean add(Wal.Column col) {
+            int field = ColumnarRecordsCodec.getValueField(col);
+            if (col.getNullValue()) {
+                if (field != 0) {
+                    return false;
+                }
+                this.nulls.set(this.count++);
+                return true;
+            }
+            if (field < 0 || (field > 0 && this.valueField > 0 && field != this.valueField)) {
+                return false;
+            }
+            if (this.valueField == 0 && field > 0) {
+                // values before are all defaults
+                this.valueField = field;
+                var defaultColumn = Wal.Column.getDefaultInstance();
+                for (int i = 0; i < this.nonNullCount; ++i) {
+                    this.addValue(defaultColumn);
+                }
+            }
+            if (this.valueField > 0) {
+                this.addValue(col);
+            }
+            ++this.count;
+            ++this.nonNullCount;
+            return true;
+        }
+
+        private void addValue(Wal.Column col) {
+            switch (this.valueField) {
+                case Wal.Column.BOOL_VALUE_FIELD_NUMBER:
+                    this.builder.addBoolValues(col.getBoolValue());
+                    break;
+                case Wal.Column.INT_VALUE_FIELD_NUMBER:
+                    this.builder.addIntDeltas(col.getIntValue() - this.lastInt);
+                    this.lastInt = col.getIntValue();
+                    break;
+                case Wal.Column.FLOAT_VALUE_FIELD_NUMBER:
+                    this.builder.addFloatValues(col.getFloatValue());
+                    break;
+                case Wal.Column.DOUBLE_VALUE_FIELD_NUMBER:
+                    this.builder.addDoubleValues(col.getDoubleValue());
+                    break;
+                case Wal.Column.STRING_VALUE_FIELD_NUMBER:
+                    this.builder.addStringValues(col.getStringValue());
+                    break;
+                case Wal.Column.BYTES_VALUE_FIELD_NUMBER:
+                    this.builder.addBytesValues(col.getBytesValue());
+                    break;
+                default:
+                    throw new IllegalStateException("invalid value field " + this.valueField);
+            }
+        }
+
+        Wal.ColumnVector build() {
+            if (!this.nulls.isEmpty()) {
+                this.builder.setNulls(ByteString.copyFrom(this.nulls.toByteArray()));
+            }
+            return this.builder.build();
+        }
+    }
+
+    private static class ColumnVectorReader {
+
+        private final Wal.ColumnVector vector;
+
+        private final BitSet nulls;
+
+        private int count;
+
+        private int nonNullCount;
+
+        private long lastInt;
+
+        ColumnVectorReader(Wal.ColumnVector vector) {
+            this.vector = vector;
+            this.nulls = BitSet.valueOf(vector.getNulls().asReadOnlyByteBuffer());
+        }
+
+        Wal.Column next() {
+            var ret = Wal.Column.newBuilder().setIndex(this.vector.getIndex());
+            if (this.nulls.get(this.count++)) {
+                return ret.setNullValue(true).build();
+            }
+            int i = this.nonNullCount++;
+            if (this.vector.getBoolValuesCount() > 0) {
+                ret.setBoolValue(this.vector.getBoolValues(i));
+            } else if (this.vector.getIntDeltasCount() > 0) {
+                this.lastInt += this.vector.getIntDeltas(i);
+                ret.setIntValue(this.lastInt);
+            } else if (this.vector.getFloatValuesCount() > 0) {
+                ret.setFloatValue(this.vector.getFloatValues(i));
+            } else if (this.vector.getDoubleValuesCount() > 0) {
+                ret.setDoubleValue(this.vector.getDoubleValues(i));
+            } else if (this.vector.getStringValuesCount() > 0) {
+                ret.setStringValue(this.vector.getStringValues(i));
+            } else if (this.vector.getBytesValuesCount() > 0) {
+                ret.setBytesValue(this.vector.getBytesValues(i));
+            }
+            return ret.build();
+        }
+    }
+}
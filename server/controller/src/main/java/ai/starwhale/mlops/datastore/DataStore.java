@@ -16,36 +16,317 @@
 
 package ai.starwhale.mlops.datastore;
 
+import ai.starwhale.mlops.datastore.impl.ColumnarMemoryTableImpl;
 import ai.starwhale.mlops.datastore.impl.MemoryTableImpl;
+import ai.starwhale.mlops.datastore.impl.TieredMemoryTableImpl;
+import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwValidationException;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.micrometer.core.instrument.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
 
+@Slf4j
 @Component
 public class DataStore {
 
     private final WalManager walManager;
 
-    private final Map<String, MemoryTable> tables = new ConcurrentHashMap<>();
+    private final boolean columnarTable;
 
-    public DataStore(WalManager walManager) {
+    private final long memoryBudgetBytes;
+
+    private final File spillDir;
+
+    private final AtomicInteger spillDirIndex = new AtomicInteger();
+
+    // replaced as a whole when a follower rebuilds its tables, see catchUp()
+    private volatile Map<String, MemoryTable> tables = new ConcurrentHashMap<>();
+
+    private final AtomicLong accessClock = new AtomicLong();
+
+    // the sum of memory usages of all tables, changed by the thread changing a table while holding its write lock
+    private final AtomicLong memoryUsage = new AtomicLong();
+
+    // set while a thread spills tables, so that other writers do not wait for it
+    private final AtomicBoolean spilling = new AtomicBoolean();
+
+    private final Map<String, Long> accessTimes = new ConcurrentHashMap<>();
+
+    // tables handed off to other nodes, see handOff()
+    private final Set<String> movedTables = ConcurrentHashMap.newKeySet();
+
+    private static final int REPLAY_QUEUE_CAPACITY = 1000;
+
+    // marks the end of the WAL in replay queues, compared by reference
+    private static final Wal.WalEntry END_OF_REPLAY = Wal.WalEntry.newBuilder().build();
+
+    private static final long RECOVERY_INTERVAL_MILLIS = 1000;
+
+    // the number of records read from a table at a time while merging a scan of multiple tables
+    static final int SCAN_CHUNK_SIZE = 100;
+
+    static final String REPLAY_ENTRIES_METRIC = "datastore.wal.replay.entries";
+
+    static final String REPLAY_TIME_METRIC = "datastore.wal.replay.time";
+
+    static final String FOLLOWER_LAG_METRIC = "datastore.follower.lag";
+
+    static final String FOLLOWER_RELOADS_METRIC = "datastore.follower.reloads";
+
+    private final int walReplayParallelism;
+
+    private final boolean follower;
+
+    private final long maxStalenessMillis;
+
+    // the time when the follower last listed the WAL of the leader and applied all log files found
+    private volatile long caughtUpTime;
+
+    // set if the follower fails to apply new log files, so that its tables should be rebuilt
+    private boolean followerBroken;
+
+    private final Object catchUpLock = new Object();
+
+    public DataStore(WalManager walManager,
+            boolean columnarTable,
+            long memoryBudgetBytes,
+            String spillDir,
+            int walReplayParallelism) {
+        this(walManager, columnarTable, memoryBudgetBytes, spillDir, walReplayParallelism, false, 0);
+    }
+
+    /**
+     * Creates a data store.
+     *
+     * <p>A follower serves reads only. It shares the WAL prefix of the leader and applies log files written by the
+     * leader in {@link #catchUp()}. Queries fail if it has not caught up with the leader within maxStalenessMillis.
+     */
+    @Autowired
+    public DataStore(WalManager walManager,
+            @Value("${sw.datastore.columnarTable}") boolean columnarTable,
+            @Value("${sw.datastore.memoryBudgetBytes}") long memoryBudgetBytes,
+            @Value("${sw.datastore.spillDir}") String spillDir,
+            @Value("${sw.datastore.walReplayParallelism}") int walReplayParallelism,
+            @Value("${sw.datastore.follower.enabled}") boolean follower,
+            @Value("${sw.datastore.follower.maxStalenessMillis}") long maxStalenessMillis) {
         this.walManager = walManager;
+        this.columnarTable = columnarTable;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.spillDir = new File(spillDir);
+        this.walReplayParallelism = Math.max(1, walReplayParallelism);
+        this.follower = follower;
+        if (follower && !walManager.isReadOnly()) {
+            throw new IllegalArgumentException("the WAL of a follower should be read-only");
+        }
+        this.maxStalenessMillis = maxStalenessMillis;
+        if (this.memoryBudgetBytes > 0) {
+            // segments are rebuilt from the WAL, so files left by the last run are useless
+            FileSystemUtils.deleteRecursively(this.spillDir);
+        }
+        var startTime = System.currentTimeMillis();
+        this.replay(this.tables, this.walReplayParallelism);
+        var elapsed = System.currentTimeMillis() - startTime;
+        Metrics.timer(REPLAY_TIME_METRIC).record(elapsed, TimeUnit.MILLISECONDS);
+        log.info("{} tables restored from WAL in {}ms", this.tables.size(), elapsed);
+        if (this.follower) {
+            this.caughtUpTime = startTime;
+            Metrics.gauge(FOLLOWER_LAG_METRIC, this, DataStore::getReplicationLagMillis);
+        }
+    }
+
+    /**
+     * Replays the WAL into the given tables.
+     *
+     * <p>Entries are dispatched to parallelism worker threads by table name, so that different tables are restored in
+     * parallel while entries of the same table are still applied in order.
+     */
+    private void replay(Map<String, MemoryTable> tables, int parallelism) {
         var it = this.walManager.readAll();
-        while (it.hasNext()) {
-            var entry = it.next();
-            var tableName = entry.getTableName();
-            var table = this.tables.computeIfAbsent(tableName, k -> new MemoryTableImpl(tableName, this.walManager));
+        if (parallelism == 1) {
+            while (it.hasNext()) {
+                this.applyWalEntry(tables, it.next());
+            }
+            return;
+        }
+        var queues = new ArrayList<BlockingQueue<Wal.WalEntry>>();
+        var workers = new ArrayList<Thread>();
+        var error = new AtomicReference<Throwable>();
+        for (int i = 0; i < parallelism; ++i) {
+            var queue = new ArrayBlockingQueue<Wal.WalEntry>(REPLAY_QUEUE_CAPACITY);
+            var worker = new Thread(() -> {
+                for (; ; ) {
+                    var entry = Uninterruptibles.takeUninterruptibly(queue);
+                    if (entry == END_OF_REPLAY) {
+                        return;
+                    }
+                    // keep draining the queue after a failure, so that the dispatcher is never blocked
+                    if (error.get() == null) {
+                        try {
+                            this.applyWalEntry(tables, entry);
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                }
+            }, "wal-apply-" + i);
+            worker.start();
+            queues.add(queue);
+            workers.add(worker);
+        }
+        try {
+            while (error.get() == null && it.hasNext()) {
+                var entry = it.next();
+                Uninterruptibles.putUninterruptibly(
+                        queues.get(Math.floorMod(entry.getTableName().hashCode(), parallelism)), entry);
+            }
+        } finally {
+            for (var queue : queues) {
+                Uninterruptibles.putUninterruptibly(queue, END_OF_REPLAY);
+            }
+            for (var worker : workers) {
+                Uninterruptibles.joinUninterruptibly(worker);
+            }
+        }
+        if (error.get() != null) {
+            log.error("fail to replay WAL", error.get());
+            Throwables.throwIfUnchecked(error.get());
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
+        }
+    }
+
+    private void applyWalEntry(Map<String, MemoryTable> tables, Wal.WalEntry entry) {
+        var tableName = entry.getTableName();
+        if (entry.getEntryType() == Wal.WalEntry.Type.DROP) {
+            this.removeTable(tables, tableName);
+            return;
+        }
+        var table = tables.computeIfAbsent(tableName, this::createTable);
+        table.lock(false);
+        try {
+            var usage = table.getMemoryUsage();
             table.updateFromWal(entry);
+            this.memoryUsage.addAndGet(table.getMemoryUsage() - usage);
+        } finally {
+            table.unlock(false);
+        }
+        this.accessTimes.put(tableName, this.accessClock.incrementAndGet());
+        Metrics.counter(REPLAY_ENTRIES_METRIC).increment();
+        this.spillIfNeeded(tables);
+    }
+
+    private MemoryTable createTable(String tableName) {
+        if (this.memoryBudgetBytes > 0) {
+            return new TieredMemoryTableImpl(tableName,
+                    this.walManager,
+                    new File(this.spillDir, String.valueOf(this.spillDirIndex.getAndIncrement())));
+        }
+        if (this.columnarTable) {
+            return new ColumnarMemoryTableImpl(tableName, this.walManager);
+        }
+        return new MemoryTableImpl(tableName, this.walManager);
+    }
+
+    public boolean isFollower() {
+        return this.follower;
+    }
+
+    /**
+     * Applies log files written by the leader since the last call, for a follower.
+     *
+     * <p>If some of them have been removed by a checkpoint of the leader, all tables are rebuilt from the checkpoint
+     * into a new map, which replaces the current one once complete. Queries keep seeing the old tables until then, at
+     * the cost of holding both in memory during the rebuild.
+     */
+    @Scheduled(initialDelayString = "${sw.datastore.follower.pollIntervalMillis}",
+            fixedDelayString = "${sw.datastore.follower.pollIntervalMillis}")
+    public void catchUp() {
+        if (!this.follower) {
+            return;
+        }
+        synchronized (this.catchUpLock) {
+            var startTime = System.currentTimeMillis();
+            try {
+                var entries = this.walManager.readNewLogFiles(this.followerBroken);
+                // marked until all entries are applied
+                this.followerBroken = true;
+                if (entries == null) {
+                    Metrics.counter(FOLLOWER_RELOADS_METRIC).increment();
+                    var rebuilt = new ConcurrentHashMap<String, MemoryTable>();
+                    this.replay(rebuilt, this.walReplayParallelism);
+                    var oldTables = this.tables;
+                    this.tables = rebuilt;
+                    this.accessTimes.keySet().retainAll(rebuilt.keySet());
+                    for (var table : oldTables.values()) {
+                        this.memoryUsage.addAndGet(-table.getMemoryUsage());
+                    }
+                } else {
+                    var tables = this.tables;
+                    while (entries.hasNext()) {
+                        this.applyWalEntry(tables, entries.next());
+                    }
+                }
+                this.followerBroken = false;
+                this.caughtUpTime = startTime;
+            } catch (RuntimeException e) {
+                log.error("fail to apply the WAL of the leader, lagging {}ms", this.getReplicationLagMillis(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns how far a follower may lag behind the leader. All changes persisted by the leader this long ago are
+     * visible on the follower. It is always 0 for the leader.
+     */
+    public long getReplicationLagMillis() {
+        return this.follower ? System.currentTimeMillis() - this.caughtUpTime : 0;
+    }
+
+    private void checkStaleness() {
+        if (this.follower && this.getReplicationLagMillis() > this.maxStalenessMillis) {
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE,
+                    "the data store follower lags behind the leader for " + this.getReplicationLagMillis() + "ms");
+        }
+    }
+
+    private void checkWritable() {
+        if (this.follower) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "the data store is a read-only follower");
         }
     }
 
@@ -53,56 +334,380 @@ public class DataStore {
         this.walManager.terminate();
     }
 
+    /**
+     * Writes snapshots of all tables and removes the log files covered by them, so that restarting does not need to
+     * replay the whole WAL.
+     */
+    @Scheduled(initialDelayString = "${sw.datastore.checkpointIntervalMillis}",
+            fixedDelayString = "${sw.datastore.checkpointIntervalMillis}")
+    public void checkpoint() {
+        if (this.follower) {
+            // the leader writes checkpoints
+            return;
+        }
+        // all log files before this index have been written, so all their entries have been applied to the tables.
+        // the index should be fetched before the table names, as new tables may be created at any time.
+        var walLogIndex = this.walManager.getLogFileIndex();
+        if (walLogIndex <= this.walManager.getCheckpointLogFileIndex()) {
+            return;
+        }
+        var tableNames = new ArrayList<>(this.tables.keySet());
+        Collections.sort(tableNames);
+        // snapshots are built while they are written, so each table is read only until all its entries are written
+        var reading = new AtomicReference<MemoryTable>();
+        try {
+            this.walManager.writeCheckpoint(walLogIndex, Iterators.concat(tableNames.stream()
+                    .map(this.tables::get)
+                    .filter(Objects::nonNull)
+                    .map(table -> {
+                        DataStore.stopReading(reading.getAndSet(null));
+                        table.lock(true);
+                        reading.set(table);
+                        return table.snapshot();
+                    })
+                    .iterator()));
+        } finally {
+            DataStore.stopReading(reading.getAndSet(null));
+        }
+    }
+
+    private static void stopReading(MemoryTable table) {
+        if (table != null) {
+            table.unlock(true);
+        }
+    }
+
+    /**
+     * Persists tables whose updates failed to be persisted again, so that they can be read and updated again. See
+     * {@link MemoryTable#recover()}.
+     */
+    @Scheduled(initialDelay = RECOVERY_INTERVAL_MILLIS, fixedDelay = RECOVERY_INTERVAL_MILLIS)
+    public void recoverTables() {
+        if (this.follower) {
+            return;
+        }
+        for (var entry : this.tables.entrySet()) {
+            try {
+                entry.getValue().recover();
+            } catch (SwProcessException e) {
+                log.warn("fail to recover table {}", entry.getKey(), e);
+            }
+        }
+    }
+
     public List<String> list(String prefix) {
         return tables.keySet().stream().filter(name -> name.startsWith(prefix)).collect(Collectors.toList());
     }
 
-    public void update(String tableName,
+    /**
+     * Updates the table. The change is visible to queries once this method returns.
+     *
+     * @return a future that completes once the change is persisted in the WAL. Callers that need durability should
+     *     wait for it.
+     */
+    public CompletableFuture<Void> update(String tableName,
             TableSchemaDesc schema,
             List<Map<String, String>> records) {
-        var table = this.tables.computeIfAbsent(tableName, k -> new MemoryTableImpl(tableName, this.walManager));
-        table.lock();
+        return this.update(tableName, table -> table.update(schema, records));
+    }
+
+    /**
+     * Updates the table with an entry in the WAL format, which saves the cost of encoding and decoding values as
+     * strings for bulk ingestion. See {@link MemoryTable#update(Wal.WalEntry)} for its format.
+     *
+     * @return a future that completes once the change is persisted in the WAL
+     */
+    public CompletableFuture<Void> update(Wal.WalEntry entry) {
+        if (entry.getTableName().isEmpty()) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "table name should not be empty");
+        }
+        return this.update(entry.getTableName(), table -> table.update(entry));
+    }
+
+    private CompletableFuture<Void> update(String tableName, Function<MemoryTable, CompletableFuture<Void>> action) {
+        this.checkWritable();
+        if (this.movedTables.contains(tableName)) {
+            throw new TableMovedException(tableName);
+        }
+        var table = this.tables.computeIfAbsent(tableName, this::createTable);
+        this.accessTimes.put(tableName, this.accessClock.incrementAndGet());
+        CompletableFuture<Void> persisted;
+        table.lock(false);
+        try {
+            // the table may be handed off while waiting for the lock. A table created after that is dropped as well
+            if (this.tables.get(tableName) != table || this.movedTables.contains(tableName)) {
+                this.tables.remove(tableName, table);
+                throw new TableMovedException(tableName);
+            }
+            var usage = table.getMemoryUsage();
+            try {
+                persisted = action.apply(table);
+            } finally {
+                this.memoryUsage.addAndGet(table.getMemoryUsage() - usage);
+            }
+        } finally {
+            table.unlock(false);
+        }
+        this.spillIfNeeded();
+        return persisted;
+    }
+
+    /**
+     * Hands the table off to another node.
+     *
+     * <p>The receiver gets the snapshot of the table entry by entry, each carrying the full schema, and should return
+     * once the entry is persisted by the new owner. Entries are built as they are sent, and updates meanwhile are kept
+     * as pending versions of the table. Then updates are blocked while the records changed in the meantime are sent
+     * the same way. Then {@code moved} is called, the table is dropped from this node and a DROP entry is written to
+     * the WAL, so that it is not restored on restart. Updates fail with {@link TableMovedException} afterwards, until
+     * {@link #forgetMovedTables()} is called.
+     */
+    public void handOff(String tableName, Consumer<Wal.WalEntry> receiver, Runnable moved) {
+        this.checkWritable();
+        var table = this.tables.get(tableName);
+        if (table == null) {
+            return;
+        }
+        table.lock(false);
+        try {
+            if (this.tables.get(tableName) != table) {
+                return;
+            }
+            table.trackChanges();
+        } finally {
+            table.unlock(false);
+        }
+        table.lock(true);
         try {
-            table.update(schema, records);
+            DataStore.sendSnapshot(table.snapshot(), receiver);
         } finally {
-            table.unlock();
+            table.unlock(true);
+        }
+        table.lock(false);
+        try {
+            if (this.tables.get(tableName) != table) {
+                return;
+            }
+            DataStore.sendSnapshot(table.snapshotChanges().iterator(), receiver);
+            moved.run();
+            this.movedTables.add(tableName);
+            this.removeTable(this.tables, tableName);
+        } finally {
+            table.unlock(false);
+        }
+        this.walManager.append(Wal.WalEntry.newBuilder()
+                .setEntryType(Wal.WalEntry.Type.DROP)
+                .setTableName(tableName)
+                .build()).join();
+    }
+
+    private static void sendSnapshot(Iterator<Wal.WalEntry> snapshot, Consumer<Wal.WalEntry> receiver) {
+        if (!snapshot.hasNext()) {
+            return;
+        }
+        var first = snapshot.next();
+        var schema = first.getTableSchema();
+        receiver.accept(first);
+        while (snapshot.hasNext()) {
+            receiver.accept(snapshot.next().toBuilder().setTableSchema(schema).build());
+        }
+    }
+
+    /**
+     * Allows tables handed off by {@link #handOff(String, Consumer, Runnable)} to be created on this node again, which
+     * is done once requests are no longer routed here for them.
+     */
+    public void forgetMovedTables() {
+        this.movedTables.clear();
+    }
+
+    private void removeTable(Map<String, MemoryTable> tables, String tableName) {
+        var table = tables.remove(tableName);
+        if (table != null) {
+            this.memoryUsage.addAndGet(-table.getMemoryUsage());
+        }
+        this.accessTimes.remove(tableName);
+    }
+
+    long getMemoryUsage() {
+        return this.memoryUsage.get();
+    }
+
+    /**
+     * Spills tables to disk if the total memory usage exceeds the budget.
+     *
+     * <p>The usage is tracked incrementally, so this is cheap unless the budget is exceeded. Tables are then spilled
+     * by the current thread from the least recently accessed one until the usage drops to half of the budget, so that
+     * hot tables keep their records in memory and spilling does not happen on every update. Other threads go on
+     * without waiting meanwhile.
+     */
+    private void spillIfNeeded() {
+        this.spillIfNeeded(this.tables);
+    }
+
+    private void spillIfNeeded(Map<String, MemoryTable> tables) {
+        if (this.memoryBudgetBytes <= 0 || this.memoryUsage.get() <= this.memoryBudgetBytes) {
+            return;
+        }
+        if (!this.spilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            var tableNames = new ArrayList<>(tables.keySet());
+            tableNames.sort(Comparator.comparingLong(name -> this.accessTimes.getOrDefault(name, 0L)));
+            for (var tableName : tableNames) {
+                if (this.memoryUsage.get() <= this.memoryBudgetBytes / 2) {
+                    break;
+                }
+                var table = tables.get(tableName);
+                if (table == null) {
+                    continue;
+                }
+                table.lock(false);
+                try {
+                    var usage = table.getMemoryUsage();
+                    table.spill();
+                    this.memoryUsage.addAndGet(table.getMemoryUsage() - usage);
+                } finally {
+                    table.unlock(false);
+                }
+            }
+        } finally {
+            this.spilling.set(false);
         }
     }
 
     public RecordList query(DataStoreQueryRequest req) {
+        this.checkStaleness();
         var table = this.getTable(req.getTableName(), req.isIgnoreNonExistingTable());
         if (table == null) {
             return new RecordList(Collections.emptyMap(), Collections.emptyList(), null);
         }
-        table.lock();
+        this.accessTimes.put(req.getTableName(), this.accessClock.incrementAndGet());
+        if (req.isAggregation()) {
+            var result = this.aggregate(table, req);
+            var records = result.getRecords().stream()
+                    .map(r -> {
+                        var values = r.getValues();
+                        if (!req.isKeepNone()) {
+                            values.values().removeIf(Objects::isNull);
+                        }
+                        return this.encodeRecord(result.getColumnTypeMap(), values, req.isRawResult());
+                    })
+                    .collect(Collectors.toList());
+            return new RecordList(result.getColumnTypeMap(), records, null);
+        }
+        table.lock(true);
         try {
             var schema = table.getSchema();
             var columns = this.getColumnAliases(schema, req.getColumns());
             var columnTypeMap = schema.getColumnTypeMapping(columns);
-            var results = table.query(
-                    columns,
-                    req.getOrderBy(),
-                    req.getFilter(),
-                    req.getStart(),
-                    req.getLimit(),
-                    req.isKeepNone(),
-                    req.isRawResult());
-            String lastKey;
-            if (results.isEmpty()) {
-                lastKey = null;
-            } else {
-                lastKey = schema.getKeyColumnType().encode(results.get(results.size() - 1).getKey(), req.isRawResult());
-            }
-            var records = results.stream()
-                    .map(r -> this.encodeRecord(columnTypeMap, r.getValues(), req.isRawResult()))
-                    .collect(Collectors.toList());
+            var records = new ArrayList<Map<String, String>>();
+            var lastRecord = new AtomicReference<Map<String, Object>>();
+            table.query(req.getOrderBy(), req.getFilter(), req.getStart(), req.getLimit(), req.getLastKey(),
+                    record -> {
+                        records.add(this.encodeRecord(columns, columnTypeMap, record, req.isKeepNone(),
+                                req.isRawResult()));
+                        lastRecord.set(record);
+                    });
+            // always encoded so that it can be passed back as the lastKey of the next query
+            var lastKey = lastRecord.get() == null ? null : table.encodeLastKey(req.getOrderBy(), lastRecord.get());
             return new RecordList(columnTypeMap, records, lastKey);
         } finally {
-            table.unlock();
+            table.unlock(true);
+        }
+    }
+
+    /**
+     * Queries a table like {@link #query(DataStoreQueryRequest)}, but passes the results to the writer record by
+     * record instead of collecting them, so that the memory usage does not grow with the result size.
+     *
+     * <p>Records are visited in one pass over a snapshot of the table and passed to the writer as they are, without
+     * copies. Updates of the table during the query are kept as pending versions, so a slow writer only holds back
+     * schema changes and updates beyond the limit of pending versions.
+     */
+    public void query(DataStoreQueryRequest req, RecordWriter writer) throws IOException {
+        this.checkStaleness();
+        var table = this.getTable(req.getTableName(), req.isIgnoreNonExistingTable());
+        if (table == null) {
+            writer.writeColumnTypes(Collections.emptyMap());
+            writer.writeLastKey(null);
+            return;
+        }
+        this.accessTimes.put(req.getTableName(), this.accessClock.incrementAndGet());
+        if (req.isAggregation()) {
+            var result = this.aggregate(table, req);
+            var columns = result.getColumnTypeMap().keySet().stream()
+                    .collect(Collectors.toMap(Function.identity(), Function.identity()));
+            writer.writeColumnTypes(result.getColumnTypeMap());
+            for (var record : result.getRecords()) {
+                writer.writeRecord(columns, record.getValues());
+            }
+            writer.writeLastKey(null);
+            return;
+        }
+        table.lock(true);
+        try {
+            var schema = table.getSchema();
+            var columns = this.getColumnAliases(schema, req.getColumns());
+            var columnTypeMap = schema.getColumnTypeMapping(columns);
+            var columnTypesWritten = new AtomicBoolean();
+            var lastRecord = new AtomicReference<Map<String, Object>>();
+            try {
+                table.query(req.getOrderBy(), req.getFilter(), req.getStart(), req.getLimit(), req.getLastKey(),
+                        record -> {
+                            try {
+                                // written once the request is validated by the table
+                                if (columnTypesWritten.compareAndSet(false, true)) {
+                                    writer.writeColumnTypes(columnTypeMap);
+                                }
+                                writer.writeRecord(columns, record);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            lastRecord.set(record);
+                        });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (!columnTypesWritten.get()) {
+                writer.writeColumnTypes(columnTypeMap);
+            }
+            // always encoded so that it can be passed back as the lastKey of the next query
+            writer.writeLastKey(
+                    lastRecord.get() == null ? null : table.encodeLastKey(req.getOrderBy(), lastRecord.get()));
+        } finally {
+            table.unlock(true);
+        }
+    }
+
+    /**
+     * Runs an aggregation query, applying start and limit to the groups.
+     */
+    private MemoryTable.AggregateResult aggregate(MemoryTable table, DataStoreQueryRequest req) {
+        if (req.getColumns() != null && !req.getColumns().isEmpty()) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "columns should not be specified with groupBy or aggregates");
+        }
+        if (req.getOrderBy() != null && !req.getOrderBy().isEmpty()) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "orderBy is not supported with groupBy or aggregates, groups are ordered by the groupBy columns");
+        }
+        if (req.getLastKey() != null) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "lastKey is not supported with groupBy or aggregates");
         }
+        var result = table.aggregate(req.getGroupBy(), req.getAggregates(), req.getFilter());
+        var records = result.getRecords();
+        int start = Math.min(Math.max(req.getStart(), 0), records.size());
+        int end = req.getLimit() < 0 ? records.size() : (int) Math.min((long) start + req.getLimit(), records.size());
+        result.setRecords(records.subList(start, end));
+        return result;
     }
 
     public RecordList scan(DataStoreScanRequest req) {
+        this.checkStaleness();
         var limit = req.getLimit();
         if (limit > 1000) {
             throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
@@ -121,27 +726,88 @@ public class DataStore {
                         .filter(Objects::nonNull)
                         .collect(Collectors.toList());
 
-        for (var table : tablesToLock) {
-            table.lock();
+        class TableMeta {
+
+            String tableName;
+            MemoryTable table;
+            TableSchema schema;
+            Map<String, String> columns;
+            Map<String, ColumnType> columnTypeMap;
+            boolean keepNone;
         }
-        try {
-            class TableMeta {
-
-                String tableName;
-                MemoryTable table;
-                TableSchema schema;
-                Map<String, String> columns;
-                Map<String, ColumnType> columnTypeMap;
-                boolean keepNone;
+
+        // reads records of a table in chunks, each of which is copied from a snapshot of the table, so that the merge
+        // pulls only the records it needs and no table is held while records are merged
+        class TableRecords {
+
+            final int index;
+            final TableMeta meta;
+            final int chunkSize;
+            Iterator<MemoryTable.RecordResult> chunk = Collections.emptyIterator();
+            boolean exhausted;
+            MemoryTable.RecordResult record;
+
+            TableRecords(int index, TableMeta meta, int chunkSize) {
+                this.index = index;
+                this.meta = meta;
+                this.chunkSize = chunkSize;
             }
 
-            var tables = req.getTables().stream().map(info -> {
+            /**
+             * Reads the next chunk following the current record. The caller should hold the table lock for reading.
+             */
+            void readChunk() {
+                String start;
+                boolean startInclusive;
+                if (this.record == null) {
+                    start = req.getStart();
+                    startInclusive = req.isStartInclusive();
+                } else {
+                    start = this.meta.schema.getKeyColumnType().encode(this.record.getKey(), false);
+                    startInclusive = false;
+                }
+                var records = ImmutableList.copyOf(Iterators.limit(this.meta.table.scan(this.meta.columns,
+                                start,
+                                startInclusive,
+                                req.getEnd(),
+                                req.isEndInclusive(),
+                                this.meta.keepNone),
+                        this.chunkSize));
+                this.exhausted = records.size() < this.chunkSize;
+                this.chunk = records.iterator();
+            }
+
+            boolean advance() {
+                if (!this.chunk.hasNext() && !this.exhausted) {
+                    this.meta.table.lock(true);
+                    try {
+                        this.readChunk();
+                    } finally {
+                        this.meta.table.unlock(true);
+                    }
+                }
+                this.record = this.chunk.hasNext() ? this.chunk.next() : null;
+                return this.record != null;
+            }
+        }
+
+        List<TableMeta> tables;
+        var columnTypeMap = new HashMap<String, ColumnType>();
+        var tableRecords = new ArrayList<TableRecords>();
+        var lockedTables = new ArrayList<MemoryTable>();
+        try {
+            for (var table : tablesToLock) {
+                table.lock(true);
+                lockedTables.add(table);
+            }
+            tables = req.getTables().stream().map(info -> {
                 var ret = new TableMeta();
                 ret.tableName = info.getTableName();
                 ret.table = this.getTable(info.getTableName(), req.isIgnoreNonExistingTable());
                 if (ret.table == null) {
                     return null;
                 }
+                this.accessTimes.put(ret.tableName, this.accessClock.incrementAndGet());
                 ret.schema = ret.table.getSchema();
                 ret.columns = this.getColumnAliases(ret.schema, info.getColumns());
                 ret.columnTypeMap = ret.schema.getColumnTypeMapping(ret.columns);
@@ -149,7 +815,6 @@ public class DataStore {
                 return ret;
             }).filter(Objects::nonNull).collect(Collectors.toList());
 
-            var columnTypeMap = new HashMap<String, ColumnType>();
             for (var table : tables) {
                 if (table.schema.getKeyColumnType() != tables.get(0).schema.getKeyColumnType()) {
                     throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
@@ -187,69 +852,68 @@ public class DataStore {
                 }
             }
 
-            class TableRecords {
-
-                TableMeta meta;
-                List<MemoryTable.RecordResult> records;
-                int index;
-
-                public MemoryTable.RecordResult getRecord() {
-                    return this.records.get(this.index);
-                }
-
-                public Object getKey() {
-                    return this.getRecord().getKey();
-                }
+            // the first chunks of all tables are read from the same point in time
+            int chunkSize = Math.max(1, Math.min(limit, SCAN_CHUNK_SIZE));
+            for (int i = 0; i < tables.size(); ++i) {
+                var r = new TableRecords(i, tables.get(i), chunkSize);
+                r.readChunk();
+                tableRecords.add(r);
+            }
+        } finally {
+            // released before merging, so that long scans do not hold back writers
+            for (var table : lockedTables) {
+                table.unlock(true);
             }
+        }
+        if (tables.isEmpty()) {
+            return new RecordList(columnTypeMap, Collections.emptyList(), null);
+        }
 
-            var records = new ArrayList<TableRecords>();
-            for (var table : tables) {
-                var r = new TableRecords();
-                r.meta = table;
-                r.records = table.table.scan(table.columns,
-                        req.getStart(),
-                        req.isStartInclusive(),
-                        req.getEnd(),
-                        req.isEndInclusive(),
-                        limit,
-                        table.keepNone);
-                if (!r.records.isEmpty()) {
-                    records.add(r);
-                }
+        // a k-way merge of the records pulled from each table. Records with the same key are merged in the order
+        // of the tables in the request, so later tables overwrite columns of earlier ones
+        var heap = new PriorityQueue<TableRecords>(tables.size(), (a, b) -> {
+            @SuppressWarnings("rawtypes") var x = (Comparable) a.record.getKey();
+            //noinspection unchecked
+            int ret = x.compareTo(b.record.getKey());
+            return ret != 0 ? ret : Integer.compare(a.index, b.index);
+        });
+        for (var r : tableRecords) {
+            if (r.advance()) {
+                heap.add(r);
             }
-            var keyColumnType = tables.get(0).schema.getKeyColumnType();
-            Object lastKey = null;
-            List<Map<String, String>> ret = new ArrayList<>();
-            while (!records.isEmpty() && ret.size() < limit) {
-                lastKey = Collections.min(records, (a, b) -> {
-                    @SuppressWarnings("rawtypes") var x = (Comparable) a.getKey();
-                    @SuppressWarnings("rawtypes") var y = (Comparable) b.getKey();
-                    //noinspection unchecked
-                    return x.compareTo(y);
-                }).getKey();
-                var record = new HashMap<String, String>();
-                for (var r : records) {
-                    if (r.getKey().equals(lastKey)) {
-                        record.putAll(this.encodeRecord(r.meta.columnTypeMap, r.getRecord().values, req.isRawResult()));
-                        ++r.index;
-                    }
-                }
-                if (!req.isKeepNone()) {
-                    record.entrySet().removeIf(x -> x.getValue() == null);
+        }
+        var keyColumnType = tables.get(0).schema.getKeyColumnType();
+        Object lastKey = null;
+        List<Map<String, String>> ret = new ArrayList<>();
+        var sameKey = new ArrayList<TableRecords>();
+        while (!heap.isEmpty() && ret.size() < limit) {
+            lastKey = heap.peek().record.getKey();
+            var record = new HashMap<String, String>();
+            // polled in the order of the tables as the heap breaks ties by the table index
+            while (!heap.isEmpty() && heap.peek().record.getKey().equals(lastKey)) {
+                var r = heap.poll();
+                record.putAll(this.encodeRecord(r.meta.columnTypeMap, r.record.getValues(), req.isRawResult()));
+                sameKey.add(r);
+            }
+            for (var r : sameKey) {
+                if (r.advance()) {
+                    heap.add(r);
                 }
-                ret.add(record);
-                records.removeIf(r -> r.index == r.records.size());
             }
-            return new RecordList(columnTypeMap, ret, keyColumnType.encode(lastKey, false));
-        } finally {
-            for (var table : tablesToLock) {
-                table.unlock();
+            sameKey.clear();
+            if (!req.isKeepNone()) {
+                record.entrySet().removeIf(x -> x.getValue() == null);
             }
+            ret.add(record);
         }
+        return new RecordList(columnTypeMap, ret, keyColumnType.encode(lastKey, false));
     }
 
     private MemoryTable getTable(String tableName, boolean allowNull) {
         var table = tables.get(tableName);
+        if (table == null && this.movedTables.contains(tableName)) {
+            throw new TableMovedException(tableName);
+        }
         if (table == null && !allowNull) {
             throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE).tip(
                     "invalid table name " + tableName);
@@ -302,4 +966,33 @@ public class DataStore {
         }
         return ret;
     }
+
+    /**
+     * Encodes the columns of a stored record by their aliases.
+     */
+    private Map<String, String> encodeRecord(Map<String, String> columns,
+            Map<String, ColumnType> columnTypeMap,
+            Map<String, Object> record,
+            boolean keepNone,
+            boolean rawResult) {
+        var ret = new HashMap<String, String>();
+        for (var entry : columns.entrySet()) {
+            var value = record.get(entry.getKey());
+            if (keepNone || value != null) {
+                var alias = entry.getValue();
+                ret.put(alias, columnTypeMap.get(alias).encode(value, rawResult));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Thrown for requests to a table that has been handed off to another node, which should be retried there.
+     */
+    public static class TableMovedException extends SwProcessException {
+
+        public TableMovedException(String tableName) {
+            super(ErrorType.DATASTORE, "table " + tableName + " has been moved to another node");
+        }
+    }
 }
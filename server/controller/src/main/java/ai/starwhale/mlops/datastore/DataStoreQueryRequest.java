@@ -38,7 +38,19 @@ public class DataStoreQueryRequest {
     private int start = -1;
     @Builder.Default
     private int limit = -1;
+    private String lastKey;
     private boolean keepNone;
     private boolean rawResult;
     private boolean ignoreNonExistingTable;
+    /**
+     * the records are grouped by these columns if groupBy or aggregates is not empty, and each group is returned as
+     * a record with the groupBy values and the aggregate results
+     */
+    private List<String> groupBy;
+    private List<AggregateDesc> aggregates;
+
+    public boolean isAggregation() {
+        return (this.groupBy != null && !this.groupBy.isEmpty())
+                || (this.aggregates != null && !this.aggregates.isEmpty());
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Writes query results as JSON lines.
+ *
+ * <p>The first line holds the column types, e.g. {"columnTypes":{"k":"STRING","a":"INT32"}}. Each of the following
+ * lines is a record like {"k":"x","a":"1f"}, whose values are encoded in the same way as {@link ColumnType#encode}.
+ * The last line holds the encoded key of the last record, e.g. {"lastKey":"x"}, which also tells the client that the
+ * result is complete.
+ *
+ * <p>Values are written straight from the stored records into the output stream, without encoding them into
+ * intermediate strings.
+ */
+public class JsonLinesRecordWriter implements RecordWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final JsonGenerator generator;
+
+    private final boolean keepNone;
+
+    private final boolean rawResult;
+
+    private final char[] hexBuffer = new char[16];
+
+    private Map<String, ColumnType> columnTypeMap;
+
+    public JsonLinesRecordWriter(OutputStream outputStream, boolean keepNone, boolean rawResult) throws IOException {
+        this.generator = JSON_FACTORY.createGenerator(outputStream);
+        this.generator.setRootValueSeparator(null);
+        this.keepNone = keepNone;
+        this.rawResult = rawResult;
+    }
+
+    @Override
+    public void writeColumnTypes(Map<String, ColumnType> columnTypeMap) throws IOException {
+        this.columnTypeMap = columnTypeMap;
+        this.generator.writeStartObject();
+        this.generator.writeObjectFieldStart("columnTypes");
+        for (var entry : columnTypeMap.entrySet()) {
+            this.generator.writeStringField(entry.getKey(), entry.getValue().toString());
+        }
+        this.generator.writeEndObject();
+        this.endLine();
+    }
+
+    @Override
+    public void writeRecord(Map<String, String> columns, Map<String, Object> record) throws IOException {
+        this.generator.writeStartObject();
+        for (var entry : columns.entrySet()) {
+            var value = record.get(entry.getKey());
+            if (value != null) {
+                this.generator.writeFieldName(entry.getValue());
+                this.writeValue(this.columnTypeMap.get(entry.getValue()), value);
+            } else if (this.keepNone) {
+                this.generator.writeNullField(entry.getValue());
+            }
+        }
+        this.endLine();
+    }
+
+    @Override
+    public void writeLastKey(String lastKey) throws IOException {
+        this.generator.writeStartObject();
+        this.generator.writeStringField("lastKey", lastKey);
+        this.endLine();
+        this.generator.flush();
+    }
+
+    private void endLine() throws IOException {
+        this.generator.writeEndObject();
+        this.generator.writeRaw('\n');
+    }
+
+    private void writeValue(ColumnType type, Object value) throws IOException {
+        if (this.rawResult) {
+            if (type == ColumnType.BYTES) {
+                this.generator.writeString(StandardCharsets.UTF_8.decode(((ByteBuffer) value).duplicate()).toString());
+            } else {
+                this.generator.writeString(value.toString());
+            }
+        } else if (type == ColumnType.BOOL) {
+            this.generator.writeString((Boolean) value ? "1" : "0");
+        } else if (type == ColumnType.INT8
+                || type == ColumnType.INT16
+                || type == ColumnType.INT32
+                || type == ColumnType.INT64) {
+            this.writeHex(((Number) value).longValue());
+        } else if (type == ColumnType.FLOAT32) {
+            this.writeHex(Integer.toUnsignedLong(Float.floatToIntBits((Float) value)));
+        } else if (type == ColumnType.FLOAT64) {
+            this.writeHex(Double.doubleToLongBits((Double) value));
+        } else if (type == ColumnType.STRING) {
+            this.generator.writeString((String) value);
+        } else if (type == ColumnType.BYTES) {
+            var buf = (ByteBuffer) value;
+            this.generator.writeBinary(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            throw new IllegalArgumentException("invalid type " + type);
+        }
+    }
+
+    /**
+     * Writes the value as an unsigned hex string like {@link Long#toHexString(long)}.
+     */
+    private void writeHex(long value) throws IOException {
+        int offset = this.hexBuffer.length;
+        do {
+            this.hexBuffer[--offset] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        } while (value != 0);
+        this.generator.writeString(this.hexBuffer, offset, this.hexBuffer.length - offset);
+    }
+}
@@ -16,8 +16,11 @@
 
 package ai.starwhale.mlops.datastore;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -27,7 +30,68 @@ public interface MemoryTable {
 
     void updateFromWal(Wal.WalEntry entry);
 
-    void update(TableSchemaDesc schema, List<Map<String, String>> records);
+    /**
+     * Updates the table. The change is visible at once, while it is persisted in the WAL asynchronously.
+     *
+     * @return a future that completes once the change is persisted in the WAL
+     */
+    CompletableFuture<Void> update(TableSchemaDesc schema, List<Map<String, String>> records);
+
+    /**
+     * Updates the table with an entry in the WAL format, whose values are stored natively instead of as strings.
+     *
+     * <p>The column indexes in the records refer to the columns in the schema of the entry rather than those of the
+     * table, so the schema should declare all columns used by the records. Records are stored in the WAL as they are
+     * if these indexes match the table's, which holds if the columns are listed in the same order as they were when
+     * the table was created.
+     *
+     * @return a future that completes once the change is persisted in the WAL
+     */
+    CompletableFuture<Void> update(Wal.WalEntry entry);
+
+    /**
+     * Builds WAL entries that recreate the current content of the table when replayed. Each entry is built when the
+     * iterator reaches it, so the snapshot of a large or spilled table is never held in memory as a whole.
+     *
+     * <p>The caller should hold the table lock for reading until it is done with the iterator.
+     */
+    Iterator<Wal.WalEntry> snapshot();
+
+    /**
+     * Starts recording the keys of records changed by later updates, see {@link #snapshotChanges()}.
+     *
+     * <p>The caller should hold the table lock for writing.
+     */
+    void trackChanges();
+
+    /**
+     * Builds WAL entries like {@link #snapshot()}, but only for records changed since {@link #trackChanges()} was
+     * called, including deleted ones. The recording stops afterwards.
+     *
+     * <p>The caller should hold the table lock for writing.
+     */
+    List<Wal.WalEntry> snapshotChanges();
+
+    /**
+     * Persists the whole table again if some of its updates failed to be persisted. Queries and updates of the table
+     * fail until then, because the records of these updates are in the table but may be lost on restart.
+     *
+     * <p>The caller should not hold the table lock. It returns once the table is persisted, or throws if it can not
+     * be persisted yet.
+     */
+    void recover();
+
+    /**
+     * Returns the approximate heap size in bytes used by records that can be spilled to disk.
+     */
+    long getMemoryUsage();
+
+    /**
+     * Moves records held in memory to disk if the table supports spilling.
+     *
+     * <p>The caller should hold the table lock for writing.
+     */
+    void spill();
 
     @Data
     @AllArgsConstructor
@@ -37,14 +101,74 @@ public interface MemoryTable {
         Map<String, Object> values;
     }
 
+    default List<RecordResult> query(Map<String, String> columns,
+            List<OrderByDesc> orderBy,
+            TableQueryFilter filter,
+            int start,
+            int limit,
+            boolean keepNone,
+            boolean rawResult) {
+        return this.query(columns, orderBy, filter, start, limit, null, keepNone, rawResult);
+    }
+
+    /**
+     * Queries records matching the filter.
+     *
+     * <p>If lastKey is not null, the query continues after the position it encodes in the order of the results,
+     * which is the key order if orderBy is null. It should be built by {@link #encodeLastKey} from the last record of
+     * the previous page with the same orderBy. The start offset is applied after that position.
+     */
     List<RecordResult> query(Map<String, String> columns,
             List<OrderByDesc> orderBy,
             TableQueryFilter filter,
             int start,
             int limit,
+            String lastKey,
             boolean keepNone,
             boolean rawResult);
 
+    /**
+     * Queries records matching the filter like the other query methods, but passes them to the visitor one by one in
+     * the order of the results instead of collecting them.
+     *
+     * <p>The visitor gets the stored records with all columns, which should not be modified.
+     */
+    void query(List<OrderByDesc> orderBy,
+            TableQueryFilter filter,
+            int start,
+            int limit,
+            String lastKey,
+            Consumer<Map<String, Object>> visitor);
+
+    /**
+     * Encodes the position of a record in the results of a query, which is passed back as the lastKey of the next
+     * query. It holds the key of the record if orderBy is null, or the values of the orderBy columns and the key
+     * otherwise, so the next query does not look up the record, which may have been updated or deleted since.
+     *
+     * @param record a record passed to the visitor of a query with the same orderBy
+     */
+    String encodeLastKey(List<OrderByDesc> orderBy, Map<String, Object> record);
+
+    /**
+     * Groups records matching the filter by the values of the groupBy columns, and computes the aggregate functions
+     * of each group in one pass over the records.
+     *
+     * <p>The key of each result is the list of its groupBy values. Results are ordered by the groupBy values, and
+     * without groupBy columns there is exactly one result.
+     */
+    AggregateResult aggregate(List<String> groupBy, List<AggregateDesc> aggregates, TableQueryFilter filter);
+
+    @Data
+    @AllArgsConstructor
+    class AggregateResult {
+
+        /**
+         * the types of the output columns, the groupBy columns first
+         */
+        Map<String, ColumnType> columnTypeMap;
+        List<RecordResult> records;
+    }
+
     List<RecordResult> scan(
             Map<String, String> columns,
             String start,
@@ -54,7 +178,28 @@ public interface MemoryTable {
             int limit,
             boolean keepNone);
 
-    void lock();
+    /**
+     * Scans records in key order like the other scan method, but returns them lazily, so that a caller merging
+     * several tables only reads the records it needs.
+     *
+     * <p>The caller should hold the table lock for reading until the iteration completes.
+     */
+    Iterator<RecordResult> scan(
+            Map<String, String> columns,
+            String start,
+            boolean startInclusive,
+            String end,
+            boolean endInclusive,
+            boolean keepNone);
+
+    /**
+     * Locks the table for reading or writing.
+     *
+     * <p>A reader sees the table as it is when the lock is acquired until it is released, so consecutive calls of the
+     * reader get a consistent view. Readers do not wait for each other, and writers do not wait for readers unless
+     * the schema is changed or the table is spilled. Writers exclude each other.
+     */
+    void lock(boolean forRead);
 
-    void unlock();
+    void unlock(boolean forRead);
 }
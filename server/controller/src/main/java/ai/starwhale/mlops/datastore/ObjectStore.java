@@ -22,6 +22,7 @@ import ai.starwhale.mlops.memory.SwBufferManager;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
 import java.util.Iterator;
 import org.springframework.stereotype.Component;
 
@@ -48,8 +49,23 @@ public class ObjectStore {
     public SwBuffer get(String name) throws IOException {
         try (var is = this.storageAccessService.get(name)) {
             var ret = this.bufferManager.allocate(Math.toIntExact(is.getSize()));
-            int read = is.readNBytes(ret.asByteBuffer().array(), 0, ret.capacity());
-            assert read == ret.capacity();
+            try {
+                var buf = ret.asByteBuffer();
+                if (buf.hasArray()) {
+                    buf.position(is.readNBytes(buf.array(), buf.arrayOffset(), buf.capacity()));
+                } else {
+                    var channel = Channels.newChannel(is);
+                    while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                        continue;
+                    }
+                }
+                if (buf.hasRemaining()) {
+                    throw new IOException("unexpected end of " + name);
+                }
+            } catch (IOException | RuntimeException e) {
+                this.bufferManager.release(ret);
+                throw e;
+            }
             return ret;
         }
     }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Receives query results record by record, so that large results can be written out without building a
+ * {@link RecordList}.
+ */
+public interface RecordWriter {
+
+    /**
+     * Called once before any record.
+     *
+     * @param columnTypeMap the types of the output columns, keyed by the output column names
+     */
+    void writeColumnTypes(Map<String, ColumnType> columnTypeMap) throws IOException;
+
+    /**
+     * Writes a record.
+     *
+     * @param columns maps column names in the record to output column names. Other columns should be ignored.
+     * @param record  the stored record, which should not be modified or kept after the call
+     */
+    void writeRecord(Map<String, String> columns, Map<String, Object> record) throws IOException;
+
+    /**
+     * Called once after all records.
+     *
+     * @param lastKey the position of the last record encoded by {@link MemoryTable#encodeLastKey}, or null if there is
+     *                no record
+     */
+    void writeLastKey(String lastKey) throws IOException;
+}
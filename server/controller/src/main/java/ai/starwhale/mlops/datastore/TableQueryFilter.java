@@ -34,6 +34,16 @@ public class TableQueryFilter {
         GREATER_EQUAL,
         LESS,
         LESS_EQUAL,
+        NOT_EQUAL,
+        /**
+         * the first operand is a column, and the others are constants. True if the column equals any of them.
+         */
+        IN,
+        /**
+         * the first operand is a STRING column, and the second is a STRING constant. True if the column value starts
+         * with the constant.
+         */
+        PREFIX,
     }
 
     @Data
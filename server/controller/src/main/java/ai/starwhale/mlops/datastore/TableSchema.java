@@ -109,8 +109,14 @@ public class TableSchema {
                         MessageFormat.format("conflicting type for column {0}, expected {1}, actual {2}",
                                 col.getName(), current.getType(), col.getType()));
             }
-            if (current == null
-                    || current.getType() != colSchema.getType() && colSchema.getType() != ColumnType.UNKNOWN) {
+            if (current != null) {
+                // the current type and index are kept if they are not specified
+                colSchema = new ColumnSchema(col.getName(),
+                        colSchema.getType() == ColumnType.UNKNOWN ? current.getType() : colSchema.getType(),
+                        current.getIndex(),
+                        colSchema.getIndexType() == null ? current.getIndexType() : colSchema.getIndexType());
+            }
+            if (!colSchema.equals(current)) {
                 columnSchemaMap.put(col.getName(), colSchema);
             }
         }
@@ -22,21 +22,50 @@ import ai.starwhale.mlops.memory.SwBuffer;
 import ai.starwhale.mlops.memory.SwBufferInputStream;
 import ai.starwhale.mlops.memory.SwBufferManager;
 import ai.starwhale.mlops.memory.SwBufferOutputStream;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.CodedOutputStream;
 import io.github.resilience4j.core.IntervalFunction;
 import io.github.resilience4j.retry.Retry;
 import io.github.resilience4j.retry.RetryConfig;
+import io.micrometer.core.instrument.Metrics;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.xerial.snappy.Snappy;
 
+/**
+ * Writes WAL entries to the object store with group commit.
+ *
+ * <p>Appended entries are queued and written by a background thread. Each write takes all queued entries as a batch
+ * and seals them into a new log file, which is never modified afterwards. The latency and throughput are tuned by
+ * walWaitIntervalMillis, the longest time an entry waits for others to join its batch, and walFileSize, the batch size
+ * that is written without waiting any longer. A batch is also written once no entry has been appended for
+ * {@link #IDLE_MILLIS}, so that an isolated update does not wait for a batch that never fills.
+ *
+ * <p>Each file starts with a 4-byte header, "swl" or "sw2" followed by the compression method. Files in the v1 format
+ * ("swl") hold length-delimited entries with repeated records. The v2 format ("sw2") stores the records of an entry
+ * column by column if that is smaller, see {@link ColumnarRecordsCodec}. Files in both formats can be read.
+ */
 @Slf4j
 @Component
 public class WalManager extends Thread {
@@ -51,13 +80,25 @@ public class WalManager extends Thread {
 
     private final int walMaxFileSizeNoHeader;
 
+    private final String walPrefix;
+
     private final String logFilePrefix;
 
+    private final String checkpointPrefix;
+
+    private final String snapshotPrefix;
+
     private final int walWaitIntervalMillis;
 
-    private final LinkedList<Wal.WalEntry> entries = new LinkedList<>();
+    static final int IDLE_MILLIS = 2;
+
+    private final LinkedList<PendingEntry> entries = new LinkedList<>();
 
-    private SwBufferOutputStream outputStream;
+    // the total size of queued entries, including their length prefixes
+    private int queuedBytes;
+
+    // a read-only manager has no writer thread and no output buffers
+    private final boolean readOnly;
 
     private final SwBuffer outputBuffer;
 
@@ -67,44 +108,146 @@ public class WalManager extends Thread {
 
     private static final byte SNAPPY = 1;
 
-    private final byte[] header = new byte[]{'s', 'w', 'l', 0};
+    private static final byte ZSTD = 2;
+
+    private static final int ZSTD_LEVEL = 3;
+
+    private static final byte[] V1_MAGIC = new byte[]{'s', 'w', 'l'};
+
+    private static final byte[] V2_MAGIC = new byte[]{'s', 'w', '2'};
+
+    private static final int HEADER_SIZE = 4;
+
+    private final int formatVersion;
+
+    private final byte compression;
 
     private boolean terminated;
 
-    private int logFileIndex;
+    private volatile int logFileIndex;
 
     private final int ossMaxAttempts;
 
+    private final int walReplayParallelism;
+
+    // reads WAL files ahead of the consumers of readAll() and readNewLogFiles()
+    private final ExecutorService replayExecutor;
+
+    private static final long REPLAY_PROGRESS_LOG_INTERVAL_MILLIS = 10000;
+
+    static final String REPLAY_FILES_METRIC = "datastore.wal.replay.files";
+
+    static final String REPLAY_BYTES_METRIC = "datastore.wal.replay.bytes";
+
     private final List<String> existedLogFiles = new ArrayList<>();
 
+    // the index of the first WAL log file that is not covered by the latest checkpoint
+    private int checkpointLogFileIndex;
+
+    private final List<String> snapshotFiles = new ArrayList<>();
+
     public WalManager(ObjectStore objectStore,
             SwBufferManager bufferManager,
             @Value("${sw.datastore.walFileSize}") int walFileSize,
             @Value("${sw.datastore.walMaxFileSize}") int walMaxFileSize,
             @Value("${sw.datastore.walPrefix}") String walPrefix,
             @Value("${sw.datastore.walWaitIntervalMillis}") int walWaitIntervalMillis,
-            @Value("${sw.datastore.ossMaxAttempts}") int ossMaxAttempts) throws IOException {
+            @Value("${sw.datastore.ossMaxAttempts}") int ossMaxAttempts,
+            @Value("${sw.datastore.walReplayParallelism}") int walReplayParallelism) throws IOException {
+        this(objectStore,
+                bufferManager,
+                walFileSize,
+                walMaxFileSize,
+                walPrefix,
+                walWaitIntervalMillis,
+                ossMaxAttempts,
+                walReplayParallelism,
+                1,
+                "snappy",
+                false);
+    }
+
+    /**
+     * Creates a manager writing files in the given format.
+     *
+     * @param walFormatVersion 1 or 2
+     * @param walCompression   none, snappy or zstd
+     * @param readOnly         true for a follower, which only reads the files and never writes any of them
+     */
+    @Autowired
+    public WalManager(ObjectStore objectStore,
+            SwBufferManager bufferManager,
+            @Value("${sw.datastore.walFileSize}") int walFileSize,
+            @Value("${sw.datastore.walMaxFileSize}") int walMaxFileSize,
+            @Value("${sw.datastore.walPrefix}") String walPrefix,
+            @Value("${sw.datastore.walWaitIntervalMillis}") int walWaitIntervalMillis,
+            @Value("${sw.datastore.ossMaxAttempts}") int ossMaxAttempts,
+            @Value("${sw.datastore.walReplayParallelism}") int walReplayParallelism,
+            @Value("${sw.datastore.walFormatVersion}") int walFormatVersion,
+            @Value("${sw.datastore.walCompression}") String walCompression,
+            @Value("${sw.datastore.follower.enabled}") boolean readOnly) throws IOException {
+        if (walFormatVersion != 1 && walFormatVersion != 2) {
+            throw new IllegalArgumentException("invalid WAL format version " + walFormatVersion);
+        }
+        this.formatVersion = walFormatVersion;
+        switch (walCompression) {
+            case "none":
+                this.compression = NO_COMPRESSION;
+                break;
+            case "snappy":
+                this.compression = SNAPPY;
+                break;
+            case "zstd":
+                this.compression = ZSTD;
+                break;
+            default:
+                throw new IllegalArgumentException("invalid WAL compression " + walCompression);
+        }
         this.objectStore = objectStore;
         this.bufferManager = bufferManager;
         this.walFileSize = walFileSize;
         this.walMaxFileSize = walMaxFileSize;
-        this.walMaxFileSizeNoHeader = this.walMaxFileSize - this.header.length;
+        this.walMaxFileSizeNoHeader = this.walMaxFileSize - HEADER_SIZE;
+        this.walPrefix = walPrefix;
         this.logFilePrefix = walPrefix + "wal.log.";
+        this.checkpointPrefix = walPrefix + "checkpoint.";
+        this.snapshotPrefix = walPrefix + "snapshot.";
         this.walWaitIntervalMillis = walWaitIntervalMillis;
         this.ossMaxAttempts = ossMaxAttempts;
-        this.outputBuffer = this.bufferManager.allocate(this.walMaxFileSizeNoHeader);
-        this.compressedBuffer = this.bufferManager.allocate(this.walMaxFileSize);
-        this.outputStream = new SwBufferOutputStream(this.outputBuffer);
+        this.walReplayParallelism = Math.max(1, walReplayParallelism);
+        this.replayExecutor = Executors.newFixedThreadPool(this.walReplayParallelism,
+                new ThreadFactoryBuilder().setNameFormat("wal-replay-%d").setDaemon(true).build());
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.outputBuffer = null;
+            this.compressedBuffer = null;
+        } else {
+            this.outputBuffer = this.bufferManager.allocate(this.walMaxFileSizeNoHeader);
+            this.compressedBuffer = this.bufferManager.allocate(this.walMaxFileSize);
+        }
         var walMap = new TreeMap<Integer, String>();
+        var checkpointMap = new TreeMap<Integer, String>();
+        this.listFiles(walMap, checkpointMap);
+        this.load(walMap, checkpointMap);
+        if (!readOnly) {
+            // the writer thread would take over the leader's file names
+            this.start();
+        }
+    }
+
+    /**
+     * Lists log files and checkpoints by their indexes.
+     */
+    private void listFiles(TreeMap<Integer, String> walMap, TreeMap<Integer, String> checkpointMap) {
         Iterator<String> it;
         try {
             it = Retry.decorateCheckedSupplier(
                             Retry.of("put", RetryConfig.custom()
-                                    .maxAttempts(ossMaxAttempts)
+                                    .maxAttempts(this.ossMaxAttempts)
                                     .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(100, 2.0, 0.5, 10000))
                                     .retryOnException(e -> !terminated)
                                     .build()),
-                            () -> this.objectStore.list(this.logFilePrefix))
+                            () -> this.objectStore.list(this.walPrefix))
                     .apply();
         } catch (Throwable e) {
             log.error("fail to read WAL", e);
@@ -113,117 +256,302 @@ public class WalManager extends Thread {
         while (it.hasNext()) {
             var fn = it.next();
             try {
-                var index = Integer.parseInt(fn.substring(this.logFilePrefix.length()));
-                walMap.put(index, fn);
+                if (fn.startsWith(this.logFilePrefix)) {
+                    walMap.put(Integer.parseInt(fn.substring(this.logFilePrefix.length())), fn);
+                } else if (fn.startsWith(this.checkpointPrefix)) {
+                    checkpointMap.put(Integer.parseInt(fn.substring(this.checkpointPrefix.length())), fn);
+                }
             } catch (NumberFormatException e) {
                 // ignore
             }
         }
+    }
+
+    /**
+     * Sets the files to be read by {@link #readAll()} to the latest checkpoint and the log files after it.
+     */
+    private void load(TreeMap<Integer, String> walMap, TreeMap<Integer, String> checkpointMap) {
+        this.snapshotFiles.clear();
+        this.existedLogFiles.clear();
+        this.checkpointLogFileIndex = 0;
+        if (!checkpointMap.isEmpty()) {
+            this.loadCheckpoint(checkpointMap.lastEntry().getValue());
+        }
+        walMap.headMap(this.checkpointLogFileIndex).clear();
+        // log files before the checkpoint may have been deleted, never reuse their indexes
+        this.logFileIndex = this.checkpointLogFileIndex;
         if (!walMap.isEmpty()) {
-            this.logFileIndex = walMap.lastKey() + 1;
+            this.logFileIndex = Math.max(this.logFileIndex, walMap.lastKey() + 1);
             this.existedLogFiles.addAll(walMap.values());
         }
-        this.start();
     }
 
+    /**
+     * Reads log files written by the leader after the ones read so far, for a follower sharing the WAL prefix of the
+     * leader. Log files are never modified once written, so the follower only needs to read the new ones.
+     *
+     * <p>The leader removes log files covered by its checkpoints. If the follower has fallen so far behind that some
+     * log files it has not read are removed, the WAL is reloaded from the latest checkpoint instead.
+     *
+     * @param forceReload reload the WAL even if no log file is missing, for a follower that failed to apply the last
+     *                    entries it read
+     * @return the entries in the new log files, or null if the WAL is reloaded, in which case the follower should
+     *     rebuild its tables from {@link #readAll()}
+     */
+    public synchronized Iterator<Wal.WalEntry> readNewLogFiles(boolean forceReload) {
+        var walMap = new TreeMap<Integer, String>();
+        var checkpointMap = new TreeMap<Integer, String>();
+        this.listFiles(walMap, checkpointMap);
+        // an index is skipped only after the write to it has failed, so a missing file followed by later ones is never
+        // written
+        var newFiles = walMap.tailMap(this.logFileIndex);
+        var files = new ArrayList<>(newFiles.values());
+        int next = newFiles.isEmpty() ? this.logFileIndex : newFiles.lastKey() + 1;
+        // the log files before the latest checkpoint are about to be removed, if they have not been
+        if (forceReload || (!checkpointMap.isEmpty() && checkpointMap.lastKey() > this.logFileIndex
+                && newFiles.headMap(checkpointMap.lastKey()).size() < checkpointMap.lastKey() - this.logFileIndex)) {
+            log.info("reload WAL from checkpoint {}", checkpointMap.isEmpty() ? null : checkpointMap.lastKey());
+            this.load(walMap, checkpointMap);
+            return null;
+        }
+        this.logFileIndex = next;
+        if (files.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        return this.readFiles(files, false);
+    }
+
+    /**
+     * Reads all entries in the WAL, starting from the snapshot files of the latest checkpoint.
+     *
+     * <p>Files are downloaded, decompressed and parsed by walReplayParallelism worker threads ahead of the consumer,
+     * so that the consumer does not wait for the object store. Entries are still returned in the order they were
+     * written.
+     */
     public Iterator<Wal.WalEntry> readAll() {
+        // snapshot files share the same format as log files and are always replayed first
+        var files = new ArrayList<>(this.snapshotFiles);
+        files.addAll(this.existedLogFiles);
+        return this.readFiles(files, true);
+    }
+
+    private Iterator<Wal.WalEntry> readFiles(List<String> files, boolean logProgress) {
+        var filesToRead = new LinkedList<>(files);
+        var fileCount = filesToRead.size();
         return new Iterator<>() {
-            private final List<String> files = new ArrayList<>(WalManager.this.existedLogFiles);
-            private final SwBuffer buf = WalManager.this.bufferManager.allocate(WalManager.this.walMaxFileSize);
-            private SwBufferInputStream inputStream;
+            private final LinkedList<Future<List<Wal.WalEntry>>> prefetched = new LinkedList<>();
+            private Iterator<Wal.WalEntry> current = Collections.emptyIterator();
+            private int readFileCount;
+            private final long startTime = System.currentTimeMillis();
+            private long lastLogTime = this.startTime;
+
+            {
+                for (int i = 0; i < WalManager.this.walReplayParallelism; ++i) {
+                    if (!this.prefetchNext()) {
+                        break;
+                    }
+                }
+            }
 
             @Override
             public boolean hasNext() {
-                return !this.files.isEmpty() || this.inputStream != null;
+                while (!this.current.hasNext()) {
+                    if (this.prefetched.isEmpty()) {
+                        return false;
+                    }
+                    this.current = this.takeNext().iterator();
+                }
+                return true;
             }
 
             @Override
             public Wal.WalEntry next() {
-                if (this.inputStream == null) {
-                    if (this.files.isEmpty()) {
-                        return null;
-                    } else {
-                        this.getNext();
-                    }
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
                 }
-                try {
-                    var ret = Wal.WalEntry.parseDelimitedFrom(this.inputStream);
-                    if (this.inputStream.remaining() == 0) {
-                        this.inputStream = null;
-                    }
-                    return ret;
-                } catch (IOException e) {
-                    log.error("failed to parse proto", e);
-                    this.inputStream = null;
-                    throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
+                return this.current.next();
+            }
+
+            private boolean prefetchNext() {
+                var fn = filesToRead.poll();
+                if (fn == null) {
+                    return false;
                 }
+                this.prefetched.add(WalManager.this.replayExecutor.submit(() -> WalManager.this.readFile(fn)));
+                return true;
             }
 
-            private void getNext() {
-                var fn = this.files.get(0);
-                this.files.remove(0);
-                SwBuffer data;
+            private List<Wal.WalEntry> takeNext() {
+                var future = this.prefetched.poll();
+                this.prefetchNext();
+                List<Wal.WalEntry> entries;
                 try {
-                    data = Retry.decorateCheckedSupplier(
-                                    Retry.of("get", RetryConfig.custom()
-                                            .maxAttempts(WalManager.this.ossMaxAttempts)
-                                            .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(
-                                                    100, 2.0, 0.5, 10000))
-                                            .build()),
-                                    () -> objectStore.get(fn))
-                            .apply();
-                } catch (Throwable e) {
-                    log.error("fail to read from object store", e);
+                    entries = Objects.requireNonNull(future).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    this.prefetched.forEach(f -> f.cancel(true));
+                    this.prefetched.clear();
+                    filesToRead.clear();
+                    log.error("fail to read WAL", e);
                     throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
                 }
-                if (data.capacity() < WalManager.this.header.length) {
-                    log.error("corrupted file, size={}", data.capacity());
-                    throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
+                ++this.readFileCount;
+                var now = System.currentTimeMillis();
+                if (logProgress && (this.readFileCount == fileCount
+                        || now - this.lastLogTime >= REPLAY_PROGRESS_LOG_INTERVAL_MILLIS)) {
+                    log.info("replayed {}/{} WAL files in {}ms", this.readFileCount, fileCount, now - this.startTime);
+                    this.lastLogTime = now;
                 }
-                int uncompressedSize;
-                var h = new byte[4];
-                data.getBytes(0, h, 0, h.length);
-                var compressed = data.slice(h.length, data.capacity() - h.length);
-                if (h[3] == NO_COMPRESSION) {
-                    compressed.copyTo(this.buf);
-                    uncompressedSize = compressed.capacity();
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * Downloads and parses a WAL file. It runs on replay worker threads.
+     */
+    private List<Wal.WalEntry> readFile(String name) throws IOException {
+        SwBuffer data;
+        try {
+            data = this.getWithRetry(name);
+        } catch (Throwable e) {
+            throw new IOException("fail to read " + name + " from object store", e);
+        }
+        try {
+            if (data.capacity() < HEADER_SIZE) {
+                throw new IOException("corrupted file " + name + ", size=" + data.capacity());
+            }
+            var h = new byte[HEADER_SIZE];
+            data.getBytes(0, h, 0, h.length);
+            // anything else is read as v1 like before the magic was checked
+            boolean columnar = Arrays.equals(h, 0, V2_MAGIC.length, V2_MAGIC, 0, V2_MAGIC.length);
+            var compressed = data.slice(h.length, data.capacity() - h.length);
+            Metrics.counter(REPLAY_FILES_METRIC).increment();
+            Metrics.counter(REPLAY_BYTES_METRIC).increment(data.capacity());
+            if (h[3] == NO_COMPRESSION) {
+                return WalManager.parseEntries(compressed, columnar);
+            }
+            if (h[3] != SNAPPY && h[3] != ZSTD) {
+                throw new IOException("unknown compression " + h[3] + " of file " + name);
+            }
+            var inBuf = compressed.asByteBuffer();
+            var buf = this.bufferManager.allocate(h[3] == SNAPPY
+                    ? WalManager.getSnappyUncompressedSize(inBuf)
+                    : WalManager.getZstdUncompressedSize(inBuf));
+            try {
+                if (h[3] == SNAPPY) {
+                    WalManager.uncompressSnappy(inBuf, buf.asByteBuffer());
                 } else {
-                    try {
-                        var inBuf = compressed.asByteBuffer();
-                        var outBuf = this.buf.asByteBuffer();
-                        if (inBuf.hasArray()) {
-                            uncompressedSize = Snappy.uncompress(inBuf.array(),
-                                    inBuf.arrayOffset(),
-                                    inBuf.capacity(),
-                                    outBuf.array(),
-                                    outBuf.arrayOffset());
-                        } else {
-                            uncompressedSize = Snappy.uncompress(inBuf, outBuf);
-                        }
-                    } catch (IOException e) {
-                        log.error("fail to uncompress", e);
-                        throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
-                    }
+                    WalManager.uncompressZstd(inBuf, buf.asByteBuffer());
                 }
-                WalManager.this.bufferManager.release(data);
-                this.inputStream = new SwBufferInputStream(this.buf.slice(0, uncompressedSize));
+                return WalManager.parseEntries(buf, columnar);
+            } finally {
+                this.bufferManager.release(buf);
             }
-        };
+        } finally {
+            this.bufferManager.release(data);
+        }
+    }
+
+    private static int getSnappyUncompressedSize(ByteBuffer inBuf) throws IOException {
+        if (inBuf.hasArray()) {
+            return Snappy.uncompressedLength(inBuf.array(), inBuf.arrayOffset(), inBuf.capacity());
+        }
+        return Snappy.uncompressedLength(inBuf);
     }
 
-    public void append(Wal.WalEntry entry) {
+    private static void uncompressSnappy(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException {
+        if (inBuf.hasArray() && outBuf.hasArray()) {
+            Snappy.uncompress(inBuf.array(),
+                    inBuf.arrayOffset(),
+                    inBuf.capacity(),
+                    outBuf.array(),
+                    outBuf.arrayOffset());
+        } else if (inBuf.isDirect() && outBuf.isDirect()) {
+            Snappy.uncompress(inBuf, outBuf);
+        } else {
+            // one of them is a heap buffer as the buffer pool is used up
+            outBuf.put(Snappy.uncompress(WalManager.toArray(inBuf, inBuf.capacity())));
+        }
+    }
+
+    private static int getZstdUncompressedSize(ByteBuffer inBuf) throws IOException {
+        long size;
+        if (inBuf.hasArray()) {
+            size = Zstd.decompressedSize(inBuf.array(), inBuf.arrayOffset(), inBuf.capacity());
+        } else {
+            size = Zstd.decompressedSize(inBuf);
+        }
+        if (size <= 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("invalid zstd frame, uncompressed size=" + size);
+        }
+        return (int) size;
+    }
+
+    private static void uncompressZstd(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException {
+        long ret;
+        try {
+            if (inBuf.hasArray() && outBuf.hasArray()) {
+                ret = Zstd.decompressByteArray(outBuf.array(),
+                        outBuf.arrayOffset(),
+                        outBuf.capacity(),
+                        inBuf.array(),
+                        inBuf.arrayOffset(),
+                        inBuf.capacity());
+            } else if (inBuf.isDirect() && outBuf.isDirect()) {
+                ret = Zstd.decompress(outBuf, inBuf);
+            } else {
+                // one of them is a heap buffer as the buffer pool is used up
+                var uncompressed = new byte[outBuf.capacity()];
+                ret = Zstd.decompress(uncompressed, WalManager.toArray(inBuf, inBuf.capacity()));
+                outBuf.put(uncompressed);
+            }
+        } catch (ZstdException e) {
+            throw new IOException(e);
+        }
+        if (Zstd.isError(ret)) {
+            throw new IOException("fail to uncompress: " + Zstd.getErrorName(ret));
+        }
+    }
+
+    private static List<Wal.WalEntry> parseEntries(SwBuffer buf, boolean columnar) throws IOException {
+        var ret = new ArrayList<Wal.WalEntry>();
+        var inputStream = new SwBufferInputStream(buf);
+        while (inputStream.remaining() > 0) {
+            var entry = Wal.WalEntry.parseDelimitedFrom(inputStream);
+            ret.add(columnar ? ColumnarRecordsCodec.decode(entry) : entry);
+        }
+        return ret;
+    }
+
+    /**
+     * Appends an entry to the WAL.
+     *
+     * @return a future that completes once the entry is persisted in the object store, or completes exceptionally
+     *     with {@link SwProcessException} if the entry can not be written
+     */
+    public CompletableFuture<Void> append(Wal.WalEntry entry) {
+        this.checkWritable();
         if (entry.getSerializedSize() > this.walMaxFileSizeNoHeader) {
-            for (var e : this.splitEntry(entry)) {
-                this.append(e);
+            return CompletableFuture.allOf(this.splitEntry(entry).stream()
+                    .map(this::append)
+                    .toArray(CompletableFuture[]::new));
+        }
+        // encoded by the caller rather than the writer thread, which is shared by all tables
+        var encoded = this.encode(entry);
+        var pending = new PendingEntry(encoded,
+                CodedOutputStream.computeMessageSizeNoTag(encoded),
+                new CompletableFuture<>());
+        synchronized (this.entries) {
+            if (this.terminated) {
+                throw new SwProcessException(SwProcessException.ErrorType.DATASTORE, "terminated");
             }
-        } else {
-            synchronized (this.entries) {
-                if (this.terminated) {
-                    throw new SwProcessException(SwProcessException.ErrorType.DATASTORE, "terminated");
-                }
-                this.entries.add(entry);
+            this.entries.add(pending);
+            this.queuedBytes += pending.size;
+            if (this.entries.size() == 1 || this.queuedBytes >= this.walFileSize) {
+                this.entries.notifyAll();
             }
         }
+        return pending.future;
     }
 
     public void terminate() {
@@ -234,132 +562,400 @@ public class WalManager extends Thread {
             this.terminated = true;
             this.entries.notifyAll();
         }
+        this.replayExecutor.shutdownNow();
+        if (this.readOnly) {
+            return;
+        }
         try {
             this.join();
         } catch (InterruptedException e) {
             log.warn("interrupted", e);
+            return;
+        }
+        this.bufferManager.release(this.outputBuffer);
+        this.bufferManager.release(this.compressedBuffer);
+    }
+
+    public boolean isReadOnly() {
+        return this.readOnly;
+    }
+
+    private void checkWritable() {
+        if (this.readOnly) {
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE, "the WAL is read-only");
+        }
+    }
+
+    public int getLogFileIndex() {
+        return this.logFileIndex;
+    }
+
+    public synchronized int getCheckpointLogFileIndex() {
+        return this.checkpointLogFileIndex;
+    }
+
+    /**
+     * Writes a checkpoint that replaces all log files before walLogIndex, then deletes the obsolete files.
+     *
+     * <p>The entries must reflect all changes recorded in log files before walLogIndex. It is fine if they also
+     * reflect some changes recorded in later log files, because replaying updates on top of a snapshot leads to the
+     * same result.
+     *
+     * @param walLogIndex the index of the first log file that is not covered by the snapshot
+     * @param entries     the snapshot entries
+     */
+    public synchronized void writeCheckpoint(int walLogIndex, Iterator<Wal.WalEntry> entries) {
+        this.checkWritable();
+        if (walLogIndex <= this.checkpointLogFileIndex) {
+            return;
+        }
+        if (walLogIndex > this.logFileIndex) {
+            throw new IllegalArgumentException(
+                    "invalid wal log index " + walLogIndex + ", current index is " + this.logFileIndex);
+        }
+        var snapshotFiles = new ArrayList<String>();
+        var output = this.bufferManager.allocate(this.walMaxFileSizeNoHeader);
+        var compressed = this.bufferManager.allocate(this.walMaxFileSize);
+        try {
+            var outputStream = new SwBufferOutputStream(output);
+            while (entries.hasNext()) {
+                var entry = entries.next();
+                var split = entry.getSerializedSize() > this.walMaxFileSizeNoHeader
+                        ? this.splitEntry(entry)
+                        : List.of(entry);
+                for (var e : split) {
+                    var encoded = this.encode(e);
+                    if (outputStream.getOffset() > 0
+                            && CodedOutputStream.computeMessageSizeNoTag(encoded) + outputStream.getOffset()
+                            > this.walMaxFileSizeNoHeader) {
+                        snapshotFiles.add(this.writeSnapshotFile(walLogIndex, snapshotFiles.size(),
+                                output, outputStream.getOffset(), compressed));
+                        outputStream = new SwBufferOutputStream(output);
+                    }
+                    encoded.writeDelimitedTo(outputStream);
+                }
+            }
+            if (outputStream.getOffset() > 0) {
+                snapshotFiles.add(this.writeSnapshotFile(walLogIndex, snapshotFiles.size(),
+                        output, outputStream.getOffset(), compressed));
+            }
+            var checkpoint = Wal.Checkpoint.newBuilder()
+                    .setWalLogIndex(walLogIndex)
+                    .setSnapshotFileCount(snapshotFiles.size())
+                    .build()
+                    .toByteArray();
+            var buf = this.bufferManager.allocate(checkpoint.length);
+            buf.setBytes(0, checkpoint, 0, checkpoint.length);
+            this.putWithRetry(this.checkpointPrefix + walLogIndex, buf);
+            this.bufferManager.release(buf);
+        } catch (Throwable e) {
+            log.error("fail to write checkpoint", e);
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
+        } finally {
+            this.bufferManager.release(output);
+            this.bufferManager.release(compressed);
+        }
+        this.checkpointLogFileIndex = walLogIndex;
+        this.deleteObsoleteFiles(walLogIndex, snapshotFiles);
+    }
+
+    private String writeSnapshotFile(int walLogIndex, int fileIndex, SwBuffer output, int size, SwBuffer compressed)
+            throws Throwable {
+        var name = this.snapshotPrefix + walLogIndex + "." + fileIndex;
+        this.putWithRetry(name, compressed.slice(0, this.compress(output, size, compressed)));
+        return name;
+    }
+
+    private void loadCheckpoint(String name) {
+        Wal.Checkpoint checkpoint;
+        try {
+            var data = this.getWithRetry(name);
+            checkpoint = Wal.Checkpoint.parseFrom(data.asByteBuffer());
+            this.bufferManager.release(data);
+        } catch (Throwable e) {
+            log.error("fail to read checkpoint {}", name, e);
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE);
+        }
+        this.checkpointLogFileIndex = checkpoint.getWalLogIndex();
+        for (int i = 0; i < checkpoint.getSnapshotFileCount(); ++i) {
+            this.snapshotFiles.add(this.snapshotPrefix + this.checkpointLogFileIndex + "." + i);
+        }
+    }
+
+    /**
+     * Deletes older checkpoints, their snapshot files and log files covered by the current checkpoint.
+     *
+     * <p>Failures are only logged, as these files are ignored on startup anyway.
+     */
+    private void deleteObsoleteFiles(int walLogIndex, List<String> snapshotFiles) {
+        try {
+            var it = this.objectStore.list(this.checkpointPrefix);
+            while (it.hasNext()) {
+                var fn = it.next();
+                if (!fn.equals(this.checkpointPrefix + walLogIndex)) {
+                    this.objectStore.delete(fn);
+                }
+            }
+            it = this.objectStore.list(this.snapshotPrefix);
+            while (it.hasNext()) {
+                var fn = it.next();
+                if (!snapshotFiles.contains(fn)) {
+                    this.objectStore.delete(fn);
+                }
+            }
+            it = this.objectStore.list(this.logFilePrefix);
+            while (it.hasNext()) {
+                var fn = it.next();
+                try {
+                    if (Integer.parseInt(fn.substring(this.logFilePrefix.length())) < walLogIndex) {
+                        this.objectStore.delete(fn);
+                    }
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+        } catch (IOException e) {
+            log.warn("fail to delete obsolete files", e);
         }
     }
 
     @Override
     public void run() {
         for (; ; ) {
+            var batch = this.takeBatch();
+            if (batch == null) {
+                return;
+            }
             try {
-                var status = this.populateOutput();
-                if (status == PopulationStatus.TERMINATED) {
-                    return;
-                }
-                this.writeToObjectStore(status == PopulationStatus.BUFFER_FULL);
+                this.writeLogFile(batch);
             } catch (Throwable e) {
                 log.error("unexpected exception", e);
-                try {
-                    //noinspection BusyWait
-                    Thread.sleep(1000);
-                } catch (InterruptedException ex) {
-                    log.warn("interrupted", e);
-                }
+                var exception = new SwProcessException(SwProcessException.ErrorType.DATASTORE, e.getMessage());
+                batch.forEach(pending -> pending.future.completeExceptionally(exception));
             }
         }
     }
 
-    private enum PopulationStatus {
-        TERMINATED,
-        BUFFER_FULL,
-        NO_MORE_ENTRIES
+    @AllArgsConstructor
+    private static class PendingEntry {
+
+        private final Wal.WalEntry entry;
+
+        // the serialized size with the length prefix
+        private final int size;
+
+        private final CompletableFuture<Void> future;
     }
 
-    private PopulationStatus populateOutput() {
+    /**
+     * Waits for entries and removes them from the queue as a batch.
+     *
+     * <p>The batch is taken once walFileSize bytes are queued, walWaitIntervalMillis passed since the first entry
+     * arrived, or no entry arrived for IDLE_MILLIS, whichever comes first. Entries queued while the previous batch is
+     * being written are taken at once if they are large enough, so the batch size grows with the load.
+     *
+     * @return the batch, or null if the manager is terminated and all entries have been written
+     */
+    private List<PendingEntry> takeBatch() {
         synchronized (this.entries) {
             while (!this.terminated && this.entries.isEmpty()) {
-                try {
-                    this.entries.wait(this.walWaitIntervalMillis);
-                } catch (InterruptedException e) {
-                    log.warn("interrupted", e);
-                }
+                this.waitForEntries(0);
             }
-            if (this.terminated && this.entries.isEmpty()) {
-                return PopulationStatus.TERMINATED;
+            if (this.entries.isEmpty()) {
+                return null;
             }
-        }
-        for (; ; ) {
-            Wal.WalEntry entry;
-            synchronized (this.entries) {
-                if (this.entries.isEmpty()) {
+            var deadline = System.currentTimeMillis() + this.walWaitIntervalMillis;
+            for (; ; ) {
+                var timeout = deadline - System.currentTimeMillis();
+                if (this.terminated || this.queuedBytes >= this.walFileSize || timeout <= 0) {
                     break;
                 }
-                entry = this.entries.getFirst();
-            }
-            if (CodedOutputStream.computeMessageSizeNoTag(entry) + this.outputStream.getOffset()
-                    > this.walMaxFileSizeNoHeader) {
-                if (this.outputStream.getOffset() == 0) {
-                    // huge single entry
-                    log.error(
-                            "data loss: discard unexpected huge entry. size={} table={} schema={} records count={}",
-                            entry.getSerializedSize(),
-                            entry.getTableName(),
-                            entry.getTableSchema(),
-                            entry.getRecordsCount());
-                } else {
-                    return PopulationStatus.BUFFER_FULL;
-                }
-            } else {
-                try {
-                    entry.writeDelimitedTo(this.outputStream);
-                } catch (IOException e) {
-                    log.error("data loss: unexpected exception", e);
+                var count = this.entries.size();
+                this.waitForEntries(Math.min(timeout, IDLE_MILLIS));
+                if (this.entries.size() == count) {
+                    break;
                 }
             }
-            synchronized (this.entries) {
+            var batch = new ArrayList<PendingEntry>();
+            int batchSize = 0;
+            while (!this.entries.isEmpty()) {
+                var pending = this.entries.getFirst();
+                if (!batch.isEmpty() && batchSize + pending.size > this.walMaxFileSizeNoHeader) {
+                    break;
+                }
+                batch.add(pending);
+                batchSize += pending.size;
+                this.queuedBytes -= pending.size;
                 this.entries.removeFirst();
             }
+            return batch;
         }
-        if (this.outputStream.getOffset() >= this.walFileSize) {
-            return PopulationStatus.BUFFER_FULL;
-        }
-        return PopulationStatus.NO_MORE_ENTRIES;
     }
 
-    private void writeToObjectStore(boolean clearOutput) {
-        int compressedSize;
+    private void waitForEntries(long timeout) {
         try {
-            var inBuf = this.outputBuffer.asByteBuffer();
-            var outBuf = this.compressedBuffer.asByteBuffer();
-            this.header[3] = WalManager.SNAPPY;
-            outBuf.put(header);
-            if (inBuf.hasArray()) {
-                compressedSize = Snappy.compress(inBuf.array(),
-                        inBuf.arrayOffset(),
-                        this.outputStream.getOffset(),
-                        outBuf.array(),
-                        outBuf.arrayOffset() + outBuf.position());
+            this.entries.wait(timeout);
+        } catch (InterruptedException e) {
+            log.warn("interrupted", e);
+        }
+    }
+
+    /**
+     * Writes the batch as a new log file and completes the futures of its entries.
+     *
+     * <p>The log file index is advanced even if the write fails, because the file may have been written although the
+     * object store reports a failure. Reusing its name would replace entries that may have been read already. Readers
+     * skip missing indexes.
+     */
+    private void writeLogFile(List<PendingEntry> batch) throws IOException {
+        var outputStream = new SwBufferOutputStream(this.outputBuffer);
+        var written = new ArrayList<PendingEntry>();
+        for (var pending : batch) {
+            if (pending.size > this.walMaxFileSizeNoHeader) {
+                log.error("discard unexpected huge entry. size={} table={} schema={} records count={}",
+                        pending.size,
+                        pending.entry.getTableName(),
+                        pending.entry.getTableSchema(),
+                        pending.entry.getRecordsCount());
+                pending.future.completeExceptionally(new SwProcessException(SwProcessException.ErrorType.DATASTORE,
+                        "huge single entry. size=" + pending.size));
             } else {
-                inBuf.limit(this.outputStream.getOffset());
-                compressedSize = Snappy.compress(inBuf, outBuf);
+                pending.entry.writeDelimitedTo(outputStream);
+                written.add(pending);
             }
-        } catch (IOException e) {
-            log.warn("failed to compress", e);
-            this.header[3] = WalManager.NO_COMPRESSION;
-            this.compressedBuffer.setBytes(0, this.header, 0, this.header.length);
-            this.outputBuffer.copyTo(this.compressedBuffer.slice(4, this.outputStream.getOffset()));
-            compressedSize = this.outputStream.getOffset();
         }
+        if (written.isEmpty()) {
+            return;
+        }
+        var name = this.logFilePrefix + this.logFileIndex;
+        int compressedBufferSize = this.compress(this.outputBuffer, outputStream.getOffset(), this.compressedBuffer);
         try {
-            int compressedBufferSize = compressedSize + this.header.length;
-            Retry.decorateCheckedRunnable(
-                            Retry.of("put", RetryConfig.custom()
-                                    .maxAttempts(this.ossMaxAttempts)
-                                    .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(100, 2.0, 0.5, 10000))
-                                    .build()),
-                            () -> this.objectStore.put(this.logFilePrefix + this.logFileIndex,
-                                    this.compressedBuffer.slice(0, compressedBufferSize)))
-                    .run();
+            this.putWithRetry(name, this.compressedBuffer.slice(0, compressedBufferSize));
         } catch (Throwable e) {
-            log.error("data loss: failed to write wal log", e);
-        }
-        if (clearOutput) {
+            log.error("fail to write wal log {}", name, e);
+            var exception = new SwProcessException(SwProcessException.ErrorType.DATASTORE,
+                    "fail to write wal log " + name);
             ++this.logFileIndex;
-            this.outputStream = new SwBufferOutputStream(this.outputBuffer);
+            written.forEach(pending -> pending.future.completeExceptionally(exception));
+            return;
+        }
+        ++this.logFileIndex;
+        written.forEach(pending -> pending.future.complete(null));
+    }
+
+    /**
+     * Compresses the first size bytes of input into output with the WAL file header.
+     *
+     * @return the number of bytes written into output, including the header
+     */
+    private int compress(SwBuffer input, int size, SwBuffer output) {
+        var header = new byte[HEADER_SIZE];
+        var magic = this.formatVersion == 1 ? V1_MAGIC : V2_MAGIC;
+        System.arraycopy(magic, 0, header, 0, magic.length);
+        header[3] = this.compression;
+        int compressedSize = -1;
+        if (this.compression != NO_COMPRESSION) {
+            try {
+                var inBuf = input.asByteBuffer();
+                var outBuf = output.asByteBuffer();
+                outBuf.position(header.length);
+                compressedSize = this.compression == SNAPPY
+                        ? WalManager.compressSnappy(inBuf, size, outBuf)
+                        : WalManager.compressZstd(inBuf, size, outBuf);
+            } catch (IOException e) {
+                log.warn("failed to compress", e);
+            }
+        }
+        if (compressedSize < 0) {
+            header[3] = WalManager.NO_COMPRESSION;
+            input.slice(0, size).copyTo(output.slice(header.length, size));
+            compressedSize = size;
+        }
+        output.setBytes(0, header, 0, header.length);
+        return compressedSize + header.length;
+    }
+
+    private static int compressSnappy(ByteBuffer inBuf, int size, ByteBuffer outBuf) throws IOException {
+        if (inBuf.hasArray() && outBuf.hasArray()) {
+            return Snappy.compress(inBuf.array(),
+                    inBuf.arrayOffset(),
+                    size,
+                    outBuf.array(),
+                    outBuf.arrayOffset() + outBuf.position());
+        } else if (inBuf.isDirect() && outBuf.isDirect()) {
+            inBuf.limit(size);
+            return Snappy.compress(inBuf, outBuf);
+        } else {
+            // one of them is a heap buffer as the buffer pool is used up
+            var compressed = Snappy.compress(WalManager.toArray(inBuf, size));
+            outBuf.put(compressed);
+            return compressed.length;
+        }
+    }
+
+    private static int compressZstd(ByteBuffer inBuf, int size, ByteBuffer outBuf) throws IOException {
+        long ret;
+        try {
+            if (inBuf.hasArray() && outBuf.hasArray()) {
+                ret = Zstd.compressByteArray(outBuf.array(),
+                        outBuf.arrayOffset() + outBuf.position(),
+                        outBuf.remaining(),
+                        inBuf.array(),
+                        inBuf.arrayOffset(),
+                        size,
+                        ZSTD_LEVEL);
+            } else if (inBuf.isDirect() && outBuf.isDirect()) {
+                inBuf.limit(size);
+                ret = Zstd.compress(outBuf, inBuf, ZSTD_LEVEL);
+            } else {
+                // one of them is a heap buffer as the buffer pool is used up
+                var compressed = Zstd.compress(WalManager.toArray(inBuf, size), ZSTD_LEVEL);
+                if (compressed.length > outBuf.remaining()) {
+                    throw new IOException("compressed data is too large, size=" + compressed.length);
+                }
+                outBuf.put(compressed);
+                ret = compressed.length;
+            }
+        } catch (ZstdException e) {
+            throw new IOException(e);
+        }
+        if (Zstd.isError(ret)) {
+            throw new IOException("fail to compress: " + Zstd.getErrorName(ret));
         }
+        return (int) ret;
+    }
+
+    /**
+     * Converts the entry to the format of written files. The result is never larger than the entry.
+     */
+    private Wal.WalEntry encode(Wal.WalEntry entry) {
+        return this.formatVersion == 1 ? entry : ColumnarRecordsCodec.encode(entry);
+    }
+
+    private static byte[] toArray(ByteBuffer buf, int size) {
+        var ret = new byte[size];
+        buf.duplicate().get(ret);
+        return ret;
+    }
+
+    private void putWithRetry(String name, SwBuffer buf) throws Throwable {
+        Retry.decorateCheckedRunnable(
+                        Retry.of("put", RetryConfig.custom()
+                                .maxAttempts(this.ossMaxAttempts)
+                                .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(100, 2.0, 0.5, 10000))
+                                .build()),
+                        () -> this.objectStore.put(name, buf))
+                .run();
+    }
+
+    private SwBuffer getWithRetry(String name) throws Throwable {
+        return Retry.decorateCheckedSupplier(
+                        Retry.of("get", RetryConfig.custom()
+                                .maxAttempts(this.ossMaxAttempts)
+                                .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(100, 2.0, 0.5, 10000))
+                                .build()),
+                        () -> this.objectStore.get(name))
+                .apply();
     }
 
     private List<Wal.WalEntry> splitEntry(Wal.WalEntry entry) {
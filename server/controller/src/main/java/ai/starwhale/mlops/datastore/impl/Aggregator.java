@@ -0,0 +1,364 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.AggregateDesc;
+import ai.starwhale.mlops.datastore.ColumnType;
+import ai.starwhale.mlops.datastore.MemoryTable;
+import ai.starwhale.mlops.datastore.TableSchema;
+import ai.starwhale.mlops.exception.SwValidationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Groups records by the values of the groupBy columns and computes aggregate functions of each group.
+ *
+ * <p>Records are consumed one by one, and only the group values and the accumulators of each group are kept, so the
+ * memory usage grows with the number of groups rather than the number of records.
+ */
+final class Aggregator implements Consumer<Map<String, Object>> {
+
+    private interface Accumulator {
+
+        void add(Object value);
+
+        Object getResult();
+    }
+
+    private final String[] groupBy;
+
+    private final String[] columns;
+
+    private final String[] aliases;
+
+    private final List<Supplier<Accumulator>> accumulatorFactories = new ArrayList<>();
+
+    private final Map<String, ColumnType> columnTypes = new LinkedHashMap<>();
+
+    private final List<Comparator<Object>> groupComparators = new ArrayList<>();
+
+    private final Map<List<Object>, Accumulator[]> groups = new HashMap<>();
+
+    Aggregator(TableSchema schema, List<String> groupBy, List<AggregateDesc> aggregates) {
+        this.groupBy = groupBy == null ? new String[0] : groupBy.toArray(new String[0]);
+        for (var name : this.groupBy) {
+            var columnSchema = name == null ? null : schema.getColumnSchemaByName(name);
+            if (columnSchema == null) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "unknown groupBy column " + name);
+            }
+            if (this.columnTypes.put(name, columnSchema.getType()) != null) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "duplicate groupBy column " + name);
+            }
+            this.groupComparators.add(MemoryTableImpl.getValueComparator(columnSchema.getType()));
+        }
+        if (aggregates == null) {
+            aggregates = List.of();
+        }
+        this.columns = new String[aggregates.size()];
+        this.aliases = new String[aggregates.size()];
+        for (int i = 0; i < aggregates.size(); ++i) {
+            var aggregate = aggregates.get(i);
+            if (aggregate == null || aggregate.getFunction() == null) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "aggregate function should not be null");
+            }
+            var function = aggregate.getFunction();
+            var name = aggregate.getColumnName();
+            ColumnType type;
+            if (name == null) {
+                if (function != AggregateDesc.Function.COUNT) {
+                    throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                            "column should be specified for " + function);
+                }
+                type = null;
+            } else {
+                var columnSchema = schema.getColumnSchemaByName(name);
+                if (columnSchema == null) {
+                    throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                            "unknown aggregate column " + name);
+                }
+                type = columnSchema.getType();
+            }
+            var alias = aggregate.getAlias() != null
+                    ? aggregate.getAlias()
+                    : function.name().toLowerCase() + "(" + (name == null ? "*" : name) + ")";
+            this.columns[i] = name;
+            this.aliases[i] = alias;
+            if (this.columnTypes.put(alias, Aggregator.getResultType(function, type)) != null) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "duplicate output column " + alias);
+            }
+            this.accumulatorFactories.add(Aggregator.getAccumulatorFactory(function, type));
+        }
+    }
+
+    /**
+     * Returns the types of the output columns, the groupBy columns first.
+     */
+    Map<String, ColumnType> getColumnTypes() {
+        return this.columnTypes;
+    }
+
+    @Override
+    public void accept(Map<String, Object> record) {
+        var key = new Object[this.groupBy.length];
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = record.get(this.groupBy[i]);
+        }
+        var accumulators = this.groups.computeIfAbsent(Arrays.asList(key), k -> this.newAccumulators());
+        for (int i = 0; i < accumulators.length; ++i) {
+            // count(*) counts records rather than values
+            accumulators[i].add(this.columns[i] == null ? Boolean.TRUE : record.get(this.columns[i]));
+        }
+    }
+
+    /**
+     * Returns a record for each group ordered by the groupBy values.
+     *
+     * <p>Without groupBy columns there is always exactly one group, even if no record is aggregated.
+     */
+    List<MemoryTable.RecordResult> getResults() {
+        if (this.groupBy.length == 0 && this.groups.isEmpty()) {
+            this.groups.put(List.of(), this.newAccumulators());
+        }
+        var entries = new ArrayList<>(this.groups.entrySet());
+        entries.sort((a, b) -> {
+            for (int i = 0; i < this.groupBy.length; ++i) {
+                int result = this.groupComparators.get(i).compare(a.getKey().get(i), b.getKey().get(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        });
+        var ret = new ArrayList<MemoryTable.RecordResult>(entries.size());
+        for (var entry : entries) {
+            var values = new HashMap<String, Object>();
+            for (int i = 0; i < this.groupBy.length; ++i) {
+                values.put(this.groupBy[i], entry.getKey().get(i));
+            }
+            var accumulators = entry.getValue();
+            for (int i = 0; i < accumulators.length; ++i) {
+                values.put(this.aliases[i], accumulators[i].getResult());
+            }
+            ret.add(new MemoryTable.RecordResult(entry.getKey(), values));
+        }
+        return ret;
+    }
+
+    private Accumulator[] newAccumulators() {
+        var ret = new Accumulator[this.accumulatorFactories.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = this.accumulatorFactories.get(i).get();
+        }
+        return ret;
+    }
+
+    private static boolean isInt(ColumnType type) {
+        return type.getCategory().equals(ColumnType.INT32.getCategory());
+    }
+
+    private static boolean isFloat(ColumnType type) {
+        return type.getCategory().equals(ColumnType.FLOAT32.getCategory());
+    }
+
+    private static ColumnType getResultType(AggregateDesc.Function function, ColumnType type) {
+        switch (function) {
+            case COUNT:
+            case COUNT_DISTINCT:
+                return ColumnType.INT64;
+            case SUM:
+                if (type == ColumnType.UNKNOWN) {
+                    return ColumnType.UNKNOWN;
+                }
+                if (Aggregator.isInt(type)) {
+                    return ColumnType.INT64;
+                }
+                if (Aggregator.isFloat(type)) {
+                    return ColumnType.FLOAT64;
+                }
+                break;
+            case AVG:
+                if (type == ColumnType.UNKNOWN || Aggregator.isInt(type) || Aggregator.isFloat(type)) {
+                    return ColumnType.FLOAT64;
+                }
+                break;
+            case MIN:
+            case MAX:
+                return type;
+            default:
+                break;
+        }
+        throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                function + " is not supported for " + type + " columns");
+    }
+
+    private static Supplier<Accumulator> getAccumulatorFactory(AggregateDesc.Function function, ColumnType type) {
+        switch (function) {
+            case COUNT:
+                return CountAccumulator::new;
+            case COUNT_DISTINCT:
+                return CountDistinctAccumulator::new;
+            case SUM:
+                return Aggregator.isInt(type)
+                        ? IntSumAccumulator::new
+                        : FloatSumAccumulator::new;
+            case AVG:
+                return AvgAccumulator::new;
+            case MIN:
+            case MAX:
+                var comparator = MemoryTableImpl.getValueComparator(type);
+                return function == AggregateDesc.Function.MIN
+                        ? () -> new SelectAccumulator(comparator)
+                        : () -> new SelectAccumulator(comparator.reversed());
+            default:
+                throw new IllegalArgumentException("invalid function " + function);
+        }
+    }
+
+    private static class CountAccumulator implements Accumulator {
+
+        private long count;
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                ++this.count;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return this.count;
+        }
+    }
+
+    private static class CountDistinctAccumulator implements Accumulator {
+
+        private final Set<Object> values = new HashSet<>();
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                this.values.add(value);
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return (long) this.values.size();
+        }
+    }
+
+    private static class IntSumAccumulator implements Accumulator {
+
+        private long sum;
+
+        private boolean empty = true;
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                this.sum += ((Number) value).longValue();
+                this.empty = false;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return this.empty ? null : this.sum;
+        }
+    }
+
+    private static class FloatSumAccumulator implements Accumulator {
+
+        private double sum;
+
+        private boolean empty = true;
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                this.sum += ((Number) value).doubleValue();
+                this.empty = false;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return this.empty ? null : this.sum;
+        }
+    }
+
+    private static class AvgAccumulator implements Accumulator {
+
+        private double sum;
+
+        private long count;
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                this.sum += ((Number) value).doubleValue();
+                ++this.count;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return this.count == 0 ? null : this.sum / this.count;
+        }
+    }
+
+    /**
+     * Keeps the first value in the order of the comparator, which is the minimum or the maximum.
+     */
+    private static class SelectAccumulator implements Accumulator {
+
+        private final Comparator<Object> comparator;
+
+        private Object result;
+
+        SelectAccumulator(Comparator<Object> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public void add(Object value) {
+            if (value != null && (this.result == null || this.comparator.compare(value, this.result) < 0)) {
+                this.result = value;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return this.result;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnIndexType;
+import ai.starwhale.mlops.datastore.ColumnSchema;
+import ai.starwhale.mlops.datastore.TableQueryFilter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import lombok.Getter;
+
+/**
+ * A secondary index of a column, which maps column values to the keys of records holding them.
+ *
+ * <p>Null values are not indexed. Integers are indexed as longs and floating point numbers as doubles, so that they
+ * are compared in the same way as in {@link MemoryTableImpl#query}.
+ */
+class ColumnIndex {
+
+    @Getter
+    private final ColumnSchema columnSchema;
+
+    private final Map<Object, Set<Object>> valueMap;
+
+    ColumnIndex(ColumnSchema columnSchema) {
+        this.columnSchema = columnSchema;
+        if (columnSchema.getIndexType() == ColumnIndexType.SORTED) {
+            this.valueMap = new TreeMap<>();
+        } else {
+            this.valueMap = new HashMap<>();
+        }
+    }
+
+    void add(Object value, Object key) {
+        if (value != null) {
+            this.valueMap.computeIfAbsent(ColumnIndex.normalize(value), k -> new HashSet<>()).add(key);
+        }
+    }
+
+    void remove(Object value, Object key) {
+        if (value == null) {
+            return;
+        }
+        value = ColumnIndex.normalize(value);
+        var keys = this.valueMap.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                this.valueMap.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Returns keys of all records whose value satisfies "value op constant", or null if the operator is not supported
+     * by the index.
+     */
+    Set<Object> lookup(TableQueryFilter.Operator op, Object constant) {
+        constant = ColumnIndex.normalize(constant);
+        if (op == TableQueryFilter.Operator.EQUAL) {
+            return this.valueMap.getOrDefault(constant, Set.of());
+        }
+        if (this.columnSchema.getIndexType() != ColumnIndexType.SORTED) {
+            return null;
+        }
+        var sortedMap = (NavigableMap<Object, Set<Object>>) this.valueMap;
+        switch (op) {
+            case LESS:
+                return ColumnIndex.union(sortedMap.headMap(constant, false).values());
+            case LESS_EQUAL:
+                return ColumnIndex.union(sortedMap.headMap(constant, true).values());
+            case GREATER:
+                return ColumnIndex.union(sortedMap.tailMap(constant, false).values());
+            case GREATER_EQUAL:
+                return ColumnIndex.union(sortedMap.tailMap(constant, true).values());
+            case PREFIX:
+                var ret = new HashSet<>();
+                var prefix = (String) constant;
+                for (var entry : sortedMap.tailMap(constant, true).entrySet()) {
+                    if (!((String) entry.getKey()).startsWith(prefix)) {
+                        break;
+                    }
+                    ret.addAll(entry.getValue());
+                }
+                return ret;
+            default:
+                return null;
+        }
+    }
+
+    private static Set<Object> union(Collection<Set<Object>> keySets) {
+        var ret = new HashSet<>();
+        for (var keys : keySets) {
+            ret.addAll(keys);
+        }
+        return ret;
+    }
+
+    static Object normalize(Object value) {
+        if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        return value;
+    }
+}
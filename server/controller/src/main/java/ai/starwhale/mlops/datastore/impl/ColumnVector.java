@@ -0,0 +1,466 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnType;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores all values of a column in primitive arrays, indexed by row number.
+ *
+ * <p>Values are boxed only when they are read. Rows that have never been set are null.
+ */
+abstract class ColumnVector {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    protected final BitSet nonNull = new BitSet();
+
+    static ColumnVector create(ColumnType type) {
+        if (type == ColumnType.UNKNOWN) {
+            return new UnknownVector();
+        } else if (type == ColumnType.BOOL) {
+            return new BoolVector();
+        } else if (type == ColumnType.INT8 || type == ColumnType.INT16 || type == ColumnType.INT32) {
+            return new IntVector(type);
+        } else if (type == ColumnType.INT64) {
+            return new LongVector();
+        } else if (type == ColumnType.FLOAT32) {
+            return new FloatVector();
+        } else if (type == ColumnType.FLOAT64) {
+            return new DoubleVector();
+        } else if (type == ColumnType.STRING) {
+            return new StringVector();
+        } else if (type == ColumnType.BYTES) {
+            return new BytesVector();
+        }
+        throw new IllegalArgumentException("invalid type " + type);
+    }
+
+    abstract ColumnType getType();
+
+    Object get(int row) {
+        if (!this.nonNull.get(row)) {
+            return null;
+        }
+        return this.getNonNull(row);
+    }
+
+    void set(int row, Object value) {
+        if (value == null) {
+            this.clear(row);
+        } else {
+            this.setNonNull(row, value);
+            this.nonNull.set(row);
+        }
+    }
+
+    void clear(int row) {
+        if (this.nonNull.get(row)) {
+            this.nonNull.clear(row);
+            this.release(row);
+        }
+    }
+
+    protected abstract Object getNonNull(int row);
+
+    protected abstract void setNonNull(int row, Object value);
+
+    /**
+     * Releases resources held by the value of the row. The row is already marked as null.
+     */
+    protected void release(int row) {
+    }
+
+    protected static int newCapacity(int currentCapacity, int row) {
+        return Math.max(row + 1, Math.max(INITIAL_CAPACITY, currentCapacity * 2));
+    }
+
+    static class UnknownVector extends ColumnVector {
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.UNKNOWN;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            // all values are null
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            return null;
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+        }
+    }
+
+    static class BoolVector extends ColumnVector {
+
+        private final BitSet values = new BitSet();
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.BOOL;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            return this.values.get(row);
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            this.values.set(row, (Boolean) value);
+        }
+
+        @Override
+        protected void release(int row) {
+            this.values.clear(row);
+        }
+    }
+
+    /**
+     * Stores INT8, INT16 and INT32 values. Values are boxed back to their original types when read.
+     */
+    static class IntVector extends ColumnVector {
+
+        private final ColumnType type;
+
+        private int[] values = new int[0];
+
+        IntVector(ColumnType type) {
+            this.type = type;
+        }
+
+        @Override
+        ColumnType getType() {
+            return this.type;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            var value = this.values[row];
+            if (this.type == ColumnType.INT8) {
+                return (byte) value;
+            } else if (this.type == ColumnType.INT16) {
+                return (short) value;
+            }
+            return value;
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            if (row >= this.values.length) {
+                this.values = Arrays.copyOf(this.values, newCapacity(this.values.length, row));
+            }
+            this.values[row] = ((Number) value).intValue();
+        }
+    }
+
+    static class LongVector extends ColumnVector {
+
+        private long[] values = new long[0];
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.INT64;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            return this.values[row];
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            if (row >= this.values.length) {
+                this.values = Arrays.copyOf(this.values, newCapacity(this.values.length, row));
+            }
+            this.values[row] = ((Number) value).longValue();
+        }
+    }
+
+    static class FloatVector extends ColumnVector {
+
+        private float[] values = new float[0];
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.FLOAT32;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            return this.values[row];
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            if (row >= this.values.length) {
+                this.values = Arrays.copyOf(this.values, newCapacity(this.values.length, row));
+            }
+            this.values[row] = (Float) value;
+        }
+    }
+
+    static class DoubleVector extends ColumnVector {
+
+        private double[] values = new double[0];
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.FLOAT64;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            return this.values[row];
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            if (row >= this.values.length) {
+                this.values = Arrays.copyOf(this.values, newCapacity(this.values.length, row));
+            }
+            this.values[row] = (Double) value;
+        }
+    }
+
+    /**
+     * Dictionary-encoded strings. Evaluation results usually contain a small number of distinct strings like labels,
+     * so each row only keeps the index of its value in the dictionary.
+     *
+     * <p>Dictionary entries are reference counted, and the index of an entry no row uses any more is reused for the
+     * next new string. Columns like ids or paths have almost as many distinct strings as rows, for which the
+     * dictionary costs more than it saves, so the vector falls back to plain strings once the dictionary grows beyond
+     * {@link #MAX_DICTIONARY_SIZE} entries.
+     */
+    static class StringVector extends ColumnVector {
+
+        static final int MAX_DICTIONARY_SIZE = 65536;
+
+        private Map<String, Integer> dictionary = new HashMap<>();
+
+        private List<String> dictionaryValues = new ArrayList<>();
+
+        // the number of rows using each dictionary entry
+        private int[] refCounts = new int[0];
+
+        // indexes of dictionary entries with no reference
+        private final Deque<Integer> freeIndexes = new ArrayDeque<>();
+
+        private int[] values = new int[0];
+
+        // set once the vector falls back to plain strings
+        private String[] plainValues;
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.STRING;
+        }
+
+        /**
+         * Returns the number of strings in the dictionary, or -1 if the vector keeps plain strings.
+         */
+        int getDictionarySize() {
+            return this.plainValues == null ? this.dictionary.size() : -1;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            if (this.plainValues != null) {
+                return this.plainValues[row];
+            }
+            return this.dictionaryValues.get(this.values[row]);
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            if (this.plainValues != null) {
+                if (row >= this.plainValues.length) {
+                    this.plainValues = Arrays.copyOf(this.plainValues, newCapacity(this.plainValues.length, row));
+                }
+                this.plainValues[row] = (String) value;
+                return;
+            }
+            if (row >= this.values.length) {
+                this.values = Arrays.copyOf(this.values, newCapacity(this.values.length, row));
+            }
+            var str = (String) value;
+            var index = this.dictionary.get(str);
+            if (this.nonNull.get(row)) {
+                if (index != null && index == this.values[row]) {
+                    return;
+                }
+                this.release(row);
+            }
+            if (index == null && this.dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                this.toPlainValues();
+                this.plainValues[row] = str;
+                return;
+            }
+            if (index == null) {
+                index = this.addToDictionary(str);
+            }
+            ++this.refCounts[index];
+            this.values[row] = index;
+        }
+
+        @Override
+        protected void release(int row) {
+            if (this.plainValues != null) {
+                this.plainValues[row] = null;
+                return;
+            }
+            int index = this.values[row];
+            if (--this.refCounts[index] == 0) {
+                this.dictionary.remove(this.dictionaryValues.get(index));
+                this.dictionaryValues.set(index, null);
+                this.freeIndexes.push(index);
+            }
+        }
+
+        private int addToDictionary(String value) {
+            int index;
+            if (this.freeIndexes.isEmpty()) {
+                index = this.dictionaryValues.size();
+                this.dictionaryValues.add(value);
+                if (index >= this.refCounts.length) {
+                    this.refCounts = Arrays.copyOf(this.refCounts, newCapacity(this.refCounts.length, index));
+                }
+            } else {
+                index = this.freeIndexes.pop();
+                this.dictionaryValues.set(index, value);
+            }
+            this.dictionary.put(value, index);
+            return index;
+        }
+
+        private void toPlainValues() {
+            var plainValues = new String[this.values.length];
+            for (int row = this.nonNull.nextSetBit(0); row >= 0; row = this.nonNull.nextSetBit(row + 1)) {
+                plainValues[row] = this.dictionaryValues.get(this.values[row]);
+            }
+            this.plainValues = plainValues;
+            this.dictionary = null;
+            this.dictionaryValues = null;
+            this.refCounts = null;
+            this.freeIndexes.clear();
+            this.values = null;
+        }
+    }
+
+    /**
+     * Keeps bytes values in off-heap slabs. Each row remembers the slab, the offset and the length of its value.
+     *
+     * <p>Slab space is appended only. Space of overwritten or removed values is reclaimed by compacting all slabs once
+     * more than half of the allocated space is garbage.
+     */
+    static class BytesVector extends ColumnVector {
+
+        static final int SLAB_SIZE = 1024 * 1024;
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+
+        private int[] slabIndexes = new int[0];
+
+        private int[] offsets = new int[0];
+
+        private int[] lengths = new int[0];
+
+        private long allocatedBytes;
+
+        private long garbageBytes;
+
+        @Override
+        ColumnType getType() {
+            return ColumnType.BYTES;
+        }
+
+        @Override
+        protected Object getNonNull(int row) {
+            var ret = new byte[this.lengths[row]];
+            // duplicate the slab so that its position, which is used for appending, is not changed
+            this.slabs.get(this.slabIndexes[row]).duplicate().position(this.offsets[row]).get(ret);
+            return ByteBuffer.wrap(ret);
+        }
+
+        @Override
+        protected void setNonNull(int row, Object value) {
+            if (row >= this.lengths.length) {
+                int capacity = newCapacity(this.lengths.length, row);
+                this.slabIndexes = Arrays.copyOf(this.slabIndexes, capacity);
+                this.offsets = Arrays.copyOf(this.offsets, capacity);
+                this.lengths = Arrays.copyOf(this.lengths, capacity);
+            }
+            if (this.nonNull.get(row)) {
+                this.nonNull.clear(row);
+                this.garbageBytes += this.lengths[row];
+            }
+            if (this.garbageBytes > SLAB_SIZE && this.garbageBytes * 2 > this.allocatedBytes) {
+                this.compact();
+            }
+            var buf = ((ByteBuffer) value).duplicate();
+            buf.rewind();
+            this.append(row, buf);
+        }
+
+        @Override
+        protected void release(int row) {
+            this.garbageBytes += this.lengths[row];
+        }
+
+        private void append(int row, ByteBuffer value) {
+            int length = value.remaining();
+            ByteBuffer slab = this.slabs.isEmpty() ? null : this.slabs.get(this.slabs.size() - 1);
+            if (slab == null || slab.remaining() < length) {
+                slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, length));
+                this.slabs.add(slab);
+                this.allocatedBytes += slab.capacity();
+            }
+            this.slabIndexes[row] = this.slabs.size() - 1;
+            this.offsets[row] = slab.position();
+            this.lengths[row] = length;
+            slab.put(value);
+        }
+
+        private void compact() {
+            var oldSlabs = new ArrayList<>(this.slabs);
+            this.slabs.clear();
+            this.allocatedBytes = 0;
+            this.garbageBytes = 0;
+            for (int row = this.nonNull.nextSetBit(0); row >= 0; row = this.nonNull.nextSetBit(row + 1)) {
+                var value = oldSlabs.get(this.slabIndexes[row]).duplicate();
+                value.position(this.offsets[row]);
+                value.limit(this.offsets[row] + this.lengths[row]);
+                this.append(row, value);
+            }
+        }
+    }
+}
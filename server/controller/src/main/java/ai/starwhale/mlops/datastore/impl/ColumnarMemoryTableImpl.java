@@ -0,0 +1,32 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.WalManager;
+
+/**
+ * A memory table that stores records column by column in primitive arrays.
+ *
+ * <p>It has the same behavior as {@link MemoryTableImpl}, but uses much less heap for large tables with numeric
+ * columns, as values are not boxed and column names are not repeated in every record.
+ */
+public class ColumnarMemoryTableImpl extends MemoryTableImpl {
+
+    public ColumnarMemoryTableImpl(String tableName, WalManager walManager) {
+        super(tableName, walManager, new ColumnarRecordStore());
+    }
+}
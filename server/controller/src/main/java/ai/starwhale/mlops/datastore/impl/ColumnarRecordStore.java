@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnType;
+import ai.starwhale.mlops.datastore.TableSchema;
+import com.google.common.collect.Iterables;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A record store that keeps values column by column in primitive arrays instead of one hash map per record.
+ *
+ * <p>Each record is assigned a row number, which is used as the index into every {@link ColumnVector}. Column vectors
+ * are indexed by {@link ai.starwhale.mlops.datastore.ColumnSchema#getIndex()}. Row numbers of removed records are
+ * reused by later insertions.
+ */
+class ColumnarRecordStore implements RecordStore {
+
+    private final TreeMap<Object, Integer> rowMap = new TreeMap<>();
+
+    private final List<ColumnVector> columns = new ArrayList<>();
+
+    private TableSchema schema;
+
+    private int rowCount;
+
+    private int[] freeRows = new int[0];
+
+    private int freeRowCount;
+
+    @Override
+    public void setSchema(TableSchema schema) {
+        this.schema = schema;
+        for (var col : schema.getColumnSchemas()) {
+            while (this.columns.size() <= col.getIndex()) {
+                this.columns.add(null);
+            }
+            var current = this.columns.get(col.getIndex());
+            if (current == null) {
+                this.columns.set(col.getIndex(), ColumnVector.create(col.getType()));
+            } else if (current.getType() != col.getType()) {
+                // only UNKNOWN columns can change their types, and all their values are null
+                assert current.getType() == ColumnType.UNKNOWN;
+                this.columns.set(col.getIndex(), ColumnVector.create(col.getType()));
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.rowMap.isEmpty();
+    }
+
+    @Override
+    public Map<String, Object> get(Object key) {
+        var row = this.rowMap.get(key);
+        return row == null ? null : new RecordView(row);
+    }
+
+    @Override
+    public void put(Object key, Map<String, Object> record) {
+        var row = this.rowMap.get(key);
+        if (row == null) {
+            row = this.allocateRow();
+            this.rowMap.put(key, row);
+        }
+        for (var entry : record.entrySet()) {
+            var col = this.schema.getColumnSchemaByName(entry.getKey());
+            this.columns.get(col.getIndex()).set(row, entry.getValue());
+        }
+    }
+
+    @Override
+    public void remove(Object key) {
+        var row = this.rowMap.remove(key);
+        if (row == null) {
+            return;
+        }
+        for (var col : this.columns) {
+            if (col != null) {
+                col.clear(row);
+            }
+        }
+        if (this.freeRowCount == this.freeRows.length) {
+            this.freeRows = Arrays.copyOf(this.freeRows, Math.max(16, this.freeRows.length * 2));
+        }
+        this.freeRows[this.freeRowCount++] = row;
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> values() {
+        return Iterables.transform(this.rowMap.values(), RecordView::new);
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> values(Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        return Iterables.transform(RecordStore.subMap(this.rowMap, start, startInclusive, end, endInclusive).values(),
+                RecordView::new);
+    }
+
+    private int allocateRow() {
+        if (this.freeRowCount > 0) {
+            return this.freeRows[--this.freeRowCount];
+        }
+        return this.rowCount++;
+    }
+
+    /**
+     * A read-only view of one row. Values are read from the column vectors on demand.
+     */
+    private class RecordView extends AbstractMap<String, Object> {
+
+        private final int row;
+
+        RecordView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Object get(Object key) {
+            var col = ColumnarRecordStore.this.schema.getColumnSchemaByName((String) key);
+            if (col == null) {
+                return null;
+            }
+            return ColumnarRecordStore.this.columns.get(col.getIndex()).get(this.row);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            var ret = new HashSet<Entry<String, Object>>();
+            for (var col : ColumnarRecordStore.this.schema.getColumnSchemas()) {
+                var value = ColumnarRecordStore.this.columns.get(col.getIndex()).get(this.row);
+                if (value != null) {
+                    ret.add(new SimpleImmutableEntry<>(col.getName(), value));
+                }
+            }
+            return ret;
+        }
+    }
+}
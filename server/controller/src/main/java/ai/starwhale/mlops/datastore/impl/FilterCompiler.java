@@ -0,0 +1,329 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnType;
+import ai.starwhale.mlops.datastore.TableQueryFilter;
+import ai.starwhale.mlops.datastore.TableSchema;
+import ai.starwhale.mlops.exception.SwProcessException;
+import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
+import ai.starwhale.mlops.exception.SwValidationException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Compiles a {@link TableQueryFilter} into a predicate on records of a table.
+ *
+ * <p>The filter is validated against the table schema once. Column types are resolved and constants are converted
+ * at compile time, so that matching a record only reads the referenced columns and compares them with comparisons
+ * specialized for their types.
+ */
+final class FilterCompiler {
+
+    private final TableSchema schema;
+
+    private FilterCompiler(TableSchema schema) {
+        this.schema = schema;
+    }
+
+    static Predicate<Map<String, Object>> compile(TableSchema schema, TableQueryFilter filter) {
+        return new FilterCompiler(schema).compile(filter);
+    }
+
+    private Predicate<Map<String, Object>> compile(TableQueryFilter filter) {
+        var operands = filter.getOperands();
+        switch (filter.getOperator()) {
+            case NOT:
+                return this.compile((TableQueryFilter) operands.get(0)).negate();
+            case AND:
+                return this.compile((TableQueryFilter) operands.get(0))
+                        .and(this.compile((TableQueryFilter) operands.get(1)));
+            case OR:
+                return this.compile((TableQueryFilter) operands.get(0))
+                        .or(this.compile((TableQueryFilter) operands.get(1)));
+            case EQUAL:
+            case NOT_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                this.checkSameType(operands);
+                return this.compileComparison(filter.getOperator(), operands.get(0), operands.get(1));
+            case IN:
+                this.checkSameType(operands);
+                return this.compileIn(operands);
+            case PREFIX:
+                return this.compilePrefix(operands);
+            default:
+                throw new IllegalArgumentException("Unexpected operator: " + filter.getOperator());
+        }
+    }
+
+    /**
+     * Returns the operator op' such that "a op b" equals "b op' a".
+     */
+    static TableQueryFilter.Operator reverse(TableQueryFilter.Operator op) {
+        switch (op) {
+            case GREATER:
+                return TableQueryFilter.Operator.LESS;
+            case GREATER_EQUAL:
+                return TableQueryFilter.Operator.LESS_EQUAL;
+            case LESS:
+                return TableQueryFilter.Operator.GREATER;
+            case LESS_EQUAL:
+                return TableQueryFilter.Operator.GREATER_EQUAL;
+            default:
+                return op;
+        }
+    }
+
+    private Predicate<Map<String, Object>> compileComparison(TableQueryFilter.Operator op,
+            Object operand1,
+            Object operand2) {
+        if (operand1 instanceof TableQueryFilter.Constant && operand2 instanceof TableQueryFilter.Column) {
+            return this.compileComparison(FilterCompiler.reverse(op), operand2, operand1);
+        }
+        var type1 = this.getType(operand1);
+        var type2 = this.getType(operand2);
+        var test = FilterCompiler.getResultTest(op);
+        // the result if exactly one of the values is null
+        var nullResult = op == TableQueryFilter.Operator.NOT_EQUAL;
+        if (operand1 instanceof TableQueryFilter.Column && operand2 instanceof TableQueryFilter.Constant) {
+            var name = ((TableQueryFilter.Column) operand1).getName();
+            var constant = ((TableQueryFilter.Constant) operand2).getValue();
+            if (constant == null) {
+                switch (op) {
+                    case EQUAL:
+                        return record -> record.get(name) == null;
+                    case NOT_EQUAL:
+                        return record -> record.get(name) != null;
+                    default:
+                        return record -> false;
+                }
+            }
+            if (FilterCompiler.isInt(type1) && FilterCompiler.isInt(type2)) {
+                var value2 = ((Number) constant).longValue();
+                return record -> {
+                    var value1 = record.get(name);
+                    if (value1 == null) {
+                        return nullResult;
+                    }
+                    return test.test(Long.compare(((Number) value1).longValue(), value2));
+                };
+            }
+            if (FilterCompiler.isFloat(type1) && FilterCompiler.isFloat(type2)) {
+                var value2 = ((Number) constant).doubleValue();
+                return record -> {
+                    var value1 = record.get(name);
+                    if (value1 == null) {
+                        return nullResult;
+                    }
+                    return test.test(Double.compare(((Number) value1).doubleValue(), value2));
+                };
+            }
+            var comparator = FilterCompiler.getComparator(type1, type2);
+            return record -> {
+                var value1 = record.get(name);
+                if (value1 == null) {
+                    return nullResult;
+                }
+                return test.test(comparator.compare(value1, constant));
+            };
+        }
+        var getter1 = FilterCompiler.getGetter(operand1);
+        var getter2 = FilterCompiler.getGetter(operand2);
+        var comparator = FilterCompiler.getComparator(type1, type2);
+        return record -> {
+            var value1 = getter1.apply(record);
+            var value2 = getter2.apply(record);
+            if (value1 == null || value2 == null) {
+                if (value1 == null && value2 == null) {
+                    return op == TableQueryFilter.Operator.EQUAL;
+                }
+                return nullResult;
+            }
+            return test.test(comparator.compare(value1, value2));
+        };
+    }
+
+    private Predicate<Map<String, Object>> compileIn(List<Object> operands) {
+        if (!(operands.get(0) instanceof TableQueryFilter.Column)) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "invalid filter, the first operand of IN should be a column");
+        }
+        var name = ((TableQueryFilter.Column) operands.get(0)).getName();
+        var values = new HashSet<>();
+        boolean hasNull = false;
+        for (var operand : operands.subList(1, operands.size())) {
+            if (!(operand instanceof TableQueryFilter.Constant)) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "invalid filter, operands of IN except the first one should be constants");
+            }
+            var value = ((TableQueryFilter.Constant) operand).getValue();
+            if (value == null) {
+                hasNull = true;
+            } else {
+                values.add(ColumnIndex.normalize(value));
+            }
+        }
+        var matchNull = hasNull;
+        return record -> {
+            var value = record.get(name);
+            if (value == null) {
+                return matchNull;
+            }
+            return values.contains(ColumnIndex.normalize(value));
+        };
+    }
+
+    private Predicate<Map<String, Object>> compilePrefix(List<Object> operands) {
+        if (operands.size() != 2
+                || !(operands.get(0) instanceof TableQueryFilter.Column)
+                || !(operands.get(1) instanceof TableQueryFilter.Constant)) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "invalid filter, PREFIX should have a column operand and a constant operand");
+        }
+        for (var operand : operands) {
+            var type = this.getType(operand);
+            if (type != ColumnType.STRING && type != ColumnType.UNKNOWN) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "invalid filter, PREFIX only supports STRING, but got " + type);
+            }
+        }
+        var name = ((TableQueryFilter.Column) operands.get(0)).getName();
+        var prefix = (String) ((TableQueryFilter.Constant) operands.get(1)).getValue();
+        if (prefix == null) {
+            return record -> false;
+        }
+        return record -> {
+            var value = record.get(name);
+            return value != null && ((String) value).startsWith(prefix);
+        };
+    }
+
+    private ColumnType getType(Object operand) {
+        if (operand instanceof TableQueryFilter.Column) {
+            var colName = ((TableQueryFilter.Column) operand).getName();
+            var colSchema = this.schema.getColumnSchemaByName(colName);
+            if (colSchema == null) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "invalid filter, unknown column " + colName);
+            }
+            return colSchema.getType();
+        } else if (operand instanceof TableQueryFilter.Constant) {
+            var type = ((TableQueryFilter.Constant) operand).getType();
+            if (type == null) {
+                throw new SwProcessException(ErrorType.DATASTORE, "invalid filter, constant type is null");
+            }
+            return type;
+        } else {
+            throw new IllegalArgumentException("invalid operand type " + operand.getClass());
+        }
+    }
+
+    private void checkSameType(List<Object> operands) {
+        var types = operands.stream()
+                .map(this::getType)
+                .filter(t -> t != ColumnType.UNKNOWN)
+                .collect(Collectors.toList());
+        if (types.isEmpty()) {
+            return;
+        }
+        ColumnType type1 = types.get(0);
+        for (var type : types) {
+            if (!type.getCategory().equals(type1.getCategory())) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        MessageFormat.format("invalid filter, can not compare {0} with {1}", type1, type));
+            }
+        }
+    }
+
+    private static Function<Map<String, Object>, Object> getGetter(Object operand) {
+        if (operand instanceof TableQueryFilter.Column) {
+            var name = ((TableQueryFilter.Column) operand).getName();
+            return record -> record.get(name);
+        }
+        var value = ((TableQueryFilter.Constant) operand).getValue();
+        return record -> value;
+    }
+
+    private static IntPredicate getResultTest(TableQueryFilter.Operator op) {
+        switch (op) {
+            case EQUAL:
+                return result -> result == 0;
+            case NOT_EQUAL:
+                return result -> result != 0;
+            case LESS:
+                return result -> result < 0;
+            case LESS_EQUAL:
+                return result -> result <= 0;
+            case GREATER:
+                return result -> result > 0;
+            case GREATER_EQUAL:
+                return result -> result >= 0;
+            default:
+                throw new IllegalArgumentException("Unexpected operator: " + op);
+        }
+    }
+
+    /**
+     * Returns the comparator of non-null values of the two types.
+     */
+    private static Comparator<Object> getComparator(ColumnType type1, ColumnType type2) {
+        if (!type1.getCategory().equals(type2.getCategory())) {
+            return (value1, value2) -> {
+                if (value1 instanceof Number && value2 instanceof Number) {
+                    return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+                }
+                throw new IllegalArgumentException("can not compare " + type1 + " with " + type2);
+            };
+        }
+        if (type1 == ColumnType.BOOL) {
+            return (value1, value2) -> ((Boolean) value1).compareTo((Boolean) value2);
+        } else if (type1 == ColumnType.STRING) {
+            return (value1, value2) -> ((String) value1).compareTo((String) value2);
+        } else if (type1 == ColumnType.BYTES) {
+            return (value1, value2) -> ((ByteBuffer) value1).compareTo((ByteBuffer) value2);
+        } else if (FilterCompiler.isInt(type1)) {
+            return (value1, value2) -> Long.compare(((Number) value1).longValue(), ((Number) value2).longValue());
+        } else if (FilterCompiler.isFloat(type1)) {
+            return (value1, value2) -> Double.compare(((Number) value1).doubleValue(),
+                    ((Number) value2).doubleValue());
+        } else {
+            return (value1, value2) -> {
+                throw new IllegalArgumentException("invalid type " + type1);
+            };
+        }
+    }
+
+    private static boolean isInt(ColumnType type) {
+        return type.getCategory().equals(ColumnType.INT32.getCategory());
+    }
+
+    private static boolean isFloat(ColumnType type) {
+        return type.getCategory().equals(ColumnType.FLOAT32.getCategory());
+    }
+}
@@ -16,6 +16,8 @@
 
 package ai.starwhale.mlops.datastore.impl;
 
+import ai.starwhale.mlops.datastore.AggregateDesc;
+import ai.starwhale.mlops.datastore.ColumnIndexType;
 import ai.starwhale.mlops.datastore.ColumnSchema;
 import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
 import ai.starwhale.mlops.datastore.ColumnType;
@@ -27,8 +29,12 @@ import ai.starwhale.mlops.datastore.TableSchemaDesc;
 import ai.starwhale.mlops.datastore.Wal;
 import ai.starwhale.mlops.datastore.WalManager;
 import ai.starwhale.mlops.exception.SwProcessException;
-import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
 import ai.starwhale.mlops.exception.SwValidationException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import java.nio.ByteBuffer;
 import java.text.MessageFormat;
@@ -36,40 +42,221 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.locks.Lock;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import lombok.NonNull;
 
 public class MemoryTableImpl implements MemoryTable {
 
+    private static final int SNAPSHOT_RECORDS_PER_ENTRY = 1000;
+
+    private static final ObjectMapper LAST_KEY_MAPPER = new ObjectMapper();
+
+    // updates kept as pending versions before writers start to wait for readers to apply them
+    private static final int MAX_PENDING_UPDATES = 10000;
+
     private final String tableName;
 
     private final WalManager walManager;
 
     private TableSchema schema = null;
 
-    private final TreeMap<Object, Map<String, Object>> recordMap = new TreeMap<>();
+    private final RecordStore recordStore;
+
+    private final Map<String, ColumnIndex> indexes = new HashMap<>();
 
     // used only for initialization from WAL
     private final Map<Integer, ColumnSchema> indexMap = new HashMap<>();
 
-    private final Lock lock = new ReentrantLock();
+    // held by writers, and briefly by readers to register themselves
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition readerCountChanged = this.lock.newCondition();
+
+    private int readerCount;
+
+    // writers waiting for all readers to leave. New readers wait for them to avoid starving them.
+    private int exclusiveWriterCount;
+
+    private long revision;
+
+    private final PendingVersions pendingVersions = new PendingVersions();
+
+    // the revision seen by the reader in the current thread
+    private final ThreadLocal<Long> readRevision = new ThreadLocal<>();
+
+    // the number of updates that failed to be persisted. Their records are still in the table
+    private final AtomicLong failedUpdateCount = new AtomicLong();
+
+    // failedUpdateCount when the whole table was persisted again, changed with the lock held
+    private volatile long recoveredUpdateCount;
+
+    // the keys of records changed since trackChanges(), or null if changes are not tracked
+    private Set<Object> changedKeys;
 
     public MemoryTableImpl(String tableName, WalManager walManager) {
+        this(tableName, walManager, new TreeMapRecordStore());
+    }
+
+    MemoryTableImpl(String tableName, WalManager walManager, RecordStore recordStore) {
         this.tableName = tableName;
         this.walManager = walManager;
+        this.recordStore = recordStore;
+    }
+
+    @Override
+    public void lock(boolean forRead) {
+        this.lock.lock();
+        if (!forRead) {
+            return;
+        }
+        try {
+            while (this.exclusiveWriterCount > 0) {
+                this.readerCountChanged.awaitUninterruptibly();
+            }
+            ++this.readerCount;
+            this.readRevision.set(this.revision);
+        } finally {
+            this.lock.unlock();
+        }
     }
 
-    public void lock() {
+    @Override
+    public void unlock(boolean forRead) {
+        if (!forRead) {
+            this.lock.unlock();
+            return;
+        }
         this.lock.lock();
+        try {
+            this.readRevision.remove();
+            if (--this.readerCount == 0) {
+                this.readerCountChanged.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the action as a reader, registering the current thread as one if it is not yet.
+     */
+    private <T> T read(Supplier<T> action) {
+        if (this.readRevision.get() != null) {
+            return action.get();
+        }
+        this.lock(true);
+        try {
+            return action.get();
+        } finally {
+            this.unlock(true);
+        }
+    }
+
+    /**
+     * Waits until all readers leave and applies pending versions to the record store, so that the record store can be
+     * changed by the current thread.
+     *
+     * <p>The caller should hold the lock for writing.
+     */
+    private void acquireRecordStore() {
+        if (this.readerCount > 0) {
+            ++this.exclusiveWriterCount;
+            try {
+                while (this.readerCount > 0) {
+                    this.readerCountChanged.awaitUninterruptibly();
+                }
+            } finally {
+                if (--this.exclusiveWriterCount == 0) {
+                    this.readerCountChanged.signalAll();
+                }
+            }
+        }
+        if (!this.pendingVersions.isEmpty()) {
+            this.insertRecords(this.pendingVersions.drain());
+        }
+    }
+
+    /**
+     * Fails if some update failed to be persisted, because its records have been applied to the table and may be in
+     * the WAL or not. Readers and writers fail fast instead of seeing records that may be lost on restart, until the
+     * table is persisted again by {@link #recover()}.
+     */
+    private void checkFenced() {
+        if (this.failedUpdateCount.get() != this.recoveredUpdateCount) {
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE,
+                    MessageFormat.format("table {0} is unavailable as its updates failed to be persisted",
+                            this.tableName));
+        }
     }
 
-    public void unlock() {
+    @Override
+    public void recover() {
+        var failedUpdateCount = this.failedUpdateCount.get();
+        if (failedUpdateCount == this.recoveredUpdateCount) {
+            return;
+        }
+        // wait for writers that passed the check before the failure. Later ones fail, so the snapshot is the last
+        // change of the table in the WAL.
+        this.lock.lock();
         this.lock.unlock();
+        var persisted = this.read(() -> {
+            var ret = new ArrayList<CompletableFuture<Void>>();
+            this.doSnapshot().forEachRemaining(entry -> ret.add(this.walManager.append(entry)));
+            return ret;
+        });
+        try {
+            CompletableFuture.allOf(persisted.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE,
+                    MessageFormat.format("fail to persist table {0} again", this.tableName));
+        }
+        this.lock.lock();
+        try {
+            if (failedUpdateCount > this.recoveredUpdateCount) {
+                this.recoveredUpdateCount = failedUpdateCount;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private Map<String, Object> getRecord(Object key) {
+        if (this.pendingVersions.isEmpty()) {
+            return this.recordStore.get(key);
+        }
+        return this.pendingVersions.get(key, this.readRevision.get(), this.recordStore::get);
+    }
+
+    private Iterable<Map<String, Object>> getRecords(Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        var records = this.recordStore.values(start, startInclusive, end, endInclusive);
+        if (this.pendingVersions.isEmpty()) {
+            return records;
+        }
+        return this.pendingVersions.values(records,
+                this.schema.getKeyColumn(),
+                this.readRevision.get(),
+                start,
+                startInclusive,
+                end,
+                endInclusive);
     }
 
     public TableSchema getSchema() {
@@ -78,21 +265,32 @@ public class MemoryTableImpl implements MemoryTable {
 
     @Override
     public void updateFromWal(Wal.WalEntry entry) {
-        if (entry.hasTableSchema()) {
-            var schemaDesc = this.parseSchema(entry.getTableSchema());
-            if (this.schema == null) {
-                this.schema = new TableSchema(schemaDesc);
-            } else {
-                this.schema.merge(schemaDesc);
+        this.lock(false);
+        try {
+            this.acquireRecordStore();
+            if (entry.hasTableSchema()) {
+                var schemaDesc = MemoryTableImpl.parseSchema(entry.getTableSchema(), this.indexMap);
+                if (this.schema == null) {
+                    this.schema = new TableSchema(schemaDesc);
+                } else {
+                    this.schema.merge(schemaDesc);
+                }
+                this.recordStore.setSchema(this.schema);
+                this.updateIndexes();
             }
-        }
-        var recordList = entry.getRecordsList();
-        if (!recordList.isEmpty()) {
-            this.insertRecords(recordList.stream().map(this::parseRecord).collect(Collectors.toList()));
+            var recordList = entry.getRecordsList();
+            if (!recordList.isEmpty()) {
+                this.insertRecords(recordList.stream().map(this::parseRecord).collect(Collectors.toList()));
+            }
+        } finally {
+            this.unlock(false);
         }
     }
 
-    private TableSchemaDesc parseSchema(Wal.TableSchema tableSchema) {
+    /**
+     * Converts the schema in a WAL entry to a schema description, putting the columns into indexMap by their indexes.
+     */
+    private static TableSchemaDesc parseSchema(Wal.TableSchema tableSchema, Map<Integer, ColumnSchema> indexMap) {
         var ret = new TableSchemaDesc();
         var keyColumn = tableSchema.getKeyColumn();
         if (!keyColumn.isEmpty()) {
@@ -102,28 +300,34 @@ public class MemoryTableImpl implements MemoryTable {
         columnList.sort(Comparator.comparingInt(Wal.ColumnSchema::getColumnIndex));
         var columnSchemaList = new ArrayList<ColumnSchemaDesc>();
         for (var col : columnList) {
-            var colDesc = new ColumnSchemaDesc(col.getColumnName(), col.getColumnType());
+            var colDesc = new ColumnSchemaDesc(col.getColumnName(),
+                    col.getColumnType(),
+                    col.getColumnIndexType().isEmpty() ? null : col.getColumnIndexType());
             columnSchemaList.add(colDesc);
-            this.indexMap.put(col.getColumnIndex(), new ColumnSchema(colDesc, col.getColumnIndex()));
+            indexMap.put(col.getColumnIndex(), new ColumnSchema(colDesc, col.getColumnIndex()));
         }
         ret.setColumnSchemaList(columnSchemaList);
         return ret;
     }
 
     private Map<String, Object> parseRecord(Wal.Record record) {
+        return MemoryTableImpl.parseRecord(this.indexMap, record);
+    }
+
+    static Map<String, Object> parseRecord(Map<Integer, ColumnSchema> indexMap, Wal.Record record) {
         Map<String, Object> ret = new HashMap<>();
         for (var col : record.getColumnsList()) {
             if (col.getIndex() == -1) {
                 ret.put("-", true);
             } else {
-                var colSchema = this.indexMap.get(col.getIndex());
-                ret.put(colSchema.getName(), this.parseValue(colSchema, col));
+                var colSchema = indexMap.get(col.getIndex());
+                ret.put(colSchema.getName(), MemoryTableImpl.parseValue(colSchema, col));
             }
         }
         return ret;
     }
 
-    private Object parseValue(ColumnSchema columnSchema, Wal.Column col) {
+    static Object parseValue(ColumnSchema columnSchema, Wal.Column col) {
         if (col.getNullValue()) {
             return null;
         }
@@ -148,12 +352,33 @@ public class MemoryTableImpl implements MemoryTable {
         } else if (columnSchema.getType() == ColumnType.BYTES) {
             return ByteBuffer.wrap(col.getBytesValue().toByteArray());
         }
-        throw new IllegalArgumentException("invalid type " + this);
+        throw new IllegalArgumentException("invalid type " + columnSchema.getType());
     }
 
 
     @Override
-    public void update(TableSchemaDesc schema, List<Map<String, String>> records) {
+    public CompletableFuture<Void> update(TableSchemaDesc schema, List<Map<String, String>> records) {
+        this.lock(false);
+        try {
+            this.checkFenced();
+            return this.doUpdate(schema, records);
+        } finally {
+            this.unlock(false);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> update(Wal.WalEntry entry) {
+        this.lock(false);
+        try {
+            this.checkFenced();
+            return this.doUpdate(entry);
+        } finally {
+            this.unlock(false);
+        }
+    }
+
+    private CompletableFuture<Void> doUpdate(TableSchemaDesc schema, List<Map<String, String>> records) {
         var logEntryBuilder = Wal.WalEntry.newBuilder()
                 .setEntryType(Wal.WalEntry.Type.UPDATE)
                 .setTableName(this.tableName);
@@ -175,10 +400,7 @@ public class MemoryTableImpl implements MemoryTable {
                 diff = newSchema.merge(schema);
             }
             for (var col : diff) {
-                logSchemaBuilder.addColumns(Wal.ColumnSchema.newBuilder()
-                        .setColumnIndex(col.getIndex())
-                        .setColumnName(col.getName())
-                        .setColumnType(col.getType().toString()));
+                logSchemaBuilder.addColumns(MemoryTableImpl.writeColumnSchema(col));
             }
             logEntryBuilder.setTableSchema(logSchemaBuilder);
         }
@@ -204,28 +426,358 @@ public class MemoryTableImpl implements MemoryTable {
                 logEntryBuilder.addRecords(MemoryTableImpl.writeRecord(newSchema, record));
             }
         }
-        this.walManager.append(logEntryBuilder.build());
+        return this.apply(newSchema, logEntryBuilder.build(), decodedRecords);
+    }
+
+    private CompletableFuture<Void> doUpdate(Wal.WalEntry entry) {
+        if (entry.getEntryType() != Wal.WalEntry.Type.UPDATE) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "invalid entry type " + entry.getEntryType() + ", only UPDATE is allowed");
+        }
+        if (entry.hasColumnarRecords()) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "columnar records are not allowed in updates");
+        }
+        var logEntryBuilder = Wal.WalEntry.newBuilder()
+                .setEntryType(Wal.WalEntry.Type.UPDATE)
+                .setTableName(this.tableName);
+        // columns in the request by the indexes used in its records
+        var requestIndexMap = new HashMap<Integer, ColumnSchema>();
+        TableSchema newSchema = this.schema;
+        if (entry.hasTableSchema()) {
+            var schema = MemoryTableImpl.parseSchema(entry.getTableSchema(), requestIndexMap);
+            var logSchemaBuilder = Wal.TableSchema.newBuilder();
+            List<ColumnSchema> diff;
+            if (this.schema == null) {
+                newSchema = new TableSchema(schema);
+                diff = newSchema.getColumnSchemas();
+                logSchemaBuilder.setKeyColumn(newSchema.getKeyColumn());
+            } else {
+                newSchema = new TableSchema(this.schema);
+                diff = newSchema.merge(schema);
+            }
+            for (var col : diff) {
+                logSchemaBuilder.addColumns(MemoryTableImpl.writeColumnSchema(col));
+            }
+            logEntryBuilder.setTableSchema(logSchemaBuilder);
+        } else if (this.schema == null) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "schema should not be null for the first update");
+        }
+        if (entry.getRecordsCount() == 0) {
+            return this.apply(newSchema, logEntryBuilder.build(), null);
+        }
+        // maps the indexes in the request to the columns in the table, validating the schema only once per request
+        var columnMap = new HashMap<Integer, ColumnSchema>();
+        var sameIndexes = true;
+        for (var e : requestIndexMap.entrySet()) {
+            var col = newSchema.getColumnSchemaByName(e.getValue().getName());
+            columnMap.put(e.getKey(), col);
+            sameIndexes &= col.getIndex() == e.getKey();
+        }
+        var keyColumn = newSchema.getColumnSchemaByName(newSchema.getKeyColumn());
+        var keyIndex = requestIndexMap.entrySet().stream()
+                .filter(e -> e.getValue().getName().equals(keyColumn.getName()))
+                .map(Map.Entry::getKey)
+                .findAny()
+                .orElseThrow(() -> new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        MessageFormat.format("key column {0} is not in the schema of the request",
+                                keyColumn.getName())));
+        var decodedRecords = new ArrayList<Map<String, Object>>(entry.getRecordsCount());
+        for (var record : entry.getRecordsList()) {
+            decodedRecords.add(MemoryTableImpl.decodeWalRecord(columnMap, keyColumn, keyIndex, record));
+        }
+        if (sameIndexes) {
+            // the records are stored in the WAL as they are
+            logEntryBuilder.addAllRecords(entry.getRecordsList());
+        } else {
+            for (var record : decodedRecords) {
+                logEntryBuilder.addRecords(MemoryTableImpl.writeRecord(newSchema, record));
+            }
+        }
+        return this.apply(newSchema, logEntryBuilder.build(), decodedRecords);
+    }
+
+    private static Map<String, Object> decodeWalRecord(Map<Integer, ColumnSchema> columnMap,
+            ColumnSchema keyColumn,
+            int keyIndex,
+            Wal.Record record) {
+        Object key = null;
+        var deleted = false;
+        var ret = new HashMap<String, Object>();
+        for (var col : record.getColumnsList()) {
+            if (col.getIndex() == -1) {
+                deleted = true;
+                continue;
+            }
+            var colSchema = columnMap.get(col.getIndex());
+            if (colSchema == null) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        "no schema found for column index " + col.getIndex());
+            }
+            MemoryTableImpl.checkValueType(colSchema, col);
+            var value = MemoryTableImpl.parseValue(colSchema, col);
+            if (value != null && !MemoryTableImpl.isInRange(colSchema.getType(), col.getIntValue())) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        MessageFormat.format("value {0} is out of range for column {1} of type {2}",
+                                col.getIntValue(), colSchema.getName(), colSchema.getType()));
+            }
+            if (col.getIndex() == keyIndex) {
+                key = value;
+            }
+            ret.put(colSchema.getName(), value);
+        }
+        if (key == null) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    MessageFormat.format("key column {0} is null", keyColumn.getName()));
+        }
+        if (deleted) {
+            return Map.of(keyColumn.getName(), key, "-", true);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks that the column sets no value field other than the one of its type or null_value, so that a binary update
+     * can not store values that a JSON update would reject. Fields with default values can not be told from unset
+     * ones, so they are always accepted.
+     */
+    private static void checkValueType(ColumnSchema colSchema, Wal.Column col) {
+        int expected;
+        var type = colSchema.getType();
+        if (type == ColumnType.BOOL) {
+            expected = Wal.Column.BOOL_VALUE_FIELD_NUMBER;
+        } else if (type == ColumnType.INT8 || type == ColumnType.INT16 || type == ColumnType.INT32
+                || type == ColumnType.INT64) {
+            expected = Wal.Column.INT_VALUE_FIELD_NUMBER;
+        } else if (type == ColumnType.FLOAT32) {
+            expected = Wal.Column.FLOAT_VALUE_FIELD_NUMBER;
+        } else if (type == ColumnType.FLOAT64) {
+            expected = Wal.Column.DOUBLE_VALUE_FIELD_NUMBER;
+        } else if (type == ColumnType.STRING) {
+            expected = Wal.Column.STRING_VALUE_FIELD_NUMBER;
+        } else if (type == ColumnType.BYTES) {
+            expected = Wal.Column.BYTES_VALUE_FIELD_NUMBER;
+        } else {
+            // only null values are allowed for UNKNOWN columns
+            expected = Wal.Column.NULL_VALUE_FIELD_NUMBER;
+        }
+        if (col.getNullValue()) {
+            // a null value should not carry any other value
+            expected = Wal.Column.NULL_VALUE_FIELD_NUMBER;
+        }
+        for (var field : col.getAllFields().keySet()) {
+            var number = field.getNumber();
+            if (number != Wal.Column.INDEX_FIELD_NUMBER && number != expected) {
+                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                        MessageFormat.format("{0} is not allowed for column {1} of type {2}",
+                                field.getName(), colSchema.getName(), type));
+            }
+        }
+    }
+
+    private static boolean isInRange(ColumnType type, long value) {
+        if (type == ColumnType.INT8) {
+            return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+        } else if (type == ColumnType.INT16) {
+            return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+        } else if (type == ColumnType.INT32) {
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+        }
+        return true;
+    }
+
+    /**
+     * Persists the WAL entry and applies the decoded records to the table, as the last step of updates.
+     */
+    private CompletableFuture<Void> apply(TableSchema newSchema,
+            Wal.WalEntry logEntry,
+            List<Map<String, Object>> decodedRecords) {
+        var persisted = this.walManager.append(logEntry).whenComplete((v, e) -> {
+            if (e != null) {
+                this.failedUpdateCount.incrementAndGet();
+            }
+        });
+        if (this.changedKeys != null && decodedRecords != null) {
+            for (var record : decodedRecords) {
+                this.changedKeys.add(record.get(newSchema.getKeyColumn()));
+            }
+        }
+        if (this.readerCount > 0
+                && newSchema.equals(this.schema)
+                && decodedRecords != null
+                && this.pendingVersions.getUpdateCount() < MAX_PENDING_UPDATES) {
+            // keep the records as new versions, as the record store is being read. Readers coming later see them.
+            var revision = this.revision + 1;
+            for (var record : decodedRecords) {
+                this.pendingVersions.add(revision,
+                        record.get(this.schema.getKeyColumn()),
+                        record,
+                        this.recordStore::get);
+            }
+            this.revision = revision;
+            return persisted;
+        }
+        this.acquireRecordStore();
         this.schema = newSchema;
+        this.recordStore.setSchema(this.schema);
+        this.updateIndexes();
         if (decodedRecords != null) {
             this.insertRecords(decodedRecords);
         }
+        return persisted;
+    }
+
+    @Override
+    public Iterator<Wal.WalEntry> snapshot() {
+        return this.doSnapshot();
+    }
+
+    @Override
+    public void trackChanges() {
+        this.changedKeys = new HashSet<>();
+    }
+
+    @Override
+    public List<Wal.WalEntry> snapshotChanges() {
+        var keys = this.changedKeys;
+        this.changedKeys = null;
+        if (keys == null || keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return this.read(() -> Lists.newArrayList(this.doSnapshot(keys.stream()
+                .map(key -> {
+                    var record = this.getRecord(key);
+                    if (record == null) {
+                        return Map.<String, Object>of(this.schema.getKeyColumn(), key, "-", true);
+                    }
+                    return record;
+                })
+                .collect(Collectors.toList()))));
+    }
+
+    private Iterator<Wal.WalEntry> doSnapshot() {
+        return this.doSnapshot(this.getRecords(null, false, null, false));
+    }
+
+    /**
+     * Builds WAL entries of at most {@link #SNAPSHOT_RECORDS_PER_ENTRY} records lazily. Only the first entry carries
+     * the schema, and there is one even if there is no record.
+     */
+    private Iterator<Wal.WalEntry> doSnapshot(Iterable<Map<String, Object>> records) {
+        if (this.schema == null) {
+            return Collections.emptyIterator();
+        }
+        var schema = this.schema;
+        var logSchemaBuilder = Wal.TableSchema.newBuilder()
+                .setKeyColumn(schema.getKeyColumn());
+        for (var col : schema.getColumnSchemas()) {
+            logSchemaBuilder.addColumns(MemoryTableImpl.writeColumnSchema(col));
+        }
+        var logSchema = logSchemaBuilder.build();
+        var iterator = records.iterator();
+        return new AbstractIterator<>() {
+            private boolean schemaWritten;
+
+            @Override
+            protected Wal.WalEntry computeNext() {
+                if (this.schemaWritten && !iterator.hasNext()) {
+                    return this.endOfData();
+                }
+                var logEntryBuilder = Wal.WalEntry.newBuilder()
+                        .setEntryType(Wal.WalEntry.Type.UPDATE)
+                        .setTableName(MemoryTableImpl.this.tableName);
+                if (!this.schemaWritten) {
+                    logEntryBuilder.setTableSchema(logSchema);
+                    this.schemaWritten = true;
+                }
+                while (iterator.hasNext() && logEntryBuilder.getRecordsCount() < SNAPSHOT_RECORDS_PER_ENTRY) {
+                    logEntryBuilder.addRecords(MemoryTableImpl.writeRecord(schema, iterator.next()));
+                }
+                return logEntryBuilder.build();
+            }
+        };
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return this.recordStore.getMemoryUsage();
+    }
+
+    @Override
+    public void spill() {
+        this.lock(false);
+        try {
+            this.acquireRecordStore();
+            this.recordStore.spill();
+        } finally {
+            this.unlock(false);
+        }
     }
 
     private void insertRecords(List<Map<String, Object>> records) {
         for (var record : records) {
             var key = record.get(this.schema.getKeyColumn());
-            if (record.get("-") != null) {
-                this.recordMap.remove(key);
-            } else {
-                var old = this.recordMap.putIfAbsent(key, record);
+            var deleted = record.get("-") != null;
+            if (!this.indexes.isEmpty()) {
+                // old values must be removed before the record store is updated, as the record returned by it may
+                // change together with the store
+                var old = this.recordStore.get(key);
                 if (old != null) {
-                    old.putAll(record);
+                    for (var index : this.indexes.values()) {
+                        var name = index.getColumnSchema().getName();
+                        if (deleted || record.containsKey(name)) {
+                            index.remove(old.get(name), key);
+                        }
+                    }
                 }
             }
+            if (deleted) {
+                this.recordStore.remove(key);
+            } else {
+                this.recordStore.put(key, record);
+                for (var index : this.indexes.values()) {
+                    var name = index.getColumnSchema().getName();
+                    if (record.containsKey(name)) {
+                        index.add(record.get(name), key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates indexes declared by the schema, and rebuilds those whose column schemas have changed.
+     */
+    private void updateIndexes() {
+        for (var col : this.schema.getColumnSchemas()) {
+            if (col.getIndexType() == null) {
+                continue;
+            }
+            var current = this.indexes.get(col.getName());
+            if (current != null && current.getColumnSchema().equals(col)) {
+                continue;
+            }
+            var index = new ColumnIndex(col);
+            for (var record : this.recordStore.values()) {
+                index.add(record.get(col.getName()), record.get(this.schema.getKeyColumn()));
+            }
+            this.indexes.put(col.getName(), index);
+        }
+    }
+
+    private static Wal.ColumnSchema.Builder writeColumnSchema(ColumnSchema col) {
+        var ret = Wal.ColumnSchema.newBuilder()
+                .setColumnIndex(col.getIndex())
+                .setColumnName(col.getName())
+                .setColumnType(col.getType().toString());
+        if (col.getIndexType() != null) {
+            ret.setColumnIndexType(col.getIndexType().name());
         }
+        return ret;
     }
 
-    private static Wal.Record.Builder writeRecord(TableSchema schema, Map<String, Object> record) {
+    static Wal.Record.Builder writeRecord(TableSchema schema, Map<String, Object> record) {
         var ret = Wal.Record.newBuilder();
         for (var entry : record.entrySet()) {
             ret.addColumns(MemoryTableImpl.writeColumn(schema, entry.getKey(), entry.getValue()));
@@ -233,7 +785,7 @@ public class MemoryTableImpl implements MemoryTable {
         return ret;
     }
 
-    private static Wal.Column.Builder writeColumn(TableSchema schema, String name, Object value) {
+    static Wal.Column.Builder writeColumn(TableSchema schema, String name, Object value) {
         var ret = Wal.Column.newBuilder();
         if (name.equals("-")) {
             ret.setIndex(-1);
@@ -273,12 +825,53 @@ public class MemoryTableImpl implements MemoryTable {
             TableQueryFilter filter,
             int start,
             int limit,
+            String lastKey,
             boolean keepNone,
             boolean rawResult) {
+        this.checkFenced();
+        return this.read(() -> {
+            var ret = new ArrayList<RecordResult>();
+            if (this.schema == null) {
+                return ret;
+            }
+            this.schema.getColumnTypeMapping(columns); // check if all column names are valid
+            this.doQuery(orderBy, filter, start, limit, lastKey, record -> {
+                var r = new HashMap<String, Object>();
+                for (var entry : columns.entrySet()) {
+                    var value = record.get(entry.getKey());
+                    if (keepNone || value != null) {
+                        r.put(entry.getValue(), value);
+                    }
+                }
+                ret.add(new RecordResult(record.get(this.schema.getKeyColumn()), r));
+            });
+            return ret;
+        });
+    }
+
+    @Override
+    public void query(List<OrderByDesc> orderBy,
+            TableQueryFilter filter,
+            int start,
+            int limit,
+            String lastKey,
+            Consumer<Map<String, Object>> visitor) {
+        this.checkFenced();
+        this.read(() -> {
+            this.doQuery(orderBy, filter, start, limit, lastKey, visitor);
+            return null;
+        });
+    }
+
+    private void doQuery(List<OrderByDesc> orderBy,
+            TableQueryFilter filter,
+            int start,
+            int limit,
+            String lastKey,
+            Consumer<Map<String, Object>> visitor) {
         if (this.schema == null) {
-            return Collections.emptyList();
+            return;
         }
-        this.schema.getColumnTypeMapping(columns); // check if all column names are valid
         if (orderBy != null) {
             for (var col : orderBy) {
                 if (col == null) {
@@ -291,57 +884,200 @@ public class MemoryTableImpl implements MemoryTable {
                 }
             }
         }
-        if (filter != null) {
-            this.checkFilter(filter);
+        var predicate = filter == null ? null : FilterCompiler.compile(this.schema, filter);
+        if (start < 0) {
+            start = 0;
         }
-        List<Map<String, Object>> results = new ArrayList<>();
-        for (var record : this.recordMap.values()) {
-            if (filter == null || this.match(filter, record)) {
-                results.add(record);
+        // the number of records to collect before dropping the first start ones
+        int count = limit < 0 ? Integer.MAX_VALUE : (int) Math.min((long) start + limit, Integer.MAX_VALUE);
+        if (orderBy == null) {
+            var lastKeyValue = this.schema.getKeyColumnType().decode(lastKey);
+            if (count <= start) {
+                return;
             }
+            // candidates are visited in key order, so the query can stop as soon as enough records are found
+            int matched = 0;
+            for (var record : this.getCandidates(filter, lastKeyValue)) {
+                if (predicate == null || predicate.test(record)) {
+                    if (matched++ >= start) {
+                        visitor.accept(record);
+                    }
+                    if (matched >= count) {
+                        break;
+                    }
+                }
+            }
+            return;
         }
-        if (start < 0) {
-            start = 0;
+        var comparator = this.getRecordComparator(orderBy);
+        // compared with candidates like a record, as it holds the values of the orderBy columns and the key
+        var lastRecord = lastKey == null ? null : this.decodeLastKey(orderBy, lastKey);
+        Iterable<Map<String, Object>> candidates;
+        if (lastRecord != null && orderBy.isEmpty()) {
+            candidates = this.getCandidates(filter, lastRecord.get(this.schema.getKeyColumn()));
+        } else {
+            candidates = this.getCandidates(this.narrowFilter(filter, orderBy, lastRecord), null);
         }
-        if (limit < 0) {
-            limit = results.size();
+        var results = MemoryTableImpl.collectTopRecords(candidates, predicate, comparator, lastRecord, count);
+        for (int i = start; i < results.size(); ++i) {
+            visitor.accept(results.get(i));
         }
-        int end = start + limit;
-        if (end > results.size()) {
-            end = results.size();
+    }
+
+    /**
+     * Returns the first count matching records ordered after lastRecord, sorted by the comparator.
+     *
+     * <p>Only count records are kept in a max-heap while the candidates are visited, so a small page of a large
+     * table does not sort every matching record.
+     */
+    private static List<Map<String, Object>> collectTopRecords(Iterable<Map<String, Object>> candidates,
+            Predicate<Map<String, Object>> predicate,
+            Comparator<Map<String, Object>> comparator,
+            Map<String, Object> lastRecord,
+            int count) {
+        if (count == 0) {
+            return new ArrayList<>();
         }
-        if (orderBy != null) {
-            results.sort((a, b) -> {
-                for (var col : orderBy) {
-                    var columnType = this.schema.getColumnSchemaByName(col.getColumnName()).getType();
-                    var result = MemoryTableImpl.sortCompare(
-                            columnType,
-                            a.get(col.getColumnName()),
-                            columnType,
-                            b.get(col.getColumnName()));
-                    if (result != 0) {
-                        if (col.isDescending()) {
-                            return -result;
-                        }
-                        return result;
-                    }
-                }
-                return 0;
+        boolean bounded = count < Integer.MAX_VALUE;
+        var heap = new PriorityQueue<Map<String, Object>>(bounded ? count : 11, comparator.reversed());
+        var all = new ArrayList<Map<String, Object>>();
+        for (var record : candidates) {
+            if (lastRecord != null && comparator.compare(record, lastRecord) <= 0) {
+                continue;
+            }
+            if (bounded && heap.size() >= count && comparator.compare(record, heap.peek()) >= 0) {
+                continue;
+            }
+            if (predicate != null && !predicate.test(record)) {
+                continue;
+            }
+            if (!bounded) {
+                all.add(record);
+                continue;
+            }
+            heap.add(record);
+            if (heap.size() > count) {
+                heap.poll();
+            }
+        }
+        var ret = bounded ? new ArrayList<>(heap) : all;
+        ret.sort(comparator);
+        return ret;
+    }
+
+    @Override
+    public String encodeLastKey(List<OrderByDesc> orderBy, Map<String, Object> record) {
+        var keyColumnType = this.schema.getKeyColumnType();
+        var key = keyColumnType.encode(record.get(this.schema.getKeyColumn()), false);
+        if (orderBy == null) {
+            return key;
+        }
+        var values = new ArrayList<String>();
+        for (var col : orderBy) {
+            var name = col.getColumnName();
+            values.add(this.schema.getColumnSchemaByName(name).getType().encode(record.get(name), false));
+        }
+        values.add(key);
+        try {
+            return LAST_KEY_MAPPER.writeValueAsString(values);
+        } catch (JsonProcessingException e) {
+            throw new SwProcessException(SwProcessException.ErrorType.DATASTORE,
+                    "failed to encode last key: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a lastKey built by {@link #encodeLastKey} with orderBy into a record holding only the values of the
+     * orderBy columns and the key.
+     */
+    private Map<String, Object> decodeLastKey(List<OrderByDesc> orderBy, String lastKey) {
+        List<String> values;
+        try {
+            values = LAST_KEY_MAPPER.readValue(lastKey, new TypeReference<>() {
             });
+        } catch (JsonProcessingException e) {
+            values = null;
         }
+        if (values == null || values.size() != orderBy.size() + 1) {
+            throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
+                    "invalid last key for the orderBy columns: " + lastKey);
+        }
+        var ret = new HashMap<String, Object>();
+        for (int i = 0; i < orderBy.size(); ++i) {
+            var name = orderBy.get(i).getColumnName();
+            ret.put(name, this.schema.getColumnSchemaByName(name).getType().decode(values.get(i)));
+        }
+        ret.put(this.schema.getKeyColumn(), this.schema.getKeyColumnType().decode(values.get(orderBy.size())));
+        return ret;
+    }
 
-        return results.subList(start, end).stream().map(record -> {
-            var r = new HashMap<String, Object>();
-            for (var entry : columns.entrySet()) {
-                var value = record.get(entry.getKey());
-                if (keepNone || value != null) {
-                    r.put(entry.getValue(), value);
-                }
+    /**
+     * Adds a bound on the first orderBy column to the filter if the column has a sorted index, so that the candidates
+     * of a query continuing after lastRecord skip the records of the previous pages. Descending columns are not
+     * narrowed, as their null values come last but are not indexed.
+     */
+    private TableQueryFilter narrowFilter(TableQueryFilter filter,
+            List<OrderByDesc> orderBy,
+            Map<String, Object> lastRecord) {
+        if (lastRecord == null || orderBy.get(0).isDescending()) {
+            return filter;
+        }
+        var name = orderBy.get(0).getColumnName();
+        var value = lastRecord.get(name);
+        var index = this.indexes.get(name);
+        if (value == null || index == null || index.getColumnSchema().getIndexType() != ColumnIndexType.SORTED) {
+            return filter;
+        }
+        var bound = TableQueryFilter.builder()
+                .operator(TableQueryFilter.Operator.GREATER_EQUAL)
+                .operands(List.of(new TableQueryFilter.Column(name),
+                        new TableQueryFilter.Constant(index.getColumnSchema().getType(), value)))
+                .build();
+        if (filter == null) {
+            return bound;
+        }
+        return TableQueryFilter.builder()
+                .operator(TableQueryFilter.Operator.AND)
+                .operands(List.of(filter, bound))
+                .build();
+    }
+
+    /**
+     * Builds the comparator of query results from the orderBy columns.
+     *
+     * <p>Records with the same values are ordered by their keys, so the order is total and a page can be located by
+     * the values of its last record.
+     */
+    private Comparator<Map<String, Object>> getRecordComparator(List<OrderByDesc> orderBy) {
+        Comparator<Map<String, Object>> ret = null;
+        for (var col : orderBy) {
+            var name = col.getColumnName();
+            var valueComparator = MemoryTableImpl.getValueComparator(
+                    this.schema.getColumnSchemaByName(name).getType());
+            Comparator<Map<String, Object>> comparator = (a, b) -> valueComparator.compare(a.get(name), b.get(name));
+            if (col.isDescending()) {
+                comparator = comparator.reversed();
             }
-            return new RecordResult(record.get(this.schema.getKeyColumn()), r);
-        }).collect(Collectors.toList());
+            ret = ret == null ? comparator : ret.thenComparing(comparator);
+        }
+        var keyColumn = this.schema.getKeyColumn();
+        Comparator<Map<String, Object>> keyComparator =
+                (a, b) -> RecordStore.compareKey(a.get(keyColumn), b.get(keyColumn));
+        return ret == null ? keyComparator : ret.thenComparing(keyComparator);
     }
 
+    @Override
+    public AggregateResult aggregate(List<String> groupBy, List<AggregateDesc> aggregates, TableQueryFilter filter) {
+        this.checkFenced();
+        return this.read(() -> {
+            if (this.schema == null) {
+                return new AggregateResult(Collections.emptyMap(), Collections.emptyList());
+            }
+            var aggregator = new Aggregator(this.schema, groupBy, aggregates);
+            this.doQuery(null, filter, 0, -1, null, aggregator);
+            return new AggregateResult(aggregator.getColumnTypes(), aggregator.getResults());
+        });
+    }
 
     @Override
     public List<RecordResult> scan(
@@ -352,220 +1088,198 @@ public class MemoryTableImpl implements MemoryTable {
             boolean endInclusive,
             int limit,
             boolean keepNone) {
-        if (this.schema == null) {
-            return Collections.emptyList();
-        }
-        if (this.recordMap.isEmpty() || limit == 0) {
-            return Collections.emptyList();
-        }
+        return this.read(() -> {
+            if (limit == 0) {
+                return Collections.emptyList();
+            }
+            var records = new ArrayList<RecordResult>();
+            var it = this.scan(columns, start, startInclusive, end, endInclusive, keepNone);
+            while (it.hasNext()) {
+                records.add(it.next());
+                if (records.size() == limit) {
+                    break;
+                }
+            }
+            return records;
+        });
+    }
 
-        var startKey = MemoryTableImpl.this.schema.getKeyColumnType().decode(start);
-        var endKey = MemoryTableImpl.this.schema.getKeyColumnType().decode(end);
-        if (startKey == null) {
-            startKey = MemoryTableImpl.this.recordMap.firstKey();
-            startInclusive = true;
-        }
-        if (endKey == null) {
-            endKey = MemoryTableImpl.this.recordMap.lastKey();
-            endInclusive = true;
+    @Override
+    public Iterator<RecordResult> scan(
+            @NonNull Map<String, String> columns,
+            String start,
+            boolean startInclusive,
+            String end,
+            boolean endInclusive,
+            boolean keepNone) {
+        this.checkFenced();
+        if (this.schema == null || (this.recordStore.isEmpty() && this.pendingVersions.isEmpty())) {
+            return Collections.emptyIterator();
         }
-        //noinspection rawtypes,unchecked
-        if (((Comparable) startKey).compareTo(endKey) > 0) {
-            return Collections.emptyList();
+        var startKey = this.schema.getKeyColumnType().decode(start);
+        var endKey = this.schema.getKeyColumnType().decode(end);
+        if (startKey != null && endKey != null && RecordStore.compareKey(startKey, endKey) > 0) {
+            return Collections.emptyIterator();
         }
         var keyColumn = this.schema.getKeyColumn();
-        var records = new ArrayList<RecordResult>();
-        for (var record : MemoryTableImpl.this.recordMap.subMap(startKey, startInclusive, endKey, endInclusive)
-                .values()) {
-            var values = new HashMap<String, Object>();
-            for (var entry : columns.entrySet()) {
-                var columnName = entry.getKey();
-                var alias = entry.getValue();
-                var value = record.get(columnName);
-                if (keepNone || value != null) {
-                    values.put(alias, value);
-                }
+        var records = this.getRecords(startKey, startInclusive, endKey, endInclusive).iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
             }
-            records.add(new RecordResult(record.get(keyColumn), values));
-            if (records.size() == limit) {
-                break;
+
+            @Override
+            public RecordResult next() {
+                var record = records.next();
+                var values = new HashMap<String, Object>();
+                for (var entry : columns.entrySet()) {
+                    var value = record.get(entry.getKey());
+                    if (keepNone || value != null) {
+                        values.put(entry.getValue(), value);
+                    }
+                }
+                return new RecordResult(record.get(keyColumn), values);
             }
-        }
-        if (records.isEmpty()) {
-            return Collections.emptyList();
-        } else {
-            return records;
-        }
+        };
     }
 
-    private static int sortCompare(ColumnType type1, Object value1, ColumnType type2, Object value2) {
-        if (value1 == null && value2 == null) {
-            return 0;
-        }
-        if (value1 == null) {
-            return -1;
+    /**
+     * Returns records in key order that may match the filter. Indexes are used to skip records if possible.
+     */
+    private Iterable<Map<String, Object>> getCandidates(TableQueryFilter filter, Object afterKey) {
+        if (filter == null || this.indexes.isEmpty()) {
+            return this.getRecords(afterKey, false, null, false);
         }
-        if (value2 == null) {
-            return 1;
+        var keys = this.lookupIndexes(filter);
+        if (keys == null) {
+            return this.getRecords(afterKey, false, null, false);
         }
-        if (!type1.equals(type2)) {
-            throw new IllegalArgumentException(
-                    MessageFormat.format("not same type: {0} and {1}", type1, type2));
-        }
-        if (type1 == ColumnType.STRING) {
-            return ((String) value1).compareTo((String) value2);
-        } else if (type1 == ColumnType.BYTES) {
-            return ((ByteBuffer) value1).compareTo((ByteBuffer) value2);
-        } else if (type1 == ColumnType.BOOL) {
-            return ((Boolean) value1).compareTo((Boolean) value2);
-        } else if (type1.getCategory().equals(ColumnType.INT32.getCategory())) {
-            return Long.compare(((Number) value1).longValue(), ((Number) value2).longValue());
-        } else if (type1.getCategory().equals(ColumnType.FLOAT32.getCategory())) {
-            return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
-        } else {
-            throw new IllegalArgumentException("invalid type " + type1);
+        // indexes only cover the record store, so pending versions are checked by the filter later
+        var candidateKeys = new HashSet<>(keys);
+        candidateKeys.addAll(this.pendingVersions.keySet());
+        var sortedKeys = new ArrayList<>(candidateKeys);
+        if (afterKey != null) {
+            sortedKeys.removeIf(key -> RecordStore.compareKey(key, afterKey) <= 0);
         }
+        sortedKeys.sort(RecordStore::compareKey);
+        return () -> sortedKeys.stream().map(this::getRecord).filter(Objects::nonNull).iterator();
     }
 
-    private boolean match(TableQueryFilter filter, Map<String, Object> record) {
+    /**
+     * Returns keys of records that may match the filter, or null if indexes can not narrow down the records.
+     */
+    private Set<Object> lookupIndexes(TableQueryFilter filter) {
+        var operands = filter.getOperands();
         switch (filter.getOperator()) {
-            case NOT:
-                return !this.match((TableQueryFilter) filter.getOperands().get(0), record);
             case AND:
-                return this.match((TableQueryFilter) filter.getOperands().get(0), record)
-                        && this.match((TableQueryFilter) filter.getOperands().get(1), record);
+                return MemoryTableImpl.intersect(this.lookupIndexes((TableQueryFilter) operands.get(0)),
+                        this.lookupIndexes((TableQueryFilter) operands.get(1)));
             case OR:
-                return this.match((TableQueryFilter) filter.getOperands().get(0), record)
-                        || this.match((TableQueryFilter) filter.getOperands().get(1), record);
+                return MemoryTableImpl.union(this.lookupIndexes((TableQueryFilter) operands.get(0)),
+                        this.lookupIndexes((TableQueryFilter) operands.get(1)));
+            case IN:
+                return this.lookupIndex((TableQueryFilter.Column) operands.get(0),
+                        operands.subList(1, operands.size()));
             case EQUAL:
             case GREATER:
             case GREATER_EQUAL:
             case LESS:
             case LESS_EQUAL:
-                return MemoryTableImpl.filterCompare(
-                        this.getType(filter.getOperands().get(0)),
-                        this.getValue(filter.getOperands().get(0), record),
-                        this.getType(filter.getOperands().get(1)),
-                        this.getValue(filter.getOperands().get(1), record),
-                        filter.getOperator());
+            case PREFIX:
+                if (operands.get(0) instanceof TableQueryFilter.Column
+                        && operands.get(1) instanceof TableQueryFilter.Constant) {
+                    return this.lookupIndex((TableQueryFilter.Column) operands.get(0),
+                            filter.getOperator(),
+                            (TableQueryFilter.Constant) operands.get(1));
+                }
+                if (operands.get(0) instanceof TableQueryFilter.Constant
+                        && operands.get(1) instanceof TableQueryFilter.Column) {
+                    return this.lookupIndex((TableQueryFilter.Column) operands.get(1),
+                            FilterCompiler.reverse(filter.getOperator()),
+                            (TableQueryFilter.Constant) operands.get(0));
+                }
+                return null;
             default:
-                throw new IllegalArgumentException("Unexpected value: " + filter.getOperator());
+                return null;
         }
     }
 
-    private ColumnType getType(Object operand) {
-        if (operand instanceof TableQueryFilter.Column) {
-            var colName = ((TableQueryFilter.Column) operand).getName();
-            var colSchema = this.schema.getColumnSchemaByName(colName);
-            if (colSchema == null) {
-                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
-                        "invalid filter, unknown column " + colName);
-            }
-            return colSchema.getType();
-        } else if (operand instanceof TableQueryFilter.Constant) {
-            var type = ((TableQueryFilter.Constant) operand).getType();
-            if (type == null) {
-                throw new SwProcessException(ErrorType.DATASTORE, "invalid filter, constant type is null");
-            }
-            return type;
-        } else if (operand instanceof TableQueryFilter) {
-            return ColumnType.BOOL;
-        } else {
-            throw new IllegalArgumentException("invalid operand type " + operand.getClass());
+    private Set<Object> lookupIndex(TableQueryFilter.Column column,
+            TableQueryFilter.Operator op,
+            TableQueryFilter.Constant constant) {
+        var index = this.indexes.get(column.getName());
+        // null values are not indexed
+        if (index == null || constant.getValue() == null) {
+            return null;
         }
+        return index.lookup(op, constant.getValue());
     }
 
-    private Object getValue(Object operand, Map<String, Object> record) {
-        if (operand instanceof TableQueryFilter.Column) {
-            return record.get(((TableQueryFilter.Column) operand).getName());
-        } else if (operand instanceof TableQueryFilter.Constant) {
-            return ((TableQueryFilter.Constant) operand).getValue();
-        } else {
-            throw new IllegalArgumentException("invalid operand type " + operand.getClass());
+    private Set<Object> lookupIndex(TableQueryFilter.Column column, List<Object> constants) {
+        var index = this.indexes.get(column.getName());
+        if (index == null) {
+            return null;
         }
+        var ret = new HashSet<>();
+        for (var constant : constants) {
+            var value = ((TableQueryFilter.Constant) constant).getValue();
+            // null values are not indexed
+            if (value == null) {
+                return null;
+            }
+            ret.addAll(index.lookup(TableQueryFilter.Operator.EQUAL, value));
+        }
+        return ret;
     }
 
-    private void checkFilter(TableQueryFilter filter) {
-        switch (filter.getOperator()) {
-            case NOT:
-            case AND:
-            case OR:
-                for (var op : filter.getOperands()) {
-                    this.checkFilter((TableQueryFilter) op);
-                }
-                break;
-            case EQUAL:
-            case LESS:
-            case LESS_EQUAL:
-            case GREATER:
-            case GREATER_EQUAL:
-                this.checkSameType(filter.getOperands());
-                break;
-            default:
-                throw new IllegalArgumentException("Unexpected operator: " + filter.getOperator());
+    private static Set<Object> intersect(Set<Object> keys1, Set<Object> keys2) {
+        if (keys1 == null) {
+            return keys2;
         }
+        if (keys2 == null) {
+            return keys1;
+        }
+        if (keys1.size() > keys2.size()) {
+            return MemoryTableImpl.intersect(keys2, keys1);
+        }
+        var ret = new HashSet<>();
+        for (var key : keys1) {
+            if (keys2.contains(key)) {
+                ret.add(key);
+            }
+        }
+        return ret;
     }
 
-    private void checkSameType(List<Object> operands) {
-        var types = operands.stream()
-                .map(this::getType)
-                .filter(t -> t != ColumnType.UNKNOWN)
-                .collect(Collectors.toList());
-        if (types.isEmpty()) {
-            return;
+    private static Set<Object> union(Set<Object> keys1, Set<Object> keys2) {
+        if (keys1 == null || keys2 == null) {
+            return null;
         }
-        ColumnType type1 = types.get(0);
-        for (var type : types) {
-            if (!type.getCategory().equals(type1.getCategory())) {
-                throw new SwValidationException(SwValidationException.ValidSubject.DATASTORE,
-                        MessageFormat.format("invalid filter, can not compare {0} with {1}", type1, type));
-            }
-        }
-    }
-
-    private static boolean filterCompare(
-            ColumnType type1,
-            Object value1,
-            ColumnType type2,
-            Object value2,
-            TableQueryFilter.Operator op) {
-        if (value1 == null || value2 == null) {
-            return value1 == null && value2 == null && op == TableQueryFilter.Operator.EQUAL;
-        }
-        int result;
-        if (type1.getCategory().equals(type2.getCategory())) {
-            if (type1 == ColumnType.BOOL) {
-                result = ((Boolean) value1).compareTo((Boolean) value2);
-            } else if (type1 == ColumnType.STRING) {
-                result = ((String) value1).compareTo((String) value2);
-            } else if (type1 == ColumnType.BYTES) {
-                result = ((ByteBuffer) value1).compareTo((ByteBuffer) value2);
-            } else if (type1.getCategory().equals(ColumnType.INT32.getCategory())) {
-                result = Long.compare(((Number) value1).longValue(), ((Number) value2).longValue());
-            } else if (type1.getCategory().equals(ColumnType.FLOAT32.getCategory())) {
-                result = Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
-            } else {
-                throw new IllegalArgumentException("invalid type " + type1);
-            }
-        } else if (value1 instanceof Number && value2 instanceof Number) {
-            result = Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+        var ret = new HashSet<>(keys1);
+        ret.addAll(keys2);
+        return ret;
+    }
+
+    static Comparator<Object> getValueComparator(ColumnType type) {
+        Comparator<Object> ret;
+        if (type == ColumnType.STRING) {
+            ret = (a, b) -> ((String) a).compareTo((String) b);
+        } else if (type == ColumnType.BYTES) {
+            ret = (a, b) -> ((ByteBuffer) a).compareTo((ByteBuffer) b);
+        } else if (type == ColumnType.BOOL) {
+            ret = (a, b) -> ((Boolean) a).compareTo((Boolean) b);
+        } else if (type.getCategory().equals(ColumnType.INT32.getCategory())) {
+            ret = (a, b) -> Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        } else if (type.getCategory().equals(ColumnType.FLOAT32.getCategory())) {
+            ret = (a, b) -> Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
         } else {
-            throw new IllegalArgumentException("can not compare " + type1 + " with " + type2);
-        }
-        switch (op) {
-            case EQUAL:
-                return result == 0;
-            case LESS:
-                return result < 0;
-            case LESS_EQUAL:
-                return result <= 0;
-            case GREATER:
-                return result > 0;
-            case GREATER_EQUAL:
-                return result >= 0;
-            default:
-                throw new IllegalArgumentException("Unexpected operator: " + op);
+            // only null values are stored in columns of other types
+            ret = (a, b) -> {
+                throw new IllegalArgumentException("invalid type " + type);
+            };
         }
+        return Comparator.nullsFirst(ret);
     }
 
     private static Map<String, Object> decodeRecord(TableSchema schema, Map<String, String> record) {
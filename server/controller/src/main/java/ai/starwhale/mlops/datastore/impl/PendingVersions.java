@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.impl;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import lombok.AllArgsConstructor;
+
+/**
+ * Versions of records updated while some readers are reading the record store of a table.
+ *
+ * <p>The record store can not be changed while it is being read, so updates are kept here as full record versions
+ * tagged with a revision. A reader sees the versions up to the revision at which it started, and reads the record
+ * store for other keys. Updates are applied to the record store once no reader is left.
+ *
+ * <p>Only one writer may change the versions at a time, while any number of readers may read them concurrently.
+ */
+class PendingVersions {
+
+    @AllArgsConstructor
+    private static class Version {
+
+        private final long revision;
+
+        // null if the record is deleted
+        private final Map<String, Object> record;
+
+        private final Version previous;
+    }
+
+    private final ConcurrentSkipListMap<Object, Version> versions =
+            new ConcurrentSkipListMap<>(RecordStore::compareKey);
+
+    // updates in the order they are made, which are applied to the record store by the writer
+    private final List<Map<String, Object>> updates = new ArrayList<>();
+
+    boolean isEmpty() {
+        return this.versions.isEmpty();
+    }
+
+    int getUpdateCount() {
+        return this.updates.size();
+    }
+
+    NavigableSet<Object> keySet() {
+        return this.versions.keySet();
+    }
+
+    /**
+     * Adds a version of the record with the key.
+     *
+     * @param update   the decoded record as passed to {@link RecordStore#put}, or a map with "-" if it is deleted
+     * @param getStored returns the record of a key in the record store
+     */
+    void add(long revision,
+            Object key,
+            Map<String, Object> update,
+            Function<Object, Map<String, Object>> getStored) {
+        var previous = this.versions.get(key);
+        Map<String, Object> record = null;
+        if (update.get("-") == null) {
+            record = new HashMap<>();
+            Map<String, Object> current = previous == null ? getStored.apply(key) : previous.record;
+            if (current != null) {
+                record.putAll(current);
+            }
+            record.putAll(update);
+        }
+        this.versions.put(key, new Version(revision, record, previous));
+        this.updates.add(update);
+    }
+
+    /**
+     * Removes all versions and returns the updates that should be applied to the record store in order.
+     */
+    List<Map<String, Object>> drain() {
+        var ret = new ArrayList<>(this.updates);
+        this.updates.clear();
+        this.versions.clear();
+        return ret;
+    }
+
+    /**
+     * Returns the record visible at the revision, which may be null if it is deleted or does not exist.
+     */
+    Map<String, Object> get(Object key, long revision, Function<Object, Map<String, Object>> getStored) {
+        var version = PendingVersions.find(this.versions.get(key), revision);
+        if (version == null) {
+            return getStored.apply(key);
+        }
+        return version.record;
+    }
+
+    /**
+     * Merges the records visible at the revision into the sorted records read from the record store within the same
+     * key range.
+     */
+    Iterable<Map<String, Object>> values(Iterable<Map<String, Object>> stored,
+            String keyColumn,
+            long revision,
+            Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        return () -> new AbstractIterator<>() {
+
+            private final PeekingIterator<Map<String, Object>> storedIterator = Iterators.peekingIterator(
+                    stored.iterator());
+
+            private final PeekingIterator<Map.Entry<Object, Version>> versionIterator = Iterators.peekingIterator(
+                    RecordStore.subMap(PendingVersions.this.versions, start, startInclusive, end, endInclusive)
+                            .entrySet()
+                            .iterator());
+
+            @Override
+            protected Map<String, Object> computeNext() {
+                for (; ; ) {
+                    if (!this.versionIterator.hasNext()) {
+                        return this.storedIterator.hasNext() ? this.storedIterator.next() : this.endOfData();
+                    }
+                    var entry = this.versionIterator.peek();
+                    int result = this.storedIterator.hasNext()
+                            ? RecordStore.compareKey(this.storedIterator.peek().get(keyColumn), entry.getKey())
+                            : 1;
+                    if (result < 0) {
+                        return this.storedIterator.next();
+                    }
+                    this.versionIterator.next();
+                    var version = PendingVersions.find(entry.getValue(), revision);
+                    if (result == 0) {
+                        var record = this.storedIterator.next();
+                        if (version == null) {
+                            return record;
+                        }
+                    }
+                    if (version != null && version.record != null) {
+                        return version.record;
+                    }
+                }
+            }
+        };
+    }
+
+    private static Version find(Version version, long revision) {
+        while (version != null && version.revision > revision) {
+            version = version.previous;
+        }
+        return version;
+    }
+}
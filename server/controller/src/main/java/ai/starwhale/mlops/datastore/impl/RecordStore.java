@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.TableSchema;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Keeps the records of a {@link MemoryTableImpl} ordered by key.
+ *
+ * <p>Records are exposed as maps from column names to values. A record returned by the store is only valid until the
+ * next modification of the store.
+ */
+interface RecordStore {
+
+    /**
+     * Called whenever the table schema changes, before any record with new columns is put into the store.
+     */
+    void setSchema(TableSchema schema);
+
+    boolean isEmpty();
+
+    /**
+     * Returns the record with the specified key, or null if there is no such record.
+     */
+    Map<String, Object> get(Object key);
+
+    /**
+     * Inserts the record, or merges it into the existing record with the same key.
+     */
+    void put(Object key, Map<String, Object> record);
+
+    void remove(Object key);
+
+    Iterable<Map<String, Object>> values();
+
+    /**
+     * Returns records with keys in the specified range in key order. A null bound means the range is unbounded on
+     * that side.
+     */
+    Iterable<Map<String, Object>> values(Object start, boolean startInclusive, Object end, boolean endInclusive);
+
+    /**
+     * Returns the approximate heap size in bytes used by records that can be spilled to disk.
+     */
+    default long getMemoryUsage() {
+        return 0;
+    }
+
+    /**
+     * Moves records held in memory to disk. The default implementation keeps everything in memory.
+     */
+    default void spill() {
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static int compareKey(Object key1, Object key2) {
+        return ((Comparable) key1).compareTo(key2);
+    }
+
+    static <V> NavigableMap<Object, V> subMap(NavigableMap<Object, V> map,
+            Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        if (start != null) {
+            map = map.tailMap(start, startInclusive);
+        }
+        if (end != null) {
+            map = map.headMap(end, endInclusive);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnSchema;
+import ai.starwhale.mlops.datastore.TableSchema;
+import ai.starwhale.mlops.datastore.Wal;
+import ai.starwhale.mlops.exception.SwProcessException;
+import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.xerial.snappy.Snappy;
+
+/**
+ * An immutable file holding records sorted by key.
+ *
+ * <p>The file consists of snappy-compressed data blocks, each of which is a sequence of length-delimited
+ * {@link Wal.Record}s, followed by a {@link Wal.SegmentIndex} and a fixed-size footer:
+ * <pre>
+ * | block 0 | block 1 | ... | index | index offset (8 bytes) | index size (4 bytes) | magic (4 bytes) |
+ * </pre>
+ * The index holds the first key of every block, so that a range scan only reads blocks overlapping the range, and a
+ * bloom filter of all keys, which tells whether a key may exist in the segment without reading any block.
+ */
+@Slf4j
+class Segment implements Closeable {
+
+    static final int BLOCK_SIZE = 65536;
+
+    private static final int FOOTER_SIZE = 16;
+
+    private static final int MAGIC = 0x73777300; // "sws\0"
+
+    private static final double BLOOM_FILTER_FPP = 0.01;
+
+    @Getter
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final TableSchema schema;
+
+    private final ColumnSchema keyColumnSchema;
+
+    private final List<Wal.SegmentIndex.Block> blocks;
+
+    private final List<Object> firstKeys = new ArrayList<>();
+
+    private final BloomFilter<byte[]> bloomFilter;
+
+    @Getter
+    private final int recordCount;
+
+    /**
+     * Writes records to a new segment file and opens it.
+     *
+     * @param file                the file to write
+     * @param schema              the table schema. Only the key column is used by the segment.
+     * @param expectedRecordCount the number of records used to size the bloom filter
+     * @param records             the records to write, which must be sorted by key without duplicates
+     * @return the opened segment
+     */
+    static Segment write(File file, TableSchema schema, int expectedRecordCount, Iterator<Wal.Record> records) {
+        var keyColumnIndex = schema.getColumnSchemaByName(schema.getKeyColumn()).getIndex();
+        var index = Wal.SegmentIndex.newBuilder();
+        var bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(),
+                Math.max(expectedRecordCount, 1),
+                BLOOM_FILTER_FPP);
+        try (var channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            var block = new ByteArrayOutputStream();
+            Wal.Column firstKey = null;
+            long offset = 0;
+            int recordCount = 0;
+            while (records.hasNext()) {
+                var record = records.next();
+                var key = Segment.getKeyColumn(record, keyColumnIndex);
+                if (firstKey == null) {
+                    firstKey = key;
+                }
+                bloomFilter.put(key.toByteArray());
+                record.writeDelimitedTo(block);
+                ++recordCount;
+                if (block.size() >= BLOCK_SIZE || !records.hasNext()) {
+                    var compressed = Snappy.compress(block.toByteArray());
+                    Segment.writeFully(channel, ByteBuffer.wrap(compressed));
+                    index.addBlocks(Wal.SegmentIndex.Block.newBuilder()
+                            .setFirstKey(firstKey)
+                            .setOffset(offset)
+                            .setSize(compressed.length));
+                    offset += compressed.length;
+                    block.reset();
+                    firstKey = null;
+                }
+            }
+            var bloomFilterBytes = ByteString.newOutput();
+            bloomFilter.writeTo(bloomFilterBytes);
+            var indexBytes = index.setRecordCount(recordCount)
+                    .setBloomFilter(bloomFilterBytes.toByteString())
+                    .build()
+                    .toByteArray();
+            Segment.writeFully(channel, ByteBuffer.wrap(indexBytes));
+            Segment.writeFully(channel, ByteBuffer.allocate(FOOTER_SIZE)
+                    .putLong(offset)
+                    .putInt(indexBytes.length)
+                    .putInt(MAGIC)
+                    .flip());
+        } catch (IOException e) {
+            log.error("fail to write segment file {}", file, e);
+            throw new SwProcessException(ErrorType.DATASTORE, "fail to write segment file " + file);
+        }
+        return new Segment(file, schema);
+    }
+
+    Segment(File file, TableSchema schema) {
+        this.file = file;
+        this.schema = schema;
+        this.keyColumnSchema = schema.getColumnSchemaByName(schema.getKeyColumn());
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            var footer = this.read(this.channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+            var indexOffset = footer.getLong();
+            var indexSize = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new SwProcessException(ErrorType.DATASTORE, "invalid segment file " + file);
+            }
+            var index = Wal.SegmentIndex.parseFrom(this.read(indexOffset, indexSize));
+            this.blocks = index.getBlocksList();
+            this.recordCount = index.getRecordCount();
+            this.bloomFilter = BloomFilter.readFrom(index.getBloomFilter().newInput(), Funnels.byteArrayFunnel());
+        } catch (IOException e) {
+            log.error("fail to open segment file {}", file, e);
+            throw new SwProcessException(ErrorType.DATASTORE, "fail to open segment file " + file);
+        }
+        for (var block : this.blocks) {
+            this.firstKeys.add(MemoryTableImpl.parseValue(this.keyColumnSchema, block.getFirstKey()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    boolean mightContain(Object key) {
+        return this.bloomFilter.mightContain(
+                MemoryTableImpl.writeColumn(this.schema, this.keyColumnSchema.getName(), key).build().toByteArray());
+    }
+
+    /**
+     * Returns records with keys in the specified range in key order. A null bound means the range is unbounded on
+     * that side.
+     */
+    Iterator<Map.Entry<Object, Wal.Record>> iterator(Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        return new AbstractIterator<>() {
+            private int blockIndex = start == null ? 0 : Segment.this.findBlock(start);
+
+            private Iterator<Wal.Record> current = Collections.emptyIterator();
+
+            @Override
+            protected Map.Entry<Object, Wal.Record> computeNext() {
+                for (; ; ) {
+                    if (!this.current.hasNext()) {
+                        if (this.blockIndex >= Segment.this.blocks.size()) {
+                            return this.endOfData();
+                        }
+                        this.current = Segment.this.readBlock(this.blockIndex++).iterator();
+                        continue;
+                    }
+                    var record = this.current.next();
+                    var key = MemoryTableImpl.parseValue(Segment.this.keyColumnSchema,
+                            Segment.getKeyColumn(record, Segment.this.keyColumnSchema.getIndex()));
+                    if (start != null) {
+                        var result = RecordStore.compareKey(key, start);
+                        if (result < 0 || result == 0 && !startInclusive) {
+                            continue;
+                        }
+                    }
+                    if (end != null) {
+                        var result = RecordStore.compareKey(key, end);
+                        if (result > 0 || result == 0 && !endInclusive) {
+                            return this.endOfData();
+                        }
+                    }
+                    return new SimpleImmutableEntry<>(key, record);
+                }
+            }
+        };
+    }
+
+    private static Wal.Column getKeyColumn(Wal.Record record, int keyColumnIndex) {
+        for (var col : record.getColumnsList()) {
+            if (col.getIndex() == keyColumnIndex) {
+                return col;
+            }
+        }
+        throw new SwProcessException(ErrorType.DATASTORE, "key column not found in record " + record);
+    }
+
+    /**
+     * Returns the index of the last block whose first key is not greater than the key.
+     */
+    private int findBlock(Object key) {
+        int low = 0;
+        int high = this.firstKeys.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            if (RecordStore.compareKey(this.firstKeys.get(mid), key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private List<Wal.Record> readBlock(int index) {
+        var block = this.blocks.get(index);
+        var ret = new ArrayList<Wal.Record>();
+        try {
+            var compressed = this.read(block.getOffset(), block.getSize());
+            var input = new ByteArrayInputStream(Snappy.uncompress(compressed.array()));
+            for (; ; ) {
+                var record = Wal.Record.parseDelimitedFrom(input);
+                if (record == null) {
+                    break;
+                }
+                ret.add(record);
+            }
+        } catch (IOException e) {
+            log.error("fail to read block {} of segment file {}", index, this.file, e);
+            throw new SwProcessException(ErrorType.DATASTORE, "fail to read segment file " + this.file);
+        }
+        return ret;
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        var buf = ByteBuffer.allocate(size);
+        while (buf.hasRemaining()) {
+            if (this.channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        return buf.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
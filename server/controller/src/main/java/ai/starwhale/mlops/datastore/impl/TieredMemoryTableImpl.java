@@ -0,0 +1,33 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.WalManager;
+import java.io.File;
+
+/**
+ * A memory table that can spill its records to sorted segment files, so that it is not limited by the heap size.
+ *
+ * <p>Recently written records stay in memory until {@link #spill()} is called. Queries and scans merge records in
+ * memory with those in segments.
+ */
+public class TieredMemoryTableImpl extends MemoryTableImpl {
+
+    public TieredMemoryTableImpl(String tableName, WalManager walManager, File spillDir) {
+        super(tableName, walManager, new TieredRecordStore(spillDir));
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnSchema;
+import ai.starwhale.mlops.datastore.TableSchema;
+import ai.starwhale.mlops.datastore.Wal;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A record store that keeps recently written records in memory and moves them to immutable segment files on disk when
+ * asked to spill.
+ *
+ * <p>Writes never read segments. The in-memory table and every segment hold partial versions of records, which are
+ * merged from the oldest to the newest tier when records are read. A deletion is kept as a version that hides all
+ * older versions of the record, until all segments are compacted into one.
+ */
+@Slf4j
+class TieredRecordStore implements RecordStore {
+
+    static final int MAX_SEGMENT_COUNT = 8;
+
+    /**
+     * A version of a record in one tier.
+     */
+    @AllArgsConstructor
+    private static class Version {
+
+        // null if the record is deleted
+        private final Map<String, Object> record;
+
+        // true if versions in older tiers should be ignored
+        private final boolean overwrite;
+    }
+
+    private final File dir;
+
+    private TableSchema schema;
+
+    private final Map<Integer, ColumnSchema> indexMap = new HashMap<>();
+
+    private final TreeMap<Object, Version> memoryTable = new TreeMap<>();
+
+    // the estimated size of all versions in memoryTable, changed only by the writer
+    private volatile long memoryUsage;
+
+    // the number of versions in memoryTable that are not deletions
+    private int memoryRecordCount;
+
+    // from the newest to the oldest
+    private final List<Segment> segments = new ArrayList<>();
+
+    // the number of versions in segments that are not deletions
+    private long segmentRecordCount;
+
+    private int nextSegmentId;
+
+    TieredRecordStore(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void setSchema(TableSchema schema) {
+        this.schema = schema;
+        for (var col : schema.getColumnSchemas()) {
+            this.indexMap.put(col.getIndex(), col);
+        }
+    }
+
+    /**
+     * Tells from the version counts without reading segments. The store is not considered empty while some version is
+     * not a deletion, even if all records are hidden by newer deletions.
+     */
+    @Override
+    public boolean isEmpty() {
+        return this.memoryRecordCount == 0 && this.segmentRecordCount == 0;
+    }
+
+    /**
+     * Reads only the segments whose bloom filters may contain the key, and none if the version in memory overwrites
+     * older ones.
+     */
+    @Override
+    public Map<String, Object> get(Object key) {
+        var sources = new ArrayList<Iterator<Map.Entry<Object, Version>>>();
+        var version = this.memoryTable.get(key);
+        if (version != null) {
+            if (version.overwrite) {
+                return version.record;
+            }
+            sources.add(Iterators.singletonIterator(Map.entry(key, version)));
+        }
+        for (var segment : this.segments) {
+            if (segment.mightContain(key)) {
+                sources.add(this.readSegment(segment, key, true, key, true));
+            }
+        }
+        var it = new MergingIterator(sources);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    public void put(Object key, Map<String, Object> record) {
+        var old = this.memoryTable.get(key);
+        if (old == null) {
+            this.memoryTable.put(key, new Version(record, false));
+            this.memoryUsage += TieredRecordStore.estimateSize(record);
+            ++this.memoryRecordCount;
+        } else if (old.record == null) {
+            this.memoryTable.put(key, new Version(record, true));
+            this.memoryUsage += TieredRecordStore.estimateSize(record) - TieredRecordStore.estimateSize(null);
+            ++this.memoryRecordCount;
+        } else {
+            // the merged record replaces the old one, so only its growth is counted
+            var oldSize = TieredRecordStore.estimateSize(old.record);
+            old.record.putAll(record);
+            this.memoryUsage += TieredRecordStore.estimateSize(old.record) - oldSize;
+        }
+    }
+
+    @Override
+    public void remove(Object key) {
+        var old = this.memoryTable.remove(key);
+        if (old != null) {
+            this.memoryUsage -= TieredRecordStore.estimateSize(old.record);
+            if (old.record != null) {
+                --this.memoryRecordCount;
+            }
+        }
+        if (this.segments.stream().anyMatch(segment -> segment.mightContain(key))) {
+            this.memoryTable.put(key, new Version(null, true));
+            this.memoryUsage += TieredRecordStore.estimateSize(null);
+        }
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> values() {
+        return this.values(null, false, null, false);
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> values(Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        return () -> {
+            var sources = new ArrayList<Iterator<Map.Entry<Object, Version>>>();
+            sources.add(RecordStore.subMap(this.memoryTable, start, startInclusive, end, endInclusive)
+                    .entrySet()
+                    .iterator());
+            for (var segment : this.segments) {
+                sources.add(this.readSegment(segment, start, startInclusive, end, endInclusive));
+            }
+            return Iterators.filter(new MergingIterator(sources), Objects::nonNull);
+        };
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return this.memoryUsage;
+    }
+
+    /**
+     * Writes all records in memory to a new segment. Segments are compacted into one if there are too many of them.
+     */
+    @Override
+    public void spill() {
+        if (this.memoryTable.isEmpty()) {
+            return;
+        }
+        this.segments.add(0, this.writeSegment(this.memoryTable.size(),
+                Iterators.transform(this.memoryTable.entrySet().iterator(),
+                        entry -> this.writeVersion(entry.getKey(), entry.getValue()))));
+        this.memoryTable.clear();
+        this.memoryUsage = 0;
+        this.segmentRecordCount += this.memoryRecordCount;
+        this.memoryRecordCount = 0;
+        if (this.segments.size() > MAX_SEGMENT_COUNT) {
+            this.compact();
+        }
+    }
+
+    int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    private void compact() {
+        var sources = new ArrayList<Iterator<Map.Entry<Object, Version>>>();
+        int recordCount = 0;
+        for (var segment : this.segments) {
+            sources.add(this.readSegment(segment, null, false, null, false));
+            recordCount += segment.getRecordCount();
+        }
+        // deletions are dropped as there is no older segment to hide
+        var segment = this.writeSegment(recordCount,
+                Iterators.transform(Iterators.filter(new MergingIterator(sources), Objects::nonNull),
+                        record -> MemoryTableImpl.writeRecord(this.schema, record).build()));
+        for (var old : this.segments) {
+            try {
+                old.close();
+            } catch (IOException e) {
+                log.warn("fail to close segment file {}", old.getFile(), e);
+            }
+            if (!old.getFile().delete()) {
+                log.warn("fail to delete segment file {}", old.getFile());
+            }
+        }
+        this.segments.clear();
+        this.segments.add(segment);
+        this.segmentRecordCount = segment.getRecordCount();
+    }
+
+    private Segment writeSegment(int recordCount, Iterator<Wal.Record> records) {
+        if (!this.dir.exists() && !this.dir.mkdirs()) {
+            log.warn("fail to create directory {}", this.dir);
+        }
+        return Segment.write(new File(this.dir, "segment." + this.nextSegmentId++),
+                this.schema,
+                recordCount,
+                records);
+    }
+
+    private Iterator<Map.Entry<Object, Version>> readSegment(Segment segment,
+            Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        return Iterators.transform(segment.iterator(start, startInclusive, end, endInclusive),
+                entry -> Map.entry(entry.getKey(), this.readVersion(entry.getValue())));
+    }
+
+    /**
+     * Encodes a version as a record. A version that overwrites older ones has an extra column with index -1, whose
+     * bool value tells whether the record exists.
+     */
+    private Wal.Record writeVersion(Object key, Version version) {
+        Wal.Record.Builder ret;
+        if (version.record == null) {
+            ret = MemoryTableImpl.writeRecord(this.schema, Map.of(this.schema.getKeyColumn(), key));
+        } else {
+            ret = MemoryTableImpl.writeRecord(this.schema, version.record);
+        }
+        if (version.overwrite) {
+            ret.addColumns(Wal.Column.newBuilder().setIndex(-1).setBoolValue(version.record != null));
+        }
+        return ret.build();
+    }
+
+    private Version readVersion(Wal.Record record) {
+        var overwrite = false;
+        var exists = true;
+        for (var col : record.getColumnsList()) {
+            if (col.getIndex() == -1) {
+                overwrite = true;
+                exists = col.getBoolValue();
+            }
+        }
+        if (!exists) {
+            return new Version(null, true);
+        }
+        var ret = MemoryTableImpl.parseRecord(this.indexMap, record);
+        ret.remove("-");
+        return new Version(ret, overwrite);
+    }
+
+    private static long estimateSize(Map<String, Object> record) {
+        // a rough estimation of the heap used by a hash map and its boxed values, or by a deletion marker
+        long size = 64;
+        if (record == null) {
+            return size;
+        }
+        for (var value : record.values()) {
+            size += 48;
+            if (value instanceof String) {
+                size += 40 + ((String) value).length();
+            } else if (value instanceof ByteBuffer) {
+                size += 48 + ((ByteBuffer) value).capacity();
+            } else {
+                size += 16;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Merges sorted sources into one sorted sequence of records. Sources are ordered from the newest to the oldest.
+     * Versions of the same key are merged from the oldest to the newest, and null is returned for deleted records.
+     */
+    private static class MergingIterator extends AbstractIterator<Map<String, Object>> {
+
+        @AllArgsConstructor
+        private static class Head {
+
+            private final int sourceIndex;
+            private final Map.Entry<Object, Version> entry;
+        }
+
+        private final List<Iterator<Map.Entry<Object, Version>>> sources;
+
+        private final PriorityQueue<Head> queue = new PriorityQueue<>((a, b) -> {
+            var result = RecordStore.compareKey(a.entry.getKey(), b.entry.getKey());
+            if (result != 0) {
+                return result;
+            }
+            return Integer.compare(a.sourceIndex, b.sourceIndex);
+        });
+
+        private final List<Version> versions = new ArrayList<>();
+
+        MergingIterator(List<Iterator<Map.Entry<Object, Version>>> sources) {
+            this.sources = sources;
+            for (int i = 0; i < sources.size(); ++i) {
+                this.advance(i);
+            }
+        }
+
+        @Override
+        protected Map<String, Object> computeNext() {
+            var head = this.queue.poll();
+            if (head == null) {
+                return this.endOfData();
+            }
+            this.versions.clear();
+            this.versions.add(head.entry.getValue());
+            this.advance(head.sourceIndex);
+            var overwritten = head.entry.getValue().overwrite;
+            while (!this.queue.isEmpty()
+                    && RecordStore.compareKey(this.queue.peek().entry.getKey(), head.entry.getKey()) == 0) {
+                var next = this.queue.poll();
+                if (!overwritten) {
+                    this.versions.add(next.entry.getValue());
+                    overwritten = next.entry.getValue().overwrite;
+                }
+                this.advance(next.sourceIndex);
+            }
+            if (this.versions.size() == 1) {
+                return this.versions.get(0).record;
+            }
+            // only the oldest version may be a deletion, as it hides all older versions
+            Map<String, Object> ret = null;
+            for (int i = this.versions.size() - 1; i >= 0; --i) {
+                var record = this.versions.get(i).record;
+                if (record != null) {
+                    if (ret == null) {
+                        ret = new HashMap<>();
+                    }
+                    ret.putAll(record);
+                }
+            }
+            return ret;
+        }
+
+        private void advance(int sourceIndex) {
+            var source = this.sources.get(sourceIndex);
+            if (source.hasNext()) {
+                this.queue.add(new Head(sourceIndex, source.next()));
+            }
+        }
+    }
+}
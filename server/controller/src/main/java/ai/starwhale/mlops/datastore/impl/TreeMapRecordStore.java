@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.TableSchema;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The default record store, which keeps each record as a map in a tree map.
+ */
+class TreeMapRecordStore implements RecordStore {
+
+    private final TreeMap<Object, Map<String, Object>> recordMap = new TreeMap<>();
+
+    @Override
+    public void setSchema(TableSchema schema) {
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.recordMap.isEmpty();
+    }
+
+    @Override
+    public Map<String, Object> get(Object key) {
+        return this.recordMap.get(key);
+    }
+
+    @Override
+    public void put(Object key, Map<String, Object> record) {
+        var old = this.recordMap.putIfAbsent(key, record);
+        if (old != null) {
+            old.putAll(record);
+        }
+    }
+
+    @Override
+    public void remove(Object key) {
+        this.recordMap.remove(key);
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> values() {
+        return this.recordMap.values();
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> values(Object start,
+            boolean startInclusive,
+            Object end,
+            boolean endInclusive) {
+        return RecordStore.subMap(this.recordMap, start, startInclusive, end, endInclusive).values();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.sharding;
+
+import ai.starwhale.mlops.api.protocol.datastore.ListTablesRequest;
+import ai.starwhale.mlops.api.protocol.datastore.QueryTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RebalanceRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RecordListVo;
+import ai.starwhale.mlops.api.protocol.datastore.ScanTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.TableNameListVo;
+import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import ai.starwhale.mlops.datastore.Wal;
+import java.io.InputStream;
+
+/**
+ * The data store of another node. Requests sent to it are marked as forwarded and served by the node itself, see
+ * {@link DataStoreSharding#route(String, boolean)}.
+ */
+public interface DataStoreShard {
+
+    TableNameListVo listTables(ListTablesRequest request);
+
+    void updateTable(UpdateTableRequest request);
+
+    void updateTable(Wal.WalEntry entry);
+
+    RecordListVo queryTable(QueryTableRequest request);
+
+    /**
+     * Returns the results of queryTableStream as JSON lines. The caller should close the stream.
+     */
+    InputStream queryTableStream(QueryTableRequest request);
+
+    RecordListVo scanTable(ScanTableRequest request);
+
+    void handOff(RebalanceRequest request);
+
+    void commit(RebalanceRequest request);
+
+    void finish(RebalanceRequest request);
+}
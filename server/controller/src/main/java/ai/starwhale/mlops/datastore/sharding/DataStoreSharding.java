@@ -0,0 +1,320 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.sharding;
+
+import ai.starwhale.mlops.api.protocol.datastore.RebalanceRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RecordDesc;
+import ai.starwhale.mlops.api.protocol.datastore.RecordValueDesc;
+import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import ai.starwhale.mlops.configuration.security.JobTokenConfig;
+import ai.starwhale.mlops.datastore.DataStore;
+import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Partitions tables across several controller nodes by their names.
+ *
+ * <p>Every node owns the tables assigned to it by {@link ShardRing} and keeps them in its own WAL, so each node should
+ * be configured with a different WAL prefix in the shared object store. Requests to tables owned by other nodes are
+ * forwarded to the owners.
+ *
+ * <p>Membership changes are applied by {@link #rebalance(List)} in three phases. Every node first hands off the tables
+ * it no longer owns, shipping their snapshots to the WALs of the new owners. Requests to these tables are forwarded to
+ * the new owners from then on. Once all nodes finish, the new membership is committed on every node. Nodes commit one
+ * by one, so a node that has not committed yet may still send requests to the old owner of a table. The old owner
+ * keeps forwarding them to the new owner until all nodes have committed, and only then forgets the moved tables.
+ *
+ * <p>It also forwards updates sent to a read-only follower to its leader, see {@link DataStore#isFollower()}.
+ * Followers can not be combined with sharding.
+ */
+@Slf4j
+@Component
+public class DataStoreSharding {
+
+    public static final String FORWARDED_HEADER = "X-SW-DATASTORE-FORWARDED";
+
+    private final DataStore dataStore;
+
+    private final String self;
+
+    // the leader to forward updates to if this node is a follower, or null
+    private final String leader;
+
+    private final Function<String, DataStoreShard> shardFactory;
+
+    private final ForwardingToken forwardingToken;
+
+    private final Map<String, DataStoreShard> shards = new ConcurrentHashMap<>();
+
+    // the new owners of tables handed off by this node, until the rebalance is committed
+    private final Map<String, String> movedTo = new ConcurrentHashMap<>();
+
+    // null if sharding is disabled
+    private volatile ShardRing ring;
+
+    @Autowired
+    public DataStoreSharding(DataStore dataStore,
+            ObjectMapper objectMapper,
+            JobTokenConfig jobTokenConfig,
+            @Value("${sw.datastore.sharding.nodes}") List<String> nodes,
+            @Value("${sw.datastore.sharding.self}") String self,
+            @Value("${sw.datastore.follower.leader}") String leader,
+            @Value("${sw.datastore.sharding.secret}") String secret,
+            @Value("${sw.controller.apiPrefix}") String apiPrefix) {
+        this(dataStore,
+                nodes,
+                self,
+                leader,
+                secret,
+                node -> new HttpDataStoreShard(node + apiPrefix,
+                        objectMapper,
+                        jobTokenConfig::getToken,
+                        new ForwardingToken(secret)));
+    }
+
+    public DataStoreSharding(DataStore dataStore,
+            List<String> nodes,
+            String self,
+            String leader,
+            String secret,
+            Function<String, DataStoreShard> shardFactory) {
+        this.dataStore = dataStore;
+        this.self = self;
+        this.leader = dataStore.isFollower() && !leader.isBlank() ? leader : null;
+        this.shardFactory = shardFactory;
+        this.forwardingToken = new ForwardingToken(secret);
+        nodes = nodes.stream().filter(node -> !node.isBlank()).collect(Collectors.toList());
+        if (!nodes.isEmpty()) {
+            if (dataStore.isFollower()) {
+                throw new IllegalArgumentException("a data store follower can not be a sharding node");
+            }
+            if (!nodes.contains(self)) {
+                throw new IllegalArgumentException("sharding nodes " + nodes + " should contain self " + self);
+            }
+            this.ring = new ShardRing(nodes);
+            log.info("data store sharding enabled. nodes={}, self={}", nodes, self);
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.ring != null;
+    }
+
+    /**
+     * Whether a request is forwarded by another node, given the value of its {@link #FORWARDED_HEADER} header. Only
+     * values signed by {@link ForwardingToken} are accepted, and requests with other values are routed as if they
+     * came from clients.
+     */
+    public boolean isForwarded(String header) {
+        if (header == null) {
+            return false;
+        }
+        if (this.forwardingToken.verify(header)) {
+            return true;
+        }
+        log.warn("ignore invalid {} header {}", FORWARDED_HEADER, header);
+        return false;
+    }
+
+    /**
+     * Returns the shard to forward requests of the table to, or null if the table should be served by this node.
+     *
+     * @param forwarded whether the request is forwarded by another node, in which case it is served by this node
+     *                  unless the table has been handed off
+     */
+    public DataStoreShard route(String tableName, boolean forwarded) {
+        var node = this.movedTo.get(tableName);
+        if (node == null) {
+            var ring = this.ring;
+            if (ring == null || forwarded) {
+                return null;
+            }
+            node = ring.getOwner(tableName);
+        }
+        return node.equals(this.self) ? null : this.getShard(node);
+    }
+
+    /**
+     * Runs a request on the owner of the table. The request is retried on the new owner if the table is handed off
+     * while it is waiting.
+     */
+    public <T> T dispatch(String tableName,
+            boolean forwarded,
+            Function<DataStoreShard, T> remote,
+            Supplier<T> local) {
+        var shard = this.route(tableName, forwarded);
+        if (shard == null) {
+            try {
+                return local.get();
+            } catch (DataStore.TableMovedException e) {
+                shard = this.route(tableName, forwarded);
+                if (shard == null) {
+                    throw e;
+                }
+            }
+        }
+        return remote.apply(shard);
+    }
+
+    /**
+     * Runs an update like {@link #dispatch(String, boolean, Function, Supplier)}, but sends it to the leader if this
+     * node is a follower. A follower without a leader rejects it.
+     */
+    public <T> T dispatchUpdate(String tableName,
+            boolean forwarded,
+            Function<DataStoreShard, T> remote,
+            Supplier<T> local) {
+        if (this.leader != null) {
+            return remote.apply(this.getShard(this.leader));
+        }
+        return this.dispatch(tableName, forwarded, remote, local);
+    }
+
+    /**
+     * Updates a table on its owner, for callers inside the controller. See
+     * {@link DataStore#update(String, TableSchemaDesc, List)}.
+     */
+    public CompletableFuture<Void> update(String tableName,
+            TableSchemaDesc schema,
+            List<Map<String, String>> records) {
+        return this.dispatchUpdate(tableName, false, shard -> {
+            var request = new UpdateTableRequest();
+            request.setTableName(tableName);
+            request.setTableSchemaDesc(schema);
+            request.setRecords(records.stream()
+                    .map(record -> new RecordDesc(record.entrySet().stream()
+                            .map(entry -> new RecordValueDesc(entry.getKey(), entry.getValue()))
+                            .collect(Collectors.toList())))
+                    .collect(Collectors.toList()));
+            // the owner responds after the update is persisted
+            shard.updateTable(request);
+            return CompletableFuture.completedFuture(null);
+        }, () -> this.dataStore.update(tableName, schema, records));
+    }
+
+    /**
+     * Returns the other nodes holding tables, which are the other members and the nodes receiving tables from this
+     * one during a rebalance.
+     */
+    public List<DataStoreShard> getOtherShards() {
+        var nodes = new LinkedHashSet<String>();
+        var ring = this.ring;
+        if (ring != null) {
+            nodes.addAll(ring.getNodes());
+        }
+        nodes.addAll(this.movedTo.values());
+        nodes.remove(this.self);
+        return nodes.stream().map(this::getShard).collect(Collectors.toList());
+    }
+
+    /**
+     * Changes the membership to the nodes, moving tables between them. This can be called on any member.
+     *
+     * <p>If it fails, nothing is committed and tables handed off so far are still served by their new owners through
+     * the old ones. Calling it again with the same nodes finishes the rebalance.
+     */
+    public void rebalance(List<String> nodes) {
+        var ring = this.ring;
+        if (ring == null) {
+            throw new IllegalStateException("sharding is not enabled");
+        }
+        var request = new RebalanceRequest(nodes);
+        var allNodes = new LinkedHashSet<>(ring.getNodes());
+        allNodes.addAll(nodes);
+        for (var node : allNodes) {
+            if (node.equals(this.self)) {
+                this.handOff(nodes);
+            } else {
+                this.getShard(node).handOff(request);
+            }
+        }
+        for (var node : allNodes) {
+            if (node.equals(this.self)) {
+                this.commit(nodes);
+            } else {
+                this.getShard(node).commit(request);
+            }
+        }
+        for (var node : allNodes) {
+            if (node.equals(this.self)) {
+                this.finish(nodes);
+            } else {
+                this.getShard(node).finish(request);
+            }
+        }
+    }
+
+    /**
+     * Hands off local tables that are owned by other nodes under the new membership.
+     */
+    public void handOff(List<String> nodes) {
+        var newRing = new ShardRing(nodes);
+        int count = 0;
+        for (var tableName : this.dataStore.list("")) {
+            var owner = newRing.getOwner(tableName);
+            if (owner.equals(this.self)) {
+                continue;
+            }
+            var shard = this.getShard(owner);
+            this.dataStore.handOff(tableName, shard::updateTable, () -> {
+                // set before the table is dropped, so that no request finds the table missing without a new owner
+                this.movedTo.put(tableName, owner);
+            });
+            ++count;
+        }
+        log.info("{} tables handed off for new nodes {}", count, nodes);
+    }
+
+    /**
+     * Switches to the new membership after all nodes have handed off their tables. Requests to the tables handed off
+     * by this node are still forwarded to their new owners, see {@link #finish(List)}.
+     */
+    public void commit(List<String> nodes) {
+        if (!nodes.contains(this.self)) {
+            log.warn("this node {} is removed from data store nodes {}", this.self, nodes);
+        }
+        this.ring = new ShardRing(nodes);
+        log.info("data store nodes changed to {}", nodes);
+    }
+
+    /**
+     * Forgets the tables handed off by this node after all nodes have committed the new membership, so that no node
+     * sends requests of these tables here any more.
+     */
+    public void finish(List<String> nodes) {
+        this.dataStore.forgetMovedTables();
+        this.movedTo.clear();
+        log.info("data store rebalance to {} finished", nodes);
+    }
+
+    private DataStoreShard getShard(String node) {
+        return this.shards.computeIfAbsent(node, this.shardFactory);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.sharding;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Signs requests forwarded between data store nodes, so that a client can not mark its own requests as forwarded to
+ * bypass routing.
+ *
+ * <p>A token is the current time in milliseconds followed by its HMAC under the secret shared by all nodes. Tokens
+ * expire after {@link #VALIDITY_MILLIS}, which bounds replays and tolerates clock skew between nodes.
+ */
+public class ForwardingToken {
+
+    static final long VALIDITY_MILLIS = 5 * 60 * 1000;
+
+    private final HashFunction hmac;
+
+    public ForwardingToken(String secret) {
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("the secret of forwarded requests should not be empty");
+        }
+        this.hmac = Hashing.hmacSha256(secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String sign() {
+        var timestamp = Long.toString(System.currentTimeMillis());
+        return timestamp + "." + this.hash(timestamp);
+    }
+
+    public boolean verify(String token) {
+        var index = token.indexOf('.');
+        if (index < 0) {
+            return false;
+        }
+        var timestamp = token.substring(0, index);
+        try {
+            if (Math.abs(System.currentTimeMillis() - Long.parseLong(timestamp)) > VALIDITY_MILLIS) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(this.hash(timestamp).getBytes(StandardCharsets.UTF_8),
+                token.substring(index + 1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String hash(String timestamp) {
+        return this.hmac.hashString(timestamp, StandardCharsets.UTF_8).toString();
+    }
+}
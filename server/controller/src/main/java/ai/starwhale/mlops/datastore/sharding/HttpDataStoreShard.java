@@ -0,0 +1,220 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.sharding;
+
+import ai.starwhale.mlops.api.DataStoreApi;
+import ai.starwhale.mlops.api.protocol.ResponseMessage;
+import ai.starwhale.mlops.api.protocol.datastore.ListTablesRequest;
+import ai.starwhale.mlops.api.protocol.datastore.QueryTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RebalanceRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RecordListVo;
+import ai.starwhale.mlops.api.protocol.datastore.ScanTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.TableNameListVo;
+import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import ai.starwhale.mlops.datastore.Wal;
+import ai.starwhale.mlops.exception.SwProcessException;
+import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
+import ai.starwhale.mlops.exception.SwValidationException;
+import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+/**
+ * Sends requests to the data store API of another node.
+ */
+@Slf4j
+public class HttpDataStoreShard implements DataStoreShard {
+
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private static final TypeReference<ResponseMessage<String>> STRING_RESPONSE = new TypeReference<>() {
+    };
+
+    private static final TypeReference<ResponseMessage<RecordListVo>> RECORD_LIST_RESPONSE = new TypeReference<>() {
+    };
+
+    private final String baseUrl;
+
+    private final ObjectMapper objectMapper;
+
+    private final Supplier<String> token;
+
+    private final ForwardingToken forwardingToken;
+
+    /**
+     * Creates a shard.
+     *
+     * @param baseUrl the URL of the node including the API prefix
+     * @param token   the authorization header value of requests, which is the token of the job user as it is signed
+     *                by the JWT secret shared by all nodes
+     * @param forwardingToken signs requests as forwarded ones
+     */
+    public HttpDataStoreShard(String baseUrl,
+            ObjectMapper objectMapper,
+            Supplier<String> token,
+            ForwardingToken forwardingToken) {
+        this.baseUrl = baseUrl;
+        this.objectMapper = objectMapper;
+        this.token = token;
+        this.forwardingToken = forwardingToken;
+    }
+
+    @Override
+    public TableNameListVo listTables(ListTablesRequest request) {
+        return this.post("/datastore/listTables", request, new TypeReference<ResponseMessage<TableNameListVo>>() {
+        });
+    }
+
+    @Override
+    public void updateTable(UpdateTableRequest request) {
+        this.post("/datastore/updateTable", request, STRING_RESPONSE);
+    }
+
+    @Override
+    public void updateTable(Wal.WalEntry entry) {
+        var response = this.send(this.newRequest("/datastore/updateTableBinary")
+                .header(HttpHeaders.CONTENT_TYPE, DataStoreApi.PROTOBUF_MEDIA_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(entry.toByteArray()))
+                .build());
+        this.parse(response, STRING_RESPONSE);
+    }
+
+    @Override
+    public RecordListVo queryTable(QueryTableRequest request) {
+        return this.post("/datastore/queryTable", request, RECORD_LIST_RESPONSE);
+    }
+
+    @Override
+    public InputStream queryTableStream(QueryTableRequest request) {
+        try {
+            var response = HTTP_CLIENT.send(this.newJsonRequest("/datastore/queryTableStream", request),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != HttpStatus.OK.value()) {
+                try (var body = response.body()) {
+                    throw this.toException(response.statusCode(), body.readAllBytes());
+                }
+            }
+            return response.body();
+        } catch (IOException e) {
+            throw this.toException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SwProcessException(ErrorType.NETWORK, "interrupted");
+        }
+    }
+
+    @Override
+    public RecordListVo scanTable(ScanTableRequest request) {
+        return this.post("/datastore/scanTable", request, RECORD_LIST_RESPONSE);
+    }
+
+    @Override
+    public void handOff(RebalanceRequest request) {
+        this.post("/datastore/sharding/handOff", request, STRING_RESPONSE);
+    }
+
+    @Override
+    public void commit(RebalanceRequest request) {
+        this.post("/datastore/sharding/commit", request, STRING_RESPONSE);
+    }
+
+    @Override
+    public void finish(RebalanceRequest request) {
+        this.post("/datastore/sharding/finish", request, STRING_RESPONSE);
+    }
+
+    private <T> T post(String path, Object request, TypeReference<ResponseMessage<T>> responseType) {
+        return this.parse(this.send(this.newJsonRequest(path, request)), responseType);
+    }
+
+    private HttpRequest newJsonRequest(String path, Object request) {
+        try {
+            return this.newRequest(path)
+                    .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(this.objectMapper.writeValueAsBytes(request)))
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new SwProcessException(ErrorType.DATASTORE, "failed to encode request. " + e.getMessage());
+        }
+    }
+
+    private HttpRequest.Builder newRequest(String path) {
+        return HttpRequest.newBuilder(URI.create(this.baseUrl + path))
+                .header(HttpHeaders.AUTHORIZATION, this.token.get())
+                .header(DataStoreSharding.FORWARDED_HEADER, this.forwardingToken.sign());
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest request) {
+        try {
+            var response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != HttpStatus.OK.value()) {
+                throw this.toException(response.statusCode(), response.body());
+            }
+            return response;
+        } catch (IOException e) {
+            throw this.toException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SwProcessException(ErrorType.NETWORK, "interrupted");
+        }
+    }
+
+    private <T> T parse(HttpResponse<byte[]> response, TypeReference<ResponseMessage<T>> responseType) {
+        try {
+            return this.objectMapper.readValue(response.body(), responseType).getData();
+        } catch (IOException e) {
+            throw new SwProcessException(ErrorType.DATASTORE,
+                    "invalid response from " + this.baseUrl + ". " + e.getMessage());
+        }
+    }
+
+    private RuntimeException toException(int statusCode, byte[] body) {
+        String message;
+        try {
+            message = this.objectMapper.readValue(body, STRING_RESPONSE).getMessage();
+        } catch (IOException e) {
+            message = new String(body);
+        }
+        message = "node " + this.baseUrl + " responded " + statusCode + ". " + message;
+        // the owner of the table validates the request, so its validation errors are passed on as they are
+        if (statusCode == HttpStatus.BAD_REQUEST.value()) {
+            return new SwValidationException(ValidSubject.DATASTORE, message);
+        }
+        return new SwProcessException(ErrorType.DATASTORE, message);
+    }
+
+    private RuntimeException toException(IOException e) {
+        log.error("failed to send request to {}", this.baseUrl, e);
+        return new SwProcessException(ErrorType.NETWORK, "failed to send request to " + this.baseUrl);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.sharding;
+
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Assigns tables to nodes by rendezvous hashing, so that a membership change only moves the tables of the nodes
+ * joining or leaving.
+ *
+ * <p>Tables are partitioned by their parent path, i.e. the name up to the last '/', so that tables of the same
+ * evaluation or dataset live on the same node and can be scanned together.
+ */
+public class ShardRing {
+
+    @Getter
+    private final List<String> nodes;
+
+    public ShardRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("nodes should not be empty");
+        }
+        this.nodes = List.copyOf(nodes);
+    }
+
+    public String getOwner(String tableName) {
+        var partitionKey = ShardRing.getPartitionKey(tableName);
+        String owner = null;
+        long maxWeight = Long.MIN_VALUE;
+        for (var node : this.nodes) {
+            var weight = Hashing.murmur3_128().newHasher()
+                    .putString(node, StandardCharsets.UTF_8)
+                    .putString(partitionKey, StandardCharsets.UTF_8)
+                    .hash()
+                    .asLong();
+            if (owner == null || weight > maxWeight) {
+                owner = node;
+                maxWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    static String getPartitionKey(String tableName) {
+        var index = tableName.lastIndexOf('/');
+        return index < 0 ? tableName : tableName.substring(0, index);
+    }
+}
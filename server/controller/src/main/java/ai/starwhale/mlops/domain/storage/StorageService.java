@@ -22,12 +22,11 @@ import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
 import ai.starwhale.mlops.exception.api.StarwhaleApiException;
 import ai.starwhale.mlops.storage.StorageAccessService;
-import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.StorageObjectSummary;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.util.StrUtil;
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Resource;
@@ -50,21 +49,15 @@ public class StorageService {
         }
 
         try {
-            Stream<String> list = storageAccessService.list(storagePath);
-            return list.map(filePath -> {
-                long length = 0L;
-                try {
-                    StorageObjectInfo info = storageAccessService.head(filePath);
-                    length = info.getContentLength();
-                } catch (IOException e) {
-                    log.error("storage head", e);
-                }
+            Stream<StorageObjectSummary> list = storageAccessService.listSummaries(storagePath);
+            return list.map(summary -> {
+                var filePath = summary.getPath();
                 if (StrUtil.startWith(filePath, storagePath)) {
                     filePath = filePath.substring(storagePath.length() + 1);
                 }
                 return StorageFileVo.builder()
                         .name(filePath)
-                        .size(FileUtil.readableFileSize(length))
+                        .size(FileUtil.readableFileSize(summary.getContentLength()))
                         .build();
             }).collect(Collectors.toList());
         } catch (IOException e) {
@@ -81,17 +74,9 @@ public class StorageService {
         }
 
         try {
-            Stream<String> list = storageAccessService.list(storagePath);
-            final AtomicLong length = new AtomicLong(0);
-            list.forEach(filePath -> {
-                try {
-                    StorageObjectInfo info = storageAccessService.head(filePath);
-                    length.addAndGet(info.getContentLength());
-                } catch (IOException e) {
-                    log.error("storage head", e);
-                }
-            });
-            return length.get();
+            return storageAccessService.listSummaries(storagePath)
+                    .mapToLong(StorageObjectSummary::getContentLength)
+                    .sum();
         } catch (IOException e) {
             log.error("list swmp storage", e);
             throw new StarwhaleApiException(new SwProcessException(ErrorType.STORAGE)
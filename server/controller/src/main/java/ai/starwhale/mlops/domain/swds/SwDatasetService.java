@@ -19,6 +19,7 @@ package ai.starwhale.mlops.domain.swds;
 import ai.starwhale.mlops.api.protocol.StorageFileVo;
 import ai.starwhale.mlops.api.protocol.swds.DatasetVersionVo;
 import ai.starwhale.mlops.api.protocol.swds.DatasetVo;
+import ai.starwhale.mlops.api.protocol.swds.LinkDesc;
 import ai.starwhale.mlops.api.protocol.swds.SwDatasetInfoVo;
 import ai.starwhale.mlops.common.IdConvertor;
 import ai.starwhale.mlops.common.LocalDateTimeConvertor;
@@ -54,6 +55,7 @@ import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
 import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
 import ai.starwhale.mlops.exception.api.StarwhaleApiException;
+import ai.starwhale.mlops.storage.AsyncContent;
 import ai.starwhale.mlops.storage.configuration.StorageProperties;
 import ai.starwhale.mlops.storage.fs.FileStorageEnv;
 import cn.hutool.core.util.StrUtil;
@@ -63,8 +65,11 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
@@ -300,8 +305,17 @@ public class SwDatasetService {
         return versionEntity;
     }
 
-    public byte[] dataOf(Long datasetId, String uri, String authName, String offset,
+    public CompletableFuture<byte[]> dataOf(Long datasetId, String uri, String authName, String offset,
             String size) {
         return dsFileGetter.dataOf(datasetId, uri, authName, offset, size);
     }
+
+    public CompletableFuture<AsyncContent> dataOf(Long datasetId, List<LinkDesc> links) {
+        return dsFileGetter.dataOf(datasetId, links);
+    }
+
+    public boolean sendLocalFile(Long datasetId, String uri, String authName, String offset, String size,
+            HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        return dsFileGetter.sendLocalFile(datasetId, uri, authName, offset, size, httpRequest, httpResponse);
+    }
 }
@@ -16,66 +16,82 @@
 
 package ai.starwhale.mlops.domain.swds.index.datastore;
 
-import ai.starwhale.mlops.api.DataStoreController;
-import ai.starwhale.mlops.api.protocol.datastore.RecordDesc;
-import ai.starwhale.mlops.api.protocol.datastore.RecordValueDesc;
-import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
 import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
 import ai.starwhale.mlops.datastore.ColumnType;
 import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.sharding.DataStoreSharding;
 import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import ai.starwhale.mlops.exception.SwValidationException;
+import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.BufferedReader;
+import com.google.common.base.Throwables;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 /**
  * write index to DataStore
+ *
+ * <p>The index is parsed as a stream of JSON objects and sent to the data store in batches of BATCH_SIZE records, so
+ * neither the index nor a single WAL entry grows with the dataset. Columns are added to the schema as they appear.
+ * A column only seen with null values so far takes the type of its first non-null value, and integers are accepted
+ * in float columns. Parsing the next batch overlaps with persisting the previous one.
  */
 @Service
 @Slf4j
 public class IndexWriter {
 
-    final DataStoreController dataStore;
+    static final String KEY_COLUMN = "id";
+
+    // records sent to the data store in one update
+    static final int BATCH_SIZE = 1000;
+
+    final DataStoreSharding dataStoreSharding;
 
     final ObjectMapper objectMapper;
 
-    public IndexWriter(DataStoreController dataStore,
+    public IndexWriter(DataStoreSharding dataStoreSharding,
             ObjectMapper objectMapper) {
-        this.dataStore = dataStore;
+        this.dataStoreSharding = dataStoreSharding;
         this.objectMapper = objectMapper;
     }
 
     public void writeToStore(String tableName, InputStream jsonLine) {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(jsonLine))) {
-            List<RecordDesc> records = new LinkedList<>();
-            String strLine;
-            Map<String, ColumnType> tableSchemaMap = null;
-            while ((strLine = br.readLine()) != null) {
-                if (null == tableSchemaMap) {
-                    tableSchemaMap = inferenceTableSchema(strLine);
+        try (JsonParser parser = objectMapper.getFactory().createParser(jsonLine)) {
+            // column types by names, in the order of appearance
+            Map<String, ColumnType> columnTypes = new LinkedHashMap<>();
+            List<Map<String, String>> batch = new ArrayList<>();
+            CompletableFuture<Void> persisted = CompletableFuture.completedFuture(null);
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new SwValidationException(ValidSubject.SWDS).tip(
+                            "invalid _meta.jsonl, a JSON object is expected at " + parser.getCurrentLocation());
+                }
+                batch.add(readRecord(parser, columnTypes));
+                if (batch.size() >= BATCH_SIZE) {
+                    persisted = flush(tableName, columnTypes, batch, persisted);
+                    batch = new ArrayList<>();
                 }
-                Map<String, Object> indexItem = objectMapper.readValue(strLine, Map.class);
-                records.add(toRecordDesc(indexItem, tableSchemaMap));
             }
-            UpdateTableRequest request = new UpdateTableRequest();
-            request.setTableName(tableName);
-
-            request.setTableSchemaDesc(toSchema(tableSchemaMap));
-            request.setRecords(records);
-            dataStore.updateTable(request);
+            if (!batch.isEmpty()) {
+                persisted = flush(tableName, columnTypes, batch, persisted);
+            }
+            waitFor(persisted);
         } catch (IOException e) {
-            log.error("error while reading _meta.jsonl");
+            log.error("error while reading _meta.jsonl", e);
             throw new SwProcessException(ErrorType.NETWORK).tip("error while reading _meta.jsonl");
         } finally {
             try {
@@ -84,44 +100,88 @@ public class IndexWriter {
                 log.error("error closing inputstream for _meta.jsonl");
             }
         }
+    }
 
+    /**
+     * Sends the batch after the previous one is persisted, so at most one batch is in flight.
+     */
+    private CompletableFuture<Void> flush(String tableName, Map<String, ColumnType> columnTypes,
+            List<Map<String, String>> batch, CompletableFuture<Void> previous) {
+        waitFor(previous);
+        return dataStoreSharding.update(tableName, toSchema(columnTypes), batch);
+    }
 
+    private static void waitFor(CompletableFuture<Void> persisted) {
+        try {
+            persisted.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
     }
 
-    private TableSchemaDesc toSchema(Map<String, ColumnType> tableSchemaMap) {
-        List<ColumnSchemaDesc> columnSchemaDescs = tableSchemaMap.entrySet().stream()
-                .map(entry -> new ColumnSchemaDesc(entry.getKey(), entry.getValue().toString())).collect(
-                        Collectors.toList());
-        return new TableSchemaDesc("id", columnSchemaDescs);
+    private static Map<String, String> readRecord(JsonParser parser, Map<String, ColumnType> columnTypes)
+            throws IOException {
+        Map<String, String> record = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken valueToken = parser.nextToken();
+            if (valueToken == JsonToken.VALUE_NULL) {
+                columnTypes.putIfAbsent(name, ColumnType.UNKNOWN);
+                record.put(name, null);
+                continue;
+            }
+            ColumnType valueType = typeOf(valueToken);
+            if (valueType == null) {
+                throw new SwValidationException(ValidSubject.SWDS).tip(MessageFormat.format(
+                        "unsupported value for column {0} at {1}", name, parser.getCurrentLocation()));
+            }
+            ColumnType type = columnTypes.get(name);
+            if (type == null || type == ColumnType.UNKNOWN) {
+                type = valueType;
+                columnTypes.put(name, type);
+            } else if (type != valueType && !(type == ColumnType.FLOAT64 && valueType == ColumnType.INT64)) {
+                throw new SwValidationException(ValidSubject.SWDS).tip(MessageFormat.format(
+                        "conflicting type for column {0}, expected {1}, actual {2} at {3}",
+                        name, type, valueType, parser.getCurrentLocation()));
+            }
+            record.put(name, encode(parser, type));
+        }
+        return record;
     }
 
-    private RecordDesc toRecordDesc(Map<String, Object> indexItem, Map<String, ColumnType> tableSchemaMap) {
-        List<RecordValueDesc> values =
-                indexItem.entrySet().stream().map(entry -> {
-                    String k = entry.getKey();
-                    Object v = entry.getValue();
-                    return new RecordValueDesc(k, tableSchemaMap.get(k).encode(v, false));
-                }).collect(Collectors.toList());
-        return new RecordDesc(values);
+    private static ColumnType typeOf(JsonToken token) {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+                return ColumnType.INT64;
+            case VALUE_NUMBER_FLOAT:
+                return ColumnType.FLOAT64;
+            case VALUE_STRING:
+                return ColumnType.STRING;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return ColumnType.BOOL;
+            default:
+                return null;
+        }
     }
 
-    private Map<String, ColumnType> inferenceTableSchema(String strLine) throws JsonProcessingException {
-        Map<String, Object> row = objectMapper.readValue(strLine, Map.class);
-        Map<String, ColumnType> ret = new HashMap<>();
-        row.entrySet().forEach(entry -> {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            if (value instanceof Long || value instanceof Integer || value instanceof Byte) {
-                ret.put(key, ColumnType.INT64);
-            } else if (value instanceof String) {
-                ret.put(key, ColumnType.STRING);
-            } else if (value instanceof Float || value instanceof Double) {
-                ret.put(key, ColumnType.FLOAT64);
-            } else {
-                ret.put(key, ColumnType.UNKNOWN);
-            }
-        });
-        return ret;
+    private static String encode(JsonParser parser, ColumnType type) throws IOException {
+        if (type == ColumnType.INT64) {
+            return type.encode(parser.getLongValue(), false);
+        } else if (type == ColumnType.FLOAT64) {
+            return type.encode(parser.getDoubleValue(), false);
+        } else if (type == ColumnType.BOOL) {
+            return type.encode(parser.getBooleanValue(), false);
+        } else {
+            return parser.getText();
+        }
     }
 
+    private static TableSchemaDesc toSchema(Map<String, ColumnType> columnTypes) {
+        List<ColumnSchemaDesc> columnSchemaDescs = columnTypes.entrySet().stream()
+                .map(entry -> new ColumnSchemaDesc(entry.getKey(), entry.getValue().toString()))
+                .collect(Collectors.toList());
+        return new TableSchemaDesc(KEY_COLUMN, columnSchemaDescs);
+    }
 }
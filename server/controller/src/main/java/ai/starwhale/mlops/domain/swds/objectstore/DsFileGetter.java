@@ -16,15 +16,34 @@
 
 package ai.starwhale.mlops.domain.swds.objectstore;
 
+import ai.starwhale.mlops.api.protocol.swds.LinkDesc;
+import ai.starwhale.mlops.common.util.FileResponseUtil;
 import ai.starwhale.mlops.datastore.ColumnType;
 import ai.starwhale.mlops.domain.swds.mapper.SwDatasetVersionMapper;
 import ai.starwhale.mlops.domain.swds.po.SwDatasetVersionEntity;
 import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
+import ai.starwhale.mlops.exception.SwValidationException;
+import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
+import ai.starwhale.mlops.storage.AsyncContent;
+import ai.starwhale.mlops.storage.AsyncStorageAccessService;
 import ai.starwhale.mlops.storage.StorageAccessService;
-import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.util.ChunkPublisher;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -32,6 +51,18 @@ import org.springframework.stereotype.Service;
 @Service
 public class DsFileGetter {
 
+    /**
+     * Links of an object closer than this are read by one request, since reading the gap costs less than another
+     * round-trip.
+     */
+    static final long RANGE_MERGE_GAP = 65536;
+
+    // merged ranges are read into memory, so they are not merged beyond this size
+    static final long MAX_MERGED_RANGE_SIZE = 8388608;
+
+    // the ranges of a batch are held in memory until they are written to the response
+    static final long MAX_BATCH_BYTES = 67108864;
+
     final StorageAccessParser storageAccessParser;
 
     final SwDatasetVersionMapper swDatasetVersionMapper;
@@ -42,30 +73,247 @@ public class DsFileGetter {
         this.swDatasetVersionMapper = swDatasetVersionMapper;
     }
 
-    public byte[] dataOf(Long datasetId, String uri, String authName, String offset,
+    public CompletableFuture<byte[]> dataOf(Long datasetId, String uri, String authName, String offset,
             String size) {
+        AsyncStorageAccessService storageAccessService = AsyncStorageAccessService.of(
+                storageAccessParser.getStorageAccessServiceFromAuth(datasetId, uri, authName));
+        String path = new StorageUri(uri).getPath();
+        // the mapper blocks, so it is not called by the threads completing the storage futures
+        String versionStoragePath = swDatasetVersionMapper.getVersionById(datasetId).getStoragePath();
+        return storageAccessService.headAsync(path)
+                .thenCompose(objectInfo -> {
+                    String p = objectInfo.isExists() ? path : versionStoragePath + "/" + path;
+                    return storageAccessService.getAsync(p,
+                            (long) ColumnType.INT64.decode(offset), (long) ColumnType.INT64.decode(size));
+                })
+                .thenCompose(AsyncContent::toBytes)
+                .exceptionally(e -> {
+                    throw this.storageError(e);
+                });
+    }
+
+    /**
+     * Reads a batch of links. Links are grouped by object, and close ranges of an object are merged into one ranged
+     * read, so each object is checked once and read once per merged range rather than once per link.
+     *
+     * @return the contents of the links in the order of the request, each of which is prefixed by its length as a
+     *     big-endian 64-bit integer. A content is shorter than the requested size if the range passes the end of the
+     *     object. The future completes once the lengths of all contents are known, and the contents are published as
+     *     their ranges arrive.
+     */
+    public CompletableFuture<AsyncContent> dataOf(Long datasetId, List<LinkDesc> links) {
+        var offsets = new long[links.size()];
+        var sizes = new long[links.size()];
+        var ends = new long[links.size()];
+        long totalSize = 0;
+        for (int i = 0; i < links.size(); ++i) {
+            var link = links.get(i);
+            offsets[i] = (long) ColumnType.INT64.decode(link.getOffset());
+            sizes[i] = (long) ColumnType.INT64.decode(link.getSize());
+            if (offsets[i] < 0 || sizes[i] < 0) {
+                throw new SwValidationException(ValidSubject.SWDS).tip("invalid range of link " + link.getUri());
+            }
+            if (sizes[i] > MAX_BATCH_BYTES) {
+                throw new SwValidationException(ValidSubject.SWDS).tip(String.format(
+                        "link %s is too large: %d bytes requested, at most %d bytes allowed",
+                        link.getUri(), sizes[i], MAX_BATCH_BYTES));
+            }
+            try {
+                ends[i] = Math.addExact(offsets[i], sizes[i]);
+                totalSize = Math.addExact(totalSize, sizes[i]);
+            } catch (ArithmeticException e) {
+                throw new SwValidationException(ValidSubject.SWDS).tip("invalid range of link " + link.getUri());
+            }
+        }
+        if (totalSize > MAX_BATCH_BYTES) {
+            throw new SwValidationException(ValidSubject.SWDS).tip(String.format(
+                    "links are too large: %d bytes requested, at most %d bytes allowed", totalSize, MAX_BATCH_BYTES));
+        }
+        var storages = new HashMap<String, AsyncStorageAccessService>();
+        var objects = new LinkedHashMap<String, ObjectLinks>();
+        for (int i = 0; i < links.size(); ++i) {
+            if (sizes[i] == 0) {
+                continue;
+            }
+            var link = links.get(i);
+            var uri = new StorageUri(link.getUri());
+            var storageKey = Arrays.asList(link.getAuthName(), uri.getSchema(), uri.getUsername(), uri.getHost(),
+                    uri.getPort(), uri.getBucket()).toString();
+            var storage = storages.computeIfAbsent(storageKey, k -> AsyncStorageAccessService.of(
+                    storageAccessParser.getStorageAccessServiceFromAuth(datasetId, link.getUri(), link.getAuthName())));
+            objects.computeIfAbsent(storageKey + uri.getPath(), k -> new ObjectLinks(storage, uri.getPath()))
+                    .linkIndexes.add(i);
+        }
+        var lengths = new long[links.size()];
+        @SuppressWarnings("unchecked")
+        CompletableFuture<ByteBuffer>[] contents = new CompletableFuture[links.size()];
+        // the mapper blocks, so it is not called by the threads completing the storage futures
+        String versionStoragePath = swDatasetVersionMapper.getVersionById(datasetId).getStoragePath();
+        return CompletableFuture.allOf(objects.values().stream()
+                        .map(object -> this.read(object, offsets, ends, lengths, contents, versionStoragePath))
+                        .toArray(CompletableFuture[]::new))
+                .thenApply(v -> {
+                    long length = 0;
+                    for (var contentLength : lengths) {
+                        length += Long.BYTES + contentLength;
+                    }
+                    return new AsyncContent(length, new LinkContentPublisher(lengths, contents));
+                })
+                .exceptionally(e -> {
+                    throw this.storageError(e);
+                });
+    }
+
+    /**
+     * Starts the merged ranged reads of an object. The returned future completes once every read has started, when
+     * the lengths of the links are known, while their contents complete as the ranges arrive.
+     */
+    private CompletableFuture<Void> read(ObjectLinks object, long[] offsets, long[] ends, long[] lengths,
+            CompletableFuture<ByteBuffer>[] contents, String versionStoragePath) {
+        return object.storage.headAsync(object.path)
+                .thenApply(info -> info.isExists() ? object.path : versionStoragePath + "/" + object.path)
+                .thenCompose(path -> {
+                    var indexes = object.linkIndexes;
+                    indexes.sort(Comparator.comparingLong(i -> offsets[i]));
+                    var reads = new ArrayList<CompletableFuture<Void>>();
+                    int first = 0;
+                    while (first < indexes.size()) {
+                        long start = offsets[indexes.get(first)];
+                        long end = ends[indexes.get(first)];
+                        int last = first + 1;
+                        for (; last < indexes.size(); ++last) {
+                            int i = indexes.get(last);
+                            long mergedEnd = Math.max(end, ends[i]);
+                            if (offsets[i] - end > RANGE_MERGE_GAP || mergedEnd - start > MAX_MERGED_RANGE_SIZE) {
+                                break;
+                            }
+                            end = mergedEnd;
+                        }
+                        var merged = List.copyOf(indexes.subList(first, last));
+                        reads.add(object.storage.getAsync(path, start, end - start)
+                                .thenAccept(content -> {
+                                    long rangeSize = content.getSize();
+                                    // the whole range is drained even if the batch fails, to release the connection
+                                    var bytes = content.toBytes().thenApply(b -> {
+                                        if (b.length != rangeSize) {
+                                            throw new CompletionException(new IOException(String.format(
+                                                    "%d bytes expected from %s, %d bytes read",
+                                                    rangeSize, path, b.length)));
+                                        }
+                                        return b;
+                                    });
+                                    for (int i : merged) {
+                                        int from = (int) Math.min(offsets[i] - start, rangeSize);
+                                        int length = (int) Math.min(ends[i] - offsets[i], rangeSize - from);
+                                        lengths[i] = length;
+                                        contents[i] = bytes.thenApply(b -> ByteBuffer.wrap(b, from, length));
+                                    }
+                                }));
+                        first = last;
+                    }
+                    return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0]));
+                });
+    }
+
+    private SwProcessException storageError(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        log.error("error while accessing storage ", cause);
+        return new SwProcessException(ErrorType.STORAGE).tip(
+                String.format("error while accessing storage : %s", cause.getMessage()));
+    }
+
+    /**
+     * Sends large ranges of links kept in local files with sendfile, instead of reading them into the heap.
+     *
+     * @return true if the response has been written, false if the link is not in a local file or the range is small
+     *     enough to be read by {@link #dataOf}
+     */
+    public boolean sendLocalFile(Long datasetId, String uri, String authName, String offset, String size,
+            HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        if (offset == null || size == null) {
+            return false;
+        }
+        long rangeSize = (long) ColumnType.INT64.decode(size);
+        if (rangeSize < FileResponseUtil.SENDFILE_MIN_SIZE) {
+            return false;
+        }
         StorageAccessService storageAccessService = storageAccessParser.getStorageAccessServiceFromAuth(
                 datasetId, uri, authName);
         String path = new StorageUri(uri).getPath();
-        StorageObjectInfo objectInfo;
+        File file = storageAccessService.localFile(path);
+        if (file == null) {
+            SwDatasetVersionEntity versionById = swDatasetVersionMapper.getVersionById(datasetId);
+            file = storageAccessService.localFile(versionById.getStoragePath() + "/" + path);
+        }
+        if (file == null) {
+            return false;
+        }
         try {
-            objectInfo = storageAccessService.head(path);
+            FileResponseUtil.sendFile(httpRequest, httpResponse, file, (long) ColumnType.INT64.decode(offset),
+                    rangeSize);
         } catch (IOException e) {
             log.error("error while accessing storage ", e);
             throw new SwProcessException(ErrorType.STORAGE).tip(
                     String.format("error while accessing storage : %s", e.getMessage()));
         }
-        if (!objectInfo.isExists()) {
-            SwDatasetVersionEntity versionById = swDatasetVersionMapper.getVersionById(datasetId);
-            path = versionById.getStoragePath() + "/" + path;
+        return true;
+    }
+
+    @RequiredArgsConstructor
+    private static class ObjectLinks {
+
+        private final AsyncStorageAccessService storage;
+
+        private final String path;
+
+        // indexes of the links in the request
+        private final List<Integer> linkIndexes = new ArrayList<>();
+    }
+
+    /**
+     * Publishes the contents of a batch in the order of the request, each after its length, so a content is written
+     * to the response as soon as it and the ones before it have arrived.
+     */
+    private static class LinkContentPublisher extends ChunkPublisher {
+
+        private final long[] lengths;
+
+        private final CompletableFuture<ByteBuffer>[] contents;
+
+        // the link to publish next
+        private int index;
+
+        // whether the length of the link at the index has been published
+        private boolean lengthPublished;
+
+        LinkContentPublisher(long[] lengths, CompletableFuture<ByteBuffer>[] contents) {
+            this.lengths = lengths;
+            this.contents = contents;
         }
-        try (InputStream inputStream = storageAccessService.get(path,
-                (long) ColumnType.INT64.decode(offset), (long) ColumnType.INT64.decode(size))) {
-            return inputStream.readAllBytes();
-        } catch (IOException ioException) {
-            log.error("error while accessing storage ", ioException);
-            throw new SwProcessException(ErrorType.STORAGE).tip(
-                    String.format("error while accessing storage : %s", ioException.getMessage()));
+
+        @Override
+        protected synchronized void read(BiConsumer<ByteBuffer, Throwable> callback) {
+            if (this.index == this.lengths.length) {
+                CompletableFuture.runAsync(() -> callback.accept(null, null));
+                return;
+            }
+            if (!this.lengthPublished) {
+                var length = ByteBuffer.allocate(Long.BYTES).putLong(0, this.lengths[this.index]);
+                if (this.lengths[this.index] == 0) {
+                    ++this.index;
+                } else {
+                    this.lengthPublished = true;
+                }
+                CompletableFuture.runAsync(() -> callback.accept(length, null));
+                return;
+            }
+            this.contents[this.index++].whenCompleteAsync(callback);
+            this.lengthPublished = false;
+        }
+
+        @Override
+        protected void close() {
+            // the ranges are drained by their own reads
         }
     }
 }
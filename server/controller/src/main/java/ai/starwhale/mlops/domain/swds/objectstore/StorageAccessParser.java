@@ -22,71 +22,208 @@ import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.aliyun.StorageAccessServiceAliyun;
+import ai.starwhale.mlops.storage.configuration.StorageAccessConfig;
 import ai.starwhale.mlops.storage.fs.FileStorageEnv;
+import ai.starwhale.mlops.storage.fs.FileStorageEnv.FileSystemEnvType;
 import ai.starwhale.mlops.storage.s3.S3Config;
 import ai.starwhale.mlops.storage.s3.StorageAccessServiceS3;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+/**
+ * Finds the storage of dataset links from the storage auths of dataset versions.
+ *
+ * <p>Clients of user storages are shared by all datasets with the same storage type, endpoint, bucket and
+ * credentials. At most clientPoolMaxSize clients are kept, and clients unused for clientIdleTimeoutSeconds are
+ * evicted. An evicted client is closed after closeDelaySeconds, since requests that got it before the eviction may
+ * still be reading from it.
+ */
+@Slf4j
 @Component
 public class StorageAccessParser {
 
+    static final String CLIENTS_METRIC = "storage.client.pool.size";
+
+    static final String HITS_METRIC = "storage.client.pool.hits";
+
+    static final String MISSES_METRIC = "storage.client.pool.misses";
+
+    static final String EVICTIONS_METRIC = "storage.client.pool.evictions";
+
+    static final String CLOSING_METRIC = "storage.client.pool.closing";
+
+    // the storage of a dataset version is looked up in the database once for so many links
+    private static final int MAX_CLIENT_KEYS = 10000;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("storage-client-pool-%d")
+                    .setDaemon(true)
+                    .build());
+
     final StorageAccessService defaultStorageAccessService;
 
     final SwDatasetVersionMapper swDatasetVersionMapper;
 
-    ConcurrentHashMap<String, StorageAccessService> storageAccessServicePool = new ConcurrentHashMap<>();
+    private final long closeDelaySeconds;
+
+    // client keys by dataset version, auth name and uri authority, empty for the default storage.
+    // The storage auths of a dataset version never change
+    private final Cache<String, Optional<ClientKey>> clientKeys;
+
+    private final Cache<ClientKey, StorageAccessService> clients;
+
+    // evicted clients which are not closed yet
+    private final AtomicInteger closingClients = new AtomicInteger();
 
     public StorageAccessParser(StorageAccessService defaultStorageAccessService,
                                SwDatasetVersionMapper swDatasetVersionMapper) {
+        this(defaultStorageAccessService, swDatasetVersionMapper, 64, 600, 300);
+    }
+
+    @Autowired
+    public StorageAccessParser(@Qualifier(StorageAccessConfig.CACHED_STORAGE)
+                               StorageAccessService defaultStorageAccessService,
+                               SwDatasetVersionMapper swDatasetVersionMapper,
+                               @Value("${sw.storage.client-pool.max-size:64}") int clientPoolMaxSize,
+                               @Value("${sw.storage.client-pool.idle-timeout-seconds:600}")
+                               long clientIdleTimeoutSeconds,
+                               @Value("${sw.storage.client-pool.close-delay-seconds:300}") long closeDelaySeconds) {
         this.defaultStorageAccessService = defaultStorageAccessService;
         this.swDatasetVersionMapper = swDatasetVersionMapper;
+        this.closeDelaySeconds = closeDelaySeconds;
+        this.clientKeys = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CLIENT_KEYS)
+                .expireAfterAccess(clientIdleTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+        this.clients = CacheBuilder.newBuilder()
+                .maximumSize(clientPoolMaxSize)
+                .expireAfterAccess(clientIdleTimeoutSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .removalListener(this::onRemoval)
+                .build();
+        Gauge.builder(CLIENTS_METRIC, this.clients, Cache::size).register(Metrics.globalRegistry);
+        Gauge.builder(CLOSING_METRIC, this.closingClients, AtomicInteger::get).register(Metrics.globalRegistry);
+        FunctionCounter.builder(HITS_METRIC, this.clients, c -> c.stats().hitCount())
+                .register(Metrics.globalRegistry);
+        FunctionCounter.builder(MISSES_METRIC, this.clients, c -> c.stats().missCount())
+                .register(Metrics.globalRegistry);
+        FunctionCounter.builder(EVICTIONS_METRIC, this.clients, c -> c.stats().evictionCount())
+                .register(Metrics.globalRegistry);
+        // the cache only evicts idle clients when it is accessed
+        SCHEDULER.scheduleWithFixedDelay(this.clients::cleanUp, 1, 1, TimeUnit.MINUTES);
     }
 
     public StorageAccessService getStorageAccessServiceFromAuth(Long datasetId, String uri,
                                                                 String authName) {
-        if (StringUtils.hasText(authName)) {
-            authName = authName.toUpperCase(); // env vars are uppercase always
-        }
-        StorageAccessService cachedStorageAccessService = storageAccessServicePool.get(
-                formatKey(datasetId, authName));
-        if (null != cachedStorageAccessService) {
-            return cachedStorageAccessService;
+        // env vars are uppercase always
+        var name = StringUtils.hasText(authName) ? authName.toUpperCase() : "";
+        var storageUri = new StorageUri(uri);
+        var clientKey = load(this.clientKeys, formatKey(datasetId, name, storageUri),
+                () -> Optional.ofNullable(this.clientKeyOf(datasetId, storageUri, name)));
+        if (clientKey.isEmpty()) {
+            return defaultStorageAccessService;
         }
+        return load(this.clients, clientKey.get(), () -> this.createClient(clientKey.get()));
+    }
+
+    private ClientKey clientKeyOf(Long datasetId, StorageUri storageUri, String authName) {
         SwDatasetVersionEntity swDatasetVersionEntity = swDatasetVersionMapper.getVersionById(
                 datasetId);
         String storageAuthsText = swDatasetVersionEntity.getStorageAuths();
         if (!StringUtils.hasText(storageAuthsText)) {
-            return defaultStorageAccessService;
+            return null;
         }
 
         StorageAuths storageAuths = new StorageAuths(storageAuthsText);
         FileStorageEnv env = storageAuths.getEnv(authName);
         if (null == env) {
-            return defaultStorageAccessService;
+            return null;
         }
 
         switch (env.getEnvType()) {
             case S3:
-                var s3 = new StorageAccessServiceS3(env2S3Config(new StorageUri(uri), env, authName));
-                storageAccessServicePool.putIfAbsent(formatKey(datasetId, authName), s3);
-                return s3;
             case ALIYUN:
-                var aliyun = new StorageAccessServiceAliyun(env2S3Config(new StorageUri(uri), env, authName));
-                storageAccessServicePool.putIfAbsent(formatKey(datasetId, authName), aliyun);
-                return aliyun;
+                return new ClientKey(env.getEnvType(), env2S3Config(storageUri, env, authName));
             default:
                 throw new SwValidationException(ValidSubject.SWDS).tip(
                         "file system not supported yet: " + env.getEnvType());
         }
     }
 
-    String formatKey(Long datasetId, String authName) {
-        return datasetId.toString() + authName;
+    StorageAccessService createClient(ClientKey clientKey) {
+        if (clientKey.getType() == FileSystemEnvType.ALIYUN) {
+            return new StorageAccessServiceAliyun(clientKey.getConfig());
+        }
+        return new StorageAccessServiceS3(clientKey.getConfig());
+    }
+
+    private void onRemoval(RemovalNotification<ClientKey, StorageAccessService> notification) {
+        var client = notification.getValue();
+        this.closingClients.incrementAndGet();
+        SCHEDULER.schedule(() -> {
+            try {
+                client.close();
+            } catch (Throwable e) {
+                log.warn("failed to close storage client", e);
+            } finally {
+                this.closingClients.decrementAndGet();
+            }
+        }, this.closeDelaySeconds, TimeUnit.SECONDS);
+    }
+
+    long getClientCount() {
+        return this.clients.size();
+    }
+
+    private static <K, V> V load(Cache<K, V> cache, K key, Callable<V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    String formatKey(Long datasetId, String authName, StorageUri storageUri) {
+        return String.join("/", datasetId.toString(), authName, storageUri.getSchema(),
+                storageUri.getUsername(), storageUri.getHost(), String.valueOf(storageUri.getPort()),
+                storageUri.getBucket());
     }
 
+    @Getter
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    static class ClientKey {
+
+        private final FileSystemEnvType type;
+
+        private final S3Config config;
+    }
 
     static final String KEY_BUCKET = "USER.S3.%sBUCKET";
     static final String KEY_REGION = "USER.S3.%sREGION";
@@ -18,7 +18,11 @@ package ai.starwhale.mlops.domain.swds.upload;
 
 import static ai.starwhale.mlops.domain.swds.upload.SwdsVersionWithMetaConverter.EMPTY_YAML;
 
+import ai.starwhale.mlops.api.protocol.Code;
 import ai.starwhale.mlops.api.protocol.swds.upload.UploadRequest;
+import ai.starwhale.mlops.common.util.FileResponseUtil;
+import ai.starwhale.mlops.common.util.HttpUtil;
+import ai.starwhale.mlops.common.util.ServletOutputSubscriber;
 import ai.starwhale.mlops.domain.job.bo.Job;
 import ai.starwhale.mlops.domain.job.cache.HotJobHolder;
 import ai.starwhale.mlops.domain.job.status.JobStatus;
@@ -42,9 +46,12 @@ import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
 import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
 import ai.starwhale.mlops.exception.api.StarwhaleApiException;
+import ai.starwhale.mlops.storage.AsyncStorageAccessService;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -52,10 +59,14 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -98,6 +109,12 @@ public class SwdsUploader {
     static final String INDEX_FILE_NAME = "_meta.jsonl";
     static final String AUTH_FILE_NAME = ".auth_env";
 
+    // index uploads beyond this wait in the queue instead of each taking a thread
+    private static final int INDEX_THREADS = 8;
+
+    private static final ExecutorService INDEX_EXECUTOR = Executors.newFixedThreadPool(INDEX_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("swds-index-%d").setDaemon(true).build());
+
     public SwdsUploader(HotSwdsHolder hotSwdsHolder, SwDatasetMapper swdsMapper,
             SwDatasetVersionMapper swdsVersionMapper, StoragePathCoordinator storagePathCoordinator,
             StorageAccessService storageAccessService, UserService userService,
@@ -147,13 +164,11 @@ public class SwdsUploader {
     public void uploadBody(String uploadId, MultipartFile file, String uri) {
         final SwdsVersionWithMeta swDatasetVersionWithMeta = getSwdsVersion(uploadId);
         String filename = file.getOriginalFilename();
+        // the index is parsed and written to the data store while the file is uploaded to the storage
+        CompletableFuture<Void> indexed = INDEX_FILE_NAME.equals(filename)
+                ? CompletableFuture.runAsync(() -> writeIndex(swDatasetVersionWithMeta, file), INDEX_EXECUTOR)
+                : CompletableFuture.completedFuture(null);
         try (InputStream inputStream = file.getInputStream()) {
-            if (INDEX_FILE_NAME.equals(filename)) {
-                try (InputStream anotherInputStream = file.getInputStream()) {
-                    indexWriter.writeToStore(swDatasetVersionWithMeta.getSwDatasetVersionEntity().getIndexTable(),
-                            anotherInputStream);
-                }
-            }
             if (AUTH_FILE_NAME.equals(filename)) {
                 try (InputStream anotherInputStream = file.getInputStream()) {
                     swdsVersionMapper.updateStorageAuths(swDatasetVersionWithMeta.getSwDatasetVersionEntity()
@@ -168,6 +183,24 @@ public class SwdsUploader {
             log.error("read swds failed {}", filename, e);
             throw new StarwhaleApiException(new SwProcessException(ErrorType.NETWORK),
                     HttpStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            try {
+                indexed.join();
+            } catch (CompletionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw e;
+            }
+        }
+    }
+
+    private void writeIndex(SwdsVersionWithMeta swDatasetVersionWithMeta, MultipartFile file) {
+        try (InputStream inputStream = file.getInputStream()) {
+            indexWriter.writeToStore(swDatasetVersionWithMeta.getSwDatasetVersionEntity().getIndexTable(),
+                    inputStream);
+        } catch (IOException e) {
+            log.error("read swds index failed {}", file.getOriginalFilename(), e);
+            throw new StarwhaleApiException(new SwProcessException(ErrorType.NETWORK),
+                    HttpStatus.INTERNAL_SERVER_ERROR);
         }
 
     }
@@ -332,7 +365,12 @@ public class SwdsUploader {
 
     static final String SWDS_MANIFEST = "_manifest.yaml";
 
-    public void pull(String project, String name, String version, String partName, HttpServletResponse httpResponse) {
+    /**
+     * Streams a file of the dataset version in an asynchronous request, so that no thread waits for the storage or
+     * the client while the file is transferred.
+     */
+    public void pull(String project, String name, String version, String partName, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
         Long projectId = projectManager.getProject(project).getId();
         SwDatasetEntity datasetEntity = swdsMapper.findByName(name, projectId);
         if (null == datasetEntity) {
@@ -346,17 +384,40 @@ public class SwdsUploader {
         if (!StringUtils.hasText(partName)) {
             partName = SWDS_MANIFEST;
         }
-        try (InputStream inputStream = storageAccessService.get(
-                datasetVersionEntity.getStoragePath() + "/" + partName.trim());
-                ServletOutputStream outputStream = httpResponse.getOutputStream()) {
-            long length = inputStream.transferTo(outputStream);
-            httpResponse.addHeader("Content-Disposition", "attachment; filename=\"" + fileNameFromUri(partName) + "\"");
-            httpResponse.addHeader("Content-Length", String.valueOf(length));
-            outputStream.flush();
-        } catch (IOException e) {
-            log.error("pull file from storage failed", e);
-            throw new SwProcessException(ErrorType.STORAGE).tip("pull file from storage failed: " + e.getMessage());
+        var fileName = fileNameFromUri(partName);
+        var path = datasetVersionEntity.getStoragePath() + "/" + partName.trim();
+        var localFile = storageAccessService.localFile(path);
+        if (localFile != null) {
+            httpResponse.addHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+            try {
+                FileResponseUtil.sendFile(httpRequest, httpResponse, localFile, 0, -1);
+            } catch (IOException e) {
+                log.error("pull file from storage failed", e);
+                throw new SwProcessException(ErrorType.STORAGE).tip("pull file from storage failed: " + e.getMessage());
+            }
+            return;
         }
+        var asyncContext = httpRequest.startAsync();
+        asyncContext.setTimeout(ServletOutputSubscriber.TIMEOUT_MILLIS);
+        AsyncStorageAccessService.of(storageAccessService)
+                .getAsync(path, null, null)
+                .whenComplete((content, e) -> {
+                    try {
+                        if (e != null) {
+                            log.error("pull file from storage failed", e);
+                            HttpUtil.error(httpResponse, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                    Code.internalServerError, "pull file from storage failed: " + e.getMessage());
+                            asyncContext.complete();
+                            return;
+                        }
+                        httpResponse.addHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+                        httpResponse.addHeader("Content-Length", String.valueOf(content.getSize()));
+                        content.getPublisher().subscribe(new ServletOutputSubscriber(asyncContext));
+                    } catch (IOException ioException) {
+                        log.error("pull file from storage failed", ioException);
+                        asyncContext.complete();
+                    }
+                });
     }
 
     String fileNameFromUri(String uri) {
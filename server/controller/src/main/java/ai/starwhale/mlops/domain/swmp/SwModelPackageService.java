@@ -58,7 +58,9 @@ import ai.starwhale.mlops.exception.SwProcessException.ErrorType;
 import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.exception.SwValidationException.ValidSubject;
 import ai.starwhale.mlops.exception.api.StarwhaleApiException;
+import ai.starwhale.mlops.storage.LengthAbleInputStream;
 import ai.starwhale.mlops.storage.StorageAccessService;
+import ai.starwhale.mlops.storage.configuration.StorageAccessConfig;
 import cn.hutool.core.util.StrUtil;
 import com.github.pagehelper.PageHelper;
 import com.github.pagehelper.PageInfo;
@@ -111,6 +113,10 @@ public class SwModelPackageService {
     @Resource
     private StorageAccessService storageAccessService;
 
+    // model files never change once uploaded
+    @Resource(name = StorageAccessConfig.CACHED_STORAGE)
+    private StorageAccessService cachedStorageAccessService;
+
     @Resource
     private StorageService storageService;
 
@@ -425,12 +431,13 @@ public class SwModelPackageService {
             throw new SwValidationException(ValidSubject.SWMP).tip("swmp version empty folder");
         }
         String filePath = files.get(0);
-        try (InputStream fileInputStream = storageAccessService.get(filePath);
+        try (LengthAbleInputStream fileInputStream = cachedStorageAccessService.get(filePath);
                 ServletOutputStream outputStream = httpResponse.getOutputStream()) {
-            long length = fileInputStream.transferTo(outputStream);
+            // headers must be set before the body is written, which may commit the response
             String fileName = filePath.substring(swModelPackageVersionEntity.getStoragePath().length() + 1);
             httpResponse.addHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-            httpResponse.addHeader("Content-Length", String.valueOf(length));
+            httpResponse.addHeader("Content-Length", String.valueOf(fileInputStream.getSize()));
+            fileInputStream.transferTo(outputStream);
             outputStream.flush();
         } catch (IOException e) {
             log.error("download file from storage failed {}", swModelPackageVersionEntity.getStoragePath(), e);
@@ -18,7 +18,19 @@ package ai.starwhale.mlops.memory;
 
 public interface SwBufferManager {
 
+    /**
+     * Allocates a buffer of the given capacity. Its content is undefined, as the memory may be reused.
+     */
     SwBuffer allocate(int capacity);
 
+    /**
+     * Adds a reference to the buffer, so that it is not reused until it is released once more.
+     */
+    void retain(SwBuffer buffer);
+
+    /**
+     * Removes a reference to the buffer. The buffer and its slices should not be used after the last reference is
+     * removed.
+     */
     void release(SwBuffer buffer);
 }
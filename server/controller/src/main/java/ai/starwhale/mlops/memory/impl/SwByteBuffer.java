@@ -29,7 +29,7 @@ public class SwByteBuffer implements SwBuffer {
         this.buf = ByteBuffer.allocate(capacity);
     }
 
-    private SwByteBuffer(ByteBuffer buf) {
+    protected SwByteBuffer(ByteBuffer buf) {
         this.buf = buf;
     }
 
@@ -132,16 +132,20 @@ public class SwByteBuffer implements SwBuffer {
 
     @Override
     public SwBuffer slice(int offset, int len) {
+        return new SwByteBuffer(this.sliceByteBuffer(offset, len));
+    }
+
+    protected ByteBuffer sliceByteBuffer(int offset, int len) {
         this.buf.position(offset);
         this.buf.limit(offset + len);
-        var buf = new SwByteBuffer(this.buf.slice());
+        var ret = this.buf.slice();
         this.buf.limit(this.buf.capacity());
-        return buf;
+        return ret;
     }
 
     @Override
     public void copyTo(SwBuffer buf) {
-        buf.setBytes(0, this.buf.array(), 0, this.buf.limit());
+        buf.asByteBuffer().put(this.asByteBuffer());
     }
 
     @Override
@@ -18,9 +18,10 @@ package ai.starwhale.mlops.memory.impl;
 
 import ai.starwhale.mlops.memory.SwBuffer;
 import ai.starwhale.mlops.memory.SwBufferManager;
-import org.springframework.stereotype.Component;
 
-@Component
+/**
+ * Allocates heap buffers that are left to the garbage collector.
+ */
 public class SwByteBufferManager implements SwBufferManager {
 
     @Override
@@ -28,6 +29,10 @@ public class SwByteBufferManager implements SwBufferManager {
         return new SwByteBuffer(capacity);
     }
 
+    @Override
+    public void retain(SwBuffer buffer) {
+    }
+
     @Override
     public void release(SwBuffer buffer) {
     }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.memory.impl;
+
+import ai.starwhale.mlops.memory.SwBuffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer allocated by {@link SwPooledBufferManager}. Slices share the memory and the references of the buffer they
+ * are sliced from, and keep it reachable so that it is not reported as leaked while they are in use.
+ */
+class SwPooledBuffer extends SwByteBuffer {
+
+    final SwPooledBufferManager.Allocation allocation;
+
+    private final SwPooledBuffer root;
+
+    SwPooledBuffer(ByteBuffer buf, SwPooledBufferManager.Allocation allocation, SwPooledBuffer root) {
+        super(buf);
+        this.allocation = allocation;
+        this.root = root == null ? this : root;
+    }
+
+    @Override
+    public SwBuffer slice(int offset, int len) {
+        return new SwPooledBuffer(this.sliceByteBuffer(offset, len), this.allocation, this.root);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.memory.impl;
+
+import ai.starwhale.mlops.memory.SwBuffer;
+import ai.starwhale.mlops.memory.SwBufferManager;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Allocates direct buffers from a pool, so that large buffers used by the WAL are reused instead of putting pressure on
+ * the garbage collector.
+ *
+ * <p>Buffers are rounded up to size classes of powers of two. A buffer is returned to the pool when its last
+ * reference is released, and is kept there until another allocation needs it or its memory. The direct memory held by
+ * the pool, used or not, never exceeds maxBytes. Allocations beyond that get heap buffers, which are left to the
+ * garbage collector.
+ *
+ * <p>A buffer that becomes unreachable before being released is reported as leaked. Its allocation stack trace is
+ * logged as well if leakTracing is enabled.
+ */
+@Slf4j
+@Component
+public class SwPooledBufferManager implements SwBufferManager {
+
+    static final String ALLOCATED_BYTES_METRIC = "buffer.pool.allocated.bytes";
+
+    static final String USED_BYTES_METRIC = "buffer.pool.used.bytes";
+
+    static final String LEAKS_METRIC = "buffer.pool.leaks";
+
+    static final String HEAP_ALLOCATIONS_METRIC = "buffer.pool.heap.allocations";
+
+    private static final int MIN_SIZE_CLASS = 4096;
+
+    private static final int MAX_SIZE_CLASS = 1 << 30;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final long maxBytes;
+
+    private final boolean leakTracing;
+
+    // free buffers by their sizes. Sizes without free buffers are removed
+    private final TreeMap<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new TreeMap<>();
+
+    // the direct memory held by the pool, including free buffers
+    private long allocatedBytes;
+
+    private long usedBytes;
+
+    public SwPooledBufferManager(@Value("${sw.memory.bufferPoolMaxBytes}") long maxBytes,
+            @Value("${sw.memory.bufferLeakTracing}") boolean leakTracing) {
+        this.maxBytes = maxBytes;
+        this.leakTracing = leakTracing;
+        Gauge.builder(ALLOCATED_BYTES_METRIC, this, SwPooledBufferManager::getAllocatedBytes)
+                .register(Metrics.globalRegistry);
+        Gauge.builder(USED_BYTES_METRIC, this, SwPooledBufferManager::getUsedBytes)
+                .register(Metrics.globalRegistry);
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    @Override
+    public SwBuffer allocate(int capacity) {
+        var buf = capacity > MAX_SIZE_CLASS ? null : this.allocateDirect(sizeClassOf(capacity));
+        if (buf == null) {
+            Metrics.counter(HEAP_ALLOCATIONS_METRIC).increment();
+            return new SwByteBuffer(capacity);
+        }
+        var allocation = new Allocation(this, buf, this.leakTracing ? new Throwable("allocated here") : null);
+        buf.clear().limit(capacity);
+        var ret = new SwPooledBuffer(buf.slice(), allocation, null);
+        allocation.cleanable = CLEANER.register(ret, allocation);
+        return ret;
+    }
+
+    private static int sizeClassOf(int capacity) {
+        if (capacity <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private synchronized ByteBuffer allocateDirect(int size) {
+        var free = this.freeBuffers.get(size);
+        if (free != null) {
+            if (free.size() == 1) {
+                this.freeBuffers.remove(size);
+            }
+            this.usedBytes += size;
+            return free.pop();
+        }
+        // drop free buffers of other sizes from the largest one to make room
+        while (this.allocatedBytes + size > this.maxBytes && !this.freeBuffers.isEmpty()) {
+            var entry = this.freeBuffers.lastEntry();
+            entry.getValue().pop();
+            this.allocatedBytes -= entry.getKey();
+            if (entry.getValue().isEmpty()) {
+                this.freeBuffers.remove(entry.getKey());
+            }
+        }
+        if (this.allocatedBytes + size > this.maxBytes) {
+            return null;
+        }
+        this.allocatedBytes += size;
+        this.usedBytes += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void retain(SwBuffer buffer) {
+        var allocation = this.getAllocation(buffer);
+        if (allocation != null && allocation.refCount.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+            throw new IllegalStateException("buffer already released");
+        }
+    }
+
+    @Override
+    public void release(SwBuffer buffer) {
+        var allocation = this.getAllocation(buffer);
+        if (allocation == null) {
+            return;
+        }
+        var refCount = allocation.refCount.getAndUpdate(n -> n == 0 ? 0 : n - 1);
+        if (refCount == 0) {
+            throw new IllegalStateException("buffer already released");
+        }
+        if (refCount == 1) {
+            allocation.cleanable.clean();
+            synchronized (this) {
+                var size = allocation.buf.capacity();
+                this.usedBytes -= size;
+                this.freeBuffers.computeIfAbsent(size, k -> new ArrayDeque<>()).push(allocation.buf);
+            }
+        }
+    }
+
+    private Allocation getAllocation(SwBuffer buffer) {
+        if (buffer instanceof SwPooledBuffer) {
+            var allocation = ((SwPooledBuffer) buffer).allocation;
+            if (allocation.manager == this) {
+                return allocation;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void onLeak(Allocation allocation) {
+        var size = allocation.buf.capacity();
+        // the memory is left to the garbage collector, as it is not known whether the buffer is still in use
+        this.usedBytes -= size;
+        this.allocatedBytes -= size;
+        Metrics.counter(LEAKS_METRIC).increment();
+        if (allocation.allocatedAt == null) {
+            log.error("buffer of {} bytes is not released before being garbage collected. "
+                    + "Enable sw.memory.bufferLeakTracing to find where it is allocated", size);
+        } else {
+            log.error("buffer of {} bytes is not released before being garbage collected", size,
+                    allocation.allocatedAt);
+        }
+    }
+
+    /**
+     * The state of an allocated buffer, shared by its slices. It runs as the cleaning action of the buffer, so it
+     * should not reference the buffer, or the buffer would never become unreachable.
+     */
+    static class Allocation implements Runnable {
+
+        private final SwPooledBufferManager manager;
+
+        private final ByteBuffer buf;
+
+        private final Throwable allocatedAt;
+
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        private Cleaner.Cleanable cleanable;
+
+        Allocation(SwPooledBufferManager manager, ByteBuffer buf, Throwable allocatedAt) {
+            this.manager = manager;
+            this.buf = buf;
+            this.allocatedAt = allocatedAt;
+        }
+
+        @Override
+        public void run() {
+            if (this.refCount.get() > 0) {
+                this.manager.onLeak(this);
+            }
+        }
+    }
+}
@@ -19,7 +19,9 @@ package ai.starwhale.mlops.api;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
 
 import ai.starwhale.mlops.api.protocol.datastore.ColumnDesc;
@@ -32,21 +34,30 @@ import ai.starwhale.mlops.api.protocol.datastore.TableDesc;
 import ai.starwhale.mlops.api.protocol.datastore.TableQueryFilterDesc;
 import ai.starwhale.mlops.api.protocol.datastore.TableQueryOperandDesc;
 import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import ai.starwhale.mlops.datastore.AggregateDesc;
 import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
 import ai.starwhale.mlops.datastore.ColumnType;
 import ai.starwhale.mlops.datastore.DataStore;
 import ai.starwhale.mlops.datastore.OrderByDesc;
 import ai.starwhale.mlops.datastore.TableQueryFilter;
 import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.Wal;
 import ai.starwhale.mlops.datastore.WalManager;
+import ai.starwhale.mlops.datastore.sharding.DataStoreSharding;
 import ai.starwhale.mlops.exception.SwValidationException;
 import brave.internal.collect.Lists;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
@@ -61,7 +72,10 @@ public class DataStoreControllerTest {
         this.controller = new DataStoreController();
         var walManager = Mockito.mock(WalManager.class);
         given(walManager.readAll()).willReturn(Collections.emptyIterator());
-        this.controller.setDataStore(new DataStore(walManager));
+        given(walManager.append(any())).willReturn(CompletableFuture.completedFuture(null));
+        var dataStore = new DataStore(walManager, false, 0, "", 2);
+        this.controller.setDataStore(dataStore);
+        this.controller.setSharding(new DataStoreSharding(dataStore, List.of(), "", "", "secret", null));
     }
 
     @Test
@@ -247,6 +261,40 @@ public class DataStoreControllerTest {
                 is(List.of(Map.of("k", "3", "b", "2"))));
     }
 
+    @Test
+    public void testUpdateBinary() throws IOException {
+        var entry = Wal.WalEntry.newBuilder()
+                .setTableName("t1")
+                .setTableSchema(Wal.TableSchema.newBuilder()
+                        .setKeyColumn("k")
+                        .addColumns(Wal.ColumnSchema.newBuilder()
+                                .setColumnName("k").setColumnType("INT32").setColumnIndex(0))
+                        .addColumns(Wal.ColumnSchema.newBuilder()
+                                .setColumnName("a").setColumnType("STRING").setColumnIndex(1)))
+                .addRecords(Wal.Record.newBuilder()
+                        .addColumns(Wal.Column.newBuilder().setIndex(0).setIntValue(1))
+                        .addColumns(Wal.Column.newBuilder().setIndex(1).setStringValue("x")))
+                .build();
+        var resp = this.controller.updateTableBinary(new ByteArrayInputStream(entry.toByteArray()));
+        assertThat("update", resp.getStatusCode().is2xxSuccessful(), is(true));
+        var scanResp = this.controller.scanTable(new ScanTableRequest() {
+            {
+                setTables(List.of(new TableDesc() {
+                    {
+                        setTableName("t1");
+                    }
+                }));
+            }
+        });
+        assertThat("t1",
+                Objects.requireNonNull(scanResp.getBody()).getData().getRecords(),
+                is(List.of(Map.of("k", "1", "a", "x"))));
+
+        assertThrows(SwValidationException.class,
+                () -> this.controller.updateTableBinary(new ByteArrayInputStream(new byte[]{1, 2, 3})),
+                "invalid body");
+    }
+
     @Nested
     public class UpdateTest {
 
@@ -561,6 +609,73 @@ public class DataStoreControllerTest {
                             Map.of("k", "4", "a", "1"))));
         }
 
+        private List<Map<String, Object>> queryStream(QueryTableRequest request) throws IOException {
+            var resp = DataStoreControllerTest.this.controller.queryTableStream(request);
+            assertThat("status", resp.getStatusCode().is2xxSuccessful(), is(true));
+            var outputStream = new ByteArrayOutputStream();
+            Objects.requireNonNull(resp.getBody()).writeTo(outputStream);
+            var objectMapper = new ObjectMapper();
+            var ret = new ArrayList<Map<String, Object>>();
+            for (var line : outputStream.toString(StandardCharsets.UTF_8).split("\n")) {
+                //noinspection unchecked
+                ret.add(objectMapper.readValue(line, Map.class));
+            }
+            return ret;
+        }
+
+        @Test
+        public void testQueryStream() throws IOException {
+            for (var keepNone : List.of(false, true)) {
+                for (var rawResult : List.of(false, true)) {
+                    this.req.setKeepNone(keepNone);
+                    this.req.setRawResult(rawResult);
+                    this.req.setColumns(null);
+                    this.req.setLimit(10);
+                    var expected = Objects.requireNonNull(
+                            DataStoreControllerTest.this.controller.queryTable(this.req).getBody()).getData();
+                    var lines = this.queryStream(this.req);
+                    assertThat("lines", lines.size(), is(expected.getRecords().size() + 2));
+                    assertThat("column types", lines.get(0), is(Map.of("columnTypes", expected.getColumnTypes())));
+                    assertThat("records", lines.subList(1, lines.size() - 1), is(expected.getRecords()));
+                    assertThat("last key", lines.get(lines.size() - 1), is(Map.of("lastKey", expected.getLastKey())));
+                }
+            }
+
+            this.req.setTableName("t2");
+            assertThrows(SwValidationException.class, () -> this.queryStream(this.req));
+            this.req.setIgnoreNonExistingTable(true);
+            var lines = this.queryStream(this.req);
+            assertThat("empty", lines.get(0), is(Map.of("columnTypes", Map.of())));
+            assertThat("empty", lines.get(1), is(Collections.singletonMap("lastKey", null)));
+        }
+
+        @Test
+        public void testAggregate() throws IOException {
+            this.req.setColumns(null);
+            this.req.setOrderBy(null);
+            this.req.setStart(-1);
+            this.req.setLimit(-1);
+            this.req.setGroupBy(List.of("x"));
+            this.req.setAggregates(List.of(new AggregateDesc(AggregateDesc.Function.COUNT, null),
+                    new AggregateDesc(AggregateDesc.Function.SUM, "a")));
+            var resp = DataStoreControllerTest.this.controller.queryTable(this.req);
+            assertThat("aggregate", resp.getStatusCode().is2xxSuccessful(), is(true));
+            var data = Objects.requireNonNull(resp.getBody()).getData();
+            assertThat("aggregate", data.getColumnTypes(),
+                    is(Map.of("x", "INT32", "count(*)", "INT64", "sum(a)", "INT64")));
+            assertThat("aggregate", data.getRecords(), is(List.of(Map.of("count(*)", "3", "sum(a)", "a"))));
+            assertThat("aggregate", data.getLastKey(), nullValue());
+
+            var lines = this.queryStream(this.req);
+            assertThat("stream", lines.get(0), is(Map.of("columnTypes", data.getColumnTypes())));
+            assertThat("stream", lines.get(1), is(data.getRecords().get(0)));
+            assertThat("stream", lines.get(2), is(Collections.singletonMap("lastKey", null)));
+
+            this.req.setOrderBy(List.of(new OrderByDesc("a")));
+            assertThrows(SwValidationException.class,
+                    () -> DataStoreControllerTest.this.controller.queryTable(this.req));
+        }
+
         @Test
         public void testQuery() {
             var resp = DataStoreControllerTest.this.controller.queryTable(this.req);
@@ -970,6 +1085,73 @@ public class DataStoreControllerTest {
                     () -> DataStoreControllerTest.this.controller.queryTable(this.req),
                     "");
         }
+
+        @Test
+        public void testInNotEqualPrefix() {
+            final var column = new TableQueryOperandDesc() {
+                {
+                    setColumnName("a");
+                }
+            };
+            this.req.getFilter().setOperator(TableQueryFilter.Operator.IN.toString());
+            this.req.getFilter().setOperands(List.of(column, new TableQueryOperandDesc() {
+                {
+                    setIntValue(1L);
+                }
+            }, new TableQueryOperandDesc() {
+                {
+                    setIntValue(2L);
+                }
+            }, new TableQueryOperandDesc() {
+                {
+                    setIntValue(5L);
+                }
+            }));
+            var resp = DataStoreControllerTest.this.controller.queryTable(this.req);
+            assertThat(Objects.requireNonNull(resp.getBody()).getData().getRecords(),
+                    is(List.of(Map.of("k", "3", "b", "2"),
+                            Map.of("k", "0", "b", "5"))));
+            assertThat(Objects.requireNonNull(resp.getBody()).getData().getLastKey(), is("[\"5\",\"0\"]"));
+
+            this.req.getFilter().setOperator(TableQueryFilter.Operator.NOT_EQUAL.toString());
+            this.req.getFilter().setOperands(List.of(column, new TableQueryOperandDesc() {
+                {
+                    setIntValue(3L);
+                }
+            }));
+            resp = DataStoreControllerTest.this.controller.queryTable(this.req);
+            assertThat(Objects.requireNonNull(resp.getBody()).getData().getRecords(),
+                    is(List.of(Map.of("k", "3", "b", "2"),
+                            Map.of("k", "1", "b", "4"))));
+
+            this.req.getFilter().setOperator(TableQueryFilter.Operator.IN.toString());
+            this.req.getFilter().setOperands(List.of(column));
+            assertThrows(SwValidationException.class,
+                    () -> DataStoreControllerTest.this.controller.queryTable(this.req),
+                    "");
+            this.req.getFilter().setOperands(List.of(new TableQueryOperandDesc() {
+                {
+                    setIntValue(3L);
+                }
+            }, column));
+            assertThrows(SwValidationException.class,
+                    () -> DataStoreControllerTest.this.controller.queryTable(this.req),
+                    "");
+
+            this.req.getFilter().setOperator(TableQueryFilter.Operator.PREFIX.toString());
+            this.req.getFilter().setOperands(List.of(column, new TableQueryOperandDesc() {
+                {
+                    setStringValue("1");
+                }
+            }));
+            assertThrows(SwValidationException.class,
+                    () -> DataStoreControllerTest.this.controller.queryTable(this.req),
+                    "");
+            this.req.getFilter().setOperands(List.of(column, column));
+            assertThrows(SwValidationException.class,
+                    () -> DataStoreControllerTest.this.controller.queryTable(this.req),
+                    "");
+        }
     }
 
     @Nested
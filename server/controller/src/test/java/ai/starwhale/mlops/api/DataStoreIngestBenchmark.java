@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.api;
+
+import ai.starwhale.mlops.api.protocol.datastore.RecordDesc;
+import ai.starwhale.mlops.api.protocol.datastore.RecordValueDesc;
+import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
+import ai.starwhale.mlops.datastore.DataStore;
+import ai.starwhale.mlops.datastore.ObjectStore;
+import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.Wal;
+import ai.starwhale.mlops.datastore.WalManager;
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the throughput of ingesting records through updateTable, which takes JSON with values encoded as strings,
+ * and updateTableBinary, which takes WAL entries. Each operation parses a request body of one batch, updates the
+ * table and waits until the batch is persisted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class DataStoreIngestBenchmark {
+
+    private static final int BATCH_COUNT = 100;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private File rootDir;
+
+    private DataStore dataStore;
+
+    private DataStoreController controller;
+
+    private final List<byte[]> jsonBodies = new ArrayList<>();
+
+    private final List<byte[]> binaryBodies = new ArrayList<>();
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_datastore_benchmark").toFile();
+        var bufferManager = new SwByteBufferManager();
+        var objectStore = new ObjectStore(bufferManager, new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
+        // no lingering for group commit, as a single client waits for each batch to be persisted
+        this.dataStore = new DataStore(
+                new WalManager(objectStore, bufferManager, 65536, 67108864, "wal/", 0, 3, 1), false, 0, "", 1);
+        this.controller = new DataStoreController();
+        this.controller.setDataStore(this.dataStore);
+        var schema = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("label", "STRING"),
+                        new ColumnSchemaDesc("score", "FLOAT64"),
+                        new ColumnSchemaDesc("correct", "BOOL")));
+        var walSchema = Wal.TableSchema.newBuilder().setKeyColumn("k");
+        for (int i = 0; i < schema.getColumnSchemaList().size(); ++i) {
+            var col = schema.getColumnSchemaList().get(i);
+            walSchema.addColumns(Wal.ColumnSchema.newBuilder()
+                    .setColumnName(col.getName())
+                    .setColumnType(col.getType())
+                    .setColumnIndex(i));
+        }
+        for (int i = 0; i < BATCH_COUNT; ++i) {
+            var records = new ArrayList<RecordDesc>();
+            var entry = Wal.WalEntry.newBuilder()
+                    .setTableName("t")
+                    .setTableSchema(walSchema);
+            for (int j = i * this.batchSize; j < (i + 1) * this.batchSize; ++j) {
+                var score = j / (double) (BATCH_COUNT * this.batchSize);
+                var record = new RecordDesc();
+                record.setValues(new ArrayList<>());
+                for (var e : Map.of("k", Long.toHexString(j),
+                        "label", "label" + j % 100,
+                        "score", Long.toHexString(Double.doubleToLongBits(score)),
+                        "correct", j % 3 == 0 ? "0" : "1").entrySet()) {
+                    var value = new RecordValueDesc();
+                    value.setKey(e.getKey());
+                    value.setValue(e.getValue());
+                    record.getValues().add(value);
+                }
+                records.add(record);
+                entry.addRecords(Wal.Record.newBuilder()
+                        .addColumns(Wal.Column.newBuilder().setIndex(0).setIntValue(j))
+                        .addColumns(Wal.Column.newBuilder().setIndex(1).setStringValue("label" + j % 100))
+                        .addColumns(Wal.Column.newBuilder().setIndex(2).setDoubleValue(score))
+                        .addColumns(Wal.Column.newBuilder().setIndex(3).setBoolValue(j % 3 != 0)));
+            }
+            var request = new UpdateTableRequest();
+            request.setTableName("t");
+            request.setTableSchemaDesc(schema);
+            request.setRecords(records);
+            this.jsonBodies.add(OBJECT_MAPPER.writeValueAsBytes(request));
+            this.binaryBodies.add(entry.build().toByteArray());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.dataStore.terminate();
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public void json() throws IOException {
+        var body = this.jsonBodies.get(this.next++ % BATCH_COUNT);
+        this.controller.updateTable(OBJECT_MAPPER.readValue(body, UpdateTableRequest.class));
+    }
+
+    @Benchmark
+    public void binary() throws IOException {
+        var body = this.binaryBodies.get(this.next++ % BATCH_COUNT);
+        this.controller.updateTableBinary(new ByteArrayInputStream(body));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DataStoreIngestBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.common.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class FileResponseUtilTest {
+
+    @TempDir
+    private File dir;
+
+    private File file;
+
+    private byte[] data;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        this.data = new byte[100000];
+        for (int i = 0; i < this.data.length; ++i) {
+            this.data[i] = (byte) i;
+        }
+        this.file = new File(this.dir, "f");
+        Files.write(this.file.toPath(), this.data);
+    }
+
+    @Test
+    public void testSendfile() throws IOException {
+        var request = new MockHttpServletRequest();
+        request.setAttribute(FileResponseUtil.SENDFILE_SUPPORT_ATTR, true);
+        var response = new MockHttpServletResponse();
+        FileResponseUtil.sendFile(request, response, this.file, 1000, 200000);
+        assertThat(request.getAttribute(FileResponseUtil.SENDFILE_FILENAME_ATTR), is(this.file.getCanonicalPath()));
+        assertThat(request.getAttribute(FileResponseUtil.SENDFILE_START_ATTR), is(1000L));
+        assertThat(request.getAttribute(FileResponseUtil.SENDFILE_END_ATTR), is(100000L));
+        assertThat(response.getContentLengthLong(), is(99000L));
+        assertThat(response.getContentAsByteArray().length, is(0));
+    }
+
+    @Test
+    public void testTransferTo() throws IOException {
+        var request = new MockHttpServletRequest();
+        var response = new MockHttpServletResponse();
+        FileResponseUtil.sendFile(request, response, this.file, 1000, 2000);
+        assertThat(request.getAttribute(FileResponseUtil.SENDFILE_FILENAME_ATTR), nullValue());
+        assertThat(response.getContentLengthLong(), is(2000L));
+        assertThat(response.getContentAsByteArray(), is(Arrays.copyOfRange(this.data, 1000, 3000)));
+
+        response = new MockHttpServletResponse();
+        FileResponseUtil.sendFile(request, response, this.file, 0, -1);
+        assertThat(response.getContentLengthLong(), is(100000L));
+        assertThat(response.getContentAsByteArray(), is(this.data));
+    }
+}
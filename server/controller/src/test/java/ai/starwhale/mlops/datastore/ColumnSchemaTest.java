@@ -28,6 +28,7 @@ public class ColumnSchemaTest {
     @Test
     public void testConstructor() {
         new ColumnSchema(new ColumnSchemaDesc("k", "STRING"), 0);
+        new ColumnSchema(new ColumnSchemaDesc("k", "STRING", "sorted"), 0);
     }
 
     @Test
@@ -45,5 +46,9 @@ public class ColumnSchemaTest {
         assertThrows(SwValidationException.class,
                 () -> new ColumnSchema(new ColumnSchemaDesc("k", "invalid"), 0),
                 "invalid type");
+
+        assertThrows(SwValidationException.class,
+                () -> new ColumnSchema(new ColumnSchemaDesc("k", "STRING", "invalid"), 0),
+                "invalid index type");
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the latency distribution of writers and readers sharing one table.
+ *
+ * <p>Run in the sample time mode, so that JMH reports p99 of each operation in the group.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms8g", "-Xmx8g"})
+public class DataStoreConcurrencyBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int UPDATE_SIZE = 10;
+
+    @Param({"200000"})
+    public int recordCount;
+
+    private File rootDir;
+
+    private DataStore dataStore;
+
+    private TableSchemaDesc schema;
+
+    private DataStoreQueryRequest queryRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_datastore_concurrency_benchmark").toFile();
+        var bufferManager = new SwByteBufferManager();
+        this.dataStore = new DataStore(new WalManager(new ObjectStore(bufferManager,
+                new StorageAccessServiceFile(this.rootDir.getAbsolutePath())),
+                bufferManager,
+                65536,
+                67108864,
+                "wal/",
+                500,
+                3,
+                1), false, 0, "", 1);
+        this.schema = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("label", "STRING"),
+                        new ColumnSchemaDesc("score", "FLOAT64")));
+        for (int i = 0; i < this.recordCount; i += BATCH_SIZE) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int j = i; j < i + BATCH_SIZE && j < this.recordCount; ++j) {
+                records.add(this.createRecord(j));
+            }
+            this.dataStore.update("t", this.schema, records);
+        }
+        this.queryRequest = DataStoreQueryRequest.builder()
+                .tableName("t")
+                .filter(TableQueryFilter.builder()
+                        .operator(TableQueryFilter.Operator.GREATER)
+                        .operands(List.of(new TableQueryFilter.Column("score"),
+                                new TableQueryFilter.Constant(ColumnType.FLOAT64, 0.99)))
+                        .build())
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.dataStore.terminate();
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    private Map<String, String> createRecord(int key) {
+        return Map.of("k", Long.toHexString(key),
+                "label", "label" + key % 100,
+                "score", Long.toHexString(Double.doubleToLongBits(ThreadLocalRandom.current().nextDouble())));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void update() {
+        var records = new ArrayList<Map<String, String>>();
+        var random = ThreadLocalRandom.current();
+        for (int i = 0; i < UPDATE_SIZE; ++i) {
+            records.add(this.createRecord(random.nextInt(this.recordCount)));
+        }
+        this.dataStore.update("t", this.schema, records);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public RecordList query() {
+        return this.dataStore.query(this.queryRequest);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DataStoreConcurrencyBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
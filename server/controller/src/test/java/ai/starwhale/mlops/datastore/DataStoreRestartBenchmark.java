@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore;
+
+import ai.starwhale.mlops.memory.SwBufferManager;
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.memory.impl.SwPooledBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how long it takes to restart a datastore holding millions of records, with and without a checkpoint, and
+ * with different replay parallelism and buffer managers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xms8g", "-Xmx8g"})
+public class DataStoreRestartBenchmark {
+
+    private static final int WAL_FILE_SIZE = 65536;
+
+    private static final int WAL_MAX_FILE_SIZE = 67108864;
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"1000000", "3000000"})
+    public int recordCount;
+
+    @Param({"false", "true"})
+    public boolean checkpoint;
+
+    @Param({"1", "4"})
+    public int replayParallelism;
+
+    @Param({"false", "true"})
+    public boolean bufferPool;
+
+    private File rootDir;
+
+    private SwBufferManager bufferManager;
+
+    private ObjectStore objectStore;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_datastore_benchmark").toFile();
+        this.bufferManager = this.bufferPool
+                ? new SwPooledBufferManager(536870912, false)
+                : new SwByteBufferManager();
+        this.objectStore = new ObjectStore(this.bufferManager,
+                new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
+        var dataStore = this.open();
+        var schema = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("label", "STRING"),
+                        new ColumnSchemaDesc("score", "FLOAT64"),
+                        new ColumnSchemaDesc("correct", "BOOL")));
+        for (int i = 0; i < this.recordCount; i += BATCH_SIZE) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int j = i; j < i + BATCH_SIZE && j < this.recordCount; ++j) {
+                records.add(Map.of("k", Long.toHexString(j),
+                        "label", "label" + j % 100,
+                        "score", Long.toHexString(Double.doubleToLongBits(j / (double) this.recordCount)),
+                        "correct", j % 3 == 0 ? "0" : "1"));
+            }
+            // spread records over several tables, as evaluation results usually do
+            dataStore.update("t" + i / BATCH_SIZE % 10, schema, records);
+        }
+        dataStore.terminate();
+        if (this.checkpoint) {
+            dataStore = this.open();
+            dataStore.checkpoint();
+            dataStore.terminate();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public void restart(Blackhole blackhole) throws IOException {
+        var dataStore = this.open();
+        blackhole.consume(dataStore.list(""));
+        dataStore.terminate();
+    }
+
+    private DataStore open() throws IOException {
+        return new DataStore(new WalManager(this.objectStore,
+                this.bufferManager,
+                WAL_FILE_SIZE,
+                WAL_MAX_FILE_SIZE,
+                "wal/",
+                500,
+                3,
+                this.replayParallelism), false, 0, "", this.replayParallelism);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DataStoreRestartBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
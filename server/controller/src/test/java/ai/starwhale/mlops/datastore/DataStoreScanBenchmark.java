@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures scanning a page of records merged from many tables, like joining the result tables of the tasks of a job.
+ *
+ * <p>Each table is read in chunks of {@link DataStore#SCAN_CHUNK_SIZE} records pulled by the merge on demand, so the
+ * cost should grow with the page size rather than with the number of tables times the page size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class DataStoreScanBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"4", "32"})
+    public int tableCount;
+
+    @Param({"100000"})
+    public int recordCount;
+
+    @Param({"10", "1000"})
+    public int limit;
+
+    private File rootDir;
+
+    private DataStore dataStore;
+
+    private DataStoreScanRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_datastore_scan_benchmark").toFile();
+        var bufferManager = new SwByteBufferManager();
+        var objectStore = new ObjectStore(bufferManager, new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
+        this.dataStore = new DataStore(new WalManager(objectStore, bufferManager, 65536, 67108864, "wal/", 500, 3, 1),
+                false, 0, "", 1);
+        var tables = new ArrayList<DataStoreScanRequest.TableInfo>();
+        for (int t = 0; t < this.tableCount; ++t) {
+            var schema = new TableSchemaDesc("k",
+                    List.of(new ColumnSchemaDesc("k", "INT64"),
+                            new ColumnSchemaDesc("score" + t, "FLOAT64")));
+            for (int i = 0; i < this.recordCount; i += BATCH_SIZE) {
+                var records = new ArrayList<Map<String, String>>();
+                for (int j = i; j < i + BATCH_SIZE && j < this.recordCount; ++j) {
+                    // tables hold different subsets of the keys, as tasks evaluate different parts of a dataset
+                    records.add(Map.of("k", Long.toHexString((long) j * this.tableCount + t % 3),
+                            "score" + t, Long.toHexString(Double.doubleToLongBits(j / (double) this.recordCount))));
+                }
+                this.dataStore.update("t" + t, schema, records);
+            }
+            tables.add(DataStoreScanRequest.TableInfo.builder().tableName("t" + t).build());
+        }
+        this.request = DataStoreScanRequest.builder()
+                .tables(tables)
+                .start(Long.toHexString((long) this.recordCount * this.tableCount / 2))
+                .limit(this.limit)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.dataStore.terminate();
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public RecordList scan() {
+        return this.dataStore.scan(this.request);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DataStoreScanBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -20,23 +20,37 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import ai.starwhale.mlops.datastore.TableQueryFilter.Constant;
+import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
 import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -59,8 +73,8 @@ public class DataStoreTest {
     public void setUp() throws IOException {
         this.bufferManager = new SwByteBufferManager();
         this.objectStore = new ObjectStore(bufferManager, new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
-        this.dataStore = new DataStore(this.walManager);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
     }
 
     @AfterEach
@@ -129,8 +143,8 @@ public class DataStoreTest {
                 is(List.of(Map.of("k", "3", "x", "2"))));
 
         this.dataStore.terminate();
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
-        this.dataStore = new DataStore(this.walManager);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
         assertThat("t1",
                 this.dataStore.scan(DataStoreScanRequest.builder()
                                 .tables(List.of(DataStoreScanRequest.TableInfo.builder()
@@ -151,6 +165,166 @@ public class DataStoreTest {
                 is(List.of(Map.of("k", "3", "x", "2"))));
     }
 
+    @Test
+    public void testUpdateWithWalEntry() throws IOException {
+        this.dataStore.update("t1",
+                new TableSchemaDesc("k",
+                        List.of(new ColumnSchemaDesc("k", "STRING"),
+                                new ColumnSchemaDesc("a", "INT32"))),
+                List.of(Map.of("k", "0", "a", "1")));
+        // the indexes in the entry differ from those of the table
+        var schema = Wal.TableSchema.newBuilder()
+                .addColumns(Wal.ColumnSchema.newBuilder()
+                        .setColumnName("b").setColumnType("FLOAT64").setColumnIndex(0))
+                .addColumns(Wal.ColumnSchema.newBuilder()
+                        .setColumnName("k").setColumnType("STRING").setColumnIndex(1))
+                .addColumns(Wal.ColumnSchema.newBuilder()
+                        .setColumnName("a").setColumnType("INT32").setColumnIndex(2));
+        this.dataStore.update(Wal.WalEntry.newBuilder()
+                .setTableName("t1")
+                .setTableSchema(schema)
+                .addRecords(Wal.Record.newBuilder()
+                        .addColumns(Wal.Column.newBuilder().setIndex(1).setStringValue("1"))
+                        .addColumns(Wal.Column.newBuilder().setIndex(2).setIntValue(2))
+                        .addColumns(Wal.Column.newBuilder().setIndex(0).setDoubleValue(1.5)))
+                .addRecords(Wal.Record.newBuilder()
+                        .addColumns(Wal.Column.newBuilder().setIndex(1).setStringValue("2"))
+                        .addColumns(Wal.Column.newBuilder().setIndex(2).setNullValue(true)))
+                .addRecords(Wal.Record.newBuilder()
+                        .addColumns(Wal.Column.newBuilder().setIndex(1).setStringValue("0"))
+                        .addColumns(Wal.Column.newBuilder().setIndex(-1)))
+                .build()).join();
+        // the indexes in the entry match those of the table
+        this.dataStore.update(Wal.WalEntry.newBuilder()
+                .setTableName("t2")
+                .setTableSchema(Wal.TableSchema.newBuilder()
+                        .setKeyColumn("k")
+                        .addColumns(Wal.ColumnSchema.newBuilder()
+                                .setColumnName("k").setColumnType("INT64").setColumnIndex(0))
+                        .addColumns(Wal.ColumnSchema.newBuilder()
+                                .setColumnName("x").setColumnType("BYTES").setColumnIndex(1)))
+                .addRecords(Wal.Record.newBuilder()
+                        .addColumns(Wal.Column.newBuilder().setIndex(0).setIntValue(3))
+                        .addColumns(Wal.Column.newBuilder()
+                                .setIndex(1)
+                                .setBytesValue(ByteString.copyFromUtf8("x"))))
+                .build()).join();
+        var expectedT1 = List.of(Map.of("k", "1", "a", "2", "b", Long.toHexString(Double.doubleToLongBits(1.5))),
+                Map.of("k", "2"));
+        var expectedT2 = List.of(Map.of("k", "3", "x", Base64.getEncoder().encodeToString("x".getBytes())));
+        for (int i = 0; i < 2; ++i) {
+            assertThat("t1",
+                    this.dataStore.scan(DataStoreScanRequest.builder()
+                                    .tables(List.of(DataStoreScanRequest.TableInfo.builder()
+                                            .tableName("t1")
+                                            .build()))
+                                    .build())
+                            .getRecords(),
+                    is(expectedT1));
+            assertThat("t2",
+                    this.dataStore.scan(DataStoreScanRequest.builder()
+                                    .tables(List.of(DataStoreScanRequest.TableInfo.builder()
+                                            .tableName("t2")
+                                            .build()))
+                                    .build())
+                            .getRecords(),
+                    is(expectedT2));
+            // restart to check the WAL
+            this.dataStore.terminate();
+            this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+            this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
+        }
+
+        var record = Wal.Record.newBuilder()
+                .addColumns(Wal.Column.newBuilder().setIndex(1).setStringValue("5"));
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t3")
+                        .addRecords(record)
+                        .build()),
+                "no schema for a new table");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(Wal.Record.newBuilder()
+                                .addColumns(Wal.Column.newBuilder().setIndex(2).setIntValue(1)))
+                        .build()),
+                "no key");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(record.clone()
+                                .addColumns(Wal.Column.newBuilder().setIndex(3).setIntValue(1)))
+                        .build()),
+                "unknown column index");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(record.clone()
+                                .addColumns(Wal.Column.newBuilder().setIndex(2).setIntValue(1L << 32)))
+                        .build()),
+                "out of range");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(record.clone()
+                                .addColumns(Wal.Column.newBuilder().setIndex(2).setStringValue("1")))
+                        .build()),
+                "string for an INT32 column");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(record.clone()
+                                .addColumns(Wal.Column.newBuilder().setIndex(0).setFloatValue(1.5f)))
+                        .build()),
+                "float for a FLOAT64 column");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(record.clone()
+                                .addColumns(Wal.Column.newBuilder().setIndex(2).setNullValue(true).setIntValue(1)))
+                        .build()),
+                "null with a value");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setEntryType(Wal.WalEntry.Type.DROP)
+                        .setTableName("t1")
+                        .setTableSchema(schema)
+                        .addRecords(record)
+                        .build()),
+                "not an update");
+        assertThat("unchanged after rejected updates",
+                this.dataStore.scan(DataStoreScanRequest.builder()
+                                .tables(List.of(DataStoreScanRequest.TableInfo.builder()
+                                        .tableName("t1")
+                                        .build()))
+                                .build())
+                        .getRecords(),
+                is(expectedT1));
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableName("t1")
+                        .setTableSchema(Wal.TableSchema.newBuilder()
+                                .addColumns(Wal.ColumnSchema.newBuilder()
+                                        .setColumnName("k").setColumnType("STRING").setColumnIndex(0))
+                                .addColumns(Wal.ColumnSchema.newBuilder()
+                                        .setColumnName("a").setColumnType("FLOAT32").setColumnIndex(1)))
+                        .build()),
+                "conflicting type");
+        assertThrows(SwValidationException.class,
+                () -> this.dataStore.update(Wal.WalEntry.newBuilder()
+                        .setTableSchema(schema)
+                        .addRecords(record)
+                        .build()),
+                "no table name");
+    }
+
     @Test
     public void testQuery() {
         this.dataStore.update("t1",
@@ -196,6 +370,35 @@ public class DataStoreTest {
                 recordList.getRecords(),
                 is(List.of(Map.of("k", "2", "a", "3"),
                         Map.of("k", "1", "a", "4"))));
+        assertThat("all columns", recordList.getLastKey(), is("[\"4\",\"1\"]"));
+
+        recordList = this.dataStore.query(DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .filter(TableQueryFilter.builder()
+                        .operator(TableQueryFilter.Operator.GREATER)
+                        .operands(List.of(new TableQueryFilter.Column("a"), new Constant(ColumnType.INT32, 1)))
+                        .build())
+                .orderBy(List.of(new OrderByDesc("a")))
+                .limit(2)
+                .lastKey(recordList.getLastKey())
+                .build());
+        assertThat("last key", recordList.getRecords(), is(List.of(Map.of("k", "0", "a", "5"))));
+        assertThat("last key", recordList.getLastKey(), is("[\"5\",\"0\"]"));
+
+        // the last key holds the values of the last record, so it still works after the record is deleted
+        this.dataStore.update("t1",
+                new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "STRING"))),
+                List.of(Map.of("k", "1", "-", "1")));
+        recordList = this.dataStore.query(DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .orderBy(List.of(new OrderByDesc("a")))
+                .lastKey("[\"4\",\"1\"]")
+                .build());
+        assertThat("deleted last key", recordList.getRecords(), is(List.of(Map.of("k", "0", "a", "5"))));
+        this.dataStore.update("t1",
+                new TableSchemaDesc("k",
+                        List.of(new ColumnSchemaDesc("k", "STRING"), new ColumnSchemaDesc("a", "INT32"))),
+                List.of(Map.of("k", "1", "a", "4")));
 
         this.dataStore.update("t1",
                 new TableSchemaDesc(null,
@@ -250,6 +453,180 @@ public class DataStoreTest {
         assertThat("result of non exist table", recordList.getRecords().isEmpty());
     }
 
+    @Test
+    public void testQueryWithWriter() throws IOException {
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("a", "BOOL"),
+                        new ColumnSchemaDesc("b", "INT8"),
+                        new ColumnSchemaDesc("c", "INT16"),
+                        new ColumnSchemaDesc("d", "INT32"),
+                        new ColumnSchemaDesc("e", "FLOAT32"),
+                        new ColumnSchemaDesc("f", "FLOAT64"),
+                        new ColumnSchemaDesc("g", "STRING"),
+                        new ColumnSchemaDesc("h", "BYTES"),
+                        new ColumnSchemaDesc("i", "UNKNOWN")));
+        var records = new ArrayList<Map<String, String>>();
+        for (int i = -50; i < 50; ++i) {
+            var record = new HashMap<String, String>();
+            record.put("k", Long.toString(i * 0x1234567890L, 16));
+            if (i % 7 != 0) {
+                record.put("a", i % 2 == 0 ? "1" : "0");
+                record.put("b", Integer.toString(i, 16));
+                record.put("c", Integer.toString(i * 100, 16));
+                record.put("d", Integer.toString(i * 1000000, 16));
+                record.put("e", Integer.toString(Float.floatToIntBits(i / 3.0f), 16));
+                record.put("f", Long.toString(Double.doubleToLongBits(i / 7.0), 16));
+                record.put("g", "\"string\"\n" + i);
+                record.put("h", Base64.getEncoder().encodeToString(("bytes" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            records.add(record);
+        }
+        this.dataStore.update("t1", desc, records);
+        for (var req : List.of(DataStoreQueryRequest.builder().tableName("t1").build(),
+                DataStoreQueryRequest.builder().tableName("t1").keepNone(true).rawResult(true).build(),
+                DataStoreQueryRequest.builder()
+                        .tableName("t1")
+                        .columns(Map.of("k", "key", "d", "x", "g", "y"))
+                        .orderBy(List.of(new OrderByDesc("d", true)))
+                        .start(10)
+                        .limit(20)
+                        .build())) {
+            var expected = this.dataStore.query(req);
+            var outputStream = new ByteArrayOutputStream();
+            this.dataStore.query(req, new JsonLinesRecordWriter(outputStream, req.isKeepNone(), req.isRawResult()));
+            var objectMapper = new ObjectMapper();
+            var lines = outputStream.toString(StandardCharsets.UTF_8).split("\n");
+            assertThat(objectMapper.readValue(lines[0], Map.class),
+                    is(Map.of("columnTypes", expected.getColumnTypeStringMap())));
+            var actual = new ArrayList<Map<String, String>>();
+            for (int i = 1; i < lines.length - 1; ++i) {
+                //noinspection unchecked
+                actual.add(objectMapper.readValue(lines[i], Map.class));
+            }
+            assertThat(actual, is(expected.getRecords()));
+            assertThat(objectMapper.readValue(lines[lines.length - 1], Map.class),
+                    is(Map.of("lastKey", expected.getLastKey())));
+        }
+    }
+
+    @Test
+    public void testQueryWithSlowWriter() throws Exception {
+        var desc = new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "INT32")));
+        var records = new ArrayList<Map<String, String>>();
+        int count = 2500;
+        for (int i = 0; i < count; ++i) {
+            records.add(Map.of("k", Integer.toHexString(i)));
+        }
+        this.dataStore.update("t1", desc, records).join();
+        var keys = new ArrayList<Object>();
+        var lastKey = new ArrayList<String>();
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            this.dataStore.query(DataStoreQueryRequest.builder().tableName("t1").limit(-1).build(),
+                    new RecordWriter() {
+                        @Override
+                        public void writeColumnTypes(Map<String, ColumnType> columnTypeMap) {
+                        }
+
+                        @Override
+                        public void writeRecord(Map<String, String> columns, Map<String, Object> record) {
+                            if (keys.size() % 1000 == 1) {
+                                // updates do not wait for the query, which sees none of them
+                                try {
+                                    executor.submit(() -> DataStoreTest.this.dataStore.update("t1", desc,
+                                                    List.of(Map.of("k", Integer.toHexString(count + keys.size())),
+                                                            Map.of("k", Integer.toHexString(count - 1), "-", "1"))))
+                                            .get(10, TimeUnit.SECONDS);
+                                } catch (Exception e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                            keys.add(record.get("k"));
+                        }
+
+                        @Override
+                        public void writeLastKey(String key) {
+                            lastKey.add(key);
+                        }
+                    });
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(keys.size(), is(count));
+        for (int i = 0; i < count; ++i) {
+            assertThat(keys.get(i), is(i));
+        }
+        assertThat(lastKey, is(List.of(Integer.toHexString(count - 1))));
+    }
+
+    @Test
+    public void testAggregate() throws IOException {
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("label", "STRING"),
+                        new ColumnSchemaDesc("score", "FLOAT64")));
+        var records = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < 100; ++i) {
+            var record = new HashMap<String, String>();
+            record.put("k", Integer.toHexString(i));
+            if (i % 10 != 0) {
+                record.put("label", "label" + i % 3);
+            }
+            record.put("score", Long.toHexString(Double.doubleToLongBits(i % 2)));
+            records.add(record);
+        }
+        this.dataStore.update("t1", desc, records);
+        var req = DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .groupBy(List.of("label"))
+                .aggregates(List.of(new AggregateDesc(AggregateDesc.Function.COUNT, null, "n"),
+                        new AggregateDesc(AggregateDesc.Function.AVG, "score")))
+                .start(1)
+                .limit(2)
+                .build();
+        var recordList = this.dataStore.query(req);
+        assertThat(recordList.getColumnTypeStringMap(),
+                is(Map.of("label", "STRING", "n", "INT64", "avg(score)", "FLOAT64")));
+        // both label0 and label1 have 30 records, 17 of which have score 1
+        assertThat(recordList.getRecords(),
+                is(List.of(Map.of("label", "label0", "n", "1e", "avg(score)",
+                                Long.toHexString(Double.doubleToLongBits(17 / 30.0))),
+                        Map.of("label", "label1", "n", "1e", "avg(score)",
+                                Long.toHexString(Double.doubleToLongBits(17 / 30.0))))));
+        assertThat(recordList.getLastKey(), nullValue());
+
+        var outputStream = new ByteArrayOutputStream();
+        this.dataStore.query(req, new JsonLinesRecordWriter(outputStream, false, false));
+        var objectMapper = new ObjectMapper();
+        var lines = outputStream.toString(StandardCharsets.UTF_8).split("\n");
+        assertThat(lines.length, is(4));
+        assertThat(objectMapper.readValue(lines[0], Map.class),
+                is(Map.of("columnTypes", recordList.getColumnTypeStringMap())));
+        assertThat(objectMapper.readValue(lines[1], Map.class), is(recordList.getRecords().get(0)));
+        assertThat(objectMapper.readValue(lines[2], Map.class), is(recordList.getRecords().get(1)));
+
+        // the null group comes first
+        recordList = this.dataStore.query(DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .groupBy(List.of("label"))
+                .aggregates(List.of(new AggregateDesc(AggregateDesc.Function.MAX, "k")))
+                .limit(1)
+                .build());
+        assertThat(recordList.getRecords(), is(List.of(Map.of("max(k)", "5a"))));
+
+        assertThrows(SwValidationException.class, () -> this.dataStore.query(DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .groupBy(List.of("label"))
+                .orderBy(List.of(new OrderByDesc("label")))
+                .build()));
+        assertThrows(SwValidationException.class, () -> this.dataStore.query(DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .columns(Map.of("label", "label"))
+                .groupBy(List.of("label"))
+                .build()));
+    }
+
     @Test
     public void testScanOneTable() {
         this.dataStore.update("t1",
@@ -392,6 +769,58 @@ public class DataStoreTest {
                 .build()));
     }
 
+    @Test
+    public void testScanManyTables() {
+        int tableCount = 20;
+        var tables = new ArrayList<DataStoreScanRequest.TableInfo>();
+        for (int i = 0; i < tableCount; ++i) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int k = 0; k < 200; k += i + 1) {
+                records.add(Map.of("k", Integer.toHexString(k),
+                        "s", Integer.toHexString(i),
+                        "v" + i, Integer.toHexString(k * i)));
+            }
+            this.dataStore.update("t" + i,
+                    new TableSchemaDesc("k",
+                            List.of(new ColumnSchemaDesc("k", "INT32"),
+                                    new ColumnSchemaDesc("s", "INT32"),
+                                    new ColumnSchemaDesc("v" + i, "INT32"))),
+                    records);
+            tables.add(DataStoreScanRequest.TableInfo.builder().tableName("t" + i).build());
+        }
+        // pages smaller and larger than a chunk read from each table
+        for (var limit : List.of(30, 1000)) {
+            var results = new ArrayList<Map<String, String>>();
+            String start = null;
+            for (; ; ) {
+                var recordList = this.dataStore.scan(DataStoreScanRequest.builder()
+                        .tables(tables)
+                        .start(start)
+                        .startInclusive(false)
+                        .limit(limit)
+                        .build());
+                if (recordList.getRecords().isEmpty()) {
+                    break;
+                }
+                results.addAll(recordList.getRecords());
+                start = recordList.getLastKey();
+            }
+            assertThat(results.size(), is(200));
+            for (int k = 0; k < 200; ++k) {
+                var expected = new HashMap<String, String>();
+                expected.put("k", Integer.toHexString(k));
+                for (int i = 0; i < tableCount; ++i) {
+                    if (k % (i + 1) == 0) {
+                        // the last table in the request wins for columns in several tables
+                        expected.put("s", Integer.toHexString(i));
+                        expected.put("v" + i, Integer.toHexString(k * i));
+                    }
+                }
+                assertThat(results.get(k), is(expected));
+            }
+        }
+    }
+
     @Test
     public void testScanMultipleTables() {
         this.dataStore.update("t1",
@@ -568,11 +997,216 @@ public class DataStoreTest {
                 is(List.of(Map.of("k", "0", "a", "5"))));
     }
 
+    @Test
+    public void testCheckpoint() throws IOException {
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "STRING"),
+                        new ColumnSchemaDesc("a", "INT32"),
+                        new ColumnSchemaDesc("x", "UNKNOWN")));
+        for (int i = 0; i < 100; ++i) {
+            this.dataStore.update("t1", desc, List.of(Map.of("k", String.format("%03d", i), "a", "1")));
+        }
+        this.dataStore.update("t1", null, List.of(Map.of("k", "000", "-", "1"), Map.of("k", "001", "a", "2")));
+        this.dataStore.update("t2", desc, null);
+        this.dataStore.terminate();
+
+        // reopen so that all existing log files are closed
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
+        this.dataStore.checkpoint();
+        assertThat("wal files", ImmutableList.copyOf(this.objectStore.list("test/wal.log.")), empty());
+        this.dataStore.update("t1",
+                new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("b", "STRING"))),
+                List.of(Map.of("k", "002", "b", "b"), Map.of("k", "003", "-", "1")));
+        this.dataStore.terminate();
+
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
+        var records = this.dataStore.scan(DataStoreScanRequest.builder()
+                        .tables(List.of(DataStoreScanRequest.TableInfo.builder().tableName("t1").build()))
+                        .build())
+                .getRecords();
+        assertThat("count", records.size(), is(98));
+        assertThat("updated", records.get(0), is(Map.of("k", "001", "a", "2")));
+        assertThat("new column", records.get(1), is(Map.of("k", "002", "a", "1", "b", "b")));
+        assertThat("deleted", records.get(2), is(Map.of("k", "004", "a", "1")));
+        assertThat("empty table",
+                this.dataStore.query(DataStoreQueryRequest.builder().tableName("t2").build()).getColumnTypeMap(),
+                is(Map.of("k", ColumnType.STRING, "a", ColumnType.INT32, "x", ColumnType.UNKNOWN)));
+    }
+
+    @Test
+    public void testFollower() throws IOException {
+        var meterRegistry = new SimpleMeterRegistry();
+        Metrics.addRegistry(meterRegistry);
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "STRING"), new ColumnSchemaDesc("a", "INT32")));
+        this.dataStore.update("t1", desc, List.of(Map.of("k", "0", "a", "1"))).join();
+        var followerWal = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2, 2,
+                "snappy", true);
+        var follower = new DataStore(followerWal, false, 0, "", 2, true, 60000);
+        try {
+            assertThat("no writer thread", followerWal.isAlive(), is(false));
+            assertThrows(SwProcessException.class, () -> followerWal.append(Wal.WalEntry.newBuilder().build()));
+            var req = DataStoreQueryRequest.builder().tableName("t1").build();
+            assertThat("replay", follower.query(req).getRecords(), is(List.of(Map.of("k", "0", "a", "1"))));
+
+            this.dataStore.update("t1", null, List.of(Map.of("k", "1", "a", "2"))).join();
+            this.dataStore.update("t2", desc, List.of(Map.of("k", "0", "a", "3"))).join();
+            assertThat("not caught up", follower.query(req).getRecords(), is(List.of(Map.of("k", "0", "a", "1"))));
+            follower.catchUp();
+            assertThat("caught up", follower.query(req).getRecords(), is(this.dataStore.query(req).getRecords()));
+            assertThat("new table",
+                    follower.query(DataStoreQueryRequest.builder().tableName("t2").build()).getRecords(),
+                    is(List.of(Map.of("k", "0", "a", "3"))));
+            assertThat("lag", meterRegistry.get(DataStore.FOLLOWER_LAG_METRIC).gauge().value(), lessThan(60000.0));
+            assertThrows(SwValidationException.class,
+                    () -> follower.update("t1", null, List.of(Map.of("k", "2", "a", "2"))));
+
+            // the checkpoint removes log files that the follower has not read
+            for (int i = 2; i < 10; ++i) {
+                this.dataStore.update("t1", null, List.of(Map.of("k", "" + i, "a", "1"))).join();
+            }
+            this.dataStore.checkpoint();
+            this.dataStore.update("t1", null, List.of(Map.of("k", "0", "-", "1"))).join();
+            follower.catchUp();
+            assertThat("reloaded", follower.query(req).getRecords(), is(this.dataStore.query(req).getRecords()));
+            assertThat("reloads", meterRegistry.get(DataStore.FOLLOWER_RELOADS_METRIC).counter().count(), is(1.0));
+            assertThat("kept after reload",
+                    follower.query(DataStoreQueryRequest.builder().tableName("t2").build()).getRecords(),
+                    is(List.of(Map.of("k", "0", "a", "3"))));
+            this.dataStore.update("t1", null, List.of(Map.of("k", "10", "a", "1"))).join();
+            follower.catchUp();
+            assertThat("after reload", follower.query(req).getRecords(), is(this.dataStore.query(req).getRecords()));
+        } finally {
+            follower.terminate();
+            Metrics.removeRegistry(meterRegistry);
+        }
+
+        var writableWal = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        try {
+            assertThrows(IllegalArgumentException.class,
+                    () -> new DataStore(writableWal, false, 0, "", 2, true, 60000));
+        } finally {
+            writableWal.terminate();
+        }
+        var staleFollower = new DataStore(
+                new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2, 2, "snappy", true),
+                false, 0, "", 2, true, -1);
+        try {
+            assertThrows(SwProcessException.class,
+                    () -> staleFollower.query(DataStoreQueryRequest.builder().tableName("t1").build()));
+        } finally {
+            staleFollower.terminate();
+        }
+    }
+
+    @Test
+    public void testIndexAfterRestart() throws IOException {
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "STRING"), new ColumnSchemaDesc("a", "INT32", "SORTED")));
+        for (int i = 0; i < 10; ++i) {
+            this.dataStore.update("t1", desc, List.of(Map.of("k", "" + i, "a", Integer.toHexString(i % 3))));
+        }
+        var req = DataStoreQueryRequest.builder()
+                .tableName("t1")
+                .filter(TableQueryFilter.builder()
+                        .operator(TableQueryFilter.Operator.GREATER)
+                        .operands(List.of(new TableQueryFilter.Column("a"),
+                                new Constant(ColumnType.INT32, 1)))
+                        .build())
+                .build();
+        var expected = List.of(Map.of("k", "2", "a", "2"), Map.of("k", "5", "a", "2"), Map.of("k", "8", "a", "2"));
+        assertThat("before restart", this.dataStore.query(req).getRecords(), is(expected));
+        this.dataStore.terminate();
+
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
+        assertThat("replay", this.dataStore.query(req).getRecords(), is(expected));
+        assertThat("schema",
+                this.dataStore.query(req).getColumnTypeMap(),
+                is(Map.of("k", ColumnType.STRING, "a", ColumnType.INT32)));
+        this.dataStore.checkpoint();
+        this.dataStore.terminate();
+
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
+        assertThat("checkpoint", this.dataStore.query(req).getRecords(), is(expected));
+    }
+
+    @Test
+    public void testParallelReplay() throws IOException {
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "STRING"), new ColumnSchemaDesc("a", "INT32")));
+        for (int i = 0; i < 50; ++i) {
+            for (int j = 0; j < 8; ++j) {
+                // later updates of the same table overwrite earlier ones, so they must be replayed in order
+                this.dataStore.update("t" + j, desc, List.of(Map.of("k", "" + i % 5, "a", Integer.toHexString(i))));
+            }
+            if (i == 25) {
+                desc = new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("b", "STRING")));
+            }
+        }
+        this.dataStore.update("t3", null, List.of(Map.of("k", "0", "-", "1")));
+        var expected = new HashMap<String, List<Map<String, String>>>();
+        for (int j = 0; j < 8; ++j) {
+            expected.put("t" + j,
+                    this.dataStore.query(DataStoreQueryRequest.builder().tableName("t" + j).build()).getRecords());
+        }
+        assertThat(expected.get("t0").get(0), is(Map.of("k", "0", "a", "2d")));
+        this.dataStore.terminate();
+
+        for (var parallelism : List.of(1, 4)) {
+            this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3,
+                    parallelism);
+            this.dataStore = new DataStore(this.walManager, false, 0, "", parallelism);
+            for (int j = 0; j < 8; ++j) {
+                assertThat("parallelism " + parallelism,
+                        this.dataStore.query(DataStoreQueryRequest.builder().tableName("t" + j).build())
+                                .getRecords(),
+                        is(expected.get("t" + j)));
+            }
+            this.dataStore.terminate();
+        }
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        this.dataStore.terminate();
+        var spillDir = new File(this.rootDir, "spill");
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 65536, 65536 * 1024, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 100000, spillDir.getAbsolutePath(), 2);
+        var desc = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "STRING"), new ColumnSchemaDesc("a", "INT32")));
+        for (int i = 0; i < 50; ++i) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int j = 0; j < 100; ++j) {
+                records.add(Map.of("k", String.format("%04d", i * 100 + j), "a", Integer.toHexString(i)));
+            }
+            this.dataStore.update("t" + i % 2, desc, records);
+        }
+        this.dataStore.update("t0", null, List.of(Map.of("k", "0000", "-", "1"), Map.of("k", "0001", "a", "ff")));
+        assertThat("spilled", Objects.requireNonNull(spillDir.list()).length, is(2));
+        assertThat("tracked usage", this.dataStore.getMemoryUsage(), lessThanOrEqualTo(100000L));
+
+        var req = DataStoreQueryRequest.builder().tableName("t0").build();
+        var records = this.dataStore.query(req).getRecords();
+        assertThat("count", records.size(), is(2499));
+        assertThat("updated", records.get(0), is(Map.of("k", "0001", "a", "ff")));
+        assertThat("unchanged", records.get(1), is(Map.of("k", "0002", "a", "0")));
+        this.dataStore.terminate();
+
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 65536, 65536 * 1024, "test/", 10, 3, 2);
+        this.dataStore = new DataStore(this.walManager, false, 100000, spillDir.getAbsolutePath(), 2);
+        assertThat("restart", this.dataStore.query(req).getRecords(), is(records));
+    }
+
     @Test
     public void testMultiThreads() throws Throwable {
         this.dataStore.terminate();
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 65536, 65536 * 1024, "test/", 1000, 3);
-        this.dataStore = new DataStore(this.walManager);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 65536, 65536 * 1024, "test/", 1000, 3,
+                2);
+        this.dataStore = new DataStore(this.walManager, false, 0, "", 2);
 
         abstract class TestThread extends Thread {
 
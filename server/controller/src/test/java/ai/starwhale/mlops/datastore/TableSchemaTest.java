@@ -186,6 +186,20 @@ public class TableSchemaTest {
                 diff,
                 containsInAnyOrder(new ColumnSchema(new ColumnSchemaDesc("y", "STRING"), 4),
                         new ColumnSchema(new ColumnSchemaDesc("z", "BYTES"), 5)));
+
+        diff = this.schema.merge(new TableSchemaDesc("k", List.of(
+                new ColumnSchemaDesc("a", "UNKNOWN", "SORTED"),
+                new ColumnSchemaDesc("b", "FLOAT32", null),
+                new ColumnSchemaDesc("y", "STRING", "HASH"))));
+        assertThat("add index",
+                diff,
+                containsInAnyOrder(new ColumnSchema(new ColumnSchemaDesc("a", "INT32", "SORTED"), 1),
+                        new ColumnSchema(new ColumnSchemaDesc("y", "STRING", "HASH"), 4)));
+        diff = this.schema.merge(new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("a", "INT32"))));
+        assertThat("keep index", diff, empty());
+        assertThat("keep index",
+                this.schema.getColumnSchemaByName("a"),
+                is(new ColumnSchema(new ColumnSchemaDesc("a", "INT32", "SORTED"), 1)));
     }
 
     @Test
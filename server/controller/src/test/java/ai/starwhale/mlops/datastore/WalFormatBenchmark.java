@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore;
+
+import ai.starwhale.mlops.memory.SwBufferManager;
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the size and the replay time of WAL files in different formats and compressions, holding a wide numeric
+ * table like evaluation results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class WalFormatBenchmark {
+
+    private static final int COLUMN_COUNT = 50;
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"200000"})
+    public int recordCount;
+
+    @Param({"1", "2"})
+    public int formatVersion;
+
+    @Param({"snappy", "zstd"})
+    public String compression;
+
+    private File rootDir;
+
+    private SwBufferManager bufferManager;
+
+    private ObjectStore objectStore;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_wal_benchmark").toFile();
+        this.bufferManager = new SwByteBufferManager();
+        this.objectStore = new ObjectStore(this.bufferManager,
+                new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
+        var walManager = this.open();
+        var dataStore = new DataStore(walManager, false, 0, "", 1);
+        var columns = new ArrayList<ColumnSchemaDesc>();
+        columns.add(new ColumnSchemaDesc("id", "INT64"));
+        columns.add(new ColumnSchemaDesc("label", "INT32"));
+        for (int i = 0; i < COLUMN_COUNT; ++i) {
+            columns.add(new ColumnSchemaDesc("score" + i, "FLOAT64"));
+        }
+        var schema = new TableSchemaDesc("id", columns);
+        final long startTime = System.currentTimeMillis();
+        for (int i = 0; i < this.recordCount; i += BATCH_SIZE) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int j = i; j < i + BATCH_SIZE && j < this.recordCount; ++j) {
+                var record = new HashMap<String, String>();
+                record.put("id", Long.toHexString(j));
+                record.put("label", Integer.toHexString(j % 10));
+                for (int k = 0; k < COLUMN_COUNT; ++k) {
+                    record.put("score" + k, Long.toHexString(Double.doubleToLongBits((j * 31 + k) % 1000 / 1000.0)));
+                }
+                records.add(record);
+            }
+            dataStore.update("t", schema, records);
+        }
+        dataStore.terminate();
+        long bytes = 0;
+        for (var it = this.objectStore.list(""); it.hasNext(); ) {
+            var buf = this.objectStore.get(it.next());
+            bytes += buf.capacity();
+            this.bufferManager.release(buf);
+        }
+        System.out.printf("%nv%d %s WAL of %d records takes %d KB, written in %d ms%n",
+                this.formatVersion,
+                this.compression,
+                this.recordCount,
+                bytes / 1024,
+                System.currentTimeMillis() - startTime);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public void replay(Blackhole blackhole) throws IOException {
+        var walManager = this.open();
+        for (var it = walManager.readAll(); it.hasNext(); ) {
+            blackhole.consume(it.next());
+        }
+        walManager.terminate();
+    }
+
+    private WalManager open() throws IOException {
+        return new WalManager(this.objectStore,
+                this.bufferManager,
+                65536,
+                67108864,
+                "wal/",
+                500,
+                3,
+                1,
+                this.formatVersion,
+                this.compression,
+                false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WalFormatBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
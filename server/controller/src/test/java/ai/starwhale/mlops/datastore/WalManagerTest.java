@@ -18,19 +18,25 @@ package ai.starwhale.mlops.datastore;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.memory.SwBufferManager;
 import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.memory.impl.SwPooledBufferManager;
 import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
@@ -40,8 +46,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.apache.commons.lang3.tuple.Triple;
@@ -67,7 +79,7 @@ public class WalManagerTest {
         this.bufferManager = new SwByteBufferManager();
         this.objectStore = new ObjectStore(this.bufferManager,
                 new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
     }
 
 
@@ -182,8 +194,10 @@ public class WalManagerTest {
         Thread.sleep(50);
         this.walManager.append(entries.get(3));
         this.walManager.terminate();
-        assertThat(ImmutableList.copyOf(this.objectStore.list("")), is(List.of("test/wal.log.0", "test/wal.log.1")));
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        // each batch is sealed in a new log file
+        assertThat(ImmutableList.copyOf(this.objectStore.list("")),
+                is(List.of("test/wal.log.0", "test/wal.log.1", "test/wal.log.2")));
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
         assertThat(ImmutableList.copyOf(this.walManager.readAll()), is(entries));
     }
 
@@ -206,10 +220,159 @@ public class WalManagerTest {
             this.walManager.append(entry);
         }
         this.walManager.terminate();
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
         assertThat(ImmutableList.copyOf(this.walManager.readAll()), is(entries));
     }
 
+    @Test
+    public void testPooledBuffers() throws IOException {
+        List<Wal.WalEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            entries.add(Wal.WalEntry.newBuilder()
+                    .setEntryType(Wal.WalEntry.Type.UPDATE)
+                    .setTableName("t")
+                    .setTableSchema(this.createTableSchema("k", List.of(Triple.of(1, "k", "STRING"))))
+                    .addAllRecords(this.createRecords(List.of(Map.of(1, "" + i))))
+                    .build());
+        }
+        this.walManager.terminate();
+        // the small pool makes some buffers fall back to heap
+        for (var maxBytes : List.of(1L << 20, 12288L)) {
+            for (var compression : List.of("snappy", "zstd")) {
+                var bufferManager = new SwPooledBufferManager(maxBytes, false);
+                var dir = new File(this.rootDir, maxBytes + compression);
+                assertThat(dir.mkdir(), is(true));
+                var objectStore = new ObjectStore(bufferManager,
+                        new StorageAccessServiceFile(dir.getAbsolutePath()));
+                this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 3, 2, 2,
+                        compression, false);
+                for (var entry : entries) {
+                    this.walManager.append(entry);
+                }
+                this.walManager.writeCheckpoint(this.walManager.getLogFileIndex(),
+                        entries.subList(0, 10).iterator());
+                this.walManager.append(entries.get(0));
+                this.walManager.terminate();
+                assertThat("released", bufferManager.getUsedBytes(), is(0L));
+                this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 3, 2);
+                var restored = ImmutableList.copyOf(this.walManager.readAll());
+                assertThat(restored.get(restored.size() - 1), is(entries.get(0)));
+                this.walManager.terminate();
+                assertThat("released", bufferManager.getUsedBytes(), is(0L));
+            }
+        }
+    }
+
+    @Test
+    public void testColumnarRecords() {
+        var records = new ArrayList<Wal.Record>();
+        for (int i = 0; i < 100; ++i) {
+            var values = new LinkedHashMap<Integer, Object>();
+            values.put(1, (long) i);
+            values.put(2, i % 3 == 0 ? null : i % 2 == 0);
+            values.put(3, (float) i / 3);
+            values.put(4, i % 5 == 0 ? -0.0 : i * 0.1);
+            values.put(5, "s" + i % 10);
+            values.put(6, ByteBuffer.wrap(new byte[]{(byte) i}));
+            values.put(7, 0);
+            values.put(8, i % 4 == 0 ? Long.MIN_VALUE : Long.MAX_VALUE);
+            records.addAll(this.createRecords(List.of(values)));
+        }
+        // deleted records and a column list in another order
+        records.add(Wal.Record.newBuilder()
+                .addColumns(Wal.Column.newBuilder().setIndex(1).setIntValue(7))
+                .addColumns(Wal.Column.newBuilder().setIndex(-1))
+                .build());
+        records.add(this.createRecords(List.of(Map.of(5, "", 1, 9L))).get(0));
+        var entry = Wal.WalEntry.newBuilder()
+                .setEntryType(Wal.WalEntry.Type.UPDATE)
+                .setTableName("t")
+                .setTableSchema(this.createTableSchema("k", List.of(Triple.of(1, "k", "INT64"))))
+                .addAllRecords(records)
+                .build();
+        var encoded = ColumnarRecordsCodec.encode(entry);
+        assertThat(encoded.getRecordsCount(), is(0));
+        assertThat(encoded.getSerializedSize(), lessThan(entry.getSerializedSize() / 2));
+        assertThat(ColumnarRecordsCodec.decode(encoded), is(entry));
+
+        // values in different fields of a column can not be stored column by column
+        var mixed = Wal.WalEntry.newBuilder()
+                .setTableName("t")
+                .addAllRecords(this.createRecords(List.of(Map.of(1, 1L), Map.of(1, "a"))))
+                .build();
+        assertThat(ColumnarRecordsCodec.encode(mixed), is(mixed));
+        var drop = Wal.WalEntry.newBuilder()
+                .setEntryType(Wal.WalEntry.Type.DROP)
+                .setTableName("t")
+                .build();
+        assertThat(ColumnarRecordsCodec.encode(drop), is(drop));
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        var entries = new ArrayList<Wal.WalEntry>();
+        for (int i = 0; i < 100; ++i) {
+            entries.add(Wal.WalEntry.newBuilder()
+                    .setEntryType(Wal.WalEntry.Type.UPDATE)
+                    .setTableName("t")
+                    .setTableSchema(this.createTableSchema("k",
+                            List.of(Triple.of(1, "k", "INT64"), Triple.of(2, "a", "FLOAT64"))))
+                    .addAllRecords(this.createRecords(IntStream.range(i * 10, i * 10 + 10)
+                            .mapToObj(j -> Map.<Integer, Object>of(1, (long) j, 2, j * 0.5))
+                            .collect(Collectors.toList())))
+                    .build());
+        }
+        this.walManager.terminate();
+        var sizes = new HashMap<String, Long>();
+        for (int version : List.of(1, 2)) {
+            for (var compression : List.of("none", "snappy", "zstd")) {
+                var prefix = version + compression + "/";
+                this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, prefix, 10, 3, 2,
+                        version, compression, false);
+                CompletableFuture.allOf(entries.stream()
+                        .map(this.walManager::append)
+                        .toArray(CompletableFuture[]::new)).join();
+                this.walManager.writeCheckpoint(this.walManager.getLogFileIndex(),
+                        entries.subList(0, 10).iterator());
+                this.walManager.append(entries.get(0));
+                this.walManager.terminate();
+
+                long size = 0;
+                for (var it = this.objectStore.list(prefix); it.hasNext(); ) {
+                    var name = it.next();
+                    var data = this.objectStore.get(name);
+                    if (!name.contains("checkpoint")) {
+                        var header = new byte[4];
+                        data.getBytes(0, header, 0, header.length);
+                        assertThat(name, new String(header, 0, 3), is(version == 1 ? "swl" : "sw2"));
+                    }
+                    size += data.capacity();
+                }
+                sizes.put(prefix, size);
+
+                // files are read by a manager writing the default format
+                this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, prefix, 10, 3, 2);
+                var expected = new ArrayList<>(entries.subList(0, 10));
+                expected.add(entries.get(0));
+                assertThat(prefix, ImmutableList.copyOf(this.walManager.readAll()), is(expected));
+                this.walManager.terminate();
+            }
+        }
+        assertThat(sizes.get("2none/"), lessThan(sizes.get("1none/")));
+        assertThat(sizes.get("2snappy/"), lessThan(sizes.get("1snappy/")));
+        assertThat(sizes.get("2zstd/"), lessThan(sizes.get("1zstd/")));
+
+        // older versions can not read v2 files, so they are written only if configured
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "default/", 10, 3, 2);
+        this.walManager.append(entries.get(0)).join();
+        this.walManager.terminate();
+        var names = ImmutableList.copyOf(this.objectStore.list("default/"));
+        assertThat(names.size(), is(1));
+        var header = new byte[4];
+        this.objectStore.get(names.get(0)).getBytes(0, header, 0, header.length);
+        assertThat(new String(header, 0, 3), is("swl"));
+    }
+
     @Test
     public void testHugeEntry() throws IOException {
         var entry = Wal.WalEntry.newBuilder()
@@ -222,7 +385,7 @@ public class WalManagerTest {
                 .build();
         this.walManager.append(entry);
         this.walManager.terminate();
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
         var entries = ImmutableList.copyOf(this.walManager.readAll());
         assertThat(entries.size(), greaterThan(1));
         assertThat(entries.get(0).getTableSchema(), is(entry.getTableSchema()));
@@ -284,14 +447,69 @@ public class WalManagerTest {
                 entry1.getSerializedSize() + CodedOutputStream.computeUInt32SizeNoTag(entry1.getSerializedSize()) + 4,
                 "test/",
                 10,
-                3);
+                3,
+                2);
         builder.addAllRecords(entry2.getRecordsList());
         this.walManager.append(builder.build());
         this.walManager.terminate();
-        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
         assertThat(ImmutableList.copyOf(this.walManager.readAll()), is(List.of(entry1, entry2)));
     }
 
+    @Test
+    public void testCheckpoint() throws IOException {
+        List<Wal.WalEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            entries.add(Wal.WalEntry.newBuilder()
+                    .setEntryType(Wal.WalEntry.Type.UPDATE)
+                    .setTableName("t")
+                    .setTableSchema(this.createTableSchema("k", List.of(Triple.of(1, "k", "STRING"))))
+                    .addAllRecords(this.createRecords(List.of(Map.of(1, "" + i))))
+                    .build());
+        }
+        for (var entry : entries) {
+            this.walManager.append(entry);
+        }
+        this.walManager.terminate();
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        assertThat(ImmutableList.copyOf(this.walManager.readAll()), is(entries));
+
+        var snapshot = List.of(Wal.WalEntry.newBuilder()
+                        .setEntryType(Wal.WalEntry.Type.UPDATE)
+                        .setTableName("t")
+                        .setTableSchema(this.createTableSchema("k", List.of(Triple.of(1, "k", "STRING"))))
+                        .addAllRecords(this.createRecords(IntStream.range(0, 1000)
+                                .mapToObj(i -> Map.of(1, (Object) ("" + i)))
+                                .collect(Collectors.toList())))
+                        .build(),
+                Wal.WalEntry.newBuilder()
+                        .setEntryType(Wal.WalEntry.Type.UPDATE)
+                        .setTableName("t2")
+                        .setTableSchema(this.createTableSchema("k", List.of(Triple.of(1, "k", "INT32"))))
+                        .build());
+        var walLogIndex = this.walManager.getLogFileIndex();
+        this.walManager.writeCheckpoint(walLogIndex, snapshot.iterator());
+        assertThat(this.walManager.getCheckpointLogFileIndex(), is(walLogIndex));
+        assertThat(ImmutableList.copyOf(this.objectStore.list("test/wal.log.")), is(List.of()));
+        this.walManager.terminate();
+
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        var restored = ImmutableList.copyOf(this.walManager.readAll());
+        assertThat(restored.size(), greaterThan(snapshot.size()));
+        assertThat(restored.stream().flatMap(e -> e.getRecordsList().stream()).collect(Collectors.toList()),
+                is(snapshot.stream().flatMap(e -> e.getRecordsList().stream()).collect(Collectors.toList())));
+        assertThat(restored.get(restored.size() - 1), is(snapshot.get(1)));
+
+        // log file indexes should never be reused after a checkpoint
+        this.walManager.append(entries.get(0));
+        this.walManager.terminate();
+        assertThat(ImmutableList.copyOf(this.objectStore.list("test/wal.log.")),
+                is(List.of("test/wal.log." + walLogIndex)));
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        restored = ImmutableList.copyOf(this.walManager.readAll());
+        assertThat(restored.get(restored.size() - 1), is(entries.get(0)));
+    }
+
     @Test
     public void testWriteFailureAndRetry() throws Exception {
         var objectStore = Mockito.mock(ObjectStore.class);
@@ -300,7 +518,7 @@ public class WalManagerTest {
                 .doThrow(new IOException())
                 .doNothing()
                 .when(objectStore).put(anyString(), any());
-        var walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        var walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
         walManager.append(Wal.WalEntry.newBuilder()
                 .setEntryType(Wal.WalEntry.Type.UPDATE)
                 .setTableName("t")
@@ -310,6 +528,124 @@ public class WalManagerTest {
         verify(objectStore, times(3)).put(eq("test/wal.log.0"), any());
     }
 
+    @Test
+    public void testGroupCommit() throws Exception {
+        var objectStore = Mockito.spy(this.objectStore);
+        this.walManager.terminate();
+        this.walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 50, 3, 2);
+        var entries = new ArrayList<Wal.WalEntry>();
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 100; ++i) {
+            var entry = Wal.WalEntry.newBuilder()
+                    .setEntryType(Wal.WalEntry.Type.UPDATE)
+                    .setTableName("t")
+                    .addAllRecords(this.createRecords(List.of(Map.of(1, "" + i))))
+                    .build();
+            entries.add(entry);
+            futures.add(this.walManager.append(entry));
+        }
+        for (var future : futures) {
+            future.join();
+        }
+        // all entries are persisted once their futures complete, without terminating the manager
+        var logFiles = ImmutableList.copyOf(this.objectStore.list("test/wal.log."));
+        assertThat(logFiles.size(), lessThan(entries.size()));
+        // each batch is sealed in its own log file, which is written only once
+        verify(objectStore, times(logFiles.size())).put(anyString(), any());
+        var reader = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 50, 3, 2);
+        assertThat(ImmutableList.copyOf(reader.readAll()), is(entries));
+        reader.terminate();
+    }
+
+    @Test
+    public void testIsolatedAppend() throws Exception {
+        this.walManager.terminate();
+        this.walManager = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 60000, 3, 2);
+        var entry = Wal.WalEntry.newBuilder()
+                .setEntryType(Wal.WalEntry.Type.UPDATE)
+                .setTableName("t")
+                .addAllRecords(this.createRecords(List.of(Map.of(1, "a"))))
+                .build();
+        // acknowledged without waiting for the batch to fill up or the wait interval to pass
+        this.walManager.append(entry).get(10, TimeUnit.SECONDS);
+        this.walManager.append(entry).get(10, TimeUnit.SECONDS);
+        assertThat(ImmutableList.copyOf(this.objectStore.list("test/wal.log.")).size(), is(2));
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        var objectStore = Mockito.mock(ObjectStore.class);
+        given(objectStore.list(anyString())).willReturn(Collections.emptyIterator());
+        doThrow(new IOException())
+                .doThrow(new IOException())
+                .doThrow(new IOException())
+                .doNothing()
+                .when(objectStore).put(anyString(), any());
+        var walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        var entry = Wal.WalEntry.newBuilder()
+                .setEntryType(Wal.WalEntry.Type.UPDATE)
+                .setTableName("t")
+                .build();
+        var e = assertThrows(CompletionException.class, () -> walManager.append(entry).join());
+        assertThat(e.getCause(), instanceOf(SwProcessException.class));
+        // the failed log file may have been written, so the next batch goes to a new one
+        walManager.append(entry).join();
+        walManager.terminate();
+        verify(objectStore, times(3)).put(eq("test/wal.log.0"), any());
+        verify(objectStore, times(1)).put(eq("test/wal.log.1"), any());
+        verify(objectStore, times(4)).put(anyString(), any());
+    }
+
+    @Test
+    public void testAbandonedReads() throws IOException {
+        for (int i = 0; i < 10; ++i) {
+            this.walManager.append(Wal.WalEntry.newBuilder()
+                    .setEntryType(Wal.WalEntry.Type.UPDATE)
+                    .setTableName("t" + i)
+                    .build()).join();
+        }
+        // readers share the threads of the manager, no matter whether they are fully consumed
+        for (int i = 0; i < 20; ++i) {
+            var it = this.walManager.readNewLogFiles(true);
+            assertThat(it, is(nullValue()));
+            this.walManager.readAll().next();
+        }
+        assertThat(Thread.getAllStackTraces().keySet().stream()
+                        .filter(t -> t.getName().startsWith("wal-replay-"))
+                        .count(),
+                lessThan(10L));
+    }
+
+    @Test
+    public void testReadNewLogFilesAfterWriteFailure() throws Exception {
+        this.walManager.terminate();
+        var objectStore = Mockito.spy(this.objectStore);
+        var failing = new AtomicBoolean();
+        doAnswer(invocation -> {
+            if (failing.get()) {
+                throw new IOException();
+            }
+            return invocation.callRealMethod();
+        }).when(objectStore).put(anyString(), any());
+        final var reader = new WalManager(this.objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
+        this.walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 10, 1, 2);
+        var entries = IntStream.range(0, 3)
+                .mapToObj(i -> Wal.WalEntry.newBuilder()
+                        .setEntryType(Wal.WalEntry.Type.UPDATE)
+                        .setTableName("t" + i)
+                        .build())
+                .collect(Collectors.toList());
+        this.walManager.append(entries.get(0)).join();
+        failing.set(true);
+        assertThrows(CompletionException.class, () -> this.walManager.append(entries.get(1)).join());
+        failing.set(false);
+        this.walManager.append(entries.get(2)).join();
+        // the index of the failed file is skipped
+        assertThat(ImmutableList.copyOf(reader.readNewLogFiles(false)), is(List.of(entries.get(0), entries.get(2))));
+        assertThat(ImmutableList.copyOf(reader.readNewLogFiles(false)), is(List.of()));
+        reader.terminate();
+    }
+
     @Test
     public void testReadFailureAndRetry() throws Exception {
         var objectStore = Mockito.mock(ObjectStore.class);
@@ -319,7 +655,7 @@ public class WalManagerTest {
         given(objectStore.get(anyString())).willThrow(new IOException())
                 .willThrow(new IOException())
                 .willReturn(this.bufferManager.allocate(10));
-        var walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 10, 3);
+        var walManager = new WalManager(objectStore, this.bufferManager, 256, 4096, "test/", 10, 3, 2);
         //noinspection ResultOfMethodCallIgnored
         ImmutableList.copyOf(walManager.readAll());
         walManager.terminate();
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import ai.starwhale.mlops.datastore.ColumnType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs all test cases of {@link MemoryTableImplTest} against the columnar implementation.
+ */
+public class ColumnarMemoryTableImplTest extends MemoryTableImplTest {
+
+    @Override
+    protected MemoryTableImpl createMemoryTable(String tableName) {
+        return new ColumnarMemoryTableImpl(tableName, this.walManager);
+    }
+
+    @Test
+    public void testBytesVectorReuseSpace() {
+        var vector = ColumnVector.create(ColumnType.BYTES);
+        for (int i = 0; i < 100; ++i) {
+            for (int j = 0; j < 10; ++j) {
+                vector.set(j, ByteBuffer.wrap(("value" + i + "-" + j).repeat(10000)
+                        .getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        for (int j = 0; j < 10; ++j) {
+            assertThat(vector.get(j), is(ByteBuffer.wrap(("value99-" + j).repeat(10000)
+                    .getBytes(StandardCharsets.UTF_8))));
+        }
+        vector.clear(3);
+        assertThat(vector.get(3), nullValue());
+        assertThat(vector.get(4), is(ByteBuffer.wrap("value99-4".repeat(10000).getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testStringVector() {
+        var vector = ColumnVector.create(ColumnType.STRING);
+        vector.set(0, "a");
+        vector.set(2, "b");
+        vector.set(1000, "a");
+        assertThat(vector.get(0), is("a"));
+        assertThat(vector.get(1), nullValue());
+        assertThat(vector.get(2), is("b"));
+        assertThat(vector.get(999), nullValue());
+        assertThat(vector.get(1000), is("a"));
+        vector.set(0, null);
+        assertThat(vector.get(0), nullValue());
+    }
+
+    @Test
+    public void testStringVectorReleaseDictionaryEntries() {
+        var vector = (ColumnVector.StringVector) ColumnVector.create(ColumnType.STRING);
+        vector.set(0, "a");
+        vector.set(1, "b");
+        vector.set(2, "a");
+        assertThat(vector.getDictionarySize(), is(2));
+        vector.set(1, "c");
+        assertThat(vector.getDictionarySize(), is(2));
+        vector.clear(0);
+        assertThat(vector.getDictionarySize(), is(2));
+        vector.clear(2);
+        assertThat(vector.getDictionarySize(), is(1));
+        vector.set(0, "d");
+        vector.set(2, "d");
+        assertThat(vector.getDictionarySize(), is(2));
+        assertThat(vector.get(0), is("d"));
+        assertThat(vector.get(1), is("c"));
+        assertThat(vector.get(2), is("d"));
+        for (int i = 0; i < 100000; ++i) {
+            vector.set(3, "x" + i);
+        }
+        assertThat(vector.getDictionarySize(), is(3));
+        assertThat(vector.get(3), is("x99999"));
+    }
+
+    @Test
+    public void testStringVectorHighCardinality() {
+        var vector = (ColumnVector.StringVector) ColumnVector.create(ColumnType.STRING);
+        int count = ColumnVector.StringVector.MAX_DICTIONARY_SIZE + 10;
+        for (int i = 0; i < count; ++i) {
+            vector.set(i, "id" + i);
+        }
+        assertThat(vector.getDictionarySize(), is(-1));
+        for (int i = 0; i < count; ++i) {
+            assertThat(vector.get(i), is("id" + i));
+        }
+        vector.set(count + 100, "id0");
+        vector.clear(0);
+        assertThat(vector.get(0), nullValue());
+        assertThat(vector.get(count + 99), nullValue());
+        assertThat(vector.get(count + 100), is("id0"));
+    }
+}
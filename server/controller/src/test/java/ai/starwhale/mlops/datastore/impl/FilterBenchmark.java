@@ -0,0 +1,191 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
+import ai.starwhale.mlops.datastore.ColumnType;
+import ai.starwhale.mlops.datastore.MemoryTable;
+import ai.starwhale.mlops.datastore.ObjectStore;
+import ai.starwhale.mlops.datastore.TableQueryFilter;
+import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.WalManager;
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures queries with filters that have to be evaluated on every record of a large table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms8g", "-Xmx8g"})
+public class FilterBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"1000000"})
+    public int recordCount;
+
+    @Param({"range", "andOr", "in", "prefix"})
+    public String filterType;
+
+    private File rootDir;
+
+    private WalManager walManager;
+
+    private MemoryTable memoryTable;
+
+    private TableQueryFilter filter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_filter_benchmark").toFile();
+        var bufferManager = new SwByteBufferManager();
+        this.walManager = new WalManager(new ObjectStore(bufferManager,
+                new StorageAccessServiceFile(this.rootDir.getAbsolutePath())),
+                bufferManager,
+                65536,
+                67108864,
+                "wal/",
+                500,
+                3,
+                1);
+        this.memoryTable = new MemoryTableImpl("t", this.walManager);
+        var schema = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("label", "STRING"),
+                        new ColumnSchemaDesc("score", "FLOAT64"),
+                        new ColumnSchemaDesc("correct", "BOOL"),
+                        new ColumnSchemaDesc("count", "INT32")));
+        for (int i = 0; i < this.recordCount; i += BATCH_SIZE) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int j = i; j < i + BATCH_SIZE && j < this.recordCount; ++j) {
+                records.add(Map.of("k", Long.toHexString(j),
+                        "label", "label" + j % 100,
+                        "score", Long.toHexString(Double.doubleToLongBits(j / (double) this.recordCount)),
+                        "correct", j % 3 == 0 ? "0" : "1",
+                        "count", Integer.toHexString(j % 1000)));
+            }
+            this.memoryTable.update(schema, records);
+        }
+        this.filter = this.createFilter();
+    }
+
+    private TableQueryFilter createFilter() {
+        switch (this.filterType) {
+            case "range":
+                // 0.2 <= score < 0.7
+                return and(compare(TableQueryFilter.Operator.GREATER_EQUAL, "score", ColumnType.FLOAT64, 0.2),
+                        compare(TableQueryFilter.Operator.LESS, "score", ColumnType.FLOAT64, 0.7));
+            case "andOr":
+                // (correct = true and count > 500) or label = "label7" or label = "label42"
+                return or(or(and(compare(TableQueryFilter.Operator.EQUAL, "correct", ColumnType.BOOL, true),
+                                        compare(TableQueryFilter.Operator.GREATER, "count", ColumnType.INT32, 500)),
+                                compare(TableQueryFilter.Operator.EQUAL, "label", ColumnType.STRING, "label7")),
+                        compare(TableQueryFilter.Operator.EQUAL, "label", ColumnType.STRING, "label42"));
+            case "in":
+                // label in ("label7", "label42", "label99") or count in (1, 2, 3)
+                return or(TableQueryFilter.builder()
+                                .operator(TableQueryFilter.Operator.IN)
+                                .operands(List.of(new TableQueryFilter.Column("label"),
+                                        new TableQueryFilter.Constant(ColumnType.STRING, "label7"),
+                                        new TableQueryFilter.Constant(ColumnType.STRING, "label42"),
+                                        new TableQueryFilter.Constant(ColumnType.STRING, "label99")))
+                                .build(),
+                        TableQueryFilter.builder()
+                                .operator(TableQueryFilter.Operator.IN)
+                                .operands(List.of(new TableQueryFilter.Column("count"),
+                                        new TableQueryFilter.Constant(ColumnType.INT32, 1),
+                                        new TableQueryFilter.Constant(ColumnType.INT32, 2),
+                                        new TableQueryFilter.Constant(ColumnType.INT32, 3)))
+                                .build());
+            case "prefix":
+                // label starts with "label1" and score != 0.5
+                return and(compare(TableQueryFilter.Operator.PREFIX, "label", ColumnType.STRING, "label1"),
+                        compare(TableQueryFilter.Operator.NOT_EQUAL, "score", ColumnType.FLOAT64, 0.5));
+            default:
+                throw new IllegalArgumentException("unknown filter type " + this.filterType);
+        }
+    }
+
+    private static TableQueryFilter compare(TableQueryFilter.Operator op, String column, ColumnType type,
+            Object value) {
+        return TableQueryFilter.builder()
+                .operator(op)
+                .operands(List.of(new TableQueryFilter.Column(column), new TableQueryFilter.Constant(type, value)))
+                .build();
+    }
+
+    private static TableQueryFilter and(TableQueryFilter filter1, TableQueryFilter filter2) {
+        return TableQueryFilter.builder()
+                .operator(TableQueryFilter.Operator.AND)
+                .operands(List.of(filter1, filter2))
+                .build();
+    }
+
+    private static TableQueryFilter or(TableQueryFilter filter1, TableQueryFilter filter2) {
+        return TableQueryFilter.builder()
+                .operator(TableQueryFilter.Operator.OR)
+                .operands(List.of(filter1, filter2))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.walManager.terminate();
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public List<MemoryTable.RecordResult> query() {
+        return this.memoryTable.query(Map.of("k", "k"), null, this.filter, -1, -1, false, true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FilterBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
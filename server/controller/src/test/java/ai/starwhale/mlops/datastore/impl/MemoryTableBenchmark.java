@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import ai.starwhale.mlops.datastore.AggregateDesc;
+import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
+import ai.starwhale.mlops.datastore.ColumnType;
+import ai.starwhale.mlops.datastore.MemoryTable;
+import ai.starwhale.mlops.datastore.ObjectStore;
+import ai.starwhale.mlops.datastore.TableQueryFilter;
+import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.WalManager;
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the heap usage and the scan speed of the row-based and the columnar memory tables, and server-side
+ * aggregation with fetching all rows to aggregate them on the client.
+ *
+ * <p>The retained heap of the table is printed after the setup of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms8g", "-Xmx8g"})
+public class MemoryTableBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"1000000"})
+    public int recordCount;
+
+    @Param({"map", "columnar"})
+    public String tableType;
+
+    private File rootDir;
+
+    private WalManager walManager;
+
+    private MemoryTable memoryTable;
+
+    private TableQueryFilter filter;
+
+    private final List<AggregateDesc> aggregates = List.of(new AggregateDesc(AggregateDesc.Function.COUNT, null),
+            new AggregateDesc(AggregateDesc.Function.AVG, "score"),
+            new AggregateDesc(AggregateDesc.Function.MAX, "count"));
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_memory_table_benchmark").toFile();
+        var bufferManager = new SwByteBufferManager();
+        this.walManager = new WalManager(new ObjectStore(bufferManager,
+                new StorageAccessServiceFile(this.rootDir.getAbsolutePath())),
+                bufferManager,
+                65536,
+                67108864,
+                "wal/",
+                500,
+                3,
+                1);
+        var heapBefore = usedHeap();
+        if (this.tableType.equals("columnar")) {
+            this.memoryTable = new ColumnarMemoryTableImpl("t", this.walManager);
+        } else {
+            this.memoryTable = new MemoryTableImpl("t", this.walManager);
+        }
+        var schema = new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT64"),
+                        new ColumnSchemaDesc("label", "STRING"),
+                        new ColumnSchemaDesc("score", "FLOAT64"),
+                        new ColumnSchemaDesc("correct", "BOOL"),
+                        new ColumnSchemaDesc("count", "INT32")));
+        for (int i = 0; i < this.recordCount; i += BATCH_SIZE) {
+            var records = new ArrayList<Map<String, String>>();
+            for (int j = i; j < i + BATCH_SIZE && j < this.recordCount; ++j) {
+                records.add(Map.of("k", Long.toHexString(j),
+                        "label", "label" + j % 100,
+                        "score", Long.toHexString(Double.doubleToLongBits(j / (double) this.recordCount)),
+                        "correct", j % 3 == 0 ? "0" : "1",
+                        "count", Integer.toHexString(j % 1000)));
+            }
+            this.memoryTable.update(schema, records);
+        }
+        System.out.printf("%n%s table with %d records retains about %d MB heap%n",
+                this.tableType,
+                this.recordCount,
+                (usedHeap() - heapBefore) / 1024 / 1024);
+        this.filter = TableQueryFilter.builder()
+                .operator(TableQueryFilter.Operator.GREATER)
+                .operands(List.of(new TableQueryFilter.Column("score"),
+                        new TableQueryFilter.Constant(ColumnType.FLOAT64, 0.9)))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.walManager.terminate();
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public List<MemoryTable.RecordResult> scanAll() {
+        return this.memoryTable.scan(Map.of("k", "k", "score", "score"), null, true, null, false, -1, false);
+    }
+
+    @Benchmark
+    public List<MemoryTable.RecordResult> queryWithFilter() {
+        return this.memoryTable.query(Map.of("k", "k", "label", "label"), null, this.filter, -1, -1, false, true);
+    }
+
+    @Benchmark
+    public MemoryTable.AggregateResult aggregateByLabel() {
+        return this.memoryTable.aggregate(List.of("label"), this.aggregates, null);
+    }
+
+    @Benchmark
+    public List<MemoryTable.RecordResult> queryAllForAggregation() {
+        return this.memoryTable.query(Map.of("label", "label", "score", "score", "count", "count"),
+                null, null, -1, -1, false, false);
+    }
+
+    private static long usedHeap() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MemoryTableBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -19,10 +19,15 @@ package ai.starwhale.mlops.datastore.impl;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 
+import ai.starwhale.mlops.datastore.AggregateDesc;
 import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
 import ai.starwhale.mlops.datastore.ColumnType;
 import ai.starwhale.mlops.datastore.MemoryTable;
@@ -31,7 +36,9 @@ import ai.starwhale.mlops.datastore.OrderByDesc;
 import ai.starwhale.mlops.datastore.TableQueryFilter;
 import ai.starwhale.mlops.datastore.TableSchema;
 import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.Wal;
 import ai.starwhale.mlops.datastore.WalManager;
+import ai.starwhale.mlops.exception.SwProcessException;
 import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.memory.SwBufferManager;
 import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
@@ -42,11 +49,17 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -57,6 +70,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
 
 public class MemoryTableImplTest {
 
@@ -75,13 +89,13 @@ public class MemoryTableImplTest {
     @TempDir
     private File rootDir;
 
-    private WalManager walManager;
+    protected WalManager walManager;
 
     @BeforeEach
     public void setUp() throws IOException {
         var bufferManager = new SwByteBufferManager();
         var objectStore = new ObjectStore(bufferManager, new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
-        this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 3);
+        this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 3, 2);
     }
 
     @AfterEach
@@ -96,6 +110,97 @@ public class MemoryTableImplTest {
         }
     }
 
+    protected MemoryTableImpl createMemoryTable(String tableName) {
+        return new MemoryTableImpl(tableName, this.walManager);
+    }
+
+    @Test
+    public void testSnapshotRead() throws Exception {
+        var memoryTable = this.createMemoryTable("test");
+        var schema = new TableSchemaDesc("k", List.of(
+                new ColumnSchemaDesc("k", "INT32"),
+                new ColumnSchemaDesc("a", "INT32", "SORTED")));
+        memoryTable.update(schema, List.of(Map.of("k", "1", "a", "1"), Map.of("k", "2", "a", "2")));
+        var columns = Map.of("k", "k", "a", "a");
+        var filter = TableQueryFilter.builder()
+                .operator(TableQueryFilter.Operator.GREATER_EQUAL)
+                .operands(List.of(new TableQueryFilter.Column("a"), new TableQueryFilter.Constant(ColumnType.INT32, 2)))
+                .build();
+        var before = memoryTable.query(columns, null, null, -1, -1, false, false);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            memoryTable.lock(true);
+            // writers do not wait for readers
+            executor.submit(() -> memoryTable.update(schema, List.of(
+                            Map.of("k", "1", "a", "3"),
+                            Map.of("k", "2", "-", "1"),
+                            Map.of("k", "3", "a", "4"))))
+                    .get(10, TimeUnit.SECONDS);
+            // the reader keeps seeing the table as it was
+            assertThat(memoryTable.query(columns, null, null, -1, -1, false, false), is(before));
+            assertThat(scanAll(memoryTable, List.of("k", "a"), false), is(before));
+            assertThat(memoryTable.query(columns, null, filter, -1, -1, false, false),
+                    is(List.of(new MemoryTable.RecordResult(2, Map.of("k", 2, "a", 2)))));
+            // later readers see the update
+            var expected = List.of(new MemoryTable.RecordResult(1, Map.of("k", 1, "a", 3)),
+                    new MemoryTable.RecordResult(3, Map.of("k", 3, "a", 4)));
+            assertThat(executor.submit(() -> memoryTable.query(columns, null, filter, -1, -1, false, false))
+                    .get(10, TimeUnit.SECONDS), is(expected));
+            assertThat(executor.submit(() -> scanAll(memoryTable, List.of("k", "a"), false))
+                    .get(10, TimeUnit.SECONDS), is(expected));
+            // schema changes wait for readers
+            var writer = executor.submit(() -> memoryTable.update(
+                    new TableSchemaDesc(null, List.of(new ColumnSchemaDesc("b", "INT32"))),
+                    List.of(Map.of("k", "4", "b", "1"))));
+            assertThrows(TimeoutException.class, () -> writer.get(100, TimeUnit.MILLISECONDS));
+            memoryTable.unlock(true);
+            writer.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(memoryTable.query(Map.of("a", "a", "b", "b"), null, filter, -1, -1, false, false),
+                is(List.of(new MemoryTable.RecordResult(1, Map.of("a", 3)),
+                        new MemoryTable.RecordResult(3, Map.of("a", 4)))));
+        assertThat(scanAll(memoryTable, List.of("k", "b"), false),
+                is(List.of(new MemoryTable.RecordResult(1, Map.of("k", 1)),
+                        new MemoryTable.RecordResult(3, Map.of("k", 3)),
+                        new MemoryTable.RecordResult(4, Map.of("k", 4, "b", 1)))));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        var memoryTable = this.createMemoryTable("test");
+        var schema = new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "INT32")));
+        memoryTable.update(schema, IntStream.range(0, 2500)
+                .mapToObj(i -> Map.of("k", Integer.toHexString(i)))
+                .collect(Collectors.toList()));
+        var entries = new ArrayList<Wal.WalEntry>();
+        var executor = Executors.newSingleThreadExecutor();
+        memoryTable.lock(true);
+        try {
+            var snapshot = memoryTable.snapshot();
+            entries.add(snapshot.next());
+            // entries are built as they are iterated, from the table as it was when the reader came
+            executor.submit(() -> memoryTable.update(schema, List.of(Map.of("k", "5000"))))
+                    .get(10, TimeUnit.SECONDS);
+            snapshot.forEachRemaining(entries::add);
+        } finally {
+            memoryTable.unlock(true);
+            executor.shutdownNow();
+        }
+        assertThat(entries.stream().map(Wal.WalEntry::getRecordsCount).collect(Collectors.toList()),
+                is(List.of(1000, 1000, 500)));
+        assertThat(entries.stream().map(Wal.WalEntry::hasTableSchema).collect(Collectors.toList()),
+                is(List.of(true, false, false)));
+
+        var empty = this.createMemoryTable("empty");
+        empty.update(schema, List.of(Map.of("k", "0", "-", "1")));
+        entries.clear();
+        empty.snapshot().forEachRemaining(entries::add);
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).hasTableSchema(), is(true));
+    }
+
     @Nested
     public class UpdateTest {
 
@@ -103,7 +208,7 @@ public class MemoryTableImplTest {
 
         @BeforeEach
         public void setUp() {
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
         }
 
         @Test
@@ -305,7 +410,7 @@ public class MemoryTableImplTest {
 
         @Test
         public void testUpdateAllKeyColumnTypes() {
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "BOOL"))),
                     List.of(Map.of("k", "1")));
@@ -313,7 +418,7 @@ public class MemoryTableImplTest {
                     scanAll(this.memoryTable, List.of("k"), false),
                     contains(new MemoryTable.RecordResult(true, Map.of("k", true))));
 
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "INT8"))),
                     List.of(Map.of("k", "10")));
@@ -321,7 +426,7 @@ public class MemoryTableImplTest {
                     scanAll(this.memoryTable, List.of("k"), false),
                     contains(new MemoryTable.RecordResult((byte) 16, Map.of("k", (byte) 16))));
 
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "INT16"))),
                     List.of(Map.of("k", "1000")));
@@ -330,7 +435,7 @@ public class MemoryTableImplTest {
                     contains(new MemoryTable.RecordResult(Short.parseShort("1000", 16),
                             Map.of("k", Short.parseShort("1000", 16)))));
 
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "INT32"))),
                     List.of(Map.of("k", "100000")));
@@ -339,7 +444,7 @@ public class MemoryTableImplTest {
                     contains(new MemoryTable.RecordResult(Integer.parseInt("100000", 16),
                             Map.of("k", Integer.parseInt("100000", 16)))));
 
-            this.memoryTable = new MemoryTableImpl("", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "INT64"))),
                     List.of(Map.of("k", "10000000")));
@@ -348,7 +453,7 @@ public class MemoryTableImplTest {
                     contains(new MemoryTable.RecordResult(Long.parseLong("10000000", 16),
                             Map.of("k", Long.parseLong("10000000", 16)))));
 
-            this.memoryTable = new MemoryTableImpl("", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "FLOAT32"))),
                     List.of(Map.of("k", Integer.toHexString(Float.floatToIntBits(1.1f)))));
@@ -356,7 +461,7 @@ public class MemoryTableImplTest {
                     contains(new MemoryTable.RecordResult(1.1f,
                             Map.of("k", 1.1f))));
 
-            this.memoryTable = new MemoryTableImpl("", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "FLOAT64"))),
                     List.of(Map.of("k", Long.toHexString(Double.doubleToLongBits(1.1)))));
@@ -364,7 +469,7 @@ public class MemoryTableImplTest {
                     contains(new MemoryTable.RecordResult(1.1,
                             Map.of("k", 1.1))));
 
-            this.memoryTable = new MemoryTableImpl("", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("");
             this.memoryTable.update(
                     new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "BYTES"))),
                     List.of(Map.of("k", Base64.getEncoder().encodeToString("test".getBytes(StandardCharsets.UTF_8)))));
@@ -422,6 +527,63 @@ public class MemoryTableImplTest {
             assertThat("records", scanAll(this.memoryTable, List.of("k"), false), empty());
         }
 
+        @Test
+        public void testUpdatePersistFailure() throws IOException {
+            MemoryTableImplTest.this.walManager.terminate();
+            var bufferManager = new SwByteBufferManager();
+            var objectStore = Mockito.spy(new ObjectStore(bufferManager,
+                    new StorageAccessServiceFile(MemoryTableImplTest.this.rootDir.getAbsolutePath())));
+            var failing = new AtomicBoolean();
+            var names = new ArrayList<String>();
+            doAnswer(invocation -> {
+                names.add(invocation.getArgument(0));
+                if (failing.get()) {
+                    throw new IOException();
+                }
+                return invocation.callRealMethod();
+            }).when(objectStore).put(anyString(), any());
+            MemoryTableImplTest.this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 1,
+                    2);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
+            var schema = new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "STRING")));
+            this.memoryTable.update(schema, List.of(Map.of("k", "a"))).join();
+            failing.set(true);
+            var e = assertThrows(CompletionException.class,
+                    () -> this.memoryTable.update(null, List.of(Map.of("k", "b"))).join());
+            assertThat(e.getCause(), instanceOf(SwProcessException.class));
+            // the table is fenced until it is persisted again
+            assertThrows(SwProcessException.class, () -> scanAll(this.memoryTable, List.of("k"), false));
+            assertThrows(SwProcessException.class,
+                    () -> this.memoryTable.update(null, List.of(Map.of("k", "c"))));
+            // registering a reader never fails, so a reader is never left registered
+            this.memoryTable.lock(true);
+            this.memoryTable.unlock(true);
+            assertThrows(SwProcessException.class, () -> this.memoryTable.recover());
+            failing.set(false);
+            // readers fail fast instead of persisting the table themselves
+            assertThrows(SwProcessException.class, () -> scanAll(this.memoryTable, List.of("k"), false));
+            this.memoryTable.recover();
+            assertThat(scanAll(this.memoryTable, List.of("k"), false).stream()
+                            .map(MemoryTable.RecordResult::getKey)
+                            .collect(Collectors.toList()),
+                    is(List.of("a", "b")));
+            // a failed log file is never overwritten
+            assertThat(names, is(names.stream().distinct().collect(Collectors.toList())));
+
+            MemoryTableImplTest.this.walManager.terminate();
+            MemoryTableImplTest.this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 1,
+                    2);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
+            var it = MemoryTableImplTest.this.walManager.readAll();
+            while (it.hasNext()) {
+                this.memoryTable.updateFromWal(it.next());
+            }
+            assertThat(scanAll(this.memoryTable, List.of("k"), false).stream()
+                            .map(MemoryTable.RecordResult::getKey)
+                            .collect(Collectors.toList()),
+                    is(List.of("a", "b")));
+        }
+
         @Test
         public void testUpdateFromWal() throws IOException {
             this.memoryTable.update(
@@ -461,8 +623,9 @@ public class MemoryTableImplTest {
             SwBufferManager bufferManager = new SwByteBufferManager();
             var objectStore = new ObjectStore(bufferManager,
                     new StorageAccessServiceFile(MemoryTableImplTest.this.rootDir.getAbsolutePath()));
-            MemoryTableImplTest.this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 3);
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            MemoryTableImplTest.this.walManager = new WalManager(objectStore, bufferManager, 256, 4096, "test/", 10, 3,
+                    2);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             var it = MemoryTableImplTest.this.walManager.readAll();
             while (it.hasNext()) {
                 this.memoryTable.updateFromWal(it.next());
@@ -495,6 +658,10 @@ public class MemoryTableImplTest {
 
         private MemoryTableImpl memoryTable;
 
+        private TableSchemaDesc schema;
+
+        private List<Map<String, String>> records;
+
         @BeforeEach
         public void setUp() {
             var data = new Object[][]{
@@ -542,7 +709,7 @@ public class MemoryTableImplTest {
                                 return new MemoryTable.RecordResult(Integer.toHexString(i), values);
                             })
                     .collect(Collectors.toList());
-            var schema = new TableSchemaDesc("key", List.of(
+            this.schema = new TableSchemaDesc("key", List.of(
                     new ColumnSchemaDesc("key", "INT32"),
                     new ColumnSchemaDesc("a", "BOOL"),
                     new ColumnSchemaDesc("b", "INT8"),
@@ -554,18 +721,18 @@ public class MemoryTableImplTest {
                     new ColumnSchemaDesc("h", "STRING"),
                     new ColumnSchemaDesc("i", "BYTES"),
                     new ColumnSchemaDesc("z", "UNKNOWN")));
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
-            this.memoryTable.update(schema,
-                    records.stream()
-                            .map(r -> r.getValues().entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey,
-                                    entry -> ColumnType.getColumnTypeByName(
-                                                    schema.getColumnSchemaList().stream()
-                                                            .filter(col -> col.getName().equals(entry.getKey()))
-                                                            .findFirst()
-                                                            .orElseThrow()
-                                                            .getType())
-                                            .encode(entry.getValue(), false))))
-                            .collect(Collectors.toList()));
+            this.records = records.stream()
+                    .map(r -> r.getValues().entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey,
+                            entry -> ColumnType.getColumnTypeByName(
+                                            this.schema.getColumnSchemaList().stream()
+                                                    .filter(col -> col.getName().equals(entry.getKey()))
+                                                    .findFirst()
+                                                    .orElseThrow()
+                                                    .getType())
+                                    .encode(entry.getValue(), false))))
+                    .collect(Collectors.toList());
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
+            this.memoryTable.update(this.schema, this.records);
         }
 
         private final Map<Class<?>, ColumnType> typeMap = Map.of(
@@ -596,22 +763,306 @@ public class MemoryTableImplTest {
             return new TableQueryFilter.Constant(this.getColumnType(value), value);
         }
 
+        @Test
+        public void testQueryWithIndexes() {
+            var indexed = MemoryTableImplTest.this.createMemoryTable("indexed");
+            indexed.update(this.schema, this.records);
+            // indexes are built for existing records
+            indexed.update(new TableSchemaDesc(null, List.of(
+                            new ColumnSchemaDesc("a", "BOOL", "HASH"),
+                            new ColumnSchemaDesc("b", "INT8", "SORTED"),
+                            new ColumnSchemaDesc("d", "INT32", "SORTED"),
+                            new ColumnSchemaDesc("e", "UNKNOWN", "HASH"),
+                            new ColumnSchemaDesc("f", "FLOAT32", "SORTED"),
+                            new ColumnSchemaDesc("g", "FLOAT64", "HASH"),
+                            new ColumnSchemaDesc("h", "STRING", "SORTED"),
+                            new ColumnSchemaDesc("i", "BYTES", "HASH"),
+                            new ColumnSchemaDesc("z", "UNKNOWN", "SORTED"))),
+                    null);
+            assertThat(indexed.getSchema().getColumnSchemaByName("e").getType(), is(ColumnType.INT64));
+            // indexes are updated together with records
+            var updates = List.of(
+                    Map.of("key", "1", "b", "9", "d", "9", "h", "9"),
+                    Map.of("key", "2", "-", "1"),
+                    Map.of("key", "a", "a", "1", "b", "3", "f", Integer.toHexString(Float.floatToIntBits(3f))),
+                    Map.of("key", "3", "g", Long.toHexString(Double.doubleToLongBits(5.0)), "i", "Mw=="));
+            indexed.update(null, updates);
+            this.memoryTable.update(null, updates);
+
+            var filters = new ArrayList<TableQueryFilter>();
+            var constants = Map.of(
+                    "a", List.<Object>of(true),
+                    "b", List.<Object>of((byte) 3, (byte) 9),
+                    "d", List.<Object>of(0, 5, 9),
+                    "e", List.<Object>of(6L),
+                    "f", List.<Object>of(3f, 0f),
+                    "g", List.<Object>of(5.0),
+                    "h", List.<Object>of("3", "9"),
+                    "i", List.<Object>of(ByteBuffer.wrap("3".getBytes(StandardCharsets.UTF_8))),
+                    "z", List.<Object>of(1));
+            for (var entry : constants.entrySet()) {
+                for (var value : entry.getValue()) {
+                    for (var op : List.of(TableQueryFilter.Operator.EQUAL,
+                            TableQueryFilter.Operator.LESS,
+                            TableQueryFilter.Operator.LESS_EQUAL,
+                            TableQueryFilter.Operator.GREATER,
+                            TableQueryFilter.Operator.GREATER_EQUAL)) {
+                        var type = entry.getKey().equals("z") ? ColumnType.UNKNOWN : this.getColumnType(value);
+                        filters.add(TableQueryFilter.builder()
+                                .operator(op)
+                                .operands(List.of(new TableQueryFilter.Column(entry.getKey()),
+                                        new TableQueryFilter.Constant(type, value)))
+                                .build());
+                        filters.add(TableQueryFilter.builder()
+                                .operator(op)
+                                .operands(List.of(new TableQueryFilter.Constant(type, value),
+                                        new TableQueryFilter.Column(entry.getKey())))
+                                .build());
+                    }
+                }
+            }
+            for (var entry : constants.entrySet()) {
+                var operands = new ArrayList<>();
+                operands.add(new TableQueryFilter.Column(entry.getKey()));
+                for (var value : entry.getValue()) {
+                    var type = entry.getKey().equals("z") ? ColumnType.UNKNOWN : this.getColumnType(value);
+                    operands.add(new TableQueryFilter.Constant(type, value));
+                }
+                filters.add(TableQueryFilter.builder()
+                        .operator(TableQueryFilter.Operator.IN)
+                        .operands(operands)
+                        .build());
+            }
+            for (var prefix : List.of("", "3", "9", "a")) {
+                filters.add(TableQueryFilter.builder()
+                        .operator(TableQueryFilter.Operator.PREFIX)
+                        .operands(List.of(new TableQueryFilter.Column("h"), this.createConstant(prefix)))
+                        .build());
+            }
+            var count = filters.size();
+            for (int i = 0; i + 1 < count; ++i) {
+                for (var op : List.of(TableQueryFilter.Operator.AND, TableQueryFilter.Operator.OR)) {
+                    filters.add(TableQueryFilter.builder()
+                            .operator(op)
+                            .operands(List.of(filters.get(i), filters.get(i + 1)))
+                            .build());
+                }
+                filters.add(TableQueryFilter.builder()
+                        .operator(TableQueryFilter.Operator.AND)
+                        .operands(List.of(filters.get(i), TableQueryFilter.builder()
+                                .operator(TableQueryFilter.Operator.NOT)
+                                .operands(List.of(filters.get(count - i - 1)))
+                                .build()))
+                        .build());
+            }
+            var columns = Map.of("key", "key", "b", "b", "d", "d", "h", "h");
+            for (var filter : filters) {
+                assertThat(filter.toString(),
+                        indexed.query(columns, null, filter, -1, -1, false, false),
+                        is(this.memoryTable.query(columns, null, filter, -1, -1, false, false)));
+            }
+            // pages of ordered queries are narrowed by the sorted index of the first orderBy column
+            for (var orderBy : List.of(List.of(new OrderByDesc("d")),
+                    List.of(new OrderByDesc("h"), new OrderByDesc("b", true)))) {
+                for (var filter : Arrays.asList(null, filters.get(0))) {
+                    var results = new ArrayList<MemoryTable.RecordResult>();
+                    String lastKey = null;
+                    for (; ; ) {
+                        var page = indexed.query(columns, orderBy, filter, -1, 2, lastKey, false, false);
+                        if (page.isEmpty()) {
+                            break;
+                        }
+                        results.addAll(page);
+                        var records = new ArrayList<Map<String, Object>>();
+                        indexed.query(orderBy, filter, -1, 2, lastKey, records::add);
+                        lastKey = indexed.encodeLastKey(orderBy, records.get(records.size() - 1));
+                    }
+                    assertThat(orderBy + " " + filter,
+                            results,
+                            is(this.memoryTable.query(columns, orderBy, filter, -1, -1, false, false)));
+                }
+            }
+        }
+
+        @Test
+        public void testQueryPages() {
+            var columns = Map.of("key", "key", "a", "a", "b", "b", "h", "h");
+            var filter = TableQueryFilter.builder()
+                    .operator(TableQueryFilter.Operator.GREATER)
+                    .operands(List.of(new TableQueryFilter.Column("d"), this.createConstant(2)))
+                    .build();
+            var orderBys = new ArrayList<List<OrderByDesc>>();
+            orderBys.add(null);
+            orderBys.add(List.of(new OrderByDesc("a")));
+            orderBys.add(List.of(new OrderByDesc("a", true), new OrderByDesc("b")));
+            orderBys.add(List.of(new OrderByDesc("h", true)));
+            orderBys.add(List.of(new OrderByDesc("d"), new OrderByDesc("a")));
+            orderBys.add(List.of(new OrderByDesc("h")));
+            orderBys.add(List.of());
+            orderBys.add(List.of(new OrderByDesc("z")));
+            for (var orderBy : orderBys) {
+                for (var f : Arrays.asList(null, filter)) {
+                    var all = this.memoryTable.query(columns, orderBy, f, -1, -1, false, false);
+                    for (int start = 0; start < 12; ++start) {
+                        for (int limit = 0; limit < 12; ++limit) {
+                            assertThat(orderBy + " " + f + " " + start + " " + limit,
+                                    this.memoryTable.query(columns, orderBy, f, start, limit, false, false),
+                                    is(all.subList(Math.min(start, all.size()),
+                                            Math.min(start + limit, all.size()))));
+                        }
+                    }
+                    for (int limit = 1; limit < 4; ++limit) {
+                        var results = new ArrayList<MemoryTable.RecordResult>();
+                        String lastKey = null;
+                        for (; ; ) {
+                            var page = this.memoryTable.query(columns, orderBy, f, -1, limit, lastKey, false, false);
+                            if (page.isEmpty()) {
+                                break;
+                            }
+                            results.addAll(page);
+                            var records = new ArrayList<Map<String, Object>>();
+                            this.memoryTable.query(orderBy, f, -1, limit, lastKey, records::add);
+                            lastKey = this.memoryTable.encodeLastKey(orderBy, records.get(records.size() - 1));
+                        }
+                        assertThat(orderBy + " " + f + " " + limit, results, is(all));
+                    }
+                    // the start offset is applied after the last key
+                    var index = all.stream().map(MemoryTable.RecordResult::getKey).collect(Collectors.toList())
+                            .indexOf(4);
+                    var records = new ArrayList<Map<String, Object>>();
+                    this.memoryTable.query(orderBy, null, -1, -1, null, records::add);
+                    var lastKey = this.memoryTable.encodeLastKey(orderBy, records.stream()
+                            .filter(record -> record.get("key").equals(4))
+                            .findFirst()
+                            .orElseThrow());
+                    assertThat(this.memoryTable.query(columns, orderBy, f, 1, -1, lastKey, false, false),
+                            is(all.subList(Math.min(index + 2, all.size()), all.size())));
+                }
+            }
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.query(columns, List.of(new OrderByDesc("a")), null, -1, -1, "f", false,
+                            false));
+            assertThat(this.memoryTable.query(columns, null, null, -1, -1, "f", false, false), empty());
+        }
+
         @Test
         public void testQueryInitialEmptyTable() {
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             var results = this.memoryTable.query(Map.of("a", "a"), null, null, -1, -1, false, false);
             assertThat(results, empty());
         }
 
         @Test
         public void testQueryEmptyTableWithSchema() {
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             this.memoryTable.update(new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "STRING"))),
                     List.of(Map.of("k", "0", "-", "1")));
             var results = this.memoryTable.query(Map.of("k", "k"), null, null, -1, -1, false, false);
             assertThat(results, empty());
         }
 
+        @Test
+        public void testAggregate() {
+            var result = this.memoryTable.aggregate(List.of("a"),
+                    List.of(new AggregateDesc(AggregateDesc.Function.COUNT, null),
+                            new AggregateDesc(AggregateDesc.Function.COUNT, "b"),
+                            new AggregateDesc(AggregateDesc.Function.SUM, "b", "sum_b"),
+                            new AggregateDesc(AggregateDesc.Function.AVG, "g"),
+                            new AggregateDesc(AggregateDesc.Function.MIN, "h"),
+                            new AggregateDesc(AggregateDesc.Function.MAX, "h")),
+                    null);
+            assertThat(result.getColumnTypeMap(), is(Map.of("a", ColumnType.BOOL,
+                    "count(*)", ColumnType.INT64,
+                    "count(b)", ColumnType.INT64,
+                    "sum_b", ColumnType.INT64,
+                    "avg(g)", ColumnType.FLOAT64,
+                    "min(h)", ColumnType.STRING,
+                    "max(h)", ColumnType.STRING)));
+            assertThat(result.getColumnTypeMap().keySet(),
+                    contains("a", "count(*)", "count(b)", "sum_b", "avg(g)", "min(h)", "max(h)"));
+            var records = result.getRecords().stream()
+                    .map(MemoryTable.RecordResult::getValues)
+                    .collect(Collectors.toList());
+            assertThat(records.size(), is(3));
+            // groups are ordered by the groupBy values, null first
+            assertThat(records.get(0).get("a"), nullValue());
+            assertThat(records.get(0).get("count(*)"), is(1L));
+            assertThat(records.get(0).get("sum_b"), is(0L));
+            assertThat(records.get(0).get("avg(g)"), is(5.0));
+            assertThat(records.get(0).get("min(h)"), is("6"));
+            assertThat(records.get(1).get("a"), is(false));
+            assertThat(records.get(1).get("count(*)"), is(5L));
+            assertThat(records.get(1).get("count(b)"), is(4L));
+            assertThat(records.get(1).get("sum_b"), is(16L));
+            assertThat(records.get(1).get("avg(g)"), is(4.0));
+            assertThat(records.get(1).get("min(h)"), is("1"));
+            assertThat(records.get(1).get("max(h)"), is("7"));
+            assertThat(records.get(2).get("a"), is(true));
+            assertThat(records.get(2).get("count(*)"), is(4L));
+            assertThat(records.get(2).get("sum_b"), is(20L));
+            assertThat(records.get(2).get("avg(g)"), is(11.0 / 3));
+            assertThat(records.get(2).get("min(h)"), is("0"));
+            assertThat(records.get(2).get("max(h)"), is("8"));
+            assertThat(result.getRecords().get(2).getKey(), is(List.of(true)));
+        }
+
+        @Test
+        public void testAggregateWithFilter() {
+            var filter = TableQueryFilter.builder()
+                    .operator(TableQueryFilter.Operator.GREATER)
+                    .operands(List.of(new TableQueryFilter.Column("b"), this.createConstant(2)))
+                    .build();
+            var records = this.memoryTable.aggregate(null,
+                    List.of(new AggregateDesc(AggregateDesc.Function.COUNT, null),
+                            new AggregateDesc(AggregateDesc.Function.COUNT_DISTINCT, "a"),
+                            new AggregateDesc(AggregateDesc.Function.SUM, "g"),
+                            new AggregateDesc(AggregateDesc.Function.MAX, "f"),
+                            new AggregateDesc(AggregateDesc.Function.MIN, "i"),
+                            new AggregateDesc(AggregateDesc.Function.SUM, "z")),
+                    filter).getRecords();
+            assertThat(records.size(), is(1));
+            var values = records.get(0).getValues();
+            assertThat(values.get("count(*)"), is(6L));
+            assertThat(values.get("count_distinct(a)"), is(2L));
+            assertThat(values.get("sum(g)"), is(14.0));
+            assertThat(values.get("max(f)"), is(8f));
+            assertThat(values.get("min(i)"), is(ByteBuffer.wrap("0".getBytes(StandardCharsets.UTF_8))));
+            assertThat(values.get("sum(z)"), nullValue());
+
+            // no groupBy columns always result in one group
+            filter.setOperands(List.of(new TableQueryFilter.Column("b"), this.createConstant(100)));
+            values = this.memoryTable.aggregate(List.of(),
+                            List.of(new AggregateDesc(AggregateDesc.Function.COUNT, null),
+                                    new AggregateDesc(AggregateDesc.Function.AVG, "b")),
+                            filter)
+                    .getRecords().get(0).getValues();
+            assertThat(values.get("count(*)"), is(0L));
+            assertThat(values.get("avg(b)"), nullValue());
+        }
+
+        @Test
+        public void testAggregateInvalid() {
+            var count = new AggregateDesc(AggregateDesc.Function.COUNT, null);
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(List.of("x"), List.of(count), null));
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(List.of("a", "a"), List.of(count), null));
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(null, List.of(count, count), null));
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(null,
+                            List.of(new AggregateDesc(AggregateDesc.Function.SUM, "h")), null));
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(null,
+                            List.of(new AggregateDesc(AggregateDesc.Function.AVG, "a")), null));
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(null,
+                            List.of(new AggregateDesc(AggregateDesc.Function.MAX, null)), null));
+            assertThrows(SwValidationException.class,
+                    () -> this.memoryTable.aggregate(null,
+                            List.of(new AggregateDesc(AggregateDesc.Function.MIN, "x")), null));
+        }
+
         @Test
         public void testQueryColumnAliases() {
             var results = this.memoryTable.query(Map.of("a", "x", "d", "y"), null, null, -1, -1, false, false);
@@ -2006,6 +2457,183 @@ public class MemoryTableImplTest {
                             new MemoryTable.RecordResult(6, Map.of("a", true, "d", 8)))));
         }
 
+        @Test
+        public void testQueryFilterNotEqual() {
+            var columns = Map.of("d", "d");
+            var results = this.memoryTable.query(
+                    columns,
+                    List.of(new OrderByDesc("d")),
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.NOT_EQUAL)
+                            .operands(List.of(createConstant(5), new TableQueryFilter.Column("d")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false);
+            assertThat(results,
+                    is(List.of(new MemoryTable.RecordResult(7, Map.of()),
+                            new MemoryTable.RecordResult(8, Map.of("d", 0)),
+                            new MemoryTable.RecordResult(9, Map.of("d", 1)),
+                            new MemoryTable.RecordResult(0, Map.of("d", 2)),
+                            new MemoryTable.RecordResult(1, Map.of("d", 3)),
+                            new MemoryTable.RecordResult(2, Map.of("d", 4)),
+                            new MemoryTable.RecordResult(4, Map.of("d", 6)),
+                            new MemoryTable.RecordResult(5, Map.of("d", 7)),
+                            new MemoryTable.RecordResult(6, Map.of("d", 8)))));
+
+            results = this.memoryTable.query(
+                    columns,
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.NOT_EQUAL)
+                            .operands(new ArrayList<>() {
+                                {
+                                    add(new TableQueryFilter.Column("a"));
+                                    add(createConstant(null));
+                                }
+                            })
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false);
+            assertThat(results.stream().map(MemoryTable.RecordResult::getKey).collect(Collectors.toList()),
+                    is(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9)));
+        }
+
+        @Test
+        public void testQueryFilterIn() {
+            var results = this.memoryTable.query(
+                    Map.of("d", "d"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.IN)
+                            .operands(new ArrayList<>() {
+                                {
+                                    add(new TableQueryFilter.Column("d"));
+                                    add(createConstant(0));
+                                    add(createConstant(5L));
+                                    add(createConstant(9));
+                                    add(createConstant(null));
+                                }
+                            })
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false);
+            assertThat(results,
+                    is(List.of(new MemoryTable.RecordResult(3, Map.of("d", 5)),
+                            new MemoryTable.RecordResult(7, Map.of()),
+                            new MemoryTable.RecordResult(8, Map.of("d", 0)))));
+
+            results = this.memoryTable.query(
+                    Map.of("f", "f", "h", "h"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.OR)
+                            .operands(List.of(
+                                    TableQueryFilter.builder()
+                                            .operator(TableQueryFilter.Operator.IN)
+                                            .operands(List.of(new TableQueryFilter.Column("f"),
+                                                    createConstant(2f),
+                                                    createConstant(7.0)))
+                                            .build(),
+                                    TableQueryFilter.builder()
+                                            .operator(TableQueryFilter.Operator.IN)
+                                            .operands(List.of(new TableQueryFilter.Column("h"),
+                                                    createConstant("0")))
+                                            .build()))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false);
+            assertThat(results,
+                    is(List.of(new MemoryTable.RecordResult(3, Map.of("f", 7f)),
+                            new MemoryTable.RecordResult(4, Map.of("f", 8f, "h", "0")),
+                            new MemoryTable.RecordResult(8, Map.of("f", 2f, "h", "4")))));
+
+            assertThrows(SwValidationException.class, () -> this.memoryTable.query(
+                    Map.of("d", "d"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.IN)
+                            .operands(List.of(createConstant(0), new TableQueryFilter.Column("d")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false));
+            assertThrows(SwValidationException.class, () -> this.memoryTable.query(
+                    Map.of("d", "d"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.IN)
+                            .operands(List.of(new TableQueryFilter.Column("d"), createConstant("0")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false));
+        }
+
+        @Test
+        public void testQueryFilterPrefix() {
+            this.memoryTable.update(null, List.of(Map.of("key", "a", "h", "30"), Map.of("key", "b", "h", "4")));
+            var results = this.memoryTable.query(
+                    Map.of("h", "h"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.PREFIX)
+                            .operands(List.of(new TableQueryFilter.Column("h"), createConstant("3")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false);
+            assertThat(results,
+                    is(List.of(new MemoryTable.RecordResult(7, Map.of("h", "3")),
+                            new MemoryTable.RecordResult(10, Map.of("h", "30")))));
+
+            results = this.memoryTable.query(
+                    Map.of("h", "h"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.PREFIX)
+                            .operands(List.of(new TableQueryFilter.Column("h"), createConstant("")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false);
+            assertThat(results.size(), is(11));
+
+            assertThrows(SwValidationException.class, () -> this.memoryTable.query(
+                    Map.of("d", "d"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.PREFIX)
+                            .operands(List.of(new TableQueryFilter.Column("d"), createConstant("3")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false));
+            assertThrows(SwValidationException.class, () -> this.memoryTable.query(
+                    Map.of("h", "h"),
+                    null,
+                    TableQueryFilter.builder()
+                            .operator(TableQueryFilter.Operator.PREFIX)
+                            .operands(List.of(createConstant("3"), new TableQueryFilter.Column("h")))
+                            .build(),
+                    -1,
+                    -1,
+                    false,
+                    false));
+        }
+
         @Test
         public void testQueryStartLimit() {
             var columns = Map.of("d", "d");
@@ -2062,14 +2690,14 @@ public class MemoryTableImplTest {
 
         @Test
         public void testScanInitialEmptyTable() {
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             var results = this.memoryTable.scan(Map.of("a", "a"), null, false, null, false, 1000, false);
             assertThat("empty", results, empty());
         }
 
         @Test
         public void testScanEmptyTableWithSchema() {
-            this.memoryTable = new MemoryTableImpl("test", MemoryTableImplTest.this.walManager);
+            this.memoryTable = MemoryTableImplTest.this.createMemoryTable("test");
             this.memoryTable.update(new TableSchemaDesc("k", List.of(new ColumnSchemaDesc("k", "STRING"))),
                     List.of(Map.of("k", "0", "-", "1")));
             var results = this.memoryTable.scan(Map.of("a", "a"), null, false, null, false, 1000, false);
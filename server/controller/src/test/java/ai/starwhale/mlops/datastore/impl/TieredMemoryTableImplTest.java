@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.datastore.impl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
+import ai.starwhale.mlops.datastore.TableSchema;
+import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs all test cases of {@link MemoryTableImplTest} against a tiered table that spills after every change, so that
+ * every record is read back from segment files.
+ */
+public class TieredMemoryTableImplTest extends MemoryTableImplTest {
+
+    @TempDir
+    private File spillDir;
+
+    private int tableCount;
+
+    private static class SpillingRecordStore extends TieredRecordStore {
+
+        SpillingRecordStore(File dir) {
+            super(dir);
+        }
+
+        @Override
+        public void put(Object key, Map<String, Object> record) {
+            super.put(key, record);
+            this.spill();
+        }
+
+        @Override
+        public void remove(Object key) {
+            super.remove(key);
+            this.spill();
+        }
+    }
+
+    @Override
+    protected MemoryTableImpl createMemoryTable(String tableName) {
+        return new MemoryTableImpl(tableName,
+                this.walManager,
+                new SpillingRecordStore(new File(this.spillDir, String.valueOf(this.tableCount++))));
+    }
+
+    @Test
+    public void testSpillAndCompact() {
+        var schema = new TableSchema(new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT32"),
+                        new ColumnSchemaDesc("a", "STRING"),
+                        new ColumnSchemaDesc("b", "INT64"))));
+        var store = new TieredRecordStore(new File(this.spillDir, "t"));
+        store.setSchema(schema);
+        var expected = new TreeMap<Integer, Map<String, Object>>();
+        for (int i = 0; i < 20; ++i) {
+            for (int j = 0; j < 10000; ++j) {
+                int key = (j * 7 + i * 13) % 30000;
+                if (j % 5 == 0) {
+                    store.remove(key);
+                    expected.remove(key);
+                } else {
+                    var record = new HashMap<String, Object>();
+                    record.put("k", key);
+                    if (j % 2 == 0) {
+                        record.put("a", "a" + i);
+                    } else {
+                        record.put("b", (long) j);
+                    }
+                    store.put(key, new HashMap<>(record));
+                    expected.computeIfAbsent(key, k -> new HashMap<>()).putAll(record);
+                }
+            }
+            assertThat(store.getMemoryUsage() > 0, is(true));
+            store.spill();
+            assertThat(store.getMemoryUsage(), is(0L));
+            assertThat(store.getSegmentCount(), lessThanOrEqualTo(TieredRecordStore.MAX_SEGMENT_COUNT));
+        }
+        assertThat(ImmutableList.copyOf(store.values()), is(List.copyOf(expected.values())));
+        assertThat(ImmutableList.copyOf(store.values(100, false, 200, true)),
+                is(List.copyOf(expected.subMap(100, false, 200, true).values())));
+        assertThat(ImmutableList.copyOf(store.values(null, false, 50, false)),
+                is(List.copyOf(expected.headMap(50, false).values())));
+        assertThat(ImmutableList.copyOf(store.values(29000, true, null, false)),
+                is(expected.tailMap(29000, true).values().stream().collect(Collectors.toList())));
+        for (int key = 0; key < 30000; key += 7) {
+            assertThat(String.valueOf(key), store.get(key), is(expected.get(key)));
+        }
+    }
+
+    @Test
+    public void testIsEmpty() {
+        var schema = new TableSchema(new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT32"), new ColumnSchemaDesc("a", "STRING"))));
+        var store = new TieredRecordStore(new File(this.spillDir, "t"));
+        store.setSchema(schema);
+        assertThat(store.isEmpty(), is(true));
+        store.put(1, new HashMap<>(Map.of("k", 1, "a", "x")));
+        assertThat(store.isEmpty(), is(false));
+        store.remove(1);
+        assertThat("removed before spilled", store.isEmpty(), is(true));
+        store.put(1, new HashMap<>(Map.of("k", 1, "a", "x")));
+        store.spill();
+        assertThat("spilled", store.isEmpty(), is(false));
+        assertThat(store.get(1), is(Map.of("k", 1, "a", "x")));
+        store.remove(1);
+        assertThat(store.get(1), nullValue());
+        assertThat("hidden by a deletion", store.isEmpty(), is(false));
+        for (int i = 0; i < TieredRecordStore.MAX_SEGMENT_COUNT; ++i) {
+            store.remove(1);
+            store.spill();
+        }
+        assertThat(store.getSegmentCount(), is(1));
+        assertThat("deletions dropped by compaction", store.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testMemoryUsage() {
+        var schema = new TableSchema(new TableSchemaDesc("k",
+                List.of(new ColumnSchemaDesc("k", "INT32"), new ColumnSchemaDesc("a", "STRING"))));
+        var store = new TieredRecordStore(new File(this.spillDir, "t"));
+        store.setSchema(schema);
+        store.put(1, new HashMap<>(Map.of("k", 1, "a", "x")));
+        var usage = store.getMemoryUsage();
+        assertThat(usage > 0, is(true));
+        for (int i = 0; i < 100; ++i) {
+            store.put(1, new HashMap<>(Map.of("k", 1, "a", "y")));
+        }
+        assertThat("overwritten", store.getMemoryUsage(), is(usage));
+        store.put(2, new HashMap<>(Map.of("k", 2, "a", "x")));
+        assertThat(store.getMemoryUsage(), is(usage * 2));
+        store.remove(2);
+        assertThat("removed", store.getMemoryUsage(), is(usage));
+        store.spill();
+        assertThat(store.getMemoryUsage(), is(0L));
+        store.remove(1);
+        var deletionUsage = store.getMemoryUsage();
+        assertThat("deletion of a spilled record", deletionUsage > 0 && deletionUsage < usage, is(true));
+        store.put(1, new HashMap<>(Map.of("k", 1, "a", "x")));
+        assertThat("recreated", store.getMemoryUsage(), is(usage));
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.datastore.sharding;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.in;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ai.starwhale.mlops.api.DataStoreController;
+import ai.starwhale.mlops.api.protocol.datastore.ListTablesRequest;
+import ai.starwhale.mlops.api.protocol.datastore.QueryTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RebalanceRequest;
+import ai.starwhale.mlops.api.protocol.datastore.RecordDesc;
+import ai.starwhale.mlops.api.protocol.datastore.RecordListVo;
+import ai.starwhale.mlops.api.protocol.datastore.RecordValueDesc;
+import ai.starwhale.mlops.api.protocol.datastore.ScanTableRequest;
+import ai.starwhale.mlops.api.protocol.datastore.TableDesc;
+import ai.starwhale.mlops.api.protocol.datastore.TableNameListVo;
+import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
+import ai.starwhale.mlops.datastore.DataStore;
+import ai.starwhale.mlops.datastore.ObjectStore;
+import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.Wal;
+import ai.starwhale.mlops.datastore.WalManager;
+import ai.starwhale.mlops.exception.SwValidationException;
+import ai.starwhale.mlops.memory.impl.SwByteBufferManager;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Runs several data store nodes in process, which share the same object store and call each other directly.
+ */
+public class DataStoreShardingTest {
+
+    private static final TableSchemaDesc SCHEMA = new TableSchemaDesc("k",
+            List.of(new ColumnSchemaDesc("k", "STRING"), new ColumnSchemaDesc("a", "INT32")));
+
+    private static final int PROJECT_COUNT = 20;
+
+    private static final String SECRET = "secret";
+
+    @TempDir
+    private File rootDir;
+
+    private SwByteBufferManager bufferManager;
+
+    private ObjectStore objectStore;
+
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    private class Node {
+
+        final String name;
+        final DataStore dataStore;
+        final DataStoreSharding sharding;
+        final DataStoreController controller = new DataStoreController();
+
+        Node(String name, List<String> members) throws IOException {
+            this.name = name;
+            this.dataStore = new DataStore(new WalManager(DataStoreShardingTest.this.objectStore,
+                    DataStoreShardingTest.this.bufferManager,
+                    256,
+                    4096,
+                    "wal/" + name + "/",
+                    10,
+                    3,
+                    2), false, 0, "", 2);
+            this.sharding = new DataStoreSharding(this.dataStore, members, name, "", SECRET,
+                    node -> new InProcessShard(DataStoreShardingTest.this.nodes.get(node).controller));
+            this.controller.setDataStore(this.dataStore);
+            this.controller.setSharding(this.sharding);
+        }
+    }
+
+    /**
+     * Calls the controller of another node as a forwarded request.
+     */
+    private static class InProcessShard implements DataStoreShard {
+
+        private final DataStoreController controller;
+
+        InProcessShard(DataStoreController controller) {
+            this.controller = controller;
+        }
+
+        private static <T> T forward(Supplier<T> action) {
+            return withForwardedHeader(new ForwardingToken(SECRET).sign(), action);
+        }
+
+        @Override
+        public TableNameListVo listTables(ListTablesRequest request) {
+            return forward(() -> this.controller.listTables(request).getBody().getData());
+        }
+
+        @Override
+        public void updateTable(UpdateTableRequest request) {
+            forward(() -> this.controller.updateTable(request));
+        }
+
+        @Override
+        public void updateTable(Wal.WalEntry entry) {
+            forward(() -> {
+                try {
+                    return this.controller.updateTableBinary(new ByteArrayInputStream(entry.toByteArray()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        @Override
+        public RecordListVo queryTable(QueryTableRequest request) {
+            return forward(() -> this.controller.queryTable(request).getBody().getData());
+        }
+
+        @Override
+        public InputStream queryTableStream(QueryTableRequest request) {
+            return forward(() -> {
+                var output = new ByteArrayOutputStream();
+                try {
+                    this.controller.queryTableStream(request).getBody().writeTo(output);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return new ByteArrayInputStream(output.toByteArray());
+            });
+        }
+
+        @Override
+        public RecordListVo scanTable(ScanTableRequest request) {
+            return forward(() -> this.controller.scanTable(request).getBody().getData());
+        }
+
+        @Override
+        public void handOff(RebalanceRequest request) {
+            forward(() -> this.controller.handOff(request));
+        }
+
+        @Override
+        public void commit(RebalanceRequest request) {
+            forward(() -> this.controller.commit(request));
+        }
+
+        @Override
+        public void finish(RebalanceRequest request) {
+            forward(() -> this.controller.finish(request));
+        }
+    }
+
+    private static <T> T withForwardedHeader(String header, Supplier<T> action) {
+        var previous = RequestContextHolder.getRequestAttributes();
+        var request = new MockHttpServletRequest();
+        request.addHeader(DataStoreSharding.FORWARDED_HEADER, header);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        try {
+            return action.get();
+        } finally {
+            RequestContextHolder.setRequestAttributes(previous);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        this.bufferManager = new SwByteBufferManager();
+        this.objectStore = new ObjectStore(this.bufferManager,
+                new StorageAccessServiceFile(this.rootDir.getAbsolutePath()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.stopNodes();
+    }
+
+    private void startNodes(List<String> names, List<String> members) throws IOException {
+        for (var name : names) {
+            this.nodes.put(name, new Node(name, members));
+        }
+    }
+
+    private void stopNodes() {
+        for (var node : this.nodes.values()) {
+            node.dataStore.terminate();
+        }
+        this.nodes.clear();
+    }
+
+    private static List<String> getTableNames() {
+        return IntStream.range(0, PROJECT_COUNT)
+                .boxed()
+                .flatMap(i -> List.of("project/" + i + "/eval/results", "project/" + i + "/eval/summary").stream())
+                .collect(Collectors.toList());
+    }
+
+    private static List<Map<String, String>> getRecords(String tableName) {
+        var value = Integer.toHexString(tableName.hashCode() & 0xffff);
+        return List.of(Map.of("k", "0", "a", value), Map.of("k", "1", "a", value));
+    }
+
+    private void update(String node, String tableName, List<Map<String, String>> records) {
+        var request = new UpdateTableRequest();
+        request.setTableName(tableName);
+        request.setTableSchemaDesc(SCHEMA);
+        request.setRecords(records.stream()
+                .map(record -> new RecordDesc(record.entrySet().stream()
+                        .map(entry -> new RecordValueDesc(entry.getKey(), entry.getValue()))
+                        .collect(Collectors.toList())))
+                .collect(Collectors.toList()));
+        this.nodes.get(node).controller.updateTable(request);
+    }
+
+    private List<Map<String, String>> query(String node, String tableName) {
+        var request = new QueryTableRequest();
+        request.setTableName(tableName);
+        return this.nodes.get(node).controller.queryTable(request).getBody().getData().getRecords();
+    }
+
+    private String queryStream(String node, String tableName) throws IOException {
+        var request = new QueryTableRequest();
+        request.setTableName(tableName);
+        var output = new ByteArrayOutputStream();
+        this.nodes.get(node).controller.queryTableStream(request).getBody().writeTo(output);
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static TableDesc tableDesc(String tableName) {
+        var ret = new TableDesc();
+        ret.setTableName(tableName);
+        return ret;
+    }
+
+    private void assertTablesOwned(ShardRing ring) {
+        for (var node : this.nodes.values()) {
+            var owned = getTableNames().stream()
+                    .filter(tableName -> ring.getOwner(tableName).equals(node.name))
+                    .collect(Collectors.toList());
+            assertThat(node.name, node.dataStore.list(""), containsInAnyOrder(owned.toArray()));
+        }
+    }
+
+    private void assertAllTables() {
+        for (var node : this.nodes.keySet()) {
+            for (var tableName : getTableNames()) {
+                assertThat(node + " " + tableName, this.query(node, tableName), is(getRecords(tableName)));
+            }
+            assertThat(node,
+                    this.nodes.get(node).controller.listTables(new ListTablesRequest()).getBody().getData()
+                            .getTables(),
+                    containsInAnyOrder(getTableNames().toArray()));
+        }
+    }
+
+    @Test
+    public void testShardRing() {
+        var ring = new ShardRing(List.of("a", "b", "c"));
+        assertThat(ring.getOwner("project/1/eval/results"), is(ring.getOwner("project/1/eval/summary")));
+        var counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 1000; ++i) {
+            counts.merge(ring.getOwner("project/" + i + "/t"), 1, Integer::sum);
+        }
+        assertThat(counts.values(), everyItem(greaterThan(250)));
+        // adding a node only moves tables to it
+        var newRing = new ShardRing(List.of("a", "b", "c", "d"));
+        for (int i = 0; i < 1000; ++i) {
+            var owner = newRing.getOwner("project/" + i + "/t");
+            if (!owner.equals("d")) {
+                assertThat(owner, is(ring.getOwner("project/" + i + "/t")));
+            }
+        }
+    }
+
+    @Test
+    public void testRouting() throws IOException {
+        var members = List.of("a", "b", "c");
+        this.startNodes(members, members);
+        for (var tableName : getTableNames()) {
+            this.update("a", tableName, getRecords(tableName));
+        }
+        this.assertAllTables();
+        var ring = new ShardRing(members);
+        this.assertTablesOwned(ring);
+        for (var node : this.nodes.values()) {
+            assertThat(node.name, node.dataStore.list("").size(), greaterThan(0));
+        }
+
+        assertThat(this.queryStream("b", "project/0/eval/results"),
+                is(this.queryStream(ring.getOwner("project/0/eval/results"), "project/0/eval/results")));
+
+        var scanRequest = new ScanTableRequest();
+        scanRequest.setTables(List.of(tableDesc("project/0/eval/results"),
+                tableDesc("project/0/eval/summary")));
+        assertThat(this.nodes.get("c").controller.scanTable(scanRequest).getBody().getData().getRecords(),
+                is(getRecords("project/0/eval/summary")));
+
+        var other = IntStream.range(1, PROJECT_COUNT)
+                .mapToObj(i -> "project/" + i + "/eval/results")
+                .filter(tableName -> !ring.getOwner(tableName).equals(ring.getOwner("project/0/eval/results")))
+                .findFirst()
+                .orElseThrow();
+        scanRequest.setTables(List.of(tableDesc("project/0/eval/results"),
+                tableDesc(other)));
+        assertThrows(SwValidationException.class, () -> this.nodes.get("c").controller.scanTable(scanRequest));
+    }
+
+    @Test
+    public void testRebalance() throws IOException {
+        var oldMembers = List.of("a", "b");
+        var newMembers = List.of("a", "b", "c");
+        this.startNodes(oldMembers, oldMembers);
+        this.startNodes(List.of("c"), newMembers);
+        for (var tableName : getTableNames()) {
+            this.update("b", tableName, getRecords(tableName));
+        }
+        this.assertTablesOwned(new ShardRing(oldMembers));
+
+        this.nodes.get("a").controller.rebalance(new RebalanceRequest(newMembers));
+        var ring = new ShardRing(newMembers);
+        this.assertTablesOwned(ring);
+        this.assertAllTables();
+
+        // the handed off tables are dropped from the WALs of their old owners
+        this.stopNodes();
+        this.startNodes(newMembers, newMembers);
+        this.assertTablesOwned(ring);
+        this.assertAllTables();
+
+        // and back to two nodes
+        this.nodes.get("c").controller.rebalance(new RebalanceRequest(oldMembers));
+        this.assertTablesOwned(new ShardRing(oldMembers));
+        this.assertAllTables();
+    }
+
+    @Test
+    public void testUpdateDuringRebalance() throws IOException {
+        var oldMembers = List.of("a", "b");
+        var newMembers = List.of("a", "b", "c");
+        this.startNodes(oldMembers, oldMembers);
+        this.startNodes(List.of("c"), newMembers);
+        for (var tableName : getTableNames()) {
+            this.update("a", tableName, getRecords(tableName));
+        }
+        // only the first phase, so a and b still route by the old membership
+        for (var node : this.nodes.values()) {
+            node.sharding.handOff(newMembers);
+        }
+        var ring = new ShardRing(newMembers);
+        var moved = getTableNames().stream()
+                .filter(tableName -> ring.getOwner(tableName).equals("c"))
+                .collect(Collectors.toList());
+        assertThat(moved.size(), greaterThan(0));
+        for (var tableName : moved) {
+            this.update("a", tableName, List.of(Map.of("k", "2", "a", "1")));
+        }
+        assertThat(this.nodes.get("c").dataStore.list(""), containsInAnyOrder(moved.toArray()));
+        for (var tableName : moved) {
+            var expected = new ArrayList<>(getRecords(tableName));
+            expected.add(Map.of("k", "2", "a", "1"));
+            assertThat(this.query("b", tableName), is(expected));
+        }
+        assertThat(this.nodes.get("a").dataStore.list(""), everyItem(is(in(getTableNames().stream()
+                .filter(tableName -> ring.getOwner(tableName).equals("a"))
+                .collect(Collectors.toList())))));
+    }
+
+    @Test
+    public void testUpdateDuringCommit() throws IOException {
+        var oldMembers = List.of("a", "b");
+        var newMembers = List.of("a", "b", "c");
+        this.startNodes(oldMembers, oldMembers);
+        this.startNodes(List.of("c"), newMembers);
+        for (var tableName : getTableNames()) {
+            this.update("a", tableName, getRecords(tableName));
+        }
+        var oldRing = new ShardRing(oldMembers);
+        var newRing = new ShardRing(newMembers);
+        var tableName = getTableNames().stream()
+                .filter(name -> newRing.getOwner(name).equals("c"))
+                .findFirst()
+                .orElseThrow();
+        var oldOwner = oldRing.getOwner(tableName);
+        var other = oldOwner.equals("a") ? "b" : "a";
+        for (var node : this.nodes.values()) {
+            node.sharding.handOff(newMembers);
+        }
+        // only the old owner commits, while the other node still sends requests of the table to it
+        this.nodes.get(oldOwner).sharding.commit(newMembers);
+        this.update(other, tableName, List.of(Map.of("k", "2", "a", "1")));
+        assertThat(this.nodes.get(oldOwner).dataStore.list(tableName), is(List.of()));
+        var expected = new ArrayList<>(getRecords(tableName));
+        expected.add(Map.of("k", "2", "a", "1"));
+        assertThat(this.query("c", tableName), is(expected));
+
+        for (var node : List.of(other, "c")) {
+            this.nodes.get(node).sharding.commit(newMembers);
+        }
+        for (var node : this.nodes.values()) {
+            node.sharding.finish(newMembers);
+        }
+        this.assertTablesOwned(newRing);
+        assertThat(this.query(oldOwner, tableName), is(expected));
+    }
+
+    @Test
+    public void testForwardingToken() {
+        var token = new ForwardingToken(SECRET);
+        assertThat(token.verify(token.sign()), is(true));
+        assertThat(token.verify(new ForwardingToken("other").sign()), is(false));
+        assertThat(token.verify("true"), is(false));
+        assertThat(token.verify("x." + token.sign()), is(false));
+        var signed = token.sign();
+        var timestamp = Long.parseLong(signed.substring(0, signed.indexOf('.')));
+        var expired = Long.toString(timestamp - ForwardingToken.VALIDITY_MILLIS - 1000);
+        assertThat(token.verify(expired + signed.substring(signed.indexOf('.'))), is(false));
+    }
+
+    @Test
+    public void testForgedForwardedHeader() throws IOException {
+        var members = List.of("a", "b");
+        this.startNodes(members, members);
+        var ring = new ShardRing(members);
+        var tableName = getTableNames().stream()
+                .filter(name -> ring.getOwner(name).equals("b"))
+                .findFirst()
+                .orElseThrow();
+        for (var header : List.of("true", new ForwardingToken("other").sign())) {
+            withForwardedHeader(header, () -> {
+                this.update("a", tableName, getRecords(tableName));
+                return null;
+            });
+        }
+        assertThat(this.nodes.get("a").dataStore.list(""), is(List.of()));
+        assertThat(this.nodes.get("b").dataStore.list(""), is(List.of(tableName)));
+    }
+
+    @Test
+    public void testUpdateDuringHandOff() throws IOException {
+        var members = List.of("a");
+        this.startNodes(members, members);
+        var tableName = getTableNames().get(0);
+        this.update("a", tableName, getRecords(tableName));
+        var received = new ArrayList<Map<String, String>>();
+        var dataStore = this.nodes.get("a").dataStore;
+        dataStore.handOff(tableName, entry -> {
+            for (var record : entry.getRecordsList()) {
+                var key = record.getColumnsList().stream()
+                        .filter(col -> col.getIndex() == 0)
+                        .findFirst()
+                        .orElseThrow()
+                        .getStringValue();
+                var deleted = record.getColumnsList().stream().anyMatch(col -> col.getIndex() == -1);
+                received.add(Map.of("k", key, "-", Boolean.toString(deleted)));
+            }
+            if (received.size() == 2) {
+                // updates are not blocked while the snapshot is sent, and are sent again afterwards
+                this.update("a", tableName, List.of(Map.of("k", "0", "-", "true"), Map.of("k", "2", "a", "1")));
+            }
+        }, () -> {
+        });
+        assertThat(received, containsInAnyOrder(
+                Map.of("k", "0", "-", "false"),
+                Map.of("k", "1", "-", "false"),
+                Map.of("k", "0", "-", "true"),
+                Map.of("k", "2", "-", "false")));
+        assertThat(dataStore.list(""), is(List.of()));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.domain.swds;
+
+import ai.starwhale.mlops.common.util.FileResponseUtil;
+import ai.starwhale.mlops.common.util.ServletOutputSubscriber;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of pulling a dataset file from the fs storage through an embedded Tomcat, by copying it
+ * through the heap, by streaming it asynchronously, and by sendfile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DatasetPullBenchmark {
+
+    private static final String PATH = "dataset/data.swds_bin";
+
+    @Param({"268435456"})
+    public int fileSize;
+
+    @Param({"stream", "async", "sendfile"})
+    public String mode;
+
+    private File rootDir;
+
+    private StorageAccessServiceFile storage;
+
+    private Tomcat tomcat;
+
+    private URL url;
+
+    private final byte[] readBuffer = new byte[65536];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, LifecycleException {
+        this.rootDir = Files.createTempDirectory("sw_pull_benchmark").toFile();
+        this.storage = new StorageAccessServiceFile(this.rootDir.getAbsolutePath());
+        var data = new byte[this.fileSize];
+        new Random(0).nextBytes(data);
+        this.storage.put(PATH, data);
+
+        this.tomcat = new Tomcat();
+        this.tomcat.setBaseDir(new File(this.rootDir, "tomcat").getAbsolutePath());
+        this.tomcat.setPort(0);
+        var context = this.tomcat.addContext("", null);
+        var wrapper = Tomcat.addServlet(context, "pull", new PullServlet());
+        wrapper.setAsyncSupported(true);
+        context.addServletMappingDecoded("/*", "pull");
+        this.tomcat.start();
+        this.url = new URL("http://localhost:" + this.tomcat.getConnector().getLocalPort() + "/" + this.mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, LifecycleException {
+        this.tomcat.stop();
+        this.tomcat.destroy();
+        FileUtils.deleteDirectory(this.rootDir);
+    }
+
+    @Benchmark
+    public long pull() throws IOException {
+        var conn = (HttpURLConnection) this.url.openConnection();
+        long total = 0;
+        try (var in = conn.getInputStream()) {
+            for (int n = in.read(this.readBuffer); n >= 0; n = in.read(this.readBuffer)) {
+                total += n;
+            }
+        }
+        if (total != this.fileSize) {
+            throw new IllegalStateException("expected " + this.fileSize + " bytes, got " + total);
+        }
+        return total;
+    }
+
+    private class PullServlet extends HttpServlet {
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            switch (req.getPathInfo() == null ? req.getServletPath() : req.getPathInfo()) {
+                case "/stream":
+                    try (var in = storage.get(PATH)) {
+                        resp.setContentLengthLong(in.getSize());
+                        in.transferTo(resp.getOutputStream());
+                    }
+                    break;
+                case "/async":
+                    var asyncContext = req.startAsync();
+                    asyncContext.setTimeout(ServletOutputSubscriber.TIMEOUT_MILLIS);
+                    var content = storage.getAsync(PATH, null, null).join();
+                    resp.setContentLengthLong(content.getSize());
+                    content.getPublisher().subscribe(new ServletOutputSubscriber(asyncContext));
+                    break;
+                case "/sendfile":
+                    FileResponseUtil.sendFile(req, resp, storage.localFile(PATH), 0, -1);
+                    break;
+                default:
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DatasetPullBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -24,12 +24,14 @@ import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ai.starwhale.mlops.JobMockHolder;
 import ai.starwhale.mlops.api.protocol.swds.upload.UploadRequest;
+import ai.starwhale.mlops.common.util.ServletOutputSubscriber;
 import ai.starwhale.mlops.configuration.json.ObjectMapperConfig;
 import ai.starwhale.mlops.domain.job.bo.Job;
 import ai.starwhale.mlops.domain.job.cache.HotJobHolder;
@@ -54,11 +56,15 @@ import ai.starwhale.mlops.storage.LengthAbleInputStream;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.stream.Stream;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -139,26 +145,39 @@ public class SwdsUploaderTest {
                 )
         );
         HttpServletResponse httpResponse = mock(HttpServletResponse.class);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
         ServletOutputStream mockOutPutStream = new ServletOutputStream() {
 
             @Override
             public boolean isReady() {
-                return false;
+                return true;
             }
 
             @Override
             public void setWriteListener(WriteListener writeListener) {
-
+                try {
+                    writeListener.onWritePossible();
+                } catch (IOException e) {
+                    writeListener.onError(e);
+                }
             }
 
             @Override
             public void write(int b) throws IOException {
-
+                written.write(b);
             }
 
         };
         when(httpResponse.getOutputStream()).thenReturn(mockOutPutStream);
-        swdsUploader.pull("project", dsName, dsVersionId, "index.jsonl", httpResponse);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getResponse()).thenReturn(httpResponse);
+        HttpServletRequest httpRequest = mock(HttpServletRequest.class);
+        when(httpRequest.startAsync()).thenReturn(asyncContext);
+        swdsUploader.pull("project", dsName, dsVersionId, "index.jsonl", httpRequest, httpResponse);
+        verify(asyncContext, timeout(5000)).complete();
+        verify(asyncContext).setTimeout(ServletOutputSubscriber.TIMEOUT_MILLIS);
+        Assertions.assertEquals(index_file_content, written.toString(StandardCharsets.UTF_8));
+        verify(httpResponse).addHeader("Content-Length", String.valueOf(index_file_content.getBytes().length));
 
         Assertions.assertThrowsExactly(SwValidationException.class,
                 () -> swdsUploader.create(HotSwdsHolderTest.MANIFEST, "_manifest.yaml", new UploadRequest()));
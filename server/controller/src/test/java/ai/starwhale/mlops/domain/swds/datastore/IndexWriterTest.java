@@ -16,27 +16,45 @@
 
 package ai.starwhale.mlops.domain.swds.datastore;
 
-import ai.starwhale.mlops.api.DataStoreController;
-import ai.starwhale.mlops.api.protocol.ResponseMessage;
-import ai.starwhale.mlops.api.protocol.datastore.RecordDesc;
-import ai.starwhale.mlops.api.protocol.datastore.UpdateTableRequest;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 import ai.starwhale.mlops.datastore.ColumnSchemaDesc;
 import ai.starwhale.mlops.datastore.TableSchemaDesc;
+import ai.starwhale.mlops.datastore.sharding.DataStoreSharding;
 import ai.starwhale.mlops.domain.swds.index.datastore.IndexWriter;
+import ai.starwhale.mlops.exception.SwValidationException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.ByteArrayInputStream;
 import java.util.List;
-import lombok.Getter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.springframework.http.ResponseEntity;
+import org.mockito.ArgumentCaptor;
 
 public class IndexWriterTest {
 
+    private DataStoreSharding dataStoreSharding;
+
+    private IndexWriter indexWriter;
+
+    @BeforeEach
+    public void setUp() {
+        dataStoreSharding = mock(DataStoreSharding.class);
+        when(dataStoreSharding.update(any(), any(), anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        indexWriter = new IndexWriter(dataStoreSharding, new ObjectMapper());
+    }
+
     @Test
     public void testLegacySchema() {
-        MockedDataStore dataStore = new MockedDataStore();
-        IndexWriter indexWriter = new IndexWriter(dataStore, new ObjectMapper());
         String meta = "{\"id\":2,\"score\":2.0,\"data_uri\":\"3db33b\",\"data_format\":\"swds_bin\","
                 + "\"data_offset\":8128,\"data_size\":4064,\"data_origin\":\"+\","
                 + "\"object_store_type\":\"local\",\"data_mime_type\":\"x/undefined\","
@@ -54,45 +72,69 @@ public class IndexWriterTest {
                 + "\"object_store_type\":\"local\",\"data_mime_type\":\"x/undefined\","
                 + "\"label\":\"\\u0001\",\"auth_name\":\"\"}";
         indexWriter.writeToStore("table-x", new ByteArrayInputStream(meta.getBytes()));
-        UpdateTableRequest request = dataStore.getRequest();
-        List<RecordDesc> records = request.getRecords();
+        var schemaCaptor = ArgumentCaptor.forClass(TableSchemaDesc.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Map<String, String>>> recordsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(dataStoreSharding).update(eq("table-x"), schemaCaptor.capture(), recordsCaptor.capture());
+        List<Map<String, String>> records = recordsCaptor.getValue();
         Assertions.assertEquals(4, records.size());
-        TableSchemaDesc tableSchemaDesc = request.getTableSchemaDesc();
+        Assertions.assertEquals("2", records.get(0).get("id"));
+        Assertions.assertEquals(Long.toHexString(Double.doubleToLongBits(3.0)), records.get(1).get("score"));
+        Assertions.assertEquals("\u0004", records.get(2).get("label"));
+        TableSchemaDesc tableSchemaDesc = schemaCaptor.getValue();
         Assertions.assertEquals("id", tableSchemaDesc.getKeyColumn());
-        List<ColumnSchemaDesc> columnSchemaList = tableSchemaDesc.getColumnSchemaList();
-        columnSchemaList.forEach(columnSchemaDesc -> {
-            if ("id".equals(columnSchemaDesc.getName())) {
-                Assertions.assertEquals("INT64", columnSchemaDesc.getType());
-            }
-            if ("data_offset".equals(columnSchemaDesc.getName())) {
-                Assertions.assertEquals("INT64", columnSchemaDesc.getType());
-            }
-            if ("data_size".equals(columnSchemaDesc.getName())) {
-                Assertions.assertEquals("INT64", columnSchemaDesc.getType());
-            }
-            if ("data_format".equals(columnSchemaDesc.getName())) {
-                Assertions.assertEquals("STRING", columnSchemaDesc.getType());
-            }
-            if ("object_store_type".equals(columnSchemaDesc.getName())) {
-                Assertions.assertEquals("STRING", columnSchemaDesc.getType());
-            }
-            if ("score".equals(columnSchemaDesc.getName())) {
-                Assertions.assertEquals("FLOAT64", columnSchemaDesc.getType());
-            }
-        });
-        Assertions.assertEquals("table-x", request.getTableName());
+        Map<String, String> columnTypes = tableSchemaDesc.getColumnSchemaList().stream()
+                .collect(Collectors.toMap(ColumnSchemaDesc::getName, ColumnSchemaDesc::getType));
+        Assertions.assertEquals("INT64", columnTypes.get("id"));
+        Assertions.assertEquals("INT64", columnTypes.get("data_offset"));
+        Assertions.assertEquals("INT64", columnTypes.get("data_size"));
+        Assertions.assertEquals("STRING", columnTypes.get("data_format"));
+        Assertions.assertEquals("STRING", columnTypes.get("object_store_type"));
+        Assertions.assertEquals("FLOAT64", columnTypes.get("score"));
     }
 
-    public static class MockedDataStore extends DataStoreController {
-
-        @Getter
-        UpdateTableRequest request;
-
-        @Override
-        public ResponseEntity<ResponseMessage<String>> updateTable(UpdateTableRequest request) {
-            this.request = request;
-            return null;
+    @Test
+    public void testBatchesAndSchemaEvolution() {
+        StringBuilder meta = new StringBuilder();
+        for (int i = 0; i < 2500; ++i) {
+            meta.append("{\"id\":").append(i).append(",\"score\":").append(i % 2 == 0 ? "0.5" : "1");
+            if (i >= 1200) {
+                meta.append(",\"valid\":").append(i % 3 == 0);
+            }
+            meta.append(",\"extra\":").append(i < 1500 ? "null" : "\"x\"").append("}\n");
         }
+        indexWriter.writeToStore("table-y", new ByteArrayInputStream(meta.toString().getBytes()));
+        var schemaCaptor = ArgumentCaptor.forClass(TableSchemaDesc.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Map<String, String>>> recordsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(dataStoreSharding, times(3)).update(eq("table-y"), schemaCaptor.capture(), recordsCaptor.capture());
+        Assertions.assertEquals(List.of(1000, 1000, 500),
+                recordsCaptor.getAllValues().stream().map(List::size).collect(Collectors.toList()));
+
+        // the first batch only knows the columns seen so far, integers in float columns are stored as floats
+        List<ColumnSchemaDesc> first = schemaCaptor.getAllValues().get(0).getColumnSchemaList();
+        Assertions.assertEquals(List.of(new ColumnSchemaDesc("id", "INT64"),
+                new ColumnSchemaDesc("score", "FLOAT64"),
+                new ColumnSchemaDesc("extra", "UNKNOWN")), first);
+        List<ColumnSchemaDesc> last = schemaCaptor.getAllValues().get(2).getColumnSchemaList();
+        Assertions.assertEquals(List.of(new ColumnSchemaDesc("id", "INT64"),
+                new ColumnSchemaDesc("score", "FLOAT64"),
+                new ColumnSchemaDesc("extra", "STRING"),
+                new ColumnSchemaDesc("valid", "BOOL")), last);
+        Map<String, String> record = recordsCaptor.getAllValues().get(2).get(101);
+        Assertions.assertEquals(Long.toHexString(2101), record.get("id"));
+        Assertions.assertEquals(Long.toHexString(Double.doubleToLongBits(1.0)), record.get("score"));
+        Assertions.assertEquals("0", record.get("valid"));
+        Assertions.assertEquals("x", record.get("extra"));
     }
 
+    @Test
+    public void testInvalidValues() {
+        Assertions.assertThrows(SwValidationException.class, () -> indexWriter.writeToStore("t",
+                new ByteArrayInputStream("{\"id\":1,\"a\":1}\n{\"id\":2,\"a\":\"s\"}".getBytes())));
+        Assertions.assertThrows(SwValidationException.class, () -> indexWriter.writeToStore("t",
+                new ByteArrayInputStream("{\"id\":1,\"a\":{\"b\":1}}".getBytes())));
+        Assertions.assertThrows(SwValidationException.class, () -> indexWriter.writeToStore("t",
+                new ByteArrayInputStream("[{\"id\":1}]".getBytes())));
+    }
 }
@@ -16,22 +16,40 @@
 
 package ai.starwhale.mlops.domain.swds.objectstore;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import ai.starwhale.mlops.api.protocol.swds.LinkDesc;
 import ai.starwhale.mlops.datastore.ColumnType;
 import ai.starwhale.mlops.domain.swds.mapper.SwDatasetVersionMapper;
 import ai.starwhale.mlops.domain.swds.po.SwDatasetVersionEntity;
+import ai.starwhale.mlops.exception.SwProcessException;
+import ai.starwhale.mlops.exception.SwValidationException;
 import ai.starwhale.mlops.storage.LengthAbleInputStream;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 public class DsFileGetterTest {
 
@@ -51,9 +69,92 @@ public class DsFileGetterTest {
                 SwDatasetVersionEntity.builder().storagePath("bdc").build());
         DsFileGetter fileGetter = new DsFileGetter(storageAccessParser, versionMapper);
         byte[] bytes = fileGetter.dataOf(1L, "bdcsd", "", ColumnType.INT64.encode(1, false),
-                ColumnType.INT64.encode(1, false));
+                ColumnType.INT64.encode(1, false)).join();
         Assertions.assertEquals("abc", new String(bytes));
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSendLocalFile() throws IOException {
+        File file = File.createTempFile("sw_test", null);
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[100000]);
+        StorageAccessParser storageAccessParser = mock(StorageAccessParser.class);
+        StorageAccessService storageAccessService = mock(StorageAccessService.class);
+        when(storageAccessService.localFile("bdc/bdcsd")).thenReturn(file);
+        when(storageAccessParser.getStorageAccessServiceFromAuth(anyLong(), anyString(), anyString())).thenReturn(
+                storageAccessService);
+        SwDatasetVersionMapper versionMapper = mock(SwDatasetVersionMapper.class);
+        when(versionMapper.getVersionById(anyLong())).thenReturn(
+                SwDatasetVersionEntity.builder().storagePath("bdc").build());
+        DsFileGetter fileGetter = new DsFileGetter(storageAccessParser, versionMapper);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Assertions.assertFalse(fileGetter.sendLocalFile(1L, "bdcsd", "", ColumnType.INT64.encode(1, false),
+                ColumnType.INT64.encode(100, false), new MockHttpServletRequest(), response));
+        Assertions.assertTrue(fileGetter.sendLocalFile(1L, "bdcsd", "", ColumnType.INT64.encode(1, false),
+                ColumnType.INT64.encode(60000, false), new MockHttpServletRequest(), response));
+        Assertions.assertEquals(60000, response.getContentAsByteArray().length);
+        Assertions.assertFalse(fileGetter.sendLocalFile(1L, "x", "", ColumnType.INT64.encode(1, false),
+                ColumnType.INT64.encode(60000, false), new MockHttpServletRequest(), response));
+    }
+
+    @Test
+    public void testBatch(@TempDir File rootDir) throws IOException {
+        var data = new byte[1000000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        StorageAccessServiceFile storageAccessService = spy(new StorageAccessServiceFile(rootDir.getAbsolutePath()));
+        storageAccessService.put("bdc/a", data);
+        storageAccessService.put("b", data);
+        StorageAccessParser storageAccessParser = mock(StorageAccessParser.class);
+        when(storageAccessParser.getStorageAccessServiceFromAuth(anyLong(), anyString(), any())).thenReturn(
+                storageAccessService);
+        SwDatasetVersionMapper versionMapper = mock(SwDatasetVersionMapper.class);
+        when(versionMapper.getVersionById(anyLong())).thenReturn(
+                SwDatasetVersionEntity.builder().storagePath("bdc").build());
+        DsFileGetter fileGetter = new DsFileGetter(storageAccessParser, versionMapper);
+        List<long[]> ranges = List.of(
+                new long[]{100, 10}, new long[]{0, 10}, new long[]{50, 100}, new long[]{900000, 200000},
+                new long[]{500000, 0}, new long[]{300000, 10});
+        List<LinkDesc> links = new ArrayList<>();
+        for (var range : ranges) {
+            links.add(new LinkDesc("a", null, ColumnType.INT64.encode(range[0], false),
+                    ColumnType.INT64.encode(range[1], false)));
+        }
+        links.add(new LinkDesc("b", "", ColumnType.INT64.encode(10, false), ColumnType.INT64.encode(10, false)));
+        var batch = fileGetter.dataOf(1L, links).join();
+        var buf = ByteBuffer.wrap(batch.toBytes().join());
+        Assertions.assertEquals(batch.getSize(), buf.remaining());
+        for (var range : ranges) {
+            var expected = Arrays.copyOfRange(data, (int) range[0], (int) Math.min(range[0] + range[1], data.length));
+            var content = new byte[(int) buf.getLong()];
+            buf.get(content);
+            Assertions.assertArrayEquals(expected, content);
+        }
+        var content = new byte[(int) buf.getLong()];
+        buf.get(content);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(data, 10, 20), content);
+        Assertions.assertFalse(buf.hasRemaining());
+        // one head and two merged reads for a, one read for b
+        verify(storageAccessService, times(2)).headAsync(any());
+        verify(storageAccessService, times(3)).getAsync(eq("bdc/a"), anyLong(), anyLong());
+        verify(storageAccessService, times(1)).getAsync(eq("b"), anyLong(), anyLong());
+
+        var tooLarge = List.of(new LinkDesc("a", null, ColumnType.INT64.encode(0, false),
+                ColumnType.INT64.encode(DsFileGetter.MAX_BATCH_BYTES + 1, false)));
+        Assertions.assertThrows(SwValidationException.class, () -> fileGetter.dataOf(1L, tooLarge));
+        var wrapped = List.of(
+                new LinkDesc("a", null, ColumnType.INT64.encode(0, false), ColumnType.INT64.encode(10, false)),
+                new LinkDesc("a", null, ColumnType.INT64.encode(0, false),
+                        ColumnType.INT64.encode(Long.MAX_VALUE, false)));
+        Assertions.assertThrows(SwValidationException.class, () -> fileGetter.dataOf(1L, wrapped));
+        var pastEnd = List.of(new LinkDesc("a", null, ColumnType.INT64.encode(Long.MAX_VALUE - 1, false),
+                ColumnType.INT64.encode(10, false)));
+        Assertions.assertThrows(SwValidationException.class, () -> fileGetter.dataOf(1L, pastEnd));
+        var missing = List.of(new LinkDesc("x", null, ColumnType.INT64.encode(0, false),
+                ColumnType.INT64.encode(1, false)));
+        var e = Assertions.assertThrows(CompletionException.class, () -> fileGetter.dataOf(1L, missing).join());
+        Assertions.assertTrue(e.getCause() instanceof SwProcessException);
+    }
+}
@@ -17,6 +17,10 @@
 package ai.starwhale.mlops.domain.swds.objectstore;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ai.starwhale.mlops.domain.swds.mapper.SwDatasetVersionMapper;
@@ -25,6 +29,9 @@ import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.fs.FileStorageEnv;
 import ai.starwhale.mlops.storage.fs.FileStorageEnv.FileSystemEnvType;
 import ai.starwhale.mlops.storage.s3.S3Config;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -73,4 +80,49 @@ public class StorageAccessParserTest {
         Assertions.assertEquals("SCret", s3Config.getSecretKey());
         Assertions.assertEquals("region", s3Config.getRegion());
     }
+
+    @Test
+    public void testClientPool() throws IOException {
+        StorageAccessService defaultStorageAccessService = mock(StorageAccessService.class);
+        SwDatasetVersionMapper swDatasetVersionMapper = mock(SwDatasetVersionMapper.class);
+        when(swDatasetVersionMapper.getVersionById(1L)).thenReturn(
+                SwDatasetVersionEntity.builder().id(1L).storageAuths(auths).build());
+        when(swDatasetVersionMapper.getVersionById(2L)).thenReturn(
+                SwDatasetVersionEntity.builder().id(2L).storageAuths(auths).build());
+        when(swDatasetVersionMapper.getVersionById(3L)).thenReturn(
+                SwDatasetVersionEntity.builder().id(3L).storageAuths("").build());
+        List<StorageAccessService> created = new ArrayList<>();
+        StorageAccessParser storageAccessParser = new StorageAccessParser(defaultStorageAccessService,
+                swDatasetVersionMapper, 1, 600, 0) {
+            @Override
+            StorageAccessService createClient(ClientKey clientKey) {
+                var client = mock(StorageAccessService.class);
+                created.add(client);
+                return client;
+            }
+        };
+        var client = storageAccessParser.getStorageAccessServiceFromAuth(1L, "s3://bucket1/bdc/xyf", "");
+        // datasets with the same storage share the client
+        Assertions.assertSame(client,
+                storageAccessParser.getStorageAccessServiceFromAuth(2L, "s3://bucket1/bdc/abc", ""));
+        Assertions.assertSame(client,
+                storageAccessParser.getStorageAccessServiceFromAuth(1L, "s3://bucket1/bdc/xyf", null));
+        Assertions.assertEquals(1, created.size());
+        verify(swDatasetVersionMapper, times(1)).getVersionById(1L);
+        Assertions.assertEquals(defaultStorageAccessService,
+                storageAccessParser.getStorageAccessServiceFromAuth(3L, "s3://bucket1/bdc/xyf", ""));
+        Assertions.assertEquals(defaultStorageAccessService,
+                storageAccessParser.getStorageAccessServiceFromAuth(3L, "s3://bucket1/bdc/xyf", ""));
+        verify(swDatasetVersionMapper, times(1)).getVersionById(3L);
+
+        // another bucket evicts and closes the client
+        var client2 = storageAccessParser.getStorageAccessServiceFromAuth(1L, "s3://bucket2/bdc/xyf", "");
+        Assertions.assertNotSame(client, client2);
+        Assertions.assertEquals(1, storageAccessParser.getClientCount());
+        verify(client, timeout(5000)).close();
+        verify(client2, never()).close();
+        Assertions.assertNotSame(client,
+                storageAccessParser.getStorageAccessServiceFromAuth(2L, "s3://bucket1/bdc/abc", ""));
+        Assertions.assertEquals(3, created.size());
+    }
 }
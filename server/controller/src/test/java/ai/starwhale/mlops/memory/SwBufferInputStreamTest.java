@@ -45,6 +45,17 @@ public class SwBufferInputStreamTest {
         assertThat(this.inputStream.read(), is(-1));
     }
 
+    @Test
+    public void testReadUnsigned() {
+        SwBuffer buffer = this.bufferManager.allocate(2);
+        buffer.setByte(0, (byte) 0xff);
+        buffer.setByte(1, (byte) 0x80);
+        var inputStream = new SwBufferInputStream(buffer);
+        assertThat(inputStream.read(), is(0xff));
+        assertThat(inputStream.read(), is(0x80));
+        assertThat(inputStream.read(), is(-1));
+    }
+
     @Test
     public void testReadBytes() {
         var b = new byte[10];
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.memory.impl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SwPooledBufferManagerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private SwPooledBufferManager bufferManager;
+
+    @BeforeEach
+    public void setUp() {
+        Metrics.addRegistry(this.meterRegistry);
+        this.bufferManager = new SwPooledBufferManager(65536, true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Metrics.removeRegistry(this.meterRegistry);
+    }
+
+    @Test
+    public void testAllocateAndRelease() {
+        var buf = this.bufferManager.allocate(100);
+        assertThat(buf.capacity(), is(100));
+        assertThat(buf.asByteBuffer().isDirect(), is(true));
+        assertThat(this.bufferManager.getAllocatedBytes(), is(4096L));
+        assertThat(this.bufferManager.getUsedBytes(), is(4096L));
+        buf.setString(0, "test");
+        assertThat(buf.getString(0, 4), is("test"));
+        this.bufferManager.release(buf);
+        assertThat(this.bufferManager.getAllocatedBytes(), is(4096L));
+        assertThat(this.bufferManager.getUsedBytes(), is(0L));
+
+        // the memory is reused for buffers of the same size class
+        var buf2 = this.bufferManager.allocate(4096);
+        assertThat(buf2.getString(0, 4), is("test"));
+        assertThat(this.bufferManager.getAllocatedBytes(), is(4096L));
+        final var buf3 = this.bufferManager.allocate(4097);
+        assertThat(this.bufferManager.getAllocatedBytes(), is(4096L + 8192L));
+        assertThat(this.bufferManager.getUsedBytes(), is(4096L + 8192L));
+        this.bufferManager.release(buf2);
+        this.bufferManager.release(buf3);
+        assertThat(this.bufferManager.getUsedBytes(), is(0L));
+        assertThrows(IllegalStateException.class, () -> this.bufferManager.release(buf3));
+        assertThrows(IllegalStateException.class, () -> this.bufferManager.retain(buf3));
+    }
+
+    @Test
+    public void testRetainAndSlice() {
+        var buf = this.bufferManager.allocate(100);
+        buf.setString(10, "test");
+        var slice = buf.slice(10, 4);
+        assertThat(slice.getString(0, 4), is("test"));
+        this.bufferManager.retain(slice);
+        this.bufferManager.release(buf);
+        assertThat("still referenced", this.bufferManager.getUsedBytes(), is(4096L));
+        this.bufferManager.release(slice);
+        assertThat(this.bufferManager.getUsedBytes(), is(0L));
+    }
+
+    @Test
+    public void testMaxBytes() {
+        this.bufferManager.release(this.bufferManager.allocate(32768));
+        assertThat(this.bufferManager.getAllocatedBytes(), is(32768L));
+        // the free buffer is dropped to make room
+        var buf = this.bufferManager.allocate(40000);
+        assertThat(buf.asByteBuffer().isDirect(), is(true));
+        assertThat(this.bufferManager.getAllocatedBytes(), is(65536L));
+        // heap buffers are allocated beyond the limit
+        var heapAllocations = Metrics.counter(SwPooledBufferManager.HEAP_ALLOCATIONS_METRIC).count();
+        var buf2 = this.bufferManager.allocate(100);
+        assertThat(buf2.capacity(), is(100));
+        assertThat(buf2.asByteBuffer().isDirect(), is(false));
+        assertThat(Metrics.counter(SwPooledBufferManager.HEAP_ALLOCATIONS_METRIC).count(), is(heapAllocations + 1));
+        this.bufferManager.release(buf2);
+        this.bufferManager.release(buf);
+        assertThat(this.bufferManager.getUsedBytes(), is(0L));
+        assertThat(this.bufferManager.getAllocatedBytes(), is(65536L));
+    }
+
+    @Test
+    public void testLeakDetection() throws InterruptedException {
+        final var leaks = Metrics.counter(SwPooledBufferManager.LEAKS_METRIC).count();
+        this.bufferManager.allocate(100);
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.bufferManager.getUsedBytes() > 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(this.bufferManager.getUsedBytes(), is(0L));
+        assertThat(this.bufferManager.getAllocatedBytes(), is(0L));
+        assertThat(Metrics.counter(SwPooledBufferManager.LEAKS_METRIC).count(), is(leaks + 1));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * The content of an object or a range which is being read asynchronously.
+ */
+@Getter
+@AllArgsConstructor
+public class AsyncContent {
+
+    private final long size;
+
+    // publishes the content to a single subscriber, which must subscribe to release the connection or the file
+    private final Publisher<ByteBuffer> publisher;
+
+    /**
+     * Collects the whole content in memory.
+     */
+    public CompletableFuture<byte[]> toBytes() {
+        var ret = new CompletableFuture<byte[]>();
+        var out = new ByteArrayOutputStream((int) Math.min(this.size, Integer.MAX_VALUE - 8));
+        this.publisher.subscribe(new Subscriber<>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer byteBuffer) {
+                if (byteBuffer.hasArray()) {
+                    out.write(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+                            byteBuffer.remaining());
+                } else {
+                    var buf = new byte[byteBuffer.remaining()];
+                    byteBuffer.get(buf);
+                    out.writeBytes(buf);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                ret.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                ret.complete(out.toByteArray());
+            }
+        });
+        return ret;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link StorageAccessService}, which does not hold a thread while waiting for the
+ * storage.
+ */
+public interface AsyncStorageAccessService {
+
+    CompletableFuture<StorageObjectInfo> headAsync(String path);
+
+    /**
+     * Reads an object, or the range of it if both offset and size are valid. The future completes once the size of
+     * the content is known, and the content is published as it arrives.
+     */
+    CompletableFuture<AsyncContent> getAsync(String path, Long offset, Long size);
+
+    /**
+     * Returns the service itself if it supports asynchronous access, or an adapter which runs its blocking methods on
+     * a bounded thread pool otherwise.
+     */
+    static AsyncStorageAccessService of(StorageAccessService storageAccessService) {
+        if (storageAccessService instanceof AsyncStorageAccessService) {
+            return (AsyncStorageAccessService) storageAccessService;
+        }
+        return new BlockingAsyncStorageAccessService(storageAccessService);
+    }
+}
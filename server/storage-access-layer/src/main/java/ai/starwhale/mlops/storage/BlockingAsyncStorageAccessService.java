@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage;
+
+import ai.starwhale.mlops.storage.util.InputStreamPublisher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the blocking methods of a StorageAccessService on a shared pool, so that callers of storages without an
+ * asynchronous client do not block either.
+ */
+class BlockingAsyncStorageAccessService implements AsyncStorageAccessService {
+
+    private static final int THREADS = 64;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, new ThreadFactoryBuilder()
+            .setNameFormat("storage-blocking-%d")
+            .setDaemon(true)
+            .build());
+
+    private final StorageAccessService storageAccessService;
+
+    BlockingAsyncStorageAccessService(StorageAccessService storageAccessService) {
+        this.storageAccessService = storageAccessService;
+    }
+
+    @Override
+    public CompletableFuture<StorageObjectInfo> headAsync(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.storageAccessService.head(path);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    @Override
+    public CompletableFuture<AsyncContent> getAsync(String path, Long offset, Long size) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                // not every storage accepts a missing range
+                var in = offset == null || size == null || offset < 0 || size <= 0
+                        ? this.storageAccessService.get(path)
+                        : this.storageAccessService.get(path, offset, size);
+                return new AsyncContent(in.getSize(), new InputStreamPublisher(in, EXECUTOR));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+}
@@ -16,6 +16,7 @@
 
 package ai.starwhale.mlops.storage;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.stream.Stream;
@@ -35,7 +36,31 @@ public interface StorageAccessService {
 
     LengthAbleInputStream get(String path, Long offset, Long size) throws IOException;
 
+    /**
+     * Lists the paths of all objects whose paths start with the given prefix. Large listings are fetched lazily.
+     */
     Stream<String> list(String path) throws IOException;
 
+    /**
+     * Lists objects like {@link #list(String)}, together with their sizes and modification times, which saves a head
+     * request per object.
+     */
+    Stream<StorageObjectSummary> listSummaries(String path) throws IOException;
+
     void delete(String path) throws IOException;
+
+    /**
+     * Returns the local file that holds the object if the storage keeps objects as plain files, or null otherwise.
+     * Callers may send the file with sendfile or {@link java.nio.channels.FileChannel#transferTo}, which saves copying
+     * it through the heap, but must not modify it.
+     */
+    default File localFile(String path) {
+        return null;
+    }
+
+    /**
+     * Releases the clients and connections held by the storage.
+     */
+    default void close() throws IOException {
+    }
 }
@@ -28,4 +28,10 @@ public class StorageObjectInfo {
     boolean exists;
     Long contentLength;
     String metaInfo;
+    // identifies the content of the object, null if the storage does not provide one
+    String etag;
+
+    public StorageObjectInfo(boolean exists, Long contentLength, String metaInfo) {
+        this(exists, contentLength, metaInfo, null);
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage;
+
+import java.time.Instant;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * An object returned by listing, with the metadata that comes with the listing at no extra cost.
+ */
+@Data
+@AllArgsConstructor
+public class StorageObjectSummary {
+
+    String path;
+    long contentLength;
+    Instant lastModified;
+}
@@ -19,20 +19,27 @@ package ai.starwhale.mlops.storage.aliyun;
 import ai.starwhale.mlops.storage.LengthAbleInputStream;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.StorageObjectSummary;
 import ai.starwhale.mlops.storage.s3.S3Config;
 import ai.starwhale.mlops.storage.util.MetaHelper;
+import ai.starwhale.mlops.storage.util.PrefetchingPageIterator;
 import com.aliyun.oss.OSS;
 import com.aliyun.oss.OSSClientBuilder;
 import com.aliyun.oss.model.GetObjectRequest;
 import com.aliyun.oss.model.HeadObjectRequest;
-import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ListObjectsRequest;
 import com.aliyun.oss.model.ObjectMetadata;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class StorageAccessServiceAliyun implements StorageAccessService {
+
+    // the maximum allowed by OSS, which returns 100 keys per page by default
+    private static final int LIST_MAX_KEYS = 1000;
+
     final String bucket;
 
     final OSS ossClient;
@@ -46,7 +53,8 @@ public class StorageAccessServiceAliyun implements StorageAccessService {
     @Override
     public StorageObjectInfo head(String path) throws IOException {
         var resp = this.ossClient.headObject(new HeadObjectRequest(this.bucket, path));
-        return new StorageObjectInfo(true, resp.getContentLength(), MetaHelper.mapToString(resp.getUserMetadata()));
+        return new StorageObjectInfo(true, resp.getContentLength(), MetaHelper.mapToString(resp.getUserMetadata()),
+                resp.getETag());
     }
 
     @Override
@@ -76,12 +84,32 @@ public class StorageAccessServiceAliyun implements StorageAccessService {
 
     @Override
     public Stream<String> list(String path) throws IOException {
-        var resp = this.ossClient.listObjects(this.bucket, path);
-        return resp.getObjectSummaries().stream().map(OSSObjectSummary::getKey);
+        return this.listSummaries(path).map(StorageObjectSummary::getPath);
+    }
+
+    @Override
+    public Stream<StorageObjectSummary> listSummaries(String path) throws IOException {
+        return PrefetchingPageIterator.stream(marker -> {
+            var resp = this.ossClient.listObjects(new ListObjectsRequest(this.bucket)
+                    .withPrefix(path)
+                    .withMarker(marker)
+                    .withMaxKeys(LIST_MAX_KEYS));
+            return new PrefetchingPageIterator.Page<>(resp.getObjectSummaries().stream()
+                    .map(obj -> new StorageObjectSummary(obj.getKey(),
+                            obj.getSize(),
+                            obj.getLastModified() == null ? null : obj.getLastModified().toInstant()))
+                    .collect(Collectors.toList()),
+                    resp.isTruncated() ? resp.getNextMarker() : null);
+        });
     }
 
     @Override
     public void delete(String path) throws IOException {
         this.ossClient.deleteObject(this.bucket, path);
     }
+
+    @Override
+    public void close() {
+        this.ossClient.shutdown();
+    }
 }
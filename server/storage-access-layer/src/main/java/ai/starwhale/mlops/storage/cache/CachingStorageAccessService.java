@@ -0,0 +1,747 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.cache;
+
+import ai.starwhale.mlops.storage.AsyncContent;
+import ai.starwhale.mlops.storage.AsyncStorageAccessService;
+import ai.starwhale.mlops.storage.LengthAbleInputStream;
+import ai.starwhale.mlops.storage.StorageAccessService;
+import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.StorageObjectSummary;
+import ai.starwhale.mlops.storage.util.FileChannelPublisher;
+import com.google.common.io.ByteStreams;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Keeps objects and ranges read from another StorageAccessService in files under a local directory.
+ *
+ * <p>Cached content is checked against the length and the ETag returned by head() before it is read, unless it has
+ * been checked within validateIntervalMillis. Writes and deletes through this service drop the cached content of the
+ * path at once. The least recently used content is evicted when the total size exceeds maxBytes, and objects or
+ * ranges larger than that are not cached. Concurrent misses of the same content are fetched only once.
+ *
+ * <p>A fill which is running when its path is written, deleted or found changed is not added to the cache, since the
+ * content it fetched may be older than the change. Asynchronous misses pass the content to the reader as it arrives
+ * and write it to the cache on the way.
+ */
+public class CachingStorageAccessService implements StorageAccessService, AsyncStorageAccessService {
+
+    static final String HITS_METRIC = "storage.cache.hits";
+
+    static final String MISSES_METRIC = "storage.cache.misses";
+
+    static final String EVICTIONS_METRIC = "storage.cache.evictions";
+
+    static final String BYTES_METRIC = "storage.cache.bytes";
+
+    private static final String FILE_SUFFIX = ".swcache";
+
+    private final StorageAccessService storage;
+
+    private final AsyncStorageAccessService asyncStorage;
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    private final long validateIntervalMillis;
+
+    // the least recently used entry comes first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the keys of the object and the ranges cached for each path
+    private final Map<String, Set<String>> keysByPath = new HashMap<>();
+
+    private long totalBytes;
+
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+    // the fills in progress for each path
+    private final Map<String, Set<Fill>> fillsByPath = new HashMap<>();
+
+    private final AtomicLong fileIdGenerator = new AtomicLong();
+
+    @AllArgsConstructor
+    private static class Entry {
+
+        private final String key;
+
+        private final String path;
+
+        private final File file;
+
+        private final long size;
+
+        // the length and the ETag of the object when the content was fetched
+        private final long objectLength;
+
+        private final String etag;
+
+        private volatile long validatedTime;
+    }
+
+    @RequiredArgsConstructor
+    private static class Fill {
+
+        private final String key;
+
+        private final String path;
+
+        // set if the path is invalidated after the fill started, guarded by the service
+        private boolean stale;
+    }
+
+    public CachingStorageAccessService(StorageAccessService storage, StorageCacheConfig config) throws IOException {
+        this.storage = storage;
+        this.asyncStorage = AsyncStorageAccessService.of(storage);
+        this.dir = new File(config.getDir());
+        this.maxBytes = config.getMaxBytes();
+        this.validateIntervalMillis = config.getValidateIntervalMillis();
+        Files.createDirectories(this.dir.toPath());
+        // nothing is known about files left by the previous process
+        var files = this.dir.listFiles((d, name) -> name.endsWith(FILE_SUFFIX));
+        if (files != null) {
+            for (var f : files) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+        Gauge.builder(BYTES_METRIC, this, CachingStorageAccessService::getTotalBytes)
+                .register(Metrics.globalRegistry);
+    }
+
+    public synchronized long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    @Override
+    public StorageObjectInfo head(String path) throws IOException {
+        return this.storage.head(path);
+    }
+
+    @Override
+    public void put(String path, InputStream inputStream, long size) throws IOException {
+        try {
+            this.storage.put(path, inputStream, size);
+        } finally {
+            this.invalidate(path);
+        }
+    }
+
+    @Override
+    public void put(String path, byte[] body) throws IOException {
+        try {
+            this.storage.put(path, body);
+        } finally {
+            this.invalidate(path);
+        }
+    }
+
+    @Override
+    public LengthAbleInputStream get(String path) throws IOException {
+        return this.read(path, 0, -1);
+    }
+
+    @Override
+    public LengthAbleInputStream get(String path, Long offset, Long size) throws IOException {
+        if (offset == null || size == null || offset < 0 || size <= 0) {
+            return this.get(path);
+        }
+        return this.read(path, offset, size);
+    }
+
+    @Override
+    public CompletableFuture<StorageObjectInfo> headAsync(String path) {
+        return this.asyncStorage.headAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<AsyncContent> getAsync(String path, Long offset, Long size) {
+        if (offset == null || size == null || offset < 0 || size <= 0) {
+            return this.readAsync(path, 0, -1);
+        }
+        return this.readAsync(path, offset, size);
+    }
+
+    @Override
+    public Stream<String> list(String path) throws IOException {
+        return this.storage.list(path);
+    }
+
+    @Override
+    public Stream<StorageObjectSummary> listSummaries(String path) throws IOException {
+        return this.storage.listSummaries(path);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        try {
+            this.storage.delete(path);
+        } finally {
+            this.invalidate(path);
+        }
+    }
+
+    @Override
+    public File localFile(String path) {
+        // local files are read directly
+        return this.storage.localFile(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.storage.close();
+    }
+
+    /**
+     * Reads the whole object if size is negative, or the range otherwise.
+     */
+    private LengthAbleInputStream read(String path, long offset, long size) throws IOException {
+        var rangeKey = size < 0 ? null : path + '\0' + offset + '-' + size;
+        for (; ; ) {
+            // ranges are read from the cached object if there is one
+            var entry = this.getValidEntry(path);
+            var entryOffset = offset;
+            if (entry == null && rangeKey != null) {
+                entry = this.getValidEntry(rangeKey);
+                entryOffset = 0;
+            }
+            if (entry != null) {
+                var ret = open(entry, entryOffset, size);
+                if (ret != null) {
+                    Metrics.counter(HITS_METRIC).increment();
+                    return ret;
+                }
+                // evicted just now
+                continue;
+            }
+            entry = this.load(rangeKey == null ? path : rangeKey, path, offset, size);
+            if (entry == null) {
+                return size < 0 ? this.storage.get(path) : this.storage.get(path, offset, size);
+            }
+            var ret = open(entry, 0, -1);
+            if (ret != null) {
+                return ret;
+            }
+        }
+    }
+
+    private Entry getValidEntry(String key) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        var now = System.currentTimeMillis();
+        if (now - entry.validatedTime < this.validateIntervalMillis) {
+            return entry;
+        }
+        return this.validate(entry, this.storage.head(entry.path), now);
+    }
+
+    private Entry validate(Entry entry, StorageObjectInfo info, long now) throws IOException {
+        if (!info.isExists()
+                || info.getContentLength() == null
+                || info.getContentLength() != entry.objectLength
+                || info.getEtag() != null && entry.etag != null && !info.getEtag().equals(entry.etag)) {
+            this.invalidate(entry.path);
+            return null;
+        }
+        entry.validatedTime = now;
+        return entry;
+    }
+
+    private static LengthAbleInputStream open(Entry entry, long offset, long size) throws IOException {
+        try {
+            if (offset == 0 && (size < 0 || size >= entry.size)) {
+                return new LengthAbleInputStream(new FileInputStream(entry.file), entry.size);
+            }
+            var len = Math.max(0, Math.min(size < 0 ? entry.size : size, entry.size - offset));
+            var f = new RandomAccessFile(entry.file, "r");
+            f.seek(offset);
+            //noinspection UnstableApiUsage
+            return new LengthAbleInputStream(ByteStreams.limit(Channels.newInputStream(f.getChannel()), len), len);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the content into the cache, or waits for the thread which is fetching it.
+     *
+     * @return the new entry, or null if the content is not cached
+     */
+    private Entry load(String key, String path, long offset, long size) throws IOException {
+        var future = new CompletableFuture<Entry>();
+        var existing = this.loading.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                var entry = existing.get();
+                if (entry != null) {
+                    Metrics.counter(HITS_METRIC).increment();
+                }
+                return entry;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        try {
+            Metrics.counter(MISSES_METRIC).increment();
+            var entry = this.fetch(key, path, offset, size);
+            future.complete(entry);
+            return entry;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            this.loading.remove(key);
+        }
+    }
+
+    private Entry fetch(String key, String path, long offset, long size) throws IOException {
+        final var now = System.currentTimeMillis();
+        var fill = this.startFill(key, path);
+        try {
+            var info = this.storage.head(path);
+            if (!info.isExists() || info.getContentLength() == null) {
+                // let the storage report the error
+                return null;
+            }
+            long objectLength = info.getContentLength();
+            var expectedSize = expectedSize(objectLength, offset, size);
+            if (expectedSize > this.maxBytes) {
+                return null;
+            }
+            var file = this.newFile();
+            var temp = File.createTempFile("sw_cache", ".tmp", this.dir);
+            try {
+                long written;
+                try (var in = size < 0 ? this.storage.get(path) : this.storage.get(path, offset, size);
+                        var out = new FileOutputStream(temp)) {
+                    written = in.transferTo(out);
+                }
+                if (written != expectedSize) {
+                    // the object was changed after head()
+                    return null;
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+            var entry = new Entry(key, path, file, expectedSize, objectLength, info.getEtag(), now);
+            return this.add(entry, fill) ? entry : null;
+        } finally {
+            this.endFill(fill);
+        }
+    }
+
+    private static long expectedSize(long objectLength, long offset, long size) {
+        return size < 0 ? objectLength : Math.max(0, Math.min(size, objectLength - offset));
+    }
+
+    private File newFile() {
+        return new File(this.dir, this.fileIdGenerator.incrementAndGet() + FILE_SUFFIX);
+    }
+
+    private CompletableFuture<AsyncContent> readAsync(String path, long offset, long size) {
+        var rangeKey = size < 0 ? null : path + '\0' + offset + '-' + size;
+        // ranges are read from the cached object if there is one
+        return this.getValidEntryAsync(path)
+                .thenCompose(entry -> entry != null || rangeKey == null
+                        ? CompletableFuture.completedFuture(entry)
+                        : this.getValidEntryAsync(rangeKey))
+                .thenCompose(entry -> {
+                    if (entry == null) {
+                        return this.fillAsync(rangeKey == null ? path : rangeKey, path, offset, size);
+                    }
+                    AsyncContent content;
+                    try {
+                        content = openAsync(entry, entry.key.equals(path) ? offset : 0, size);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    if (content == null) {
+                        // evicted just now
+                        return this.readAsync(path, offset, size);
+                    }
+                    Metrics.counter(HITS_METRIC).increment();
+                    return CompletableFuture.completedFuture(content);
+                });
+    }
+
+    private CompletableFuture<Entry> getValidEntryAsync(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+        if (entry == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        var now = System.currentTimeMillis();
+        if (now - entry.validatedTime < this.validateIntervalMillis) {
+            return CompletableFuture.completedFuture(entry);
+        }
+        return this.asyncStorage.headAsync(entry.path).thenApply(info -> {
+            try {
+                return this.validate(entry, info, now);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static AsyncContent openAsync(Entry entry, long offset, long size) throws IOException {
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        var start = Math.min(offset, entry.size);
+        var end = size < 0 ? entry.size : start + Math.min(size, entry.size - start);
+        return new AsyncContent(end - start, new FileChannelPublisher(channel, start, end));
+    }
+
+    private CompletableFuture<AsyncContent> getFromStorageAsync(String path, long offset, long size) {
+        return size < 0 ? this.asyncStorage.getAsync(path, null, null) : this.asyncStorage.getAsync(path, offset, size);
+    }
+
+    /**
+     * Reads the content from the storage and caches it while the reader consumes it. The content is read through
+     * without being cached if another reader is fetching it already.
+     */
+    private CompletableFuture<AsyncContent> fillAsync(String key, String path, long offset, long size) {
+        var loaded = new CompletableFuture<Entry>();
+        if (this.loading.putIfAbsent(key, loaded) != null) {
+            return this.getFromStorageAsync(path, offset, size);
+        }
+        Metrics.counter(MISSES_METRIC).increment();
+        final var now = System.currentTimeMillis();
+        var fill = this.startFill(key, path);
+        return this.asyncStorage.headAsync(path)
+                .thenCompose(info -> {
+                    if (!info.isExists() || info.getContentLength() == null) {
+                        // let the storage report the error
+                        this.finishFill(fill, loaded, null);
+                        return this.getFromStorageAsync(path, offset, size);
+                    }
+                    long objectLength = info.getContentLength();
+                    var expectedSize = expectedSize(objectLength, offset, size);
+                    if (expectedSize > this.maxBytes) {
+                        this.finishFill(fill, loaded, null);
+                        return this.getFromStorageAsync(path, offset, size);
+                    }
+                    return this.getFromStorageAsync(path, offset, size).thenApply(content -> {
+                        if (content.getSize() != expectedSize) {
+                            // the object was changed after head()
+                            this.finishFill(fill, loaded, null);
+                            return content;
+                        }
+                        return new AsyncContent(expectedSize, new FillingPublisher(content.getPublisher(), fill,
+                                loaded, expectedSize, objectLength, info.getEtag(), now));
+                    });
+                })
+                .whenComplete((content, e) -> {
+                    if (e != null) {
+                        this.finishFill(fill, loaded, null);
+                    }
+                });
+    }
+
+    private synchronized Fill startFill(String key, String path) {
+        var fill = new Fill(key, path);
+        this.fillsByPath.computeIfAbsent(path, k -> new HashSet<>()).add(fill);
+        return fill;
+    }
+
+    private synchronized void endFill(Fill fill) {
+        var fills = this.fillsByPath.get(fill.path);
+        if (fills != null && fills.remove(fill) && fills.isEmpty()) {
+            this.fillsByPath.remove(fill.path);
+        }
+    }
+
+    /**
+     * Ends an asynchronous fill and wakes up the readers waiting for it. It may be called more than once.
+     */
+    private void finishFill(Fill fill, CompletableFuture<Entry> loaded, Entry entry) {
+        this.endFill(fill);
+        this.loading.remove(fill.key, loaded);
+        loaded.complete(entry);
+    }
+
+    /**
+     * Adds the fetched content to the cache, or deletes it if the fill is stale.
+     *
+     * @return true if the entry is added
+     */
+    private synchronized boolean add(Entry entry, Fill fill) throws IOException {
+        if (fill.stale) {
+            Files.deleteIfExists(entry.file.toPath());
+            return false;
+        }
+        var old = this.entries.put(entry.key, entry);
+        if (old != null) {
+            this.totalBytes -= old.size;
+            Files.deleteIfExists(old.file.toPath());
+        }
+        this.keysByPath.computeIfAbsent(entry.path, k -> new HashSet<>()).add(entry.key);
+        this.totalBytes += entry.size;
+        var it = this.entries.values().iterator();
+        while (this.totalBytes > this.maxBytes && it.hasNext()) {
+            var victim = it.next();
+            if (victim == entry) {
+                continue;
+            }
+            it.remove();
+            this.removeKey(victim);
+            Metrics.counter(EVICTIONS_METRIC).increment();
+        }
+        return true;
+    }
+
+    private synchronized void invalidate(String path) throws IOException {
+        var fills = this.fillsByPath.get(path);
+        if (fills != null) {
+            for (var fill : fills) {
+                fill.stale = true;
+            }
+        }
+        var keys = this.keysByPath.get(path);
+        if (keys == null) {
+            return;
+        }
+        for (var key : Set.copyOf(keys)) {
+            var entry = this.entries.remove(key);
+            if (entry != null) {
+                this.removeKey(entry);
+            }
+        }
+    }
+
+    /**
+     * Forgets an entry which is already removed from entries, and deletes its file.
+     */
+    private void removeKey(Entry entry) throws IOException {
+        this.totalBytes -= entry.size;
+        var keys = this.keysByPath.get(entry.path);
+        keys.remove(entry.key);
+        if (keys.isEmpty()) {
+            this.keysByPath.remove(entry.path);
+        }
+        Files.deleteIfExists(entry.file.toPath());
+    }
+
+    /**
+     * Passes the content of an asynchronous miss to the subscriber, and writes it to a temporary file which is added
+     * to the cache once the whole content has been read.
+     */
+    private class FillingPublisher implements Publisher<ByteBuffer> {
+
+        private final Publisher<ByteBuffer> publisher;
+
+        private final Fill fill;
+
+        private final CompletableFuture<Entry> loaded;
+
+        private final long size;
+
+        private final long objectLength;
+
+        private final String etag;
+
+        private final long fetchedTime;
+
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private File temp;
+
+        private FileChannel channel;
+
+        private long written;
+
+        FillingPublisher(Publisher<ByteBuffer> publisher, Fill fill, CompletableFuture<Entry> loaded, long size,
+                long objectLength, String etag, long fetchedTime) {
+            this.publisher = publisher;
+            this.fill = fill;
+            this.loaded = loaded;
+            this.size = size;
+            this.objectLength = objectLength;
+            this.etag = etag;
+            this.fetchedTime = fetchedTime;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            if (!this.subscribed.compareAndSet(false, true)) {
+                // let the publisher reject it
+                this.publisher.subscribe(subscriber);
+                return;
+            }
+            try {
+                this.temp = File.createTempFile("sw_cache", ".tmp", CachingStorageAccessService.this.dir);
+                this.channel = FileChannel.open(this.temp.toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                this.abandon();
+            }
+            this.publisher.subscribe(new Subscriber<>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscriber.onSubscribe(new Subscription() {
+                        @Override
+                        public void request(long n) {
+                            subscription.request(n);
+                        }
+
+                        @Override
+                        public void cancel() {
+                            subscription.cancel();
+                            FillingPublisher.this.abandon();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(ByteBuffer byteBuffer) {
+                    FillingPublisher.this.write(byteBuffer.duplicate());
+                    subscriber.onNext(byteBuffer);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    FillingPublisher.this.abandon();
+                    subscriber.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    FillingPublisher.this.commit();
+                    subscriber.onComplete();
+                }
+            });
+        }
+
+        private void write(ByteBuffer byteBuffer) {
+            if (this.finished.get()) {
+                return;
+            }
+            try {
+                while (byteBuffer.hasRemaining()) {
+                    this.written += this.channel.write(byteBuffer);
+                }
+            } catch (IOException e) {
+                // the reader still gets the content, which is just not cached
+                this.abandon();
+            }
+        }
+
+        private void commit() {
+            if (!this.finished.compareAndSet(false, true)) {
+                return;
+            }
+            Entry entry = null;
+            try {
+                this.channel.close();
+                if (this.written == this.size) {
+                    var file = CachingStorageAccessService.this.newFile();
+                    Files.move(this.temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    var e = new Entry(this.fill.key, this.fill.path, file, this.size, this.objectLength, this.etag,
+                            this.fetchedTime);
+                    if (CachingStorageAccessService.this.add(e, this.fill)) {
+                        entry = e;
+                    }
+                }
+            } catch (IOException e) {
+                // not cached
+            } finally {
+                this.deleteTemp();
+                CachingStorageAccessService.this.finishFill(this.fill, this.loaded, entry);
+            }
+        }
+
+        private void abandon() {
+            if (!this.finished.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (this.channel != null) {
+                    this.channel.close();
+                }
+            } catch (IOException e) {
+                // nothing to do since the file is deleted
+            } finally {
+                this.deleteTemp();
+                CachingStorageAccessService.this.finishFill(this.fill, this.loaded, null);
+            }
+        }
+
+        private void deleteTemp() {
+            if (this.temp == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(this.temp.toPath());
+            } catch (IOException e) {
+                // the file is deleted by the next process at the latest
+            }
+        }
+    }
+}
@@ -18,25 +18,51 @@ package ai.starwhale.mlops.storage.configuration;
 
 import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.aliyun.StorageAccessServiceAliyun;
+import ai.starwhale.mlops.storage.cache.CachingStorageAccessService;
 import ai.starwhale.mlops.storage.s3.StorageAccessServiceS3;
+import java.io.IOException;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 
 @Configuration
 @EnableConfigurationProperties(StorageProperties.class)
 public class StorageAccessConfig {
 
+    public static final String CACHED_STORAGE = "cachedStorageAccessService";
+
     @Bean
+    @Primary
     @ConditionalOnProperty(prefix = "sw.storage", name = "type", havingValue = "s3", matchIfMissing = true)
     public StorageAccessService s3(StorageProperties storageProperties) {
-        return new StorageAccessServiceS3(storageProperties.getS3Config());
+        var s3 = new StorageAccessServiceS3(storageProperties.getS3Config());
+        // nobody else uploads to the controller's own bucket, so pending uploads are left by the last run
+        s3.abortPendingMultipartUploads();
+        return s3;
     }
 
     @Bean
+    @Primary
     @ConditionalOnProperty(prefix = "sw.storage", name = "type", havingValue = "aliyun")
     public StorageAccessService aliyun(StorageProperties storageProperties) {
         return new StorageAccessServiceAliyun(storageProperties.getS3Config());
     }
+
+    /**
+     * The storage for reading dataset and model content, which does not change once uploaded, through the local cache
+     * if it is enabled. Everything else uses the primary storage directly.
+     *
+     * <p>The primary storage closes itself, and cached files are deleted when the next process starts.
+     */
+    @Bean(name = CACHED_STORAGE, destroyMethod = "")
+    public StorageAccessService cachedStorageAccessService(StorageAccessService storageAccessService,
+            StorageProperties storageProperties) throws IOException {
+        var cacheConfig = storageProperties.getCache();
+        if (cacheConfig == null || !cacheConfig.isEnabled()) {
+            return storageAccessService;
+        }
+        return new CachingStorageAccessService(storageAccessService, cacheConfig);
+    }
 }
@@ -16,6 +16,7 @@
 
 package ai.starwhale.mlops.storage.configuration;
 
+import ai.starwhale.mlops.storage.cache.StorageCacheConfig;
 import ai.starwhale.mlops.storage.fs.AliyunEnv;
 import ai.starwhale.mlops.storage.fs.BotoS3Config;
 import ai.starwhale.mlops.storage.fs.FileStorageEnv;
@@ -33,6 +34,7 @@ public class StorageProperties {
     String type;
     String pathPrefix;
     S3Config s3Config;
+    StorageCacheConfig cache;
 
     public Map<String, FileStorageEnv> toFileStorageEnvs() {
         Map<String, FileStorageEnv> ret = new HashMap<>();
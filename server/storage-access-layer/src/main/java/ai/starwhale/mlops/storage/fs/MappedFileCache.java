@@ -0,0 +1,131 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import lombok.AllArgsConstructor;
+
+/**
+ * Keeps recently read files memory-mapped, so that small ranges of hot files are copied from the page cache without
+ * a system call per read.
+ *
+ * <p>Files are replaced by renaming rather than rewritten in place, so a mapped file never shrinks under the mapping.
+ * A mapping is checked against the file attributes on each read and remapped if the file has been replaced. Unused
+ * mappings are released by the garbage collector after they are evicted.
+ */
+class MappedFileCache {
+
+    private final long maxBytes;
+
+    // in access order, the eldest entry is evicted first
+    private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    MappedFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the bytes of the range, or null if the file is too large to be mapped.
+     */
+    ByteBuffer read(Path file, long offset, long size) throws IOException {
+        var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        var length = attributes.size();
+        if (length > this.maxBytes || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        Mapping mapping;
+        synchronized (this) {
+            mapping = this.mappings.get(file);
+            if (mapping != null && !mapping.matches(attributes)) {
+                this.remove(file);
+                mapping = null;
+            }
+        }
+        if (mapping == null) {
+            MappedByteBuffer buffer;
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(MapMode.READ_ONLY, 0, length);
+            }
+            mapping = new Mapping(attributes.fileKey(), attributes.lastModifiedTime(), buffer);
+            this.add(file, mapping);
+        }
+        var buffer = mapping.buffer.duplicate();
+        var start = (int) Math.min(offset, buffer.capacity());
+        var end = (int) (start + Math.min(size, buffer.capacity() - start));
+        buffer.limit(end).position(start);
+        return buffer.slice();
+    }
+
+    synchronized void invalidate(Path file) {
+        this.remove(file);
+    }
+
+    synchronized long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    private synchronized void add(Path file, Mapping mapping) {
+        this.remove(file);
+        this.mappings.put(file, mapping);
+        this.totalBytes += mapping.buffer.capacity();
+        var it = this.mappings.entrySet().iterator();
+        while (this.totalBytes > this.maxBytes && it.hasNext()) {
+            var entry = it.next();
+            if (entry.getValue() != mapping) {
+                this.totalBytes -= entry.getValue().buffer.capacity();
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(Path file) {
+        var mapping = this.mappings.remove(file);
+        if (mapping != null) {
+            this.totalBytes -= mapping.buffer.capacity();
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Mapping {
+
+        private final Object fileKey;
+
+        private final FileTime lastModifiedTime;
+
+        private final MappedByteBuffer buffer;
+
+        boolean matches(BasicFileAttributes attributes) {
+            return Objects.equals(this.fileKey, attributes.fileKey())
+                    && this.lastModifiedTime.equals(attributes.lastModifiedTime())
+                    && this.buffer.capacity() == attributes.size();
+        }
+    }
+}
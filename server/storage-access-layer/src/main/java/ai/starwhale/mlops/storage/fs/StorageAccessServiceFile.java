@@ -16,9 +16,14 @@
 
 package ai.starwhale.mlops.storage.fs;
 
+import ai.starwhale.mlops.storage.AsyncContent;
+import ai.starwhale.mlops.storage.AsyncStorageAccessService;
 import ai.starwhale.mlops.storage.LengthAbleInputStream;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.StorageObjectSummary;
+import ai.starwhale.mlops.storage.util.ByteBufferInputStream;
+import ai.starwhale.mlops.storage.util.FileChannelPublisher;
 import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -27,26 +32,49 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 @Component
 @ConditionalOnProperty(prefix = "sw.storage", name = "type", havingValue = "fs")
-public class StorageAccessServiceFile implements StorageAccessService {
+public class StorageAccessServiceFile implements StorageAccessService, AsyncStorageAccessService {
+
+    // larger ranges are read with the file channel, which saves mapping pages that are read only once
+    static final long MMAP_MAX_RANGE_SIZE = 1048576;
 
     private final File rootDir;
 
-    public StorageAccessServiceFile(@Value("${sw.storage.fs-root-dir}") String rootDir) {
+    private final MappedFileCache mappedFileCache;
+
+    public StorageAccessServiceFile(String rootDir) {
+        this(rootDir, 0);
+    }
+
+    /**
+     * Creates the storage.
+     *
+     * @param rootDir      the directory holding the objects
+     * @param mmapMaxBytes the total size of files kept memory-mapped for small ranged reads, 0 to disable it
+     */
+    @Autowired
+    public StorageAccessServiceFile(@Value("${sw.storage.fs-root-dir}") String rootDir,
+            @Value("${sw.storage.fs-mmap-max-bytes:0}") long mmapMaxBytes) {
         this.rootDir = new File(rootDir);
         if (!this.rootDir.exists()) {
             throw new IllegalArgumentException(rootDir + " does not exist");
@@ -54,6 +82,7 @@ public class StorageAccessServiceFile implements StorageAccessService {
         if (!this.rootDir.isDirectory()) {
             throw new IllegalArgumentException(rootDir + " is not a directory");
         }
+        this.mappedFileCache = mmapMaxBytes > 0 ? new MappedFileCache(mmapMaxBytes) : null;
     }
 
     @Override
@@ -75,6 +104,7 @@ public class StorageAccessServiceFile implements StorageAccessService {
             inputStream.transferTo(out);
             out.close();
             Files.move(temp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.invalidateMapping(f);
         } finally {
             //noinspection ResultOfMethodCallIgnored
             temp.delete();
@@ -101,13 +131,57 @@ public class StorageAccessServiceFile implements StorageAccessService {
             offset = 0L;
         }
         if (size == null || size < 0) {
-            size = -1L;
+            size = Long.MAX_VALUE;
+        }
+        var f = new File(this.rootDir, path);
+        try {
+            if (this.mappedFileCache != null && size <= MMAP_MAX_RANGE_SIZE) {
+                var buf = this.mappedFileCache.read(f.toPath(), offset, size);
+                if (buf != null) {
+                    return new LengthAbleInputStream(new ByteBufferInputStream(buf), buf.remaining());
+                }
+            }
+            var channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            var length = channel.size();
+            offset = Math.min(offset, length);
+            size = Math.min(size, length - offset);
+            channel.position(offset);
+            //noinspection UnstableApiUsage
+            var is = ByteStreams.limit(Channels.newInputStream(channel), size);
+            return new LengthAbleInputStream(is, size);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(f.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public CompletableFuture<StorageObjectInfo> headAsync(String path) {
+        try {
+            return CompletableFuture.completedFuture(this.head(path));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<AsyncContent> getAsync(String path, Long offset, Long size) {
+        var f = new File(this.rootDir, path);
+        try {
+            var channel = AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ);
+            var length = channel.size();
+            var start = 0L;
+            var end = length;
+            if (offset != null && size != null && offset >= 0 && size > 0) {
+                start = Math.min(offset, length);
+                end = Math.min(offset + size, length);
+            }
+            return CompletableFuture.completedFuture(
+                    new AsyncContent(end - start, new FileChannelPublisher(channel, start, end)));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.failedFuture(new FileNotFoundException(f.getAbsolutePath()));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        var f = new RandomAccessFile(this.rootDir, "r");
-        f.seek(offset);
-        //noinspection UnstableApiUsage
-        var is = ByteStreams.limit(Channels.newInputStream(f.getChannel()), size);
-        return new LengthAbleInputStream(is, size);
     }
 
     @Override
@@ -119,9 +193,18 @@ public class StorageAccessServiceFile implements StorageAccessService {
                 false);
     }
 
+    @Override
+    public Stream<StorageObjectSummary> listSummaries(String path) {
+        return this.list(path).map(name -> {
+            var f = new File(this.rootDir, name);
+            return new StorageObjectSummary(name, f.length(), Instant.ofEpochMilli(f.lastModified()));
+        });
+    }
+
     @Override
     public void delete(String path) throws IOException {
         var f = new File(this.rootDir, path);
+        this.invalidateMapping(f);
         while (f.delete()) {
             f = f.getParentFile();
             if (f.equals(this.rootDir) || !f.isDirectory()) {
@@ -134,4 +217,16 @@ public class StorageAccessServiceFile implements StorageAccessService {
             }
         }
     }
+
+    @Override
+    public File localFile(String path) {
+        var f = new File(this.rootDir, path);
+        return f.isFile() ? f : null;
+    }
+
+    private void invalidateMapping(File f) {
+        if (this.mappedFileCache != null) {
+            this.mappedFileCache.invalidate(f.toPath());
+        }
+    }
 }
@@ -35,6 +35,8 @@ public class S3Config {
     private String endpoint;
     private long hugeFileThreshold;
     private long hugeFilePartSize;
+    // the number of parts of a huge file transferred at the same time
+    private int hugeFileConcurrency;
 
     public boolean overWriteEndPoint() {
         return null != endpoint && !endpoint.isBlank();
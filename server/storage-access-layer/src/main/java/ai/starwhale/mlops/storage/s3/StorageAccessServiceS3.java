@@ -16,21 +16,42 @@
 
 package ai.starwhale.mlops.storage.s3;
 
+import ai.starwhale.mlops.storage.AsyncContent;
+import ai.starwhale.mlops.storage.AsyncStorageAccessService;
 import ai.starwhale.mlops.storage.LengthAbleInputStream;
 import ai.starwhale.mlops.storage.StorageAccessService;
 import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.StorageObjectSummary;
 import ai.starwhale.mlops.storage.util.MetaHelper;
+import ai.starwhale.mlops.storage.util.ParallelRangeInputStream;
+import ai.starwhale.mlops.storage.util.ParallelRangePublisher;
+import ai.starwhale.mlops.storage.util.PrefetchingPageIterator;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.S3Configuration;
@@ -41,22 +62,35 @@ import software.amazon.awssdk.services.s3.model.CompletedPart;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 
-public class StorageAccessServiceS3 implements StorageAccessService {
+public class StorageAccessServiceS3 implements StorageAccessService, AsyncStorageAccessService {
+
+    private static final ExecutorService TRANSFER_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("s3-transfer-%d")
+            .setDaemon(true)
+            .build());
+
+    // parts are buffered in byte arrays when they are transferred in parallel
+    private static final long MAX_BUFFERED_PART_SIZE = Integer.MAX_VALUE - 8;
 
     final S3Config s3Config;
 
     final S3Client s3client;
 
+    // created on first use, since most requests go through the blocking client
+    final Supplier<S3AsyncClient> s3AsyncClient;
+
+    private volatile boolean s3AsyncClientCreated;
+
     public StorageAccessServiceS3(S3Config s3Config) {
         this.s3Config = s3Config;
         AwsBasicCredentials awsCreds = AwsBasicCredentials.create(s3Config.getAccessKey(), s3Config.getSecretKey());
@@ -71,8 +105,24 @@ public class StorageAccessServiceS3 implements StorageAccessService {
             s3ClientBuilder.endpointOverride(URI.create(s3Config.getEndpoint()));
         }
         this.s3client = s3ClientBuilder.build();
+        this.s3AsyncClient = Suppliers.memoize(() -> {
+            this.s3AsyncClientCreated = true;
+            var builder = S3AsyncClient.builder()
+                    .serviceConfiguration(config)
+                    .credentialsProvider(StaticCredentialsProvider.create(awsCreds))
+                    .region(Region.of(s3Config.getRegion()));
+            if (s3Config.overWriteEndPoint()) {
+                builder.endpointOverride(URI.create(s3Config.getEndpoint()));
+            }
+            return builder.build();
+        });
+    }
 
-        // abort all previous pending multipart uploads
+    /**
+     * Aborts all pending multipart uploads in the bucket, which are left by uploads interrupted by a restart. This
+     * should only be called for the controller's own storage, since the uploads of other users may still be running.
+     */
+    public void abortPendingMultipartUploads() {
         var resp = this.s3client.listMultipartUploads(ListMultipartUploadsRequest.builder()
                 .bucket(s3Config.getBucket())
                 .build());
@@ -102,7 +152,7 @@ public class StorageAccessServiceS3 implements StorageAccessService {
         try {
             HeadObjectResponse headObjectResponse = s3client.headObject(build);
             return new StorageObjectInfo(true, headObjectResponse.contentLength(),
-                    MetaHelper.mapToString(headObjectResponse.metadata()));
+                    MetaHelper.mapToString(headObjectResponse.metadata()), headObjectResponse.eTag());
         } catch (NoSuchKeyException e) {
             return new StorageObjectInfo(false, 0L, null);
         }
@@ -110,6 +160,24 @@ public class StorageAccessServiceS3 implements StorageAccessService {
     }
 
 
+    @Override
+    public CompletableFuture<StorageObjectInfo> headAsync(String path) {
+        return this.s3AsyncClient.get().headObject(HeadObjectRequest.builder()
+                        .bucket(this.s3Config.getBucket())
+                        .key(path)
+                        .build())
+                .handle((resp, e) -> {
+                    if (e == null) {
+                        return new StorageObjectInfo(true, resp.contentLength(),
+                                MetaHelper.mapToString(resp.metadata()), resp.eTag());
+                    }
+                    if (e instanceof CompletionException && e.getCause() instanceof NoSuchKeyException) {
+                        return new StorageObjectInfo(false, 0L, null);
+                    }
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                });
+    }
+
     @Override
     public void put(String path, InputStream inputStream, long size) throws IOException {
         if (this.s3Config.getHugeFileThreshold() <= 0
@@ -126,19 +194,12 @@ public class StorageAccessServiceS3 implements StorageAccessService {
                         .build())
                 .uploadId();
         try {
-            var etagList = new ArrayList<String>();
-            for (int i = 1; size > 0; ++i) {
-                var partSize = Math.min(size, this.s3Config.getHugeFilePartSize());
-                var resp = this.s3client.uploadPart(UploadPartRequest.builder()
-                                .bucket(this.s3Config.getBucket())
-                                .key(path)
-                                .uploadId(uploadId)
-                                .partNumber(i)
-                                .contentLength(partSize)
-                                .build(),
-                        RequestBody.fromInputStream(inputStream, partSize));
-                size -= partSize;
-                etagList.add(resp.eTag());
+            List<String> etagList;
+            if (this.s3Config.getHugeFileConcurrency() > 1
+                    && this.s3Config.getHugeFilePartSize() <= MAX_BUFFERED_PART_SIZE) {
+                etagList = this.uploadPartsInParallel(path, uploadId, inputStream, size);
+            } else {
+                etagList = this.uploadPartsSequentially(path, uploadId, inputStream, size);
             }
             this.s3client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
                     .bucket(this.s3Config.getBucket())
@@ -159,6 +220,7 @@ public class StorageAccessServiceS3 implements StorageAccessService {
                     .key(path)
                     .uploadId(uploadId)
                     .build());
+            throw t;
         }
     }
 
@@ -169,17 +231,143 @@ public class StorageAccessServiceS3 implements StorageAccessService {
                 RequestBody.fromBytes(body));
     }
 
+    private List<String> uploadPartsSequentially(String path, String uploadId, InputStream inputStream, long size) {
+        var etagList = new ArrayList<String>();
+        for (int i = 1; size > 0; ++i) {
+            var partSize = Math.min(size, this.s3Config.getHugeFilePartSize());
+            etagList.add(this.uploadPart(path, uploadId, i, partSize,
+                    RequestBody.fromInputStream(inputStream, partSize)));
+            size -= partSize;
+        }
+        return etagList;
+    }
+
+    /**
+     * Reads parts from the input stream one by one and uploads them concurrently. A part is read into a buffer of
+     * hugeFilePartSize bytes, and at most hugeFileConcurrency buffers are allocated, so reading waits while all of
+     * them are being uploaded.
+     */
+    private List<String> uploadPartsInParallel(String path, String uploadId, InputStream inputStream, long size)
+            throws IOException {
+        var concurrency = this.s3Config.getHugeFileConcurrency();
+        var freeBuffers = new ArrayBlockingQueue<byte[]>(concurrency);
+        var allocatedBuffers = 0;
+        var parts = new ArrayList<CompletableFuture<String>>();
+        // completed once any part fails, so that no more parts are read
+        var failure = new CompletableFuture<Void>();
+        for (int i = 1; size > 0 && !failure.isDone(); ++i) {
+            var partSize = (int) Math.min(size, this.s3Config.getHugeFilePartSize());
+            var buf = freeBuffers.poll();
+            if (buf == null) {
+                if (allocatedBuffers < concurrency) {
+                    buf = new byte[(int) this.s3Config.getHugeFilePartSize()];
+                    ++allocatedBuffers;
+                } else {
+                    try {
+                        buf = freeBuffers.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            if (inputStream.readNBytes(buf, 0, partSize) < partSize) {
+                throw new IOException("unexpected end of stream while uploading " + path);
+            }
+            final var partNumber = i;
+            final var data = buf;
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return this.uploadPart(path, uploadId, partNumber, partSize,
+                            RequestBody.fromContentProvider(() -> new ByteArrayInputStream(data, 0, partSize),
+                                    partSize, "application/octet-stream"));
+                } finally {
+                    freeBuffers.add(data);
+                }
+            }, TRANSFER_EXECUTOR).whenComplete((etag, e) -> {
+                if (e != null) {
+                    failure.completeExceptionally(e);
+                }
+            }));
+            size -= partSize;
+        }
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return parts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+    }
+
+    private String uploadPart(String path, String uploadId, int partNumber, long partSize, RequestBody body) {
+        return this.s3client.uploadPart(UploadPartRequest.builder()
+                        .bucket(this.s3Config.getBucket())
+                        .key(path)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength(partSize)
+                        .build(), body)
+                .eTag();
+    }
+
+    /**
+     * Gets an object. If hugeFileConcurrency is greater than 1, objects larger than hugeFilePartSize are downloaded
+     * as ranges of hugeFilePartSize bytes, several of which are fetched at the same time and returned in order.
+     */
     @Override
     public LengthAbleInputStream get(String path) {
-        var req = GetObjectRequest.builder().bucket(s3Config.getBucket()).key(path).build();
-        var resp = s3client.getObject(req);
-        return new LengthAbleInputStream(resp, resp.response().contentLength());
+        var concurrency = this.s3Config.getHugeFileConcurrency();
+        var partSize = this.s3Config.getHugeFilePartSize();
+        if (concurrency <= 1 || partSize <= 0 || partSize > MAX_BUFFERED_PART_SIZE) {
+            var req = GetObjectRequest.builder().bucket(s3Config.getBucket()).key(path).build();
+            var resp = s3client.getObject(req);
+            return new LengthAbleInputStream(resp, resp.response().contentLength());
+        }
+        ResponseInputStream<GetObjectResponse> resp;
+        try {
+            resp = this.s3client.getObject(GetObjectRequest.builder()
+                    .bucket(this.s3Config.getBucket())
+                    .key(path)
+                    .range(String.format(RANGE_FORMAT, 0, partSize - 1))
+                    .build());
+        } catch (S3Exception e) {
+            if (e.statusCode() != HTTP_RANGE_NOT_SATISFIABLE) {
+                throw e;
+            }
+            // no range of an empty object is satisfiable
+            return new LengthAbleInputStream(InputStream.nullInputStream(), 0);
+        }
+        var firstSize = resp.response().contentLength();
+        var contentRange = resp.response().contentRange();
+        // the whole object is returned if the server does not support ranges
+        var totalSize = contentRange == null
+                ? firstSize
+                : Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+        if (firstSize >= totalSize) {
+            return new LengthAbleInputStream(resp, totalSize);
+        }
+        // make sure that all ranges come from the same version of the object
+        var etag = resp.response().eTag();
+        return new LengthAbleInputStream(new ParallelRangeInputStream(resp, firstSize, totalSize, partSize, concurrency,
+                (offset, size) -> this.s3client.getObjectAsBytes(GetObjectRequest.builder()
+                                .bucket(this.s3Config.getBucket())
+                                .key(path)
+                                .range(String.format(RANGE_FORMAT, offset, offset + size - 1))
+                                .ifMatch(etag)
+                                .build())
+                        .asByteArrayUnsafe(),
+                TRANSFER_EXECUTOR), totalSize);
     }
 
 
     //bytes=0-10098
     static final String RANGE_FORMAT = "bytes=%d-%d";
 
+    static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     @Override
     public LengthAbleInputStream get(String path, Long offset, Long size) throws IOException {
         if (null == offset || null == size || offset < 0 || size <= 0) {
@@ -192,12 +380,88 @@ public class StorageAccessServiceS3 implements StorageAccessService {
         return new LengthAbleInputStream(resp, resp.response().contentLength());
     }
 
+    /**
+     * Reads an object or a range of it. Whole objects larger than hugeFilePartSize are read in parallel ranges like
+     * {@link #get(String)}.
+     */
     @Override
-    public Stream<String> list(String path) {
+    public CompletableFuture<AsyncContent> getAsync(String path, Long offset, Long size) {
+        var req = GetObjectRequest.builder().bucket(this.s3Config.getBucket()).key(path);
+        if (offset != null && size != null && offset >= 0 && size > 0) {
+            req.range(String.format(RANGE_FORMAT, offset, offset + size - 1));
+        } else {
+            var concurrency = this.s3Config.getHugeFileConcurrency();
+            var partSize = this.s3Config.getHugeFilePartSize();
+            if (concurrency > 1 && partSize > 0 && partSize <= MAX_BUFFERED_PART_SIZE) {
+                return this.getAsyncInParallel(path, partSize, concurrency);
+            }
+        }
+        return this.s3AsyncClient.get().getObject(req.build(), AsyncResponseTransformer.toPublisher())
+                .thenApply(resp -> new AsyncContent(resp.response().contentLength(), resp));
+    }
+
+    private CompletableFuture<AsyncContent> getAsyncInParallel(String path, long partSize, int concurrency) {
+        return this.s3AsyncClient.get().getObject(GetObjectRequest.builder()
+                                .bucket(this.s3Config.getBucket())
+                                .key(path)
+                                .range(String.format(RANGE_FORMAT, 0, partSize - 1))
+                                .build(),
+                        AsyncResponseTransformer.toBytes())
+                .handle((resp, e) -> {
+                    if (e != null) {
+                        var cause = e instanceof CompletionException ? e.getCause() : e;
+                        if (cause instanceof S3Exception
+                                && ((S3Exception) cause).statusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                            // no range of an empty object is satisfiable
+                            return new AsyncContent(0, new ParallelRangePublisher(ByteBuffer.allocate(0), 0,
+                                    partSize, concurrency, null, TRANSFER_EXECUTOR));
+                        }
+                        throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                    }
+                    var first = ByteBuffer.wrap(resp.asByteArrayUnsafe());
+                    var contentRange = resp.response().contentRange();
+                    // the whole object is returned if the server does not support ranges
+                    var totalSize = contentRange == null
+                            ? first.remaining()
+                            : Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+                    // make sure that all ranges come from the same version of the object
+                    var etag = resp.response().eTag();
+                    return new AsyncContent(totalSize, new ParallelRangePublisher(first, totalSize, partSize,
+                            concurrency, (offset, size) -> this.getRangeAsync(path, etag, offset, size),
+                            TRANSFER_EXECUTOR));
+                });
+    }
+
+    private CompletableFuture<ByteBuffer> getRangeAsync(String path, String etag, long offset, long size) {
+        return this.s3AsyncClient.get().getObject(GetObjectRequest.builder()
+                                .bucket(this.s3Config.getBucket())
+                                .key(path)
+                                .range(String.format(RANGE_FORMAT, offset, offset + size - 1))
+                                .ifMatch(etag)
+                                .build(),
+                        AsyncResponseTransformer.toBytes())
+                .thenApply(resp -> ByteBuffer.wrap(resp.asByteArrayUnsafe()));
+    }
+
+    @Override
+    public Stream<String> list(String path) throws IOException {
+        return this.listSummaries(path).map(StorageObjectSummary::getPath);
+    }
+
+    @Override
+    public Stream<StorageObjectSummary> listSummaries(String path) throws IOException {
         try {
-            final ListObjectsResponse listObjectsResponse = s3client.listObjects(
-                    ListObjectsRequest.builder().bucket(s3Config.getBucket()).prefix(path).build());
-            return listObjectsResponse.contents().stream().map(S3Object::key);
+            return PrefetchingPageIterator.stream(token -> {
+                var resp = this.s3client.listObjectsV2(ListObjectsV2Request.builder()
+                        .bucket(this.s3Config.getBucket())
+                        .prefix(path)
+                        .continuationToken(token)
+                        .build());
+                return new PrefetchingPageIterator.Page<>(resp.contents().stream()
+                        .map(obj -> new StorageObjectSummary(obj.key(), obj.size(), obj.lastModified()))
+                        .collect(Collectors.toList()),
+                        resp.isTruncated() ? resp.nextContinuationToken() : null);
+            });
         } catch (NoSuchKeyException e) {
             return Stream.empty();
         }
@@ -210,4 +474,12 @@ public class StorageAccessServiceS3 implements StorageAccessService {
                 .key(path)
                 .build());
     }
+
+    @Override
+    public void close() {
+        this.s3client.close();
+        if (this.s3AsyncClientCreated) {
+            this.s3AsyncClient.get().close();
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.util;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the content of a source chunk by chunk to a single subscriber. A chunk is read only when the subscriber
+ * has requested one, and at most one read is in progress at any time.
+ */
+public abstract class ChunkPublisher implements Publisher<ByteBuffer> {
+
+    protected static final int CHUNK_SIZE = 65536;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private final AtomicLong demand = new AtomicLong();
+
+    private final AtomicBoolean reading = new AtomicBoolean();
+
+    // set once the subscriber is completed, failed or cancelled
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private volatile Subscriber<? super ByteBuffer> subscriber;
+
+    /**
+     * Reads the next chunk asynchronously. The callback must be invoked on another thread, with a null chunk at the
+     * end of the content.
+     */
+    protected abstract void read(BiConsumer<ByteBuffer, Throwable> callback);
+
+    /**
+     * Releases the source. It is called once the subscriber is completed, failed or cancelled.
+     */
+    protected abstract void close();
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+            return;
+        }
+        this.subscriber = subscriber;
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    ChunkPublisher.this.fail(new IllegalArgumentException("non-positive request " + n));
+                    return;
+                }
+                ChunkPublisher.this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                ChunkPublisher.this.drain();
+            }
+
+            @Override
+            public void cancel() {
+                ChunkPublisher.this.finish();
+            }
+        });
+    }
+
+    private void drain() {
+        if (this.done.get() || this.demand.get() == 0 || !this.reading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.read(this::onChunk);
+        } catch (Throwable t) {
+            this.onChunk(null, t);
+        }
+    }
+
+    private void onChunk(ByteBuffer chunk, Throwable error) {
+        if (this.done.get()) {
+            return;
+        }
+        if (error != null) {
+            this.fail(error);
+            return;
+        }
+        if (chunk == null) {
+            if (this.finish()) {
+                this.subscriber.onComplete();
+            }
+            return;
+        }
+        this.demand.decrementAndGet();
+        this.subscriber.onNext(chunk);
+        // the subscriber may have requested more in onNext(), which did not start a read since this one was running
+        this.reading.set(false);
+        this.drain();
+    }
+
+    private void fail(Throwable error) {
+        if (this.finish()) {
+            this.subscriber.onError(error);
+        }
+    }
+
+    private boolean finish() {
+        if (!this.done.compareAndSet(false, true)) {
+            return false;
+        }
+        this.close();
+        return true;
+    }
+}
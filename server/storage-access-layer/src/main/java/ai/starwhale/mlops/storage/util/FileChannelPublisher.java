@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.function.BiConsumer;
+
+/**
+ * Publishes a range of a file read through an {@link AsynchronousFileChannel}, which is closed at the end.
+ */
+public class FileChannelPublisher extends ChunkPublisher {
+
+    private final AsynchronousFileChannel channel;
+
+    private final long end;
+
+    private long position;
+
+    public FileChannelPublisher(AsynchronousFileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    protected void read(BiConsumer<ByteBuffer, Throwable> callback) {
+        if (this.position >= this.end) {
+            callback.accept(null, null);
+            return;
+        }
+        var buf = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, this.end - this.position));
+        this.channel.read(buf, this.position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer result, Void attachment) {
+                if (result < 0) {
+                    callback.accept(null, new EOFException("the file is truncated"));
+                    return;
+                }
+                FileChannelPublisher.this.position += result;
+                callback.accept(buf.flip(), null);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                callback.accept(null, exc);
+            }
+        });
+    }
+
+    @Override
+    protected void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // nothing to do since the content has been read or abandoned
+        }
+    }
+}
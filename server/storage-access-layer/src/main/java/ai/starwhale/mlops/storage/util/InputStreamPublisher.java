@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Publishes the content of a blocking input stream, which is read on the executor and closed at the end.
+ */
+public class InputStreamPublisher extends ChunkPublisher {
+
+    private final InputStream inputStream;
+
+    private final Executor executor;
+
+    public InputStreamPublisher(InputStream inputStream, Executor executor) {
+        this.inputStream = inputStream;
+        this.executor = executor;
+    }
+
+    @Override
+    protected void read(BiConsumer<ByteBuffer, Throwable> callback) {
+        this.executor.execute(() -> {
+            try {
+                var buf = this.inputStream.readNBytes(CHUNK_SIZE);
+                callback.accept(buf.length == 0 ? null : ByteBuffer.wrap(buf), null);
+            } catch (Throwable t) {
+                callback.accept(null, t);
+            }
+        });
+    }
+
+    @Override
+    protected void close() {
+        try {
+            this.inputStream.close();
+        } catch (IOException e) {
+            // nothing to do since the content has been read or abandoned
+        }
+    }
+}
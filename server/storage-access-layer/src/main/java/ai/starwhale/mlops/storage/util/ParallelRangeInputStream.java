@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads an object as consecutive ranges which are fetched in parallel and returned in order. The first range is read
+ * from a stream the caller has already opened, and at most {@code concurrency} of the following ranges are buffered
+ * in memory at any time.
+ */
+public class ParallelRangeInputStream extends InputStream {
+
+    public interface RangeFetcher {
+
+        /**
+         * Fetches {@code size} bytes of the object starting at {@code offset}.
+         */
+        byte[] fetch(long offset, long size) throws IOException;
+    }
+
+    private final RangeFetcher fetcher;
+
+    private final Executor executor;
+
+    private final long totalSize;
+
+    private final long partSize;
+
+    private final int concurrency;
+
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+    private long nextOffset;
+
+    private InputStream current;
+
+    /**
+     * Creates a stream.
+     *
+     * @param first       the stream of the first range, which starts at offset 0
+     * @param firstSize   the length of the first range
+     * @param totalSize   the length of the object
+     * @param partSize    the length of each of the following ranges, except for the last one
+     * @param concurrency the maximum number of ranges fetched or buffered at the same time
+     */
+    public ParallelRangeInputStream(InputStream first,
+            long firstSize,
+            long totalSize,
+            long partSize,
+            int concurrency,
+            RangeFetcher fetcher,
+            Executor executor) {
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.totalSize = totalSize;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.current = first;
+        this.nextOffset = firstSize;
+        this.schedule();
+    }
+
+    private void schedule() {
+        while (this.pending.size() < this.concurrency && this.nextOffset < this.totalSize) {
+            var offset = this.nextOffset;
+            var size = Math.min(this.partSize, this.totalSize - offset);
+            this.pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return this.fetcher.fetch(offset, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, this.executor));
+            this.nextOffset += size;
+        }
+    }
+
+    private void nextRange() throws IOException {
+        this.current.close();
+        this.current = null;
+        var next = this.pending.poll();
+        if (next == null) {
+            return;
+        }
+        try {
+            this.current = new ByteArrayInputStream(next.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        this.schedule();
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (this.current != null) {
+            int b = this.current.read();
+            if (b >= 0) {
+                return b;
+            }
+            this.nextRange();
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (this.current != null) {
+            int n = this.current.read(b, off, len);
+            if (n > 0) {
+                return n;
+            }
+            this.nextRange();
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (var future : this.pending) {
+            future.cancel(true);
+        }
+        this.pending.clear();
+        if (this.current != null) {
+            this.current.close();
+            this.current = null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.starwhale.mlops.storage.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Publishes an object as consecutive ranges which are fetched in parallel and published in order, like
+ * {@link ParallelRangeInputStream} but without blocking a thread. The first range has been fetched by the caller, and
+ * at most {@code concurrency} of the following ranges are fetched or buffered at any time.
+ */
+public class ParallelRangePublisher extends ChunkPublisher {
+
+    public interface RangeFetcher {
+
+        /**
+         * Fetches {@code size} bytes of the object starting at {@code offset} asynchronously.
+         */
+        CompletableFuture<ByteBuffer> fetch(long offset, long size);
+    }
+
+    private final RangeFetcher fetcher;
+
+    private final Executor executor;
+
+    private final long totalSize;
+
+    private final long partSize;
+
+    private final int concurrency;
+
+    private final Deque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+
+    private long nextOffset;
+
+    // the first range until it is published
+    private ByteBuffer first;
+
+    private boolean closed;
+
+    /**
+     * Creates a publisher.
+     *
+     * @param first       the first range, which starts at offset 0
+     * @param totalSize   the length of the object
+     * @param partSize    the length of each of the following ranges, except for the last one
+     * @param concurrency the maximum number of ranges fetched or buffered at the same time
+     * @param executor    runs the callbacks of reads
+     */
+    public ParallelRangePublisher(ByteBuffer first,
+            long totalSize,
+            long partSize,
+            int concurrency,
+            RangeFetcher fetcher,
+            Executor executor) {
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.totalSize = totalSize;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.first = first;
+        this.nextOffset = first.remaining();
+    }
+
+    private void schedule() {
+        while (!this.closed && this.pending.size() < this.concurrency && this.nextOffset < this.totalSize) {
+            var size = Math.min(this.partSize, this.totalSize - this.nextOffset);
+            this.pending.add(this.fetcher.fetch(this.nextOffset, size));
+            this.nextOffset += size;
+        }
+    }
+
+    @Override
+    protected synchronized void read(BiConsumer<ByteBuffer, Throwable> callback) {
+        // ranges are fetched once the subscriber asks for content, so an abandoned publisher fetches nothing
+        this.schedule();
+        if (this.first != null) {
+            var chunk = this.first;
+            this.first = null;
+            this.executor.execute(() -> callback.accept(chunk.hasRemaining() ? chunk : null, null));
+            return;
+        }
+        var next = this.pending.poll();
+        if (next == null) {
+            this.executor.execute(() -> callback.accept(null, null));
+            return;
+        }
+        next.whenCompleteAsync(callback, this.executor);
+        this.schedule();
+    }
+
+    @Override
+    protected synchronized void close() {
+        this.closed = true;
+        for (var future : this.pending) {
+            future.cancel(true);
+        }
+        this.pending.clear();
+        this.first = null;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import lombok.AllArgsConstructor;
+
+/**
+ * Iterates over the items of a paginated listing. The next page is fetched in the background while the current one
+ * is consumed, so that consumers rarely wait for a round trip.
+ */
+public class PrefetchingPageIterator<T> implements Iterator<T> {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("storage-list-%d")
+            .setDaemon(true)
+            .build());
+
+    @AllArgsConstructor
+    public static class Page<T> {
+
+        private final List<T> items;
+
+        // null if this is the last page
+        private final String nextToken;
+    }
+
+    public interface PageFetcher<T> {
+
+        /**
+         * Fetches a page.
+         *
+         * @param token the token of the page, which is null for the first page
+         */
+        Page<T> fetch(String token) throws IOException;
+    }
+
+    private final PageFetcher<T> fetcher;
+
+    private Iterator<T> current;
+
+    private CompletableFuture<Page<T>> next;
+
+    /**
+     * Creates an iterator. The first page is fetched at once, so that errors like a missing bucket are thrown here.
+     */
+    public PrefetchingPageIterator(PageFetcher<T> fetcher) throws IOException {
+        this.fetcher = fetcher;
+        this.accept(fetcher.fetch(null));
+    }
+
+    /**
+     * Returns a sequential stream of the items of the listing.
+     */
+    public static <T> Stream<T> stream(PageFetcher<T> fetcher) throws IOException {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(new PrefetchingPageIterator<>(fetcher), Spliterator.ORDERED),
+                false);
+    }
+
+    private void accept(Page<T> page) {
+        this.current = page.items.iterator();
+        if (page.nextToken == null) {
+            this.next = null;
+        } else {
+            this.next = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return this.fetcher.fetch(page.nextToken);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, EXECUTOR);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        // pages may be empty even if they are not the last one
+        while (!this.current.hasNext() && this.next != null) {
+            try {
+                this.accept(this.next.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return this.current.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.current.next();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ai.starwhale.mlops.storage.cache.CachingStorageAccessService;
+import ai.starwhale.mlops.storage.cache.StorageCacheConfig;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlockingAsyncStorageAccessServiceTest {
+
+    @TempDir
+    private File rootDir;
+
+    @TempDir
+    private File cacheDir;
+
+    @Test
+    public void testAdapter() throws IOException {
+        var file = new StorageAccessServiceFile(this.rootDir.getAbsolutePath());
+        assertThat(AsyncStorageAccessService.of(file), sameInstance(file));
+
+        var data = new byte[300000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) (i / 7);
+        }
+        file.put("t", data);
+        var async = AsyncStorageAccessService.of(new CachingStorageAccessService(file, StorageCacheConfig.builder()
+                .dir(this.cacheDir.getAbsolutePath())
+                .maxBytes(1000000)
+                .build()));
+        assertThat(async instanceof BlockingAsyncStorageAccessService, is(true));
+        var content = async.getAsync("t", null, null).join();
+        assertThat(content.getSize(), is(300000L));
+        assertThat(content.toBytes().join(), is(data));
+        assertThat(async.headAsync("t").join().getContentLength(), is(300000L));
+        assertThrows(CompletionException.class, () -> async.getAsync("x", null, null).join());
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ai.starwhale.mlops.storage.AsyncContent;
+import ai.starwhale.mlops.storage.LengthAbleInputStream;
+import ai.starwhale.mlops.storage.StorageObjectInfo;
+import ai.starwhale.mlops.storage.fs.StorageAccessServiceFile;
+import ai.starwhale.mlops.storage.util.InputStreamPublisher;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class CachingStorageAccessServiceTest {
+
+    @TempDir
+    private File rootDir;
+
+    @TempDir
+    private File cacheDir;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private CountingStorage storage;
+
+    private CachingStorageAccessService cache;
+
+    /**
+     * Counts the reads, and changes the ETag whenever an object is written.
+     */
+    private static class CountingStorage extends StorageAccessServiceFile {
+
+        private final AtomicInteger getCount = new AtomicInteger();
+
+        private final AtomicInteger version = new AtomicInteger();
+
+        private volatile CountDownLatch getLatch = new CountDownLatch(0);
+
+        CountingStorage(String rootDir) {
+            super(rootDir);
+        }
+
+        @Override
+        public StorageObjectInfo head(String path) throws IOException {
+            var info = super.head(path);
+            info.setEtag(String.valueOf(this.version.get()));
+            return info;
+        }
+
+        @Override
+        public void put(String path, InputStream inputStream, long size) throws IOException {
+            super.put(path, inputStream, size);
+            this.version.incrementAndGet();
+        }
+
+        @Override
+        public LengthAbleInputStream get(String path) throws IOException {
+            this.getCount.incrementAndGet();
+            try {
+                this.getLatch.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return super.get(path);
+        }
+
+        @Override
+        public LengthAbleInputStream get(String path, Long offset, Long size) throws IOException {
+            this.getCount.incrementAndGet();
+            var in = super.get(path);
+            in.skipNBytes(offset);
+            return new LengthAbleInputStream(new ByteArrayInputStream(in.readNBytes(size.intValue())), size);
+        }
+
+        // the content is read at once, so that later writes do not change it
+        @Override
+        public CompletableFuture<AsyncContent> getAsync(String path, Long offset, Long size) {
+            this.getCount.incrementAndGet();
+            try {
+                var in = super.get(path);
+                if (offset != null && size != null) {
+                    in.skipNBytes(offset);
+                }
+                var bytes = size == null ? in.readAllBytes() : in.readNBytes(size.intValue());
+                return CompletableFuture.completedFuture(new AsyncContent(bytes.length,
+                        new InputStreamPublisher(new ByteArrayInputStream(bytes), ForkJoinPool.commonPool())));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Metrics.addRegistry(this.meterRegistry);
+        this.storage = new CountingStorage(this.rootDir.getAbsolutePath());
+        this.cache = this.createCache(100, 0);
+        this.storage.put("a", "0123456789".getBytes(StandardCharsets.UTF_8));
+        this.storage.put("b", "abcdefghij".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Metrics.removeRegistry(this.meterRegistry);
+    }
+
+    private CachingStorageAccessService createCache(long maxBytes, long validateIntervalMillis) throws IOException {
+        return new CachingStorageAccessService(this.storage, StorageCacheConfig.builder()
+                .enabled(true)
+                .dir(this.cacheDir.getAbsolutePath())
+                .maxBytes(maxBytes)
+                .validateIntervalMillis(validateIntervalMillis)
+                .build());
+    }
+
+    private String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private String read(AsyncContent content) {
+        return new String(content.toBytes().join(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGet() throws IOException {
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.cache.get("a").getSize(), is(10L));
+        assertThat(this.storage.getCount.get(), is(1));
+        assertThat(this.cache.getTotalBytes(), is(10L));
+        assertThat(this.meterRegistry.counter(CachingStorageAccessService.MISSES_METRIC).count(), is(1.0));
+        assertThat(this.meterRegistry.counter(CachingStorageAccessService.HITS_METRIC).count(), is(2.0));
+    }
+
+    @Test
+    public void testGetRange() throws IOException {
+        assertThat(this.read(this.cache.get("a", 2L, 3L)), is("234"));
+        assertThat(this.read(this.cache.get("a", 2L, 3L)), is("234"));
+        assertThat(this.storage.getCount.get(), is(1));
+        assertThat(this.cache.getTotalBytes(), is(3L));
+        assertThat(this.read(this.cache.get("a", 8L, 5L)), is("89"));
+        assertThat(this.storage.getCount.get(), is(2));
+
+        // ranges are read from the whole object once it is cached
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.read(this.cache.get("a", 5L, 2L)), is("56"));
+        assertThat(this.cache.get("a", 5L, 2L).getSize(), is(2L));
+        assertThat(this.read(this.cache.get("a", 8L, 5L)), is("89"));
+        assertThat(this.storage.getCount.get(), is(3));
+    }
+
+    @Test
+    public void testGetAsync() throws IOException {
+        var content = this.cache.getAsync("a", null, null).join();
+        assertThat(content.getSize(), is(10L));
+        assertThat(this.read(content), is("0123456789"));
+        assertThat(this.read(this.cache.getAsync("a", null, null).join()), is("0123456789"));
+        assertThat(this.read(this.cache.getAsync("a", 2L, 3L).join()), is("234"));
+        assertThat(this.read(this.cache.getAsync("a", 8L, 5L).join()), is("89"));
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.storage.getCount.get(), is(1));
+        assertThat(this.cache.getTotalBytes(), is(10L));
+        assertThat(this.meterRegistry.counter(CachingStorageAccessService.MISSES_METRIC).count(), is(1.0));
+        assertThat(this.meterRegistry.counter(CachingStorageAccessService.HITS_METRIC).count(), is(4.0));
+
+        assertThat(this.read(this.cache.getAsync("b", 1L, 2L).join()), is("bc"));
+        assertThat(this.read(this.cache.get("b", 1L, 2L)), is("bc"));
+        assertThat(this.storage.getCount.get(), is(2));
+        assertThat(this.cache.getTotalBytes(), is(12L));
+    }
+
+    @Test
+    public void testStaleFill() throws IOException {
+        this.cache = this.createCache(100, 3600000);
+        var content = this.cache.getAsync("a", null, null).join();
+        this.cache.put("a", "9876543210".getBytes(StandardCharsets.UTF_8));
+        // the content was read before the write
+        assertThat(this.read(content), is("0123456789"));
+        assertThat(this.cache.getTotalBytes(), is(0L));
+        assertThat(this.read(this.cache.getAsync("a", null, null).join()), is("9876543210"));
+        assertThat(this.read(this.cache.get("a")), is("9876543210"));
+        assertThat(this.storage.getCount.get(), is(2));
+    }
+
+    @Test
+    public void testCancelledFill() throws IOException {
+        this.cache.getAsync("a", null, null).join().getPublisher().subscribe(new Subscriber<>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(ByteBuffer byteBuffer) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertThat(this.cache.getTotalBytes(), is(0L));
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.storage.getCount.get(), is(2));
+        assertThat(this.cache.getTotalBytes(), is(10L));
+    }
+
+    @Test
+    public void testValidation() throws IOException {
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.read(this.cache.get("a", 1L, 1L)), is("1"));
+        // changed without the cache
+        this.storage.put("a", "9876543210".getBytes(StandardCharsets.UTF_8));
+        assertThat(this.read(this.cache.get("a")), is("9876543210"));
+        assertThat(this.read(this.cache.get("a", 1L, 1L)), is("8"));
+        assertThat(this.storage.getCount.get(), is(2));
+    }
+
+    @Test
+    public void testValidateInterval() throws IOException {
+        this.cache = this.createCache(100, 3600000);
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        this.storage.put("a", "9876543210".getBytes(StandardCharsets.UTF_8));
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        this.cache.put("a", "xyz".getBytes(StandardCharsets.UTF_8));
+        assertThat(this.read(this.cache.get("a")), is("xyz"));
+        this.cache.delete("a");
+        assertThrows(FileNotFoundException.class, () -> this.cache.get("a"));
+        assertThat(this.cache.getTotalBytes(), is(0L));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        this.cache = this.createCache(25, 0);
+        this.storage.put("c", "ABCDEFGHIJ".getBytes(StandardCharsets.UTF_8));
+        this.read(this.cache.get("a"));
+        this.read(this.cache.get("b"));
+        this.read(this.cache.get("a"));
+        // b is the least recently used
+        this.read(this.cache.get("c"));
+        assertThat(this.cache.getTotalBytes(), is(20L));
+        assertThat(this.storage.getCount.get(), is(3));
+        this.read(this.cache.get("a"));
+        assertThat(this.storage.getCount.get(), is(3));
+        this.read(this.cache.get("b"));
+        assertThat(this.storage.getCount.get(), is(4));
+        assertThat(this.meterRegistry.counter(CachingStorageAccessService.EVICTIONS_METRIC).count(), is(2.0));
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        this.cache = this.createCache(5, 0);
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.read(this.cache.get("a")), is("0123456789"));
+        assertThat(this.storage.getCount.get(), is(2));
+        assertThat(this.cache.getTotalBytes(), is(0L));
+    }
+
+    @Test
+    public void testMissing() {
+        assertThrows(FileNotFoundException.class, () -> this.cache.get("x"));
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        this.storage.getLatch = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 4; ++i) {
+                results.add(executor.submit(() -> this.read(this.cache.get("a"))));
+            }
+            while (this.storage.getCount.get() == 0) {
+                Thread.sleep(10);
+            }
+            // give the other readers a chance to miss too
+            Thread.sleep(100);
+            this.storage.getLatch.countDown();
+            for (var result : results) {
+                assertThat(result.get(), is("0123456789"));
+            }
+            assertThat(this.storage.getCount.get(), is(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures small random range reads of a hot file, with and without memory mapping.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageAccessServiceFileBenchmark {
+
+    private static final int FILE_SIZE = 67108864;
+
+    @Param({"4096", "65536"})
+    public int rangeSize;
+
+    @Param({"false", "true"})
+    public boolean mmap;
+
+    private File rootDir;
+
+    private StorageAccessServiceFile storage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = Files.createTempDirectory("sw_fs_benchmark").toFile();
+        this.storage = new StorageAccessServiceFile(this.rootDir.getAbsolutePath(), this.mmap ? FILE_SIZE : 0);
+        var data = new byte[FILE_SIZE];
+        new Random(0).nextBytes(data);
+        this.storage.put("t", data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.storage.delete("t");
+        //noinspection ResultOfMethodCallIgnored
+        this.rootDir.delete();
+    }
+
+    @Benchmark
+    public byte[] getRange() throws IOException {
+        long offset = ThreadLocalRandom.current().nextInt(FILE_SIZE - this.rangeSize);
+        try (var in = this.storage.get("t", offset, (long) this.rangeSize)) {
+            return in.readAllBytes();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StorageAccessServiceFileBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -18,11 +18,16 @@ package ai.starwhale.mlops.storage.fs;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -47,6 +52,10 @@ public class StorageAccessServiceFileTest {
         this.service.put("t/t3", "c:t/t3".getBytes(StandardCharsets.UTF_8));
         this.service.put("d/a", "c:d/a".getBytes(StandardCharsets.UTF_8));
         assertThat(this.service.list("t").collect(Collectors.toList()), is(List.of("t/t3", "t1", "t2")));
+        assertThat(this.service.listSummaries("t")
+                        .map(s -> s.getPath() + ":" + s.getContentLength())
+                        .collect(Collectors.toList()),
+                is(List.of("t/t3:6", "t1:4", "t2:4")));
         try (var in = this.service.get("t1")) {
             assertThat(in.readAllBytes(), is("c:t1".getBytes(StandardCharsets.UTF_8)));
         }
@@ -62,4 +71,86 @@ public class StorageAccessServiceFileTest {
         assertThat(this.rootDir.exists(), is(true));
     }
 
+    @Test
+    public void testGetAsync() throws IOException {
+        var data = new byte[200000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        this.service.put("t", data);
+        var content = this.service.getAsync("t", null, null).join();
+        assertThat(content.getSize(), is((long) data.length));
+        assertThat(content.toBytes().join(), is(data));
+        content = this.service.getAsync("t", 100000L, 150000L).join();
+        assertThat(content.getSize(), is(100000L));
+        assertThat(content.toBytes().join(), is(Arrays.copyOfRange(data, 100000, 200000)));
+        assertThat(this.service.headAsync("t").join().getContentLength(), is((long) data.length));
+        assertThat(this.service.headAsync("x").join().isExists(), is(false));
+        var e = assertThrows(CompletionException.class, () -> this.service.getAsync("x", null, null).join());
+        assertThat(e.getCause() instanceof FileNotFoundException, is(true));
+    }
+
+    @Test
+    public void testGetRange() throws IOException {
+        var data = new byte[1000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        this.service.put("t", data);
+        try (var in = this.service.get("t", 100L, 200L)) {
+            assertThat(in.getSize(), is(200L));
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data, 100, 300)));
+        }
+        try (var in = this.service.get("t", 900L, 200L)) {
+            assertThat(in.getSize(), is(100L));
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data, 900, 1000)));
+        }
+        try (var in = this.service.get("t", 100L, null)) {
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data, 100, 1000)));
+        }
+        assertThrows(FileNotFoundException.class, () -> this.service.get("x", 0L, 1L));
+        assertThat(this.service.localFile("t"), is(new File(this.rootDir, "t")));
+        assertThat(this.service.localFile("x"), nullValue());
+    }
+
+    @Test
+    public void testGetRangeMapped() throws IOException {
+        var service = new StorageAccessServiceFile(this.rootDir.getAbsolutePath(), 3000);
+        var data = new byte[1000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        service.put("t1", data);
+        service.put("t2", data);
+        service.put("t3", data);
+        try (var in = service.get("t1", 100L, 200L)) {
+            assertThat(in.getSize(), is(200L));
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data, 100, 300)));
+        }
+        try (var in = service.get("t1", 900L, 200L)) {
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data, 900, 1000)));
+        }
+        // replaced files are remapped
+        var data2 = Arrays.copyOf(data, 500);
+        data2[0] = -1;
+        service.put("t1", data2);
+        try (var in = service.get("t1", 0L, 10L)) {
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data2, 0, 10)));
+        }
+        try (var in = service.get("t1", 400L, 200L)) {
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data2, 400, 500)));
+        }
+        service.get("t2", 0L, 1L).close();
+        service.get("t3", 0L, 1L).close();
+        try (var in = service.get("t2", 1L, 1L)) {
+            assertThat(in.readAllBytes(), is(new byte[]{1}));
+        }
+        service.delete("t2");
+        assertThrows(FileNotFoundException.class, () -> service.get("t2", 0L, 1L));
+        // large files are not mapped
+        service.put("t4", new byte[4000]);
+        try (var in = service.get("t4", 3990L, 100L)) {
+            assertThat(in.readAllBytes(), is(new byte[10]));
+        }
+    }
 }
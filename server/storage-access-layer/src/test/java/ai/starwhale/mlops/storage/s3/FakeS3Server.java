@@ -0,0 +1,303 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.s3;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+
+/**
+ * An in-process S3 stand-in which supports the requests StorageAccessServiceS3 sends for putting and getting objects.
+ * Each request body and response body is transferred at no more than the given rate, which simulates the throughput
+ * limit of a single connection to a remote object store.
+ */
+public class FakeS3Server implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 65536;
+
+    private final HttpServer server;
+
+    private final String bucket;
+
+    private final long bytesPerSecond;
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    // computed once per object, since range requests would hash the whole object otherwise
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+    private final AtomicInteger uploadIdGenerator = new AtomicInteger();
+
+    @Getter
+    private final AtomicInteger rangeGetCount = new AtomicInteger();
+
+    @Getter
+    private final AtomicInteger uploadPartCount = new AtomicInteger();
+
+    /**
+     * Starts a server listening on a random local port.
+     *
+     * @param bytesPerSecond the transfer rate of each request, unlimited if not positive
+     */
+    public FakeS3Server(String bucket, long bytesPerSecond) throws IOException {
+        this.bucket = bucket;
+        this.bytesPerSecond = bytesPerSecond;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("fake-s3-%d")
+                .setDaemon(true)
+                .build()));
+        this.server.createContext("/", exchange -> {
+            try (exchange) {
+                this.handle(exchange);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        });
+        this.server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    public byte[] getObject(String key) {
+        return this.objects.get(key);
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        var query = parseQuery(exchange.getRequestURI().getRawQuery());
+        var key = this.parseKey(exchange);
+        var method = exchange.getRequestMethod();
+        if (key.isEmpty()) {
+            if (method.equals("GET") && query.containsKey("uploads")) {
+                this.sendXml(exchange, "<ListMultipartUploadsResult><Bucket>" + this.bucket
+                        + "</Bucket><IsTruncated>false</IsTruncated></ListMultipartUploadsResult>");
+                return;
+            }
+        } else if (method.equals("POST") && query.containsKey("uploads")) {
+            var uploadId = String.valueOf(this.uploadIdGenerator.incrementAndGet());
+            this.uploads.put(uploadId, new TreeMap<>());
+            this.sendXml(exchange, "<InitiateMultipartUploadResult><Bucket>" + this.bucket + "</Bucket><Key>" + key
+                    + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            return;
+        } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+            var data = this.readBody(exchange);
+            this.uploads.get(query.get("uploadId")).put(Integer.parseInt(query.get("partNumber")), data);
+            this.uploadPartCount.incrementAndGet();
+            this.sendEmpty(exchange, data);
+            return;
+        } else if (method.equals("POST") && query.containsKey("uploadId")) {
+            this.readBody(exchange);
+            var out = new ByteArrayOutputStream();
+            for (var part : this.uploads.remove(query.get("uploadId")).values()) {
+                out.writeBytes(part);
+            }
+            this.putObject(key, out.toByteArray());
+            this.sendXml(exchange, "<CompleteMultipartUploadResult><Bucket>" + this.bucket + "</Bucket><Key>" + key
+                    + "</Key><ETag>" + this.etags.get(key) + "</ETag></CompleteMultipartUploadResult>");
+            return;
+        } else if (method.equals("DELETE")) {
+            if (query.containsKey("uploadId")) {
+                this.uploads.remove(query.get("uploadId"));
+            } else {
+                this.objects.remove(key);
+                this.etags.remove(key);
+            }
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        } else if (method.equals("PUT")) {
+            var data = this.readBody(exchange);
+            this.putObject(key, data);
+            this.sendEmpty(exchange, data);
+            return;
+        } else if (method.equals("GET") || method.equals("HEAD")) {
+            var data = this.objects.get(key);
+            if (data == null) {
+                this.sendError(exchange, 404, "NoSuchKey");
+                return;
+            }
+            this.sendObject(exchange, data, this.etags.get(key), method.equals("HEAD"));
+            return;
+        }
+        this.sendError(exchange, 501, "NotImplemented");
+    }
+
+    private String parseKey(HttpExchange exchange) {
+        var path = exchange.getRequestURI().getPath();
+        var host = exchange.getRequestHeaders().getFirst("Host");
+        if (host != null && host.startsWith(this.bucket + ".")) {
+            // virtual hosted-style request
+            return path.substring(1);
+        }
+        var prefix = "/" + this.bucket;
+        if (path.length() <= prefix.length() + 1) {
+            return "";
+        }
+        return path.substring(prefix.length() + 1);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        var ret = new HashMap<String, String>();
+        if (query == null) {
+            return ret;
+        }
+        for (var param : query.split("&")) {
+            var index = param.indexOf('=');
+            if (index < 0) {
+                ret.put(param, "");
+            } else {
+                ret.put(param.substring(0, index), param.substring(index + 1));
+            }
+        }
+        return ret;
+    }
+
+    private void putObject(String key, byte[] data) {
+        this.etags.put(key, "\"" + md5(data) + "\"");
+        this.objects.put(key, data);
+    }
+
+    private void sendObject(HttpExchange exchange, byte[] data, String etag, boolean headOnly) throws IOException {
+        var headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/octet-stream");
+        headers.set("Accept-Ranges", "bytes");
+        var ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(etag)) {
+            this.sendError(exchange, 412, "PreconditionFailed");
+            return;
+        }
+        headers.set("ETag", etag);
+        var range = exchange.getRequestHeaders().getFirst("Range");
+        var start = 0;
+        var end = data.length - 1;
+        var status = 200;
+        if (range != null) {
+            var bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            if (start >= data.length) {
+                this.sendError(exchange, 416, "InvalidRange");
+                return;
+            }
+            end = Math.min(end, Integer.parseInt(bounds[1]));
+            status = 206;
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            this.rangeGetCount.incrementAndGet();
+        }
+        if (headOnly) {
+            headers.set("Content-Length", String.valueOf(data.length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, end - start + 1);
+        this.write(exchange.getResponseBody(), Arrays.copyOfRange(data, start, end + 1));
+    }
+
+    private void sendEmpty(HttpExchange exchange, byte[] data) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"" + md5(data) + "\"");
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void sendXml(HttpExchange exchange, String xml) throws IOException {
+        var data = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, data.length);
+        exchange.getResponseBody().write(data);
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        var data = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code></Error>")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, data.length);
+        exchange.getResponseBody().write(data);
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var in = exchange.getRequestBody();
+        var buf = new byte[CHUNK_SIZE];
+        var startTime = System.nanoTime();
+        long total = 0;
+        for (int n; (n = in.read(buf)) > 0; ) {
+            out.write(buf, 0, n);
+            total += n;
+            this.throttle(startTime, total);
+        }
+        return out.toByteArray();
+    }
+
+    private void write(OutputStream out, byte[] data) throws IOException {
+        var startTime = System.nanoTime();
+        for (int i = 0; i < data.length; i += CHUNK_SIZE) {
+            var len = Math.min(CHUNK_SIZE, data.length - i);
+            out.write(data, i, len);
+            this.throttle(startTime, i + len);
+        }
+    }
+
+    private void throttle(long startTime, long transferred) throws IOException {
+        if (this.bytesPerSecond <= 0) {
+            return;
+        }
+        var delayNanos = transferred * 1_000_000_000L / this.bytesPerSecond - (System.nanoTime() - startTime);
+        if (delayNanos > 0) {
+            try {
+                Thread.sleep(delayNanos / 1_000_000, (int) (delayNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            var digest = MessageDigest.getInstance("MD5").digest(data);
+            var sb = new StringBuilder();
+            for (var b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
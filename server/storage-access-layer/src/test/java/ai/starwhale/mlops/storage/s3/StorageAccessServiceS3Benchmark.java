@@ -0,0 +1,114 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how long it takes to put and get a huge file with different numbers of parts transferred at the same
+ * time. The fake server limits each connection to 32MB/s, like a single TCP stream to a remote object store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class StorageAccessServiceS3Benchmark {
+
+    private static final long BYTES_PER_SECOND = 32 * 1024 * 1024;
+
+    private static final int PART_SIZE = 8 * 1024 * 1024;
+
+    @Param({"134217728"})
+    public int fileSize;
+
+    @Param({"1", "4", "8"})
+    public int concurrency;
+
+    private FakeS3Server server;
+
+    private StorageAccessServiceS3 s3;
+
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.server = new FakeS3Server("test", BYTES_PER_SECOND);
+        this.s3 = new StorageAccessServiceS3(S3Config.builder()
+                .bucket("test")
+                .accessKey("ak")
+                .secretKey("sk")
+                .region("us-west-1")
+                .endpoint(this.server.getEndpoint())
+                .hugeFileThreshold(PART_SIZE)
+                .hugeFilePartSize(PART_SIZE)
+                .hugeFileConcurrency(this.concurrency)
+                .build());
+        this.data = new byte[this.fileSize];
+        new Random(0).nextBytes(this.data);
+        this.s3.put("get", new ByteArrayInputStream(this.data), this.data.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.server.close();
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        this.s3.put("put", new ByteArrayInputStream(this.data), this.data.length);
+    }
+
+    @Benchmark
+    public void get(Blackhole blackhole) throws IOException {
+        var buf = new byte[65536];
+        try (var in = this.s3.get("get")) {
+            for (int n; (n = in.read(buf)) > 0; ) {
+                blackhole.consume(n);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StorageAccessServiceS3Benchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -22,6 +22,7 @@ import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 
+import ai.starwhale.mlops.storage.StorageObjectSummary;
 import com.adobe.testing.s3mock.testcontainers.S3MockContainer;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -29,6 +30,7 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.junit.jupiter.Container;
@@ -99,7 +101,8 @@ public class StorageAccessServiceS3Test {
                         .secretKey("sk")
                         .region("us-west-1")
                         .endpoint(s3Mock.getHttpEndpoint())
-                        .build());
+                        .build())
+                .abortPendingMultipartUploads();
         assertThat(this.client.listMultipartUploads(ListMultipartUploadsRequest.builder()
                         .bucket("test")
                         .build()).uploads(),
@@ -114,12 +117,37 @@ public class StorageAccessServiceS3Test {
     }
 
     @Test
-    public void testList() {
+    public void testList() throws IOException {
         assertThat(this.s3.list("").collect(Collectors.toList()), containsInAnyOrder("t1", "t2", "t/1", "t/2", "x"));
         assertThat(this.s3.list("t").collect(Collectors.toList()), containsInAnyOrder("t1", "t2", "t/1", "t/2"));
         assertThat(this.s3.list("t/").collect(Collectors.toList()), containsInAnyOrder("t/1", "t/2"));
     }
 
+    @Test
+    public void testListManyPages() throws IOException {
+        for (int i = 0; i < 2500; ++i) {
+            this.client.putObject(PutObjectRequest.builder().bucket("test").key("m/" + i).build(),
+                    RequestBody.fromString("" + i));
+        }
+        try {
+            assertThat(this.s3.list("m/").count(), is(2500L));
+            assertThat(this.s3.listSummaries("m/").mapToLong(StorageObjectSummary::getContentLength).sum(),
+                    is(IntStream.range(0, 2500).mapToLong(i -> String.valueOf(i).length()).sum()));
+        } finally {
+            for (int i = 0; i < 2500; ++i) {
+                this.s3.delete("m/" + i);
+            }
+        }
+    }
+
+    @Test
+    public void testListSummaries() throws IOException {
+        assertThat(this.s3.listSummaries("t/")
+                        .map(s -> s.getPath() + ":" + s.getContentLength())
+                        .collect(Collectors.toList()),
+                containsInAnyOrder("t/1:1", "t/2:1"));
+    }
+
     @Test
     public void testGet() throws IOException {
         assertThat(new String(this.s3.get("t1").readAllBytes()), is("a"));
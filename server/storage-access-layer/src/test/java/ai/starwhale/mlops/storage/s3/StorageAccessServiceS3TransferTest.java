@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.s3;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests parallel multipart uploads and ranged downloads against {@link FakeS3Server}, which does not need Docker.
+ */
+public class StorageAccessServiceS3TransferTest {
+
+    private static final int PART_SIZE = 1024 * 1024;
+
+    private FakeS3Server server;
+
+    private StorageAccessServiceS3 s3;
+
+    private byte[] data;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        this.server = new FakeS3Server("test", 0);
+        this.s3 = this.createService(4);
+        this.data = new byte[PART_SIZE * 5 + 123];
+        for (int i = 0; i < this.data.length; ++i) {
+            this.data[i] = (byte) (i * 31 + i / 256);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.server.close();
+    }
+
+    private StorageAccessServiceS3 createService(int concurrency) {
+        return new StorageAccessServiceS3(S3Config.builder()
+                .bucket("test")
+                .accessKey("ak")
+                .secretKey("sk")
+                .region("us-west-1")
+                .endpoint(this.server.getEndpoint())
+                .hugeFileThreshold(2 * PART_SIZE)
+                .hugeFilePartSize(PART_SIZE)
+                .hugeFileConcurrency(concurrency)
+                .build());
+    }
+
+    @Test
+    public void testPutInParallel() throws IOException {
+        this.s3.put("t", new ByteArrayInputStream(this.data), this.data.length);
+        assertThat(this.server.getUploadPartCount().get(), is(6));
+        assertThat(this.server.getObject("t"), is(this.data));
+    }
+
+    @Test
+    public void testPutSequentially() throws IOException {
+        this.createService(1).put("t", new ByteArrayInputStream(this.data), this.data.length);
+        assertThat(this.server.getUploadPartCount().get(), is(6));
+        assertThat(this.server.getObject("t"), is(this.data));
+    }
+
+    @Test
+    public void testPutShortStream() {
+        assertThrows(IOException.class, () -> this.s3.put("t",
+                new ByteArrayInputStream(this.data, 0, this.data.length - 1), this.data.length));
+        assertThat(this.server.getObject("t"), is((byte[]) null));
+    }
+
+    @Test
+    public void testGetInParallel() throws IOException {
+        this.s3.put("t", new ByteArrayInputStream(this.data), this.data.length);
+        try (var in = this.s3.get("t")) {
+            assertThat(in.getSize(), is((long) this.data.length));
+            assertThat(in.readAllBytes(), is(this.data));
+        }
+        assertThat(this.server.getRangeGetCount().get(), is(6));
+    }
+
+    @Test
+    public void testGetByteByByte() throws IOException {
+        this.s3.put("t", new ByteArrayInputStream(this.data), this.data.length);
+        try (InputStream in = this.s3.get("t")) {
+            for (int i = 0; i < this.data.length; ++i) {
+                assertThat(in.read(), is(this.data[i] & 0xff));
+            }
+            assertThat(in.read(), is(-1));
+        }
+    }
+
+    @Test
+    public void testGetSmallObject() throws IOException {
+        this.s3.put("t", "abc".getBytes());
+        this.s3.put("e", new byte[0]);
+        assertThat(this.s3.get("t").readAllBytes(), is("abc".getBytes()));
+        assertThat(this.s3.get("e").readAllBytes(), is(new byte[0]));
+        assertThat(this.s3.get("e").getSize(), is(0L));
+    }
+
+    @Test
+    public void testGetAsync() throws IOException {
+        this.s3.put("t", new ByteArrayInputStream(this.data), this.data.length);
+        var content = this.s3.getAsync("t", null, null).join();
+        assertThat(content.getSize(), is((long) this.data.length));
+        assertThat(content.toBytes().join(), is(this.data));
+        assertThat(this.server.getRangeGetCount().get(), is(6));
+        this.s3.put("e", new byte[0]);
+        content = this.s3.getAsync("e", null, null).join();
+        assertThat(content.getSize(), is(0L));
+        assertThat(content.toBytes().join(), is(new byte[0]));
+        assertThat(this.createService(1).getAsync("t", null, null).join().toBytes().join(), is(this.data));
+        assertThat(this.s3.getAsync("t", 10L, 20L).join().toBytes().join(),
+                is(Arrays.copyOfRange(this.data, 10, 30)));
+        assertThat(this.s3.headAsync("t").join().getContentLength(), is((long) this.data.length));
+        assertThat(this.s3.headAsync("x").join().isExists(), is(false));
+        assertThrows(CompletionException.class, () -> this.s3.getAsync("x", null, null).join());
+    }
+
+    @Test
+    public void testGetRange() throws IOException {
+        this.s3.put("t", new ByteArrayInputStream(this.data), this.data.length);
+        assertThat(this.s3.get("t", 10L, (long) PART_SIZE * 2).readAllBytes(),
+                is(Arrays.copyOfRange(this.data, 10, 10 + PART_SIZE * 2)));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Starwhale, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.starwhale.mlops.storage.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class PrefetchingPageIteratorTest {
+
+    @Test
+    public void testPages() throws IOException {
+        var tokens = Collections.synchronizedList(new ArrayList<String>());
+        var pages = List.of(List.of(1, 2), List.<Integer>of(), List.of(3), List.of(4, 5));
+        var result = PrefetchingPageIterator.stream(token -> {
+            tokens.add(token);
+            var index = token == null ? 0 : Integer.parseInt(token);
+            return new PrefetchingPageIterator.Page<>(pages.get(index),
+                    index + 1 < pages.size() ? String.valueOf(index + 1) : null);
+        }).collect(Collectors.toList());
+        assertThat(result, is(List.of(1, 2, 3, 4, 5)));
+        assertThat(tokens, is(Arrays.asList(null, "1", "2", "3")));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        var it = new PrefetchingPageIterator<>(token -> new PrefetchingPageIterator.Page<>(List.of(), null));
+        assertThat(it.hasNext(), is(false));
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        assertThrows(IOException.class, () -> new PrefetchingPageIterator<>(token -> {
+            throw new IOException("first page");
+        }));
+        var it = new PrefetchingPageIterator<>(token -> {
+            if (token == null) {
+                return new PrefetchingPageIterator.Page<>(List.of(1), "next");
+            }
+            throw new IOException("next page");
+        });
+        assertThat(it.next(), is(1));
+        assertThrows(UncheckedIOException.class, it::hasNext);
+    }
+}